@@ -0,0 +1,140 @@
+package com.jacemcpherson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The crypto primitives and record sealing, as timed by <code>Main --benchmark</code> (see
+ * {@link com.jacemcpherson.Benchmark}), but run by JMH: each benchmark gets forked JVMs of its own, and results
+ * go into a {@link Blackhole}, so numbers from different benchmarks and different runs can be compared.
+ * <br><br>
+ * Payloads come from the same fixed seed as the in-tree harness.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CryptoBenchmark {
+
+    private static final long PAYLOAD_SEED = 42;
+
+    @Param({ "30", "1024", "65536", "1048576" })
+    public int size;
+
+    private SecretKey mSecretKey;
+    private PublicKey mPublicKey;
+    private byte[] mMessage;
+    private byte[] mEncrypted;
+    private byte[] mBulkEncrypted;
+    private byte[] mSignature;
+    private RecordLayer mRecordLayer;
+    private ByteBuffer mMessageBuffer;
+    private byte[] mHmac;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        // keep the key generation and protocol logging out of the measurements
+        Console.setLevel(Console.LogType.INFO);
+
+        mSecretKey = AESEncryptionUtil.generateSecretKey();
+        mPublicKey = RSAEncryptionUtil.getPublicKey();
+
+        mMessage = new byte[size];
+        new Random(PAYLOAD_SEED).nextBytes(mMessage);
+        mEncrypted = AESEncryptionUtil.encryptMessage(mSecretKey, mMessage);
+        mBulkEncrypted = ParallelAESUtil.encryptMessage(mSecretKey, mMessage);
+        mSignature = RSAEncryptionUtil.signMessage(mMessage);
+
+        mRecordLayer = new RecordLayer(mSecretKey, false);
+        mMessageBuffer = BufferPool.getDefault().acquire(size);
+        mMessageBuffer.put(mMessage).flip();
+        mHmac = new byte[32];
+    }
+
+    @TearDown
+    public void tearDown() {
+        BufferPool.getDefault().release(mMessageBuffer);
+    }
+
+    @Benchmark
+    public byte[] aesEncryptMessage() {
+        return AESEncryptionUtil.encryptMessage(mSecretKey, mMessage);
+    }
+
+    @Benchmark
+    public byte[] aesDecryptMessage() {
+        return AESEncryptionUtil.decryptMessage(mSecretKey, mEncrypted);
+    }
+
+    @Benchmark
+    public byte[] aesEncryptParallel() {
+        return ParallelAESUtil.encryptMessage(mSecretKey, mMessage);
+    }
+
+    @Benchmark
+    public byte[] aesDecryptParallel() {
+        return ParallelAESUtil.decryptMessage(mSecretKey, mBulkEncrypted);
+    }
+
+    @Benchmark
+    public byte[] sha256GetHMAC() {
+        return SHA256Util.getHMAC(mSecretKey, mMessage);
+    }
+
+    @Benchmark
+    public void sha256GetHMACPooled(Blackhole blackhole) {
+        blackhole.consume(SHA256Util.getHMAC(mSecretKey, mMessageBuffer.duplicate(), mHmac));
+        blackhole.consume(mHmac);
+    }
+
+    @Benchmark
+    public byte[] rsaSignMessage() {
+        return RSAEncryptionUtil.signMessage(mMessage);
+    }
+
+    @Benchmark
+    public boolean rsaVerifySignature() {
+        return RSAEncryptionUtil.verifySignature(mPublicKey, mMessage, mSignature);
+    }
+
+    /**
+     * Flags go through {@link RecordLayer#markKeyUpdate(byte)}, as a session's would, so the occasional key update
+     * over a long run is part of the measurement.
+     */
+    @Benchmark
+    public byte[] recordSeal() {
+        return mRecordLayer.seal(mRecordLayer.markKeyUpdate(Frame.FLAG_NONE), mMessage);
+    }
+
+    @Benchmark
+    public boolean recordSealPooled() {
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer record = pool.acquire(size + RecordLayer.TAG_SIZE);
+        try {
+            byte flags = mRecordLayer.markKeyUpdate(Frame.FLAG_NONE);
+            return mRecordLayer.seal(Frame.TYPE_RECORD, flags, mMessageBuffer.duplicate(), record);
+        } finally {
+            pool.release(record);
+        }
+    }
+}
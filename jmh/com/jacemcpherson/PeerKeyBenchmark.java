@@ -0,0 +1,49 @@
+package com.jacemcpherson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A returning peer's public key, decoded from scratch with {@link KeyFactory}, against taken from the
+ * {@link PeerKeyCache} by {@link RSAEncryptionUtil#parsePublicKey(byte[])}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PeerKeyBenchmark {
+
+    private byte[] mEncodedPublicKey;
+
+    @Setup
+    public void setUp() {
+        Console.setLevel(Console.LogType.INFO);
+        mEncodedPublicKey = RSAEncryptionUtil.getPublicKey().getEncoded();
+    }
+
+    @Benchmark
+    public PublicKey rsaDecodePublicKey() throws GeneralSecurityException {
+        return KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(mEncodedPublicKey));
+    }
+
+    @Benchmark
+    public PublicKey rsaParsePublicKey() {
+        return RSAEncryptionUtil.parsePublicKey(mEncodedPublicKey);
+    }
+}
@@ -10,15 +10,16 @@ import java.util.Random;
  * A class for encrypting and decrypting messages using an AES cipher. This class also maintains the
  * shared secret key between Alice and Bob, as well as provides methods for preparing that key for
  * sending/receiving as a byte[] array.
+ * <br><br>
+ * The shared secret key lives in {@link CryptoSession#getDefault()}; the methods without a key argument are
+ * shortcuts for that session. Ciphers are pooled by {@link CryptoContexts}.
  */
 public class AESEncryptionUtil {
 
-    private static SecretKey sSecretKey;
-    private static Cipher sEncryptCipher;
-    private static Cipher sDecryptCipher;
+    static final String TRANSFORMATION = "AES";
 
     public static boolean isInitialized() {
-        return sSecretKey != null;
+        return CryptoSession.getDefault().hasSecretKey();
     }
 
     public static SecretKey getSecretKey() {
@@ -26,7 +27,7 @@ public class AESEncryptionUtil {
             setupAES();
         }
 
-        return sSecretKey;
+        return CryptoSession.getDefault().getSecretKey();
     }
 
     public static byte[] getSecretKeyEncoded() {
@@ -34,41 +35,88 @@ public class AESEncryptionUtil {
     }
 
     public static void decodeSecretKey(byte[] secretKey) {
-        sSecretKey = new SecretKeySpec(secretKey, 0, secretKey.length, "AES");
-
-        setupCiphers();
+        CryptoSession.getDefault().setSecretKey(toSecretKey(secretKey));
     }
 
     /**
-     * Encrypts a byte[] message using the shared secret key.
-     * @param inMessage
-     * @return "inMessage" encrypted with AES using {@link #sSecretKey}
+     * Wraps an encoded AES key (as sent by the other party) in a {@link SecretKey}, without touching the shared
+     * secret key held by this class.
+     * @param secretKey the raw key bytes
+     * @return a {@link SecretKey} for "secretKey"
      */
-    public static byte[] encryptMessage(byte[] inMessage) {
-        if (!isInitialized()) {
-            setupAES();
-        }
+    public static SecretKey toSecretKey(byte[] secretKey) {
+        return new SecretKeySpec(secretKey, 0, secretKey.length, "AES");
+    }
 
+    /**
+     * Generates a new random 128-bit AES key. Unlike {@link #getSecretKey()}, the result is not stored in this
+     * class, so it is suitable for per-session keys.
+     * @return a new AES {@link SecretKey}, or <code>null</code> if AES is unavailable
+     */
+    public static SecretKey generateSecretKey() {
         try {
-            return sEncryptCipher.doFinal(inMessage);
+            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(128);
+
+            return keyGenerator.generateKey();
         } catch (Exception e) {
             Console.exception(e);
             return null;
         }
     }
 
+    /**
+     * Encrypts a byte[] message using the shared secret key.
+     * @param inMessage
+     * @return "inMessage" encrypted with AES using the shared secret key
+     */
+    public static byte[] encryptMessage(byte[] inMessage) {
+        return encryptMessage(getSecretKey(), inMessage);
+    }
+
     /**
      * Decrypts a byte[] message using the shared secret key
      * @param inMessage
-     * @return "inMessage" decrypted with AES using {@link #sSecretKey}
+     * @return "inMessage" decrypted with AES using the shared secret key
      */
     public static byte[] decryptMessage(byte[] inMessage) {
-        if (!isInitialized()) {
-            setupAES();
+        return decryptMessage(getSecretKey(), inMessage);
+    }
+
+    /**
+     * Encrypts a byte[] message using the given secret key.
+     * @param secretKey the session key to encrypt with
+     * @param inMessage
+     * @return "inMessage" encrypted with AES using "secretKey"
+     */
+    public static byte[] encryptMessage(SecretKey secretKey, byte[] inMessage) {
+        try {
+            long start = System.nanoTime();
+            byte[] encrypted = CryptoContexts.cipher(
+                    TRANSFORMATION, Cipher.ENCRYPT_MODE, secretKey, cipher -> cipher.doFinal(inMessage)
+            );
+            Metrics.AES_ENCRYPT.recordSince(start);
+            return encrypted;
+        } catch (Exception e) {
+            Console.exception(e);
+            return null;
         }
+    }
 
+    /**
+     * Decrypts a byte[] message using the given secret key.
+     * @param secretKey the session key to decrypt with
+     * @param inMessage
+     * @return "inMessage" decrypted with AES using "secretKey"
+     */
+    public static byte[] decryptMessage(SecretKey secretKey, byte[] inMessage) {
         try {
-            return sDecryptCipher.doFinal(inMessage);
+            long start = System.nanoTime();
+            byte[] decrypted = CryptoContexts.cipher(
+                    TRANSFORMATION, Cipher.DECRYPT_MODE, secretKey, cipher -> cipher.doFinal(inMessage)
+            );
+            Metrics.AES_DECRYPT.recordSince(start);
+            return decrypted;
         } catch (Exception e) {
             Console.exception(e);
             return null;
@@ -84,31 +132,9 @@ public class AESEncryptionUtil {
         return message;
     }
 
-    private static void setupAES() {
-        try {
-            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
-            keyGenerator.init(128);
-
-            sSecretKey = keyGenerator.generateKey();
-
-            setupCiphers();
-        } catch (Exception e) {
-            Console.exception(e);
-            sSecretKey = null;
-        }
-    }
-
-    private static void setupCiphers() {
-        try {
-            sEncryptCipher = Cipher.getInstance("AES");
-            sEncryptCipher.init(Cipher.ENCRYPT_MODE, sSecretKey);
-
-            sDecryptCipher = Cipher.getInstance("AES");
-            sDecryptCipher.init(Cipher.DECRYPT_MODE, sSecretKey);
-        } catch (Exception e) {
-            Console.exception(e);
-            sEncryptCipher = null;
-            sDecryptCipher = null;
+    private static synchronized void setupAES() {
+        if (!isInitialized()) {
+            CryptoSession.getDefault().generateSecretKey();
         }
     }
 }
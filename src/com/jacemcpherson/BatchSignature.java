@@ -0,0 +1,95 @@
+package com.jacemcpherson;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * What a message needs in order to be verified as part of a signed batch: its position in the batch's
+ * {@link MerkleTree}, the proof linking it to the root, and the RSA signature over the root.
+ * <br><br>
+ * Encoded as:
+ * <pre>
+ *   | leaf count (4) | index (4) | proof length (1) | proof hashes (32 each) | signature length (2) | signature |
+ * </pre>
+ */
+public class BatchSignature {
+
+    private final int mLeafCount;
+    private final int mIndex;
+    private final byte[][] mProof;
+    private final byte[] mRootSignature;
+
+    public BatchSignature(int leafCount, int index, byte[][] proof, byte[] rootSignature) {
+        mLeafCount = leafCount;
+        mIndex = index;
+        mProof = proof;
+        mRootSignature = rootSignature;
+    }
+
+    public int getLeafCount() {
+        return mLeafCount;
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public byte[] getRootSignature() {
+        return mRootSignature;
+    }
+
+    /**
+     * @param leaf the message HMAC this signature was issued for
+     * @return the root of the batch, as implied by "leaf" and the proof; <code>null</code> if the proof is malformed
+     */
+    public byte[] computeRoot(byte[] leaf) {
+        try {
+            return MerkleTree.computeRoot(leaf, mIndex, mLeafCount, mProof);
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return null;
+        }
+    }
+
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(
+                4 + 4 + 1 + mProof.length * MerkleTree.HASH_SIZE + 2 + mRootSignature.length
+        );
+        buffer.putInt(mLeafCount);
+        buffer.putInt(mIndex);
+        buffer.put((byte) mProof.length);
+        for (byte[] hash : mProof) {
+            buffer.put(hash);
+        }
+        buffer.putShort((short) mRootSignature.length);
+        buffer.put(mRootSignature);
+        return buffer.array();
+    }
+
+    /**
+     * @return the decoded signature, or <code>null</code> if "encoded" is malformed
+     */
+    public static BatchSignature decode(byte[] encoded) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            int leafCount = buffer.getInt();
+            int index = buffer.getInt();
+
+            byte[][] proof = new byte[buffer.get() & 0xff][MerkleTree.HASH_SIZE];
+            for (byte[] hash : proof) {
+                buffer.get(hash);
+            }
+
+            byte[] rootSignature = new byte[buffer.getShort() & 0xffff];
+            buffer.get(rootSignature);
+
+            if (buffer.hasRemaining()) {
+                return null;
+            }
+            return new BatchSignature(leafCount, index, proof, rootSignature);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+}
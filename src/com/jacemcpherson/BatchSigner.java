@@ -0,0 +1,142 @@
+package com.jacemcpherson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signs messages in batches, so that one signature covers many messages. Each message is added as its HMAC; once
+ * "maxBatchSize" HMACs have been added, or "maxDelayMillis" have passed since the first one, they are built into
+ * a {@link MerkleTree} and only the root is signed. Every message then gets a {@link BatchSignature} holding
+ * the root signature and its own inclusion proof.
+ * <br><br>
+ * The receiving side verifies the root signature once per batch (see
+ * {@link CryptoSession#verifyBatchSignature(byte[], BatchSignature)}), and each further message in the same
+ * batch costs only a few hashes.
+ * <br><br>
+ * Safe to use from several threads at once. Signing happens on whichever thread fills the batch, or on the
+ * signer's timer thread when the delay runs out.
+ */
+public class BatchSigner {
+
+    private final CryptoSession mSession;
+    private final int mMaxBatchSize;
+    private final long mMaxDelayMillis;
+    private final ScheduledExecutorService mTimer;
+
+    private final Object mLock = new Object();
+
+    // guarded by mLock
+    private List<byte[]> mLeaves = new ArrayList<>();
+    private List<CompletableFuture<BatchSignature>> mPending = new ArrayList<>();
+    private ScheduledFuture<?> mScheduledFlush;
+    private boolean mClosed;
+
+    /**
+     * Constructs a signer that signs with the identity used by {@link CryptoSession#getDefault()}.
+     * @see #BatchSigner(CryptoSession, int, long)
+     */
+    public BatchSigner(int maxBatchSize, long maxDelayMillis) {
+        this(CryptoSession.getDefault(), maxBatchSize, maxDelayMillis);
+    }
+
+    /**
+     * @param session decides which identity key signs the batches; see {@link CryptoSession#signMessage(byte[])}
+     * @param maxBatchSize the number of messages that triggers signing straight away
+     * @param maxDelayMillis how long the first message of a batch may wait for others; 0 to only sign full
+     *                       batches (or on {@link #flush()})
+     */
+    public BatchSigner(CryptoSession session, int maxBatchSize, long maxDelayMillis) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+
+        mSession = session;
+        mMaxBatchSize = maxBatchSize;
+        mMaxDelayMillis = maxDelayMillis;
+        mTimer = maxDelayMillis > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BatchSigner");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Adds a message to the current batch.
+     * @param hmac the message's HMAC, as produced by {@link CryptoSession#getHMAC(byte[])}
+     * @return completes with the message's {@link BatchSignature} once its batch is signed, or with
+     * <code>null</code> if signing failed or the signer was closed first
+     */
+    public CompletableFuture<BatchSignature> add(byte[] hmac) {
+        CompletableFuture<BatchSignature> future = new CompletableFuture<>();
+        boolean full;
+
+        synchronized (mLock) {
+            if (mClosed) {
+                future.complete(null);
+                return future;
+            }
+
+            mLeaves.add(hmac);
+            mPending.add(future);
+            full = mLeaves.size() >= mMaxBatchSize;
+
+            if (!full && mLeaves.size() == 1 && mTimer != null) {
+                mScheduledFlush = mTimer.schedule(this::flush, mMaxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full) {
+            flush();
+        }
+        return future;
+    }
+
+    /**
+     * Signs the current batch now, however many messages it holds.
+     */
+    public void flush() {
+        List<byte[]> leaves;
+        List<CompletableFuture<BatchSignature>> pending;
+
+        synchronized (mLock) {
+            if (mLeaves.isEmpty()) {
+                return;
+            }
+
+            leaves = mLeaves;
+            pending = mPending;
+            mLeaves = new ArrayList<>();
+            mPending = new ArrayList<>();
+
+            if (mScheduledFlush != null) {
+                mScheduledFlush.cancel(false);
+                mScheduledFlush = null;
+            }
+        }
+
+        // sign outside the lock, so that the next batch can fill up in the meantime
+        BatchSignature[] signatures = mSession.signBatch(leaves);
+        for (int i = 0; i < pending.size(); i++) {
+            pending.get(i).complete(signatures == null ? null : signatures[i]);
+        }
+    }
+
+    /**
+     * Signs whatever is left in the current batch and stops the timer. Messages added afterwards are not signed.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+        }
+
+        flush();
+        if (mTimer != null) {
+            mTimer.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.jacemcpherson;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small benchmark harness for the crypto primitives, framing over loopback, and the complete handshake. Run it
+ * with <code>Main --benchmark [filter]</code>; only benchmarks whose name contains "filter" are run.
+ * <br><br>
+ * Each benchmark is warmed up for {@link #WARMUP_ITERATIONS} iterations and then measured for
+ * {@link #MEASUREMENT_ITERATIONS}, each lasting at least {@link #ITERATION_MILLIS}. The result is the average time
+ * per operation, with the standard deviation across the measured iterations. Payloads come from a fixed seed, so
+ * runs on the same machine and JDK can be compared with each other to catch regressions.
+ * <br><br>
+ * Results of every operation are fed into {@link #consume(Object)}, so the JIT cannot drop the work as dead code.
+ */
+public class Benchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+    private static final long ITERATION_MILLIS = 1000;
+
+    private static final long PAYLOAD_SEED = 42;
+    private static final int[] PAYLOAD_SIZES = { 30, 1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024 };
+
+    // the largest payload RSA-OAEP (SHA-1) can encrypt under a 2048 bit key is 214 bytes
+    private static final int[] RSA_PAYLOAD_SIZES = { 30, 214 };
+
+    private static final byte[] ACK = new byte[0];
+
+    // the number of frames in each burst of the send queue benchmarks, and the sizes they are timed at
+    private static final int BURST_SIZE = 256;
+    private static final int[] BURST_PAYLOAD_SIZES = { 30, 1024 };
+
+    private static volatile int sSink;
+
+    /**
+     * One timed operation. Whatever it returns is consumed, and <code>null</code> counts as a failure.
+     */
+    private interface Operation {
+        Object run() throws Exception;
+    }
+
+    /**
+     * Runs every benchmark whose name contains "filter", and logs the results.
+     * @param filter part of a benchmark name, or an empty string to run them all
+     */
+    public static void run(String filter) {
+        // the handshake and protocol steps log at DEBUG; keep them out of the measurements
+        Console.setLevel(Console.LogType.INFO);
+
+        Console.i("Benchmarking on Java %s (%s), %d processors",
+                System.getProperty("java.version"),
+                System.getProperty("java.vm.name"),
+                Runtime.getRuntime().availableProcessors());
+        Console.i("%d warmup and %d measurement iterations of %d ms each",
+                WARMUP_ITERATIONS, MEASUREMENT_ITERATIONS, ITERATION_MILLIS);
+        Console.i("%-28s %8s %16s %12s %12s", "Benchmark", "Size", "ns/op", "+/-", "MB/s");
+
+        runCryptoBenchmarks(filter);
+        runLoopbackBenchmarks(filter);
+        runSendQueueBenchmarks(filter);
+        runHandshakeBenchmarks(filter);
+
+        Console.flush();
+    }
+
+    private static void runCryptoBenchmarks(String filter) {
+        SecretKey secretKey = AESEncryptionUtil.generateSecretKey();
+        PublicKey publicKey = RSAEncryptionUtil.getPublicKey();
+
+        for (int size : PAYLOAD_SIZES) {
+            final byte[] message = generatePayload(size);
+            final byte[] encrypted = AESEncryptionUtil.encryptMessage(secretKey, message);
+            final byte[] bulkEncrypted = ParallelAESUtil.encryptMessage(secretKey, message);
+            final byte[] signature = RSAEncryptionUtil.signMessage(message);
+
+            measure(filter, "aes.encryptMessage", size,
+                    () -> AESEncryptionUtil.encryptMessage(secretKey, message));
+            measure(filter, "aes.decryptMessage", size,
+                    () -> AESEncryptionUtil.decryptMessage(secretKey, encrypted));
+            measure(filter, "aes.encryptParallel", size,
+                    () -> ParallelAESUtil.encryptMessage(secretKey, message));
+            measure(filter, "aes.decryptParallel", size,
+                    () -> ParallelAESUtil.decryptMessage(secretKey, bulkEncrypted));
+            measure(filter, "sha256.getHMAC", size,
+                    () -> SHA256Util.getHMAC(secretKey, message));
+            measure(filter, "rsa.signMessage", size,
+                    () -> RSAEncryptionUtil.signMessage(message));
+            measure(filter, "rsa.verifySignature", size,
+                    () -> RSAEncryptionUtil.verifySignature(publicKey, message, signature) ? Boolean.TRUE : null);
+            measure(filter, "string.bytesToHex", size,
+                    () -> StringUtil.bytesToHex(message));
+        }
+
+        runRecordBenchmarks(filter, secretKey);
+
+        for (int size : RSA_PAYLOAD_SIZES) {
+            final byte[] message = generatePayload(size);
+            measure(filter, "rsa.encryptMessage", size,
+                    () -> RSAEncryptionUtil.encryptMessage(publicKey, message));
+        }
+
+        // a returning peer's key, decoded from scratch against taken from the PeerKeyCache
+        final byte[] encodedKey = publicKey.getEncoded();
+        measure(filter, "rsa.decodePublicKey", encodedKey.length,
+                () -> KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encodedKey)));
+        measure(filter, "rsa.parsePublicKey", encodedKey.length,
+                () -> RSAEncryptionUtil.parsePublicKey(encodedKey));
+    }
+
+    /**
+     * Times {@link RecordLayer} sealing and HMACs with a new array for every result, against the same work done on
+     * buffers from a {@link BufferPool}, which allocates nothing once the pool is warm.
+     */
+    private static void runRecordBenchmarks(String filter, SecretKey secretKey) {
+        RecordLayer recordLayer;
+        try {
+            recordLayer = new RecordLayer(secretKey, false);
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return;
+        }
+
+        BufferPool pool = BufferPool.getDefault();
+        byte[] hmac = new byte[32];
+        for (int size : PAYLOAD_SIZES) {
+            if (size + RecordLayer.TAG_SIZE > BufferPool.MAX_POOLED_SIZE) {
+                // too large to pool, so every pooled run would allocate
+                continue;
+            }
+
+            final byte[] message = generatePayload(size);
+            final ByteBuffer messageBuffer = pool.acquire(size);
+            messageBuffer.put(message).flip();
+
+            measure(filter, "record.seal", size,
+                    () -> recordLayer.seal(Frame.FLAG_NONE, message));
+            measure(filter, "record.sealPooled", size, () -> {
+                ByteBuffer record = pool.acquire(size + RecordLayer.TAG_SIZE);
+                boolean sealed = recordLayer.seal(
+                        Frame.TYPE_RECORD, Frame.FLAG_NONE, messageBuffer.duplicate(), record
+                );
+                pool.release(record);
+                return sealed ? Boolean.TRUE : null;
+            });
+            measure(filter, "sha256.getHMACPooled", size,
+                    () -> SHA256Util.getHMAC(secretKey, messageBuffer.duplicate(), hmac) ? hmac : null);
+
+            pool.release(messageBuffer);
+        }
+    }
+
+    /**
+     * Times one frame sent with {@link Communicator#sendBytes(byte[])} and received with
+     * {@link Communicator#receiveBytes()} over loopback, plus an empty frame back so the sender knows it arrived.
+     * The payloads are never empty, so an empty frame from the sender means it is done.
+     */
+    private static void runLoopbackBenchmarks(String filter) {
+        if (!matches(filter, "communicator.sendReceiveBytes")) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel serverChannel = openLoopbackServer()) {
+            SocketChannel clientChannel = connect(serverChannel.getLocalAddress());
+            SocketChannel acceptedChannel = serverChannel.accept();
+            acceptedChannel.socket().setTcpNoDelay(true);
+
+            final Communicator sender = new Communicator(clientChannel, false);
+            final Communicator receiver = new Communicator(acceptedChannel, true);
+
+            executor.execute(() -> {
+                byte[] received;
+                while ((received = receiver.receiveBytes()) != null && received.length > 0) {
+                    receiver.sendBytes(ACK);
+                }
+                receiver.close();
+            });
+
+            for (int size : PAYLOAD_SIZES) {
+                final byte[] message = generatePayload(size);
+                measure(filter, "communicator.sendReceiveBytes", size, () -> {
+                    sender.sendBytes(message);
+                    return sender.receiveBytes();
+                });
+            }
+
+            // an empty frame tells the receiver to stop
+            sender.sendBytes(ACK);
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            sender.close();
+        } catch (IOException e) {
+            Console.exception(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Times a burst of {@link #BURST_SIZE} frames sent with {@link Communicator#sendBytes(byte[])} over loopback,
+     * until the receiver has read them all and answered with an empty frame. The frames are written straight to
+     * the socket one at a time, and then through a {@link SendQueue}, which coalesces them.
+     */
+    private static void runSendQueueBenchmarks(String filter) {
+        for (boolean queued : new boolean[] { false, true }) {
+            String name = queued ? "communicator.sendBurstQueued" : "communicator.sendBurst";
+            if (!matches(filter, name)) {
+                continue;
+            }
+
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try (ServerSocketChannel serverChannel = openLoopbackServer()) {
+                SocketChannel clientChannel = connect(serverChannel.getLocalAddress());
+                SocketChannel acceptedChannel = serverChannel.accept();
+                acceptedChannel.socket().setTcpNoDelay(true);
+
+                final Communicator sender = new Communicator(clientChannel, false);
+                final Communicator receiver = new Communicator(acceptedChannel, true);
+                if (queued) {
+                    sender.startSendQueue();
+                }
+
+                executor.execute(() -> {
+                    byte[] received;
+                    int count = 0;
+                    while ((received = receiver.receiveBytes()) != null && received.length > 0) {
+                        if (++count % BURST_SIZE == 0) {
+                            receiver.sendBytes(ACK);
+                        }
+                    }
+                    receiver.close();
+                });
+
+                for (int size : BURST_PAYLOAD_SIZES) {
+                    final byte[] message = generatePayload(size);
+                    measure(filter, name, size * BURST_SIZE, () -> {
+                        for (int i = 0; i < BURST_SIZE; i++) {
+                            sender.sendBytes(message);
+                        }
+                        return sender.receiveBytes();
+                    });
+                }
+
+                // an empty frame tells the receiver to stop
+                sender.sendBytes(ACK);
+                executor.shutdown();
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+                sender.close();
+            } catch (IOException e) {
+                Console.exception(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Times a complete connection: connect, {@link Communicator#exchangeRSAPublicKey()} and
+     * {@link Communicator#exchangeSecretKey()} on both sides, and close. Full handshakes forget the client's
+     * {@link SessionTicket} before each connection; resumed ones keep it.
+     */
+    private static void runHandshakeBenchmarks(String filter) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel serverChannel = openLoopbackServer()) {
+            if (ECDHEUtil.isSupported()) {
+                measureHandshake(filter, "handshake.full.ecdhe", executor, serverChannel, HandshakeSuite.ECDHE, false);
+            }
+            measureHandshake(filter, "handshake.full.rsa", executor, serverChannel, HandshakeSuite.RSA, false);
+            measureHandshake(filter, "handshake.resumed", executor, serverChannel, HandshakeSuite.getDefault(), true);
+        } catch (IOException e) {
+            Console.exception(e);
+        } finally {
+            executor.shutdownNow();
+            TicketCache.getDefault().clear();
+        }
+    }
+
+    private static void measureHandshake(String filter, String name, ExecutorService executor,
+                                         ServerSocketChannel serverChannel, HandshakeSuite suite, boolean resume) {
+        if (!matches(filter, name)) {
+            return;
+        }
+
+        TicketCache.getDefault().clear();
+        if (resume) {
+            // the first connection has to be a full handshake, to get a ticket
+            try {
+                connect(executor, serverChannel, suite);
+            } catch (Exception e) {
+                Console.e("%s failed: %s", name, e);
+                return;
+            }
+        }
+
+        measure(filter, name, 0, () -> {
+            if (!resume) {
+                TicketCache.getDefault().clear();
+            }
+
+            Communicator alice = connect(executor, serverChannel, suite);
+            return alice == null || alice.isResumed() != resume ? null : alice.getRecordLayer();
+        });
+    }
+
+    /**
+     * Connects Alice to "serverChannel", performs the key exchange with Bob on "executor", and closes both ends.
+     * @return Alice's Communicator, or <code>null</code> if the key exchange failed on either side
+     */
+    private static Communicator connect(ExecutorService executor, ServerSocketChannel serverChannel,
+                                        HandshakeSuite suite) throws Exception {
+        SocketChannel clientChannel = connect(serverChannel.getLocalAddress());
+        Future<Boolean> server = executor.submit(() -> {
+            SocketChannel acceptedChannel = serverChannel.accept();
+            acceptedChannel.socket().setTcpNoDelay(true);
+
+            Communicator bob = new Communicator(acceptedChannel, true);
+            bob.setPreferredSuite(suite);
+            boolean success = bob.exchangeRSAPublicKey() && bob.exchangeSecretKey();
+            bob.close();
+            return success;
+        });
+
+        Communicator alice = new Communicator(clientChannel, false);
+        alice.setPreferredSuite(suite);
+        boolean success = alice.exchangeRSAPublicKey() && alice.exchangeSecretKey();
+        alice.close();
+
+        return server.get() && success ? alice : null;
+    }
+
+    /**
+     * Warms up and measures "operation", then logs the result. Does nothing if "name" does not match "filter".
+     * @param size the payload size, used for the MB/s column; 0 if the operation has no payload
+     */
+    private static void measure(String filter, String name, int size, Operation operation) {
+        if (!matches(filter, name)) {
+            return;
+        }
+
+        double[] nanosPerOperation = new double[MEASUREMENT_ITERATIONS];
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                runIteration(operation);
+            }
+            for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+                nanosPerOperation[i] = runIteration(operation);
+            }
+        } catch (Exception e) {
+            Console.e("%s (%s) failed: %s", name, formatSize(size), e);
+            return;
+        }
+
+        double mean = 0;
+        for (double value : nanosPerOperation) {
+            mean += value;
+        }
+        mean /= nanosPerOperation.length;
+
+        double variance = 0;
+        for (double value : nanosPerOperation) {
+            variance += (value - mean) * (value - mean);
+        }
+        double deviation = Math.sqrt(variance / Math.max(1, nanosPerOperation.length - 1));
+
+        String throughput = size == 0 ? "-" : String.format("%.1f", size / mean * 1e9 / (1024 * 1024));
+        Console.i("%-28s %8s %16.1f %12.1f %12s", name, formatSize(size), mean, deviation, throughput);
+    }
+
+    /**
+     * Runs "operation" over and over for at least {@link #ITERATION_MILLIS}.
+     * @return the average time of one operation, in nanoseconds
+     */
+    private static double runIteration(Operation operation) throws Exception {
+        long duration = TimeUnit.MILLISECONDS.toNanos(ITERATION_MILLIS);
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            consume(operation.run());
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < duration);
+        return (double) elapsed / operations;
+    }
+
+    private static void consume(Object result) {
+        if (result == null) {
+            throw new IllegalStateException("operation returned null");
+        }
+        if (result instanceof byte[]) {
+            byte[] bytes = (byte[]) result;
+            sSink += bytes.length + (bytes.length > 0 ? bytes[0] : 0);
+        } else {
+            sSink += System.identityHashCode(result);
+        }
+    }
+
+    private static boolean matches(String filter, String name) {
+        return name.contains(filter);
+    }
+
+    private static byte[] generatePayload(int size) {
+        byte[] payload = new byte[size];
+        new Random(PAYLOAD_SEED).nextBytes(payload);
+        return payload;
+    }
+
+    private static String formatSize(int size) {
+        if (size == 0) {
+            return "-";
+        } else if (size >= 1024 * 1024 && size % (1024 * 1024) == 0) {
+            return size / (1024 * 1024) + " MB";
+        } else if (size >= 1024 && size % 1024 == 0) {
+            return size / 1024 + " KB";
+        }
+        return size + " B";
+    }
+
+    private static ServerSocketChannel openLoopbackServer() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        return serverChannel;
+    }
+
+    private static SocketChannel connect(SocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+}
@@ -0,0 +1,168 @@
+package com.jacemcpherson;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server that keeps the simple blocking {@link Communicator} API, but serves any number of clients at once by
+ * giving each accepted connection its own thread. When the runtime supports virtual threads (Java 21 and up),
+ * each connection gets a virtual thread, so tens of thousands of idle connections cost very little. On older
+ * runtimes, a cached pool of platform threads is used instead.
+ * <br><br>
+ * Each connection runs {@link Communicator#exchangeRSAPublicKey()} and {@link Communicator#exchangeSecretKey()}
+ * on its own {@link Communicator}, then hands it to a {@link ConnectionHandler}. The public key operations of
+ * the key exchange, such as the RSA decryption, are the expensive part, so the number of them running at the same
+ * time is capped, independently of the number of connections. A permit is only held while one is computed, never
+ * while waiting for the client, so clients that connect and then go quiet cannot stall anyone else's handshake.
+ */
+public class BlockingServer {
+
+    /**
+     * Handles one connection after its key exchange has completed. Runs on the connection's own thread, so it
+     * may block freely using {@link Communicator#sendBytes(byte[])} and {@link Communicator#receiveBytes()}.
+     */
+    public interface ConnectionHandler {
+        void handle(Communicator communicator);
+    }
+
+    private final int mPort;
+    private final ConnectionHandler mHandler;
+    private final Semaphore mHandshakePermits;
+
+    private ServerSocketChannel mServerChannel;
+    private ExecutorService mExecutor;
+
+    private volatile boolean mRunning;
+
+    /**
+     * Constructs a new BlockingServer. The server does not listen until {@link #serve()} is called.
+     * @param port the port to listen on
+     * @param maxConcurrentHandshakes the maximum number of key exchange computations to run at the same time
+     * @param handler performs the message steps for each connection
+     */
+    public BlockingServer(int port, int maxConcurrentHandshakes, ConnectionHandler handler) {
+        mPort = port;
+        mHandler = handler;
+        mHandshakePermits = new Semaphore(Math.max(1, maxConcurrentHandshakes));
+    }
+
+    /**
+     * Listens on {@link Communicator#SERVER_PORT}, allowing one key exchange computation per available processor.
+     * @param handler performs the message steps for each connection
+     */
+    public BlockingServer(ConnectionHandler handler) {
+        this(Communicator.SERVER_PORT, Runtime.getRuntime().availableProcessors(), handler);
+    }
+
+    /**
+     * Accepts connections until {@link #stop()} is called, blocking the current thread.
+     * @throws IOException if the server socket could not be opened
+     */
+    public void serve() throws IOException {
+        // load (or generate) the key pairs up front, rather than during the first client's key exchange
+        RSAEncryptionUtil.getPublicKey();
+        if (ECDHEUtil.isSupported()) {
+            ECDHEUtil.getSigningPublicKey();
+        }
+
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.bind(new InetSocketAddress(mPort));
+        mExecutor = newThreadPerTaskExecutor();
+        mRunning = true;
+
+        try {
+            while (mRunning) {
+                SocketChannel channel;
+                try {
+                    channel = mServerChannel.accept();
+                } catch (IOException e) {
+                    if (mRunning) {
+                        Console.d("Could not accept connection.");
+                        Console.exception(e);
+                    }
+                    continue;
+                }
+
+                channel.socket().setTcpNoDelay(true);
+                mExecutor.execute(() -> handleConnection(new Communicator(channel)));
+            }
+        } finally {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Stops accepting connections. Connections already being handled are allowed to finish.
+     */
+    public void stop() {
+        mRunning = false;
+
+        try {
+            if (mServerChannel != null) {
+                mServerChannel.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Blocks until every connection accepted before {@link #stop()} has finished, or the timeout expires.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor == null || mExecutor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @return the number of additional key exchange computations that could start right now
+     */
+    public int getAvailableHandshakePermits() {
+        return mHandshakePermits.availablePermits();
+    }
+
+    private void handleConnection(Communicator communicator) {
+        try {
+            if (!performHandshake(communicator)) {
+                Console.d("Key exchange failed with %s", communicator.getSocket().getRemoteSocketAddress());
+                return;
+            }
+
+            mHandler.handle(communicator);
+        } catch (Exception e) {
+            Console.exception(e);
+        } finally {
+            communicator.close();
+        }
+    }
+
+    private boolean performHandshake(Communicator communicator) {
+        communicator.setHandshakePermits(mHandshakePermits);
+        return communicator.exchangeRSAPublicKey() && communicator.exchangeSecretKey();
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task when the runtime supports it, or a
+     * cached pool of daemon platform threads otherwise. Looked up reflectively so the project still builds on
+     * runtimes without virtual threads.
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Console.d("Virtual threads are not available; using platform threads.");
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
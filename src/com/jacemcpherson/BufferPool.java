@@ -0,0 +1,198 @@
+package com.jacemcpherson;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct {@link ByteBuffer}s, so that the send and receive paths can reuse the same memory for every
+ * frame instead of allocating new arrays, which at high message rates keeps the garbage collector busy. Direct
+ * buffers also let the socket and the cipher work on the memory in place, without copying it to and from the heap.
+ * <br><br>
+ * Buffers come in size classes, powers of two from {@link #MIN_SIZE} up to {@link #MAX_POOLED_SIZE}. A request is
+ * served from the smallest class that fits, and each class keeps up to {@link #MAX_RETAINED_BYTES} of free buffers
+ * for reuse. Larger requests get a heap buffer of their own, which is simply dropped when released: a direct buffer
+ * that is used once costs far more to allocate and free than it saves, and its memory is only given back once the
+ * garbage collector gets to it.
+ * <br><br>
+ * Every buffer from {@link #acquire(int)} must be given back with {@link #release(ByteBuffer)} exactly once, and
+ * not used afterwards. With {@link #setLeakDetection(boolean)} turned on, the pool remembers where each buffer was
+ * acquired: releasing a buffer twice, or one the pool never handed out, is reported straight away, and
+ * {@link #reportLeaks(long)} lists the buffers that have been held for too long. This costs a stack trace per
+ * buffer, so it is meant for debugging.
+ */
+public class BufferPool {
+
+    /** The smallest size class. */
+    public static final int MIN_SIZE = 512;
+
+    /** The largest size class. Larger buffers are not pooled. */
+    public static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    /** How many bytes of free buffers each size class keeps. */
+    public static final int MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE / MIN_SIZE) + 1;
+
+    private static final BufferPool sDefault = new BufferPool();
+
+    /**
+     * @return the pool {@link Communicator} and {@link RecordLayer} use
+     */
+    public static BufferPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Where and when a buffer was acquired, for leak detection.
+     */
+    private static class Acquisition extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final long mTime = System.currentTimeMillis();
+
+        Acquisition(int capacity) {
+            super("Buffer of " + capacity + " bytes acquired here");
+        }
+    }
+
+    /**
+     * The free buffers of one size class.
+     */
+    private static class SizeClass {
+        final ConcurrentLinkedQueue<ByteBuffer> mFree = new ConcurrentLinkedQueue<>();
+        final AtomicInteger mFreeCount = new AtomicInteger();
+    }
+
+    private final SizeClass[] mSizeClasses = new SizeClass[CLASS_COUNT];
+    private final AtomicInteger mAllocations = new AtomicInteger();
+
+    private volatile boolean mLeakDetection;
+
+    // guarded by itself
+    private final Map<ByteBuffer, Acquisition> mOutstanding = new IdentityHashMap<>();
+
+    public BufferPool() {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            mSizeClasses[i] = new SizeClass();
+        }
+    }
+
+    /**
+     * Takes a buffer with room for at least "capacity" bytes out of the pool, allocating one if none is free.
+     * Buffers larger than {@link #MAX_POOLED_SIZE} are heap buffers.
+     * @return a cleared buffer whose limit is "capacity"
+     */
+    public ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClassOf(capacity);
+
+        ByteBuffer buffer = sizeClass < 0 ? null : mSizeClasses[sizeClass].mFree.poll();
+        if (buffer == null) {
+            mAllocations.incrementAndGet();
+            buffer = sizeClass < 0 ? ByteBuffer.allocate(capacity) : ByteBuffer.allocateDirect(MIN_SIZE << sizeClass);
+        } else {
+            mSizeClasses[sizeClass].mFreeCount.decrementAndGet();
+        }
+
+        if (mLeakDetection) {
+            synchronized (mOutstanding) {
+                mOutstanding.put(buffer, new Acquisition(capacity));
+            }
+        }
+
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Gives "buffer" back to the pool. Does nothing if "buffer" is <code>null</code>.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        if (mLeakDetection) {
+            synchronized (mOutstanding) {
+                if (mOutstanding.remove(buffer) == null) {
+                    Console.exception(new IllegalStateException(
+                            "Released a buffer that was already released, or did not come from this pool"
+                    ));
+                    return;
+                }
+            }
+        }
+
+        int sizeClass = buffer.isDirect() ? sizeClassOf(buffer.capacity()) : -1;
+        if (sizeClass < 0 || buffer.capacity() != MIN_SIZE << sizeClass) {
+            return;
+        }
+
+        // keep at most MAX_RETAINED_BYTES per class; anything over that is left to the garbage collector
+        SizeClass free = mSizeClasses[sizeClass];
+        if (free.mFreeCount.incrementAndGet() * (long) buffer.capacity() <= MAX_RETAINED_BYTES) {
+            free.mFree.add(buffer);
+        } else {
+            free.mFreeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Turns leak detection on or off. Should be called before any buffers are acquired, since a buffer acquired
+     * while it is off is reported as foreign when it is released while it is on.
+     */
+    public void setLeakDetection(boolean enabled) {
+        mLeakDetection = enabled;
+        if (!enabled) {
+            synchronized (mOutstanding) {
+                mOutstanding.clear();
+            }
+        }
+    }
+
+    public boolean isLeakDetectionEnabled() {
+        return mLeakDetection;
+    }
+
+    /**
+     * Logs every tracked buffer that has been held for longer than "maxAgeMillis", with where it was acquired.
+     * @return the number of such buffers
+     */
+    public int reportLeaks(long maxAgeMillis) {
+        long now = System.currentTimeMillis();
+        int leaks = 0;
+        synchronized (mOutstanding) {
+            for (Acquisition acquisition : mOutstanding.values()) {
+                if (now - acquisition.mTime > maxAgeMillis) {
+                    leaks++;
+                    Console.w("Possible buffer leak, held for %d ms:", now - acquisition.mTime);
+                    Console.exception(acquisition);
+                }
+            }
+        }
+        return leaks;
+    }
+
+    /**
+     * @return the number of buffers the pool has had to allocate, rather than reuse
+     */
+    public int getAllocationCount() {
+        return mAllocations.get();
+    }
+
+    /**
+     * @return the index of the smallest size class that holds "capacity" bytes, or -1 if it is too large to pool
+     */
+    private static int sizeClassOf(int capacity) {
+        if (capacity > MAX_POOLED_SIZE) {
+            return -1;
+        }
+        if (capacity <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros((capacity - 1) / MIN_SIZE);
+    }
+}
@@ -1,9 +1,19 @@
 package com.jacemcpherson;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.util.Base64;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * Provides a wrapper around Server/Client socket programming, simplifying the process of initializing/connecting
@@ -13,10 +23,16 @@ import java.util.Base64;
  * can connect to this running server using {@link #startClient()}.
  * <br><br>
  * Using {@link #sendBytes(byte[])} and {@link #receiveBytes()} you can easily communicate byte streams between
- * server and client over a single socket.
+ * server and client over a single socket. Each call sends or receives exactly one {@link Frame}.
  * <br><br>
  * A level of security is added when users exchange RSA public keys (using {@link #exchangeRSAPublicKey()}, and
  * subsequently {@link #exchangeSecretKey()} for message encryption using AES or other ciphers.
+ * <br><br>
+ * Payloads too large to hold in memory can be sent with {@link #sendStream(InputStream)} and read back with
+ * {@link #receiveStream()}, which encrypt and decrypt them a chunk at a time.
+ * <br><br>
+ * A Communicator constructed with a {@link DatagramTransport} works the same way over UDP instead, except that
+ * frames other than the handshake may be lost or arrive out of order.
  */
 public class Communicator {
 
@@ -25,7 +41,18 @@ public class Communicator {
 
     private static Communicator sCommunicator;
 
-    private static Socket sConnectedSocket;
+    private static SocketChannel sConnectedChannel;
+
+    /**
+     * Size of the buffer incoming bytes are read into. Small frames are served out of this buffer, so reading
+     * a header and its payload usually costs a single read from the socket.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum payload of each frame sent by {@link #sendStream(InputStream)}.
+     */
+    private static final int STREAM_FRAME_SIZE = 64 * 1024;
 
     /**
      * Starts a server on {@link #SERVER_IP}:{@link #SERVER_PORT} (defaults to localhost:9090)
@@ -76,19 +103,19 @@ public class Communicator {
     }
 
     /**
-     * Tests if the server is open by creating a {@link Socket} and verifying that connection was successful.
+     * Tests if the server is open by opening a {@link SocketChannel} and verifying that connection was successful.
      * If connection succeeded, we hold onto that Socket, rather than closing the connection. This is in case the
      * user wants to call {@link #startClient()}, then we do not have to reconnect to the server.
      * @return <code>true</code> if the server is up on {@link #SERVER_IP}:{@link #SERVER_PORT}, <code>false</code> otherwise.
      */
     public static boolean isServerOpen() {
         try {
-            if (sConnectedSocket != null && sConnectedSocket.isConnected()) {
+            if (sConnectedChannel != null && sConnectedChannel.isConnected()) {
                 return true;
             }
-            Socket connectedSocket = new Socket(SERVER_IP, SERVER_PORT);
+            SocketChannel connectedChannel = SocketChannel.open(new InetSocketAddress(SERVER_IP, SERVER_PORT));
             // server connected
-            sConnectedSocket = connectedSocket;
+            sConnectedChannel = connectedChannel;
             return true;
         } catch (IOException e) {
             // server did not connect
@@ -97,11 +124,37 @@ public class Communicator {
     }
 
 
-    private ServerSocket mServerSocket;
-    private Socket mSocket;
+    private ServerSocketChannel mServerChannel;
+    private SocketChannel mChannel;
+    private DatagramTransport mDatagramTransport;
 
     private boolean mIsServer;
 
+    private final CryptoSession mCryptoSession = new CryptoSession();
+    private RecordLayer mRecordLayer;
+    private final ConnectionMetrics mMetrics = new ConnectionMetrics();
+    private HandshakeSuite mPreferredSuite = HandshakeSuite.getDefault();
+    private boolean mKeyAgreed;
+    private boolean mResumed;
+    private Semaphore mHandshakePermits;
+    private boolean mCompressionEnabled = true;
+    private volatile boolean mPartnerDecompresses;
+    private volatile Compressor mCompressor;
+    private volatile SendQueue mSendQueue;
+
+    // both locks are held across blocking socket I/O. They are ReentrantLocks rather than monitors, because a
+    // virtual thread that blocks inside synchronized pins its carrier thread on JDK 21 to 23.
+
+    // guarded by mWriteLock
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+    private final ByteBuffer mHeaderOut = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private final ByteBuffer[] mGatherBuffers = new ByteBuffer[2];
+
+    // guarded by mReadLock
+    private final ReentrantLock mReadLock = new ReentrantLock();
+    private final ByteBuffer mHeaderIn = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private final ByteBuffer mReadBuffer = (ByteBuffer) ByteBuffer.allocate(READ_BUFFER_SIZE).flip();
+
     /**
      * Constructs a new Communicator.
      * @param isServer whether this communicator acts as the server or as a client
@@ -110,23 +163,68 @@ public class Communicator {
     public Communicator(boolean isServer) throws IOException {
         mIsServer = isServer;
         if (isServer) {
-            mServerSocket = new ServerSocket(SERVER_PORT);
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.bind(new InetSocketAddress(SERVER_PORT));
         } else {
-            mSocket = sConnectedSocket != null ? sConnectedSocket : new Socket(SERVER_IP, SERVER_PORT);
+            if (sConnectedChannel != null && sConnectedChannel.isOpen()) {
+                mChannel = sConnectedChannel;
+                sConnectedChannel = null;
+            } else {
+                mChannel = SocketChannel.open(new InetSocketAddress(SERVER_IP, SERVER_PORT));
+            }
+            mChannel.socket().setTcpNoDelay(true);
+            mMetrics.opened(mChannel.socket().getRemoteSocketAddress());
         }
     }
 
+    /**
+     * Constructs a server-side Communicator for a connection that has already been accepted, such as by
+     * {@link BlockingServer}. The resulting Communicator has no server socket of its own, and keeps its keys in
+     * its own {@link CryptoSession}, so many of these can be used at once.
+     * @param acceptedChannel a channel returned from {@link ServerSocketChannel#accept()}
+     */
+    Communicator(SocketChannel acceptedChannel) {
+        this(acceptedChannel, true);
+    }
+
+    /**
+     * Constructs a Communicator for a connection that is already open, on either side. {@link Benchmark} uses
+     * this to connect a client and a server over loopback without going through {@link #SERVER_PORT}.
+     * @param channel the connected channel
+     * @param isServer whether this communicator acts as the server or as a client
+     */
+    Communicator(SocketChannel channel, boolean isServer) {
+        mIsServer = isServer;
+        mChannel = channel;
+        mMetrics.opened(channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * Constructs a Communicator that talks over UDP, on whichever side "transport" is. The handshake is the same
+     * as over TCP; afterwards, every datagram is sealed on its own by the transport's {@link DatagramRecordLayer},
+     * so {@link #sendRecord(byte, byte[])} sends records without sealing them a second time.
+     * @param transport a transport from {@link DatagramTransport#accept(int)} or
+     * {@link DatagramTransport#connect(InetSocketAddress)}
+     */
+    public Communicator(DatagramTransport transport) {
+        mIsServer = transport.isServer();
+        mDatagramTransport = transport;
+        mMetrics.opened(transport.getRemoteAddress());
+    }
+
     /**
      * Blocks the current thread until the server accepts a connection from a client.
      */
     public void waitForConnection() {
         if (isServer()) {
             try {
-                mSocket = mServerSocket.accept();
+                mChannel = mServerChannel.accept();
+                mChannel.socket().setTcpNoDelay(true);
+                mMetrics.opened(mChannel.socket().getRemoteSocketAddress());
             } catch (IOException e) {
                 Console.d("Could not accept connection.");
                 Console.exception(e);
-                mSocket = null;
+                mChannel = null;
             }
         } else {
             Console.w("Could not wait for connection: Not the server");
@@ -134,51 +232,353 @@ public class Communicator {
     }
 
     public Socket getSocket() {
-        return mSocket;
+        return mChannel == null ? null : mChannel.socket();
+    }
+
+    public SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * @return the transport this Communicator talks over, or <code>null</code> if it uses TCP
+     */
+    public DatagramTransport getDatagramTransport() {
+        return mDatagramTransport;
     }
 
     /**
-     * Performs the exchange of RSA Public keys between a server and client pair.
+     * @return the traffic and handshake timings for this connection
      */
-    public void exchangeRSAPublicKey() {
+    public ConnectionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return the keys for this connection, filled in by {@link #exchangeRSAPublicKey()} and
+     * {@link #exchangeSecretKey()}
+     */
+    public CryptoSession getCryptoSession() {
+        return mCryptoSession;
+    }
+
+    /**
+     * Performs the exchange of public keys between a server and client pair.
+     * <br><br>
+     * When both sides prefer {@link HandshakeSuite#ECDHE}, the server sends an X25519 key share along with its RSA
+     * public key, and the client answers with its own share instead of its RSA public key (see
+     * {@link ECDHEHandshake}). Both sides then know the secret key straight away, without any RSA operation, and
+     * {@link #exchangeSecretKey()} only hands out a {@link SessionTicket}. Otherwise the client sends its RSA
+     * public key, as before.
+     * <br><br>
+     * If the client holds a {@link SessionTicket} from an earlier connection to this server, it presents the
+     * ticket first. When the server accepts it, both sides derive a fresh secret key from the ticket right away,
+     * and {@link #exchangeSecretKey()} has nothing left to do; see {@link #isResumed()}.
+     * @return <code>true</code> if the partner's public key was received and decoded, or the secret key was
+     * agreed on, or the session was resumed
+     */
+    public boolean exchangeRSAPublicKey() {
+        long start = System.nanoTime();
+        boolean exchanged = performPublicKeyExchange();
+        if (exchanged) {
+            mMetrics.publicKeyExchanged(System.nanoTime() - start);
+        }
+        return exchanged;
+    }
+
+    private boolean performPublicKeyExchange() {
         // server will send first
         if (isServer()) {
-            Console.d("Bob is sending his public key");
-            sendBytes(RSAEncryptionUtil.getPublicKeyEncoded());
+            ECDHEHandshake ecdhe = mPreferredSuite == HandshakeSuite.ECDHE ? createECDHEHandshake() : null;
+            byte[] hello = ecdhe == null ? null : withHandshakePermit(ecdhe::createServerHello);
+            boolean sent;
+            if (hello != null) {
+                Console.d("Bob is sending his public keys");
+                sent = sendHandshake(Frame.FLAG_ECDHE, hello);
+            } else {
+                Console.d("Bob is sending his public key");
+                sent = sendHandshake(Frame.FLAG_NONE, RSAEncryptionUtil.getPublicKeyEncoded());
+            }
+            if (!sent) {
+                return false;
+            }
             Console.d("Bob is receiving Alice's public key");
-            byte[] otherPublic = receiveBytes();
-            RSAEncryptionUtil.decodePublicKey(otherPublic);
+            Frame frame = receiveHandshakeFrame();
+
+            if (frame != null && frame.hasFlag(Frame.FLAG_RESUME)) {
+                byte[] reply = SessionTicket.acceptOffer(mCryptoSession, frame.getPayload());
+                if (reply != null && setupRecordLayer()) {
+                    Console.d("Bob accepted Alice's session ticket");
+                    if (!sendHandshake(Frame.FLAG_RESUME, reply)) {
+                        return false;
+                    }
+                    mResumed = true;
+                    return true;
+                }
+
+                Console.d("Bob declined Alice's session ticket");
+                if (!sendHandshake(Frame.FLAG_NONE, new byte[0])) {
+                    return false;
+                }
+                frame = receiveHandshakeFrame();
+            }
+
+            if (frame != null && frame.hasFlag(Frame.FLAG_ECDHE)) {
+                byte[] clientShare = frame.getPayload();
+                if (hello == null
+                        || !Boolean.TRUE.equals(withHandshakePermit(() -> ecdhe.complete(mCryptoSession, clientShare)))
+                        || !setupRecordLayer()) {
+                    return false;
+                }
+                Console.d("Bob agreed on a secret key with Alice using X25519");
+                mKeyAgreed = true;
+                return true;
+            }
+
+            return frame != null && mCryptoSession.decodePartnerPublicKey(frame.getPayload());
         } else {
             Console.d("Alice is receiving Bob's public key");
-            byte[] otherPublic = receiveBytes();
-            RSAEncryptionUtil.decodePublicKey(otherPublic);
+            Frame hello = receiveHandshakeFrame();
+            if (hello == null) {
+                return false;
+            }
+
+            byte[] otherPublic = hello.getPayload();
+            byte[] serverShare = null;
+            if (hello.hasFlag(Frame.FLAG_ECDHE)) {
+                byte[][] parts = ECDHEHandshake.splitServerHello(hello.getPayload());
+                if (parts == null) {
+                    return false;
+                }
+                otherPublic = parts[0];
+                serverShare = parts[1];
+            }
+            if (!mCryptoSession.decodePartnerPublicKey(otherPublic)) {
+                return false;
+            }
+
+            SessionTicket ticket = TicketCache.getDefault().take(getServerName());
+            if (ticket != null) {
+                Console.d("Alice is presenting her session ticket");
+                if (!sendHandshake(Frame.FLAG_RESUME, ticket.createOffer())) {
+                    return false;
+                }
+
+                Frame reply = receiveHandshakeFrame();
+                if (reply == null) {
+                    return false;
+                }
+                if (reply.hasFlag(Frame.FLAG_RESUME)) {
+                    if (!ticket.resume(mCryptoSession, reply.getPayload()) || !setupRecordLayer()) {
+                        return false;
+                    }
+                    storeTicket(SessionTicket.receivedWithReply(reply.getPayload(), mCryptoSession));
+                    mResumed = true;
+                    return true;
+                }
+                Console.d("Bob declined Alice's session ticket");
+            }
+
+            ECDHEHandshake ecdhe = serverShare != null && mPreferredSuite == HandshakeSuite.ECDHE
+                    ? createECDHEHandshake()
+                    : null;
+            if (ecdhe != null) {
+                byte[] clientShare = ecdhe.respond(mCryptoSession, serverShare);
+                if (clientShare == null || !setupRecordLayer()) {
+                    return false;
+                }
+
+                Console.d("Alice is sending her key share");
+                if (!sendHandshake(Frame.FLAG_ECDHE, clientShare)) {
+                    return false;
+                }
+                mKeyAgreed = true;
+                return true;
+            }
+
             Console.d("Alice is sending her public key");
-            sendBytes(RSAEncryptionUtil.getPublicKeyEncoded());
+            return sendHandshake(Frame.FLAG_NONE, RSAEncryptionUtil.getPublicKeyEncoded());
         }
     }
 
     /**
      * Performs the transfer of a secret key from the client to the server (i.e. server receives a generated
-     * key from the client).
+     * key from the client). The server then issues the client a {@link SessionTicket}, so that the client's next
+     * connection can skip the public key operations.
+     * <br><br>
+     * If {@link #exchangeRSAPublicKey()} already agreed on a secret key, only the ticket is sent. If it resumed
+     * the session, this does nothing.
+     * @return <code>true</code> if the secret key was transferred successfully
      */
-    public void exchangeSecretKey() {
+    public boolean exchangeSecretKey() {
+        long start = System.nanoTime();
+        boolean exchanged = performSecretKeyExchange();
+        if (exchanged) {
+            mMetrics.secretKeyExchanged(System.nanoTime() - start);
+        }
+        return exchanged;
+    }
+
+    private boolean performSecretKeyExchange() {
+        if (mResumed) {
+            return true;
+        }
+
         // Bob (server) will receive the secret key, decrypt
         if (isServer()) {
-            byte[] encryptedKey = receiveBytes();
-            byte[] secretKeyEncoded = RSAEncryptionUtil.decryptMessage(encryptedKey);
+            if (!mKeyAgreed) {
+                byte[] encryptedKey = receiveHandshake();
+                if (encryptedKey == null || !Boolean.TRUE.equals(
+                        withHandshakePermit(() -> mCryptoSession.receiveEncryptedSecretKey(encryptedKey)))) {
+                    return false;
+                }
 
-            String receivedKey = Base64.getEncoder().encodeToString(secretKeyEncoded);
-            Console.d("Bob received secret key: %s", receivedKey);
+                Console.d("Bob received secret key: %s", Console.base64(mCryptoSession.getSecretKey().getEncoded()));
+                if (!setupRecordLayer()) {
+                    return false;
+                }
+            }
 
-            AESEncryptionUtil.decodeSecretKey(secretKeyEncoded);
+            byte[] ticket = SessionTicket.issue(mCryptoSession);
+            return sendHandshake(Frame.FLAG_TICKET, ticket == null ? new byte[0] : ticket);
         } else { // Alice (client) will generate and send her secret key
-            byte[] secretKeyEncoded = AESEncryptionUtil.getSecretKeyEncoded();
-            byte[] encryptedKey = RSAEncryptionUtil.encryptMessage(secretKeyEncoded);
+            if (!mKeyAgreed) {
+                byte[] secretKeyEncoded = mCryptoSession.generateSecretKey();
+                byte[] encryptedKey = mCryptoSession.encryptForPartner(secretKeyEncoded);
+                if (encryptedKey == null) {
+                    return false;
+                }
+
+                Console.d("Alice sent secret key: %s", Console.base64(secretKeyEncoded));
+
+                if (!sendHandshake(Frame.FLAG_NONE, encryptedKey) || !setupRecordLayer()) {
+                    return false;
+                }
+            }
+
+            Frame ticket = receiveHandshakeFrame();
+            if (ticket == null || !ticket.hasFlag(Frame.FLAG_TICKET)) {
+                return false;
+            }
+            storeTicket(SessionTicket.received(ticket.getPayload(), mCryptoSession));
+            return true;
+        }
+    }
+
+    /**
+     * Runs one public key operation of the key exchange, holding a permit from {@link #setHandshakePermits(Semaphore)}
+     * if one was set.
+     * @return the result of "step", or <code>null</code> if the thread was interrupted while waiting for a permit
+     */
+    private <T> T withHandshakePermit(Supplier<T> step) {
+        Semaphore permits = mHandshakePermits;
+        if (permits == null) {
+            return step.get();
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            return step.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Chooses the handshake this side asks for. Defaults to {@link HandshakeSuite#getDefault()}. The faster
+     * {@link HandshakeSuite#ECDHE} is only used if both sides prefer it.
+     */
+    public void setPreferredSuite(HandshakeSuite suite) {
+        mPreferredSuite = suite;
+    }
+
+    public HandshakeSuite getPreferredSuite() {
+        return mPreferredSuite;
+    }
+
+    /**
+     * Limits the public key operations of the key exchange, such as the RSA decryption of the secret key, to one
+     * per permit of "permits" at a time. Permits are only held while this side computes, never while it waits for
+     * the other party, so a client that stalls mid-handshake cannot hold one. {@link BlockingServer} shares one
+     * semaphore across all of its connections.
+     */
+    void setHandshakePermits(Semaphore permits) {
+        mHandshakePermits = permits;
+    }
+
+    /**
+     * Chooses whether to offer compression of records during the handshake (the default), which makes no
+     * difference unless the other party offers it too. Records are then compressed by a {@link Compressor} before
+     * they are sealed, whenever that makes them smaller. Must be called before {@link #exchangeRSAPublicKey()}.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
 
-            String sentKey = Base64.getEncoder().encodeToString(secretKeyEncoded);
-            Console.d("Alice sent secret key: %s", sentKey);
+    /**
+     * @return <code>true</code> if records sent on this connection are compressed when that pays off
+     */
+    public boolean isCompressing() {
+        return mCompressor != null && mPartnerDecompresses;
+    }
 
-            sendBytes(encryptedKey);
+    private static ECDHEHandshake createECDHEHandshake() {
+        try {
+            return new ECDHEHandshake();
+        } catch (GeneralSecurityException e) {
+            Console.d("This machine does not support X25519; falling back to RSA.");
+            return null;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if this connection's keys came from a {@link SessionTicket} rather than a full
+     * handshake
+     */
+    public boolean isResumed() {
+        return mResumed;
+    }
+
+    private void storeTicket(SessionTicket ticket) {
+        if (ticket != null) {
+            TicketCache.getDefault().put(getServerName(), ticket);
+        }
+    }
+
+    /**
+     * @return the address of the server this client is connected to, which is what its tickets are filed under
+     */
+    private String getServerName() {
+        if (mDatagramTransport != null) {
+            return "udp:" + mDatagramTransport.getRemoteAddress();
+        }
+        return String.valueOf(mChannel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * @return the record layer for this connection, or <code>null</code> before {@link #exchangeSecretKey()}
+     */
+    public RecordLayer getRecordLayer() {
+        return mRecordLayer;
+    }
+
+    private boolean setupRecordLayer() {
+        try {
+            mRecordLayer = new RecordLayer(mCryptoSession.getSecretKey(), isServer());
+            if (mCompressionEnabled && mCompressor == null) {
+                mCompressor = new Compressor();
+            }
+            if (mDatagramTransport != null) {
+                mDatagramTransport.setSecretKey(mCryptoSession.getSecretKey());
+            }
+            return true;
+        } catch (GeneralSecurityException e) {
+            Console.d("This machine does not support AES/GCM.");
+            return false;
         }
     }
 
@@ -186,13 +586,25 @@ public class Communicator {
      * Closes the connections made by this Communicator.
      */
     public void close() {
+        if (mSendQueue != null) {
+            mSendQueue.close();
+        }
+        mMetrics.closed();
+        if (mCompressor != null) {
+            mCompressor.close();
+        }
+        mCryptoSession.close();
         try {
-            if (mSocket != null) {
-                mSocket.close();
+            if (mChannel != null) {
+                mChannel.close();
+            }
+
+            if (mServerChannel != null) {
+                mServerChannel.close();
             }
 
-            if (isServer()) {
-                mServerSocket.close();
+            if (mDatagramTransport != null) {
+                mDatagramTransport.close();
             }
         } catch (IOException e) {
 
@@ -204,70 +616,742 @@ public class Communicator {
     }
 
     public boolean isConnected() {
-        return mSocket != null;
+        return mChannel != null || mDatagramTransport != null;
+    }
+
+    /**
+     * Starts a {@link SendQueue} with the default watermarks.
+     * @see #startSendQueue(int, int)
+     */
+    public boolean startSendQueue() {
+        return startSendQueue(SendQueue.DEFAULT_LOW_WATERMARK, SendQueue.DEFAULT_HIGH_WATERMARK);
+    }
+
+    /**
+     * Sends every frame from now on through a {@link SendQueue}: the send methods copy each frame into the queue
+     * and return, and a writer thread sends the queued frames in batches. Once the queue holds "highWatermark"
+     * bytes, the send methods block until it has drained to "lowWatermark". Only available over TCP, once
+     * connected.
+     * @return <code>false</code> if there is no connected channel, or a queue is already running
+     */
+    public boolean startSendQueue(int lowWatermark, int highWatermark) {
+        mWriteLock.lock();
+        try {
+            if (mChannel == null || mSendQueue != null) {
+                Console.d("Could not start send queue: %s", mChannel == null ? "Not connected." : "Already running.");
+                return false;
+            }
+            mSendQueue = new SendQueue(mChannel, lowWatermark, highWatermark);
+            return true;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * @return the queue frames are sent through, or <code>null</code> if they are written straight to the socket
+     */
+    public SendQueue getSendQueue() {
+        return mSendQueue;
     }
 
     /**
-     * Sends the contents of "bytes" to the other party. The length of the stream is encoded as a String
-     * and padded to 8 characters. The bytes array is sent directly after those 8 bytes.
+     * Sends the contents of "bytes" to the other party as a single {@link Frame#TYPE_DATA} frame.
      * @param bytes the data to send to the other party
+     * @return <code>true</code> if the frame was written, or queued if a {@link SendQueue} is running
      */
-    public void sendBytes(byte[] bytes) {
-        if (bytes == null) {
+    public boolean sendBytes(byte[] bytes) {
+        return sendFrame(Frame.TYPE_DATA, Frame.FLAG_NONE, bytes);
+    }
+
+    /**
+     * Sends one frame to the other party. The header and the payload are sent together in a single gathering
+     * write, so small frames go out as one TCP segment.
+     * @param type the frame type, such as {@link Frame#TYPE_DATA}
+     * @param flags the frame flags
+     * @param payload the data to send to the other party
+     * @return <code>true</code> if the frame was written, or queued if a {@link SendQueue} is running
+     */
+    public boolean sendFrame(byte type, byte flags, byte[] payload) {
+        if (payload == null) {
             Console.d("bytes are null.");
-            return;
+            return false;
+        }
+
+        return sendFrame(type, flags, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Sends the remaining bytes of "payload" as one frame, straight from the buffer. {@link FileTransfer} uses
+     * this to send chunks from direct buffers without copying them onto the heap.
+     * @param type the frame type, such as {@link Frame#TYPE_DATA}
+     * @param flags the frame flags
+     * @param payload the data to send; its position is advanced to its limit
+     * @return <code>true</code> if the whole frame was written, or queued if a {@link SendQueue} is running
+     */
+    boolean sendFrame(byte type, byte flags, ByteBuffer payload) {
+        int length = payload.remaining();
+        if (length > Frame.MAX_PAYLOAD_LENGTH) {
+            Console.d("Could not send data: %d bytes is larger than the maximum frame size.", length);
+            return false;
+        }
+
+        if (mDatagramTransport != null) {
+            if (!mDatagramTransport.send(type, flags, payload)) {
+                return false;
+            }
+            mMetrics.frameSent(length);
+            return true;
         }
 
         if (isConnected()) {
+            mWriteLock.lock();
             try {
-                String lengthString = getLengthString(bytes.length);
-                mSocket.getOutputStream().write(lengthString.getBytes());
-                mSocket.getOutputStream().write(bytes);
-//                Console.d("Sent: %s", Base64.getEncoder().encodeToString(bytes));
-            } catch (Exception e) {
-                Console.exception(e);
+                if (mSendQueue != null) {
+                    // the caller may reuse "payload" as soon as this returns, so the queue gets a copy
+                    ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_SIZE + length);
+                    Frame.writeHeader(frame, type, flags, length);
+                    frame.put(payload);
+                    frame.flip();
+                    if (!mSendQueue.enqueue(frame)) {
+                        Console.d("Could not send data: The send queue is closed.");
+                        return false;
+                    }
+                    mMetrics.frameSent(length);
+                    return true;
+                }
+
+                try {
+                    mHeaderOut.clear();
+                    Frame.writeHeader(mHeaderOut, type, flags, length);
+                    mHeaderOut.flip();
+
+                    mGatherBuffers[0] = mHeaderOut;
+                    mGatherBuffers[1] = payload;
+
+                    while (mHeaderOut.hasRemaining() || payload.hasRemaining()) {
+                        mChannel.write(mGatherBuffers);
+                    }
+                    mMetrics.frameSent(length);
+                    return true;
+                } catch (Exception e) {
+                    Console.exception(e);
+                } finally {
+                    mGatherBuffers[1] = null;
+                }
+            } finally {
+                mWriteLock.unlock();
             }
         } else {
             Console.d("Could not send data: Not connected.");
         }
+        return false;
+    }
+
+    /**
+     * Seals "message" with the {@link RecordLayer} and sends it as a single {@link Frame#TYPE_RECORD} frame, which
+     * is both encrypted and integrity-protected.
+     * @param flags the frame flags, such as {@link Frame#FLAG_SIGNED}
+     * @param message the data to send to the other party
+     * @return <code>true</code> if the record was written, or queued if a {@link SendQueue} is running
+     */
+    public boolean sendRecord(byte flags, byte[] message) {
+        return sendRecord(Frame.TYPE_RECORD, flags, message);
+    }
+
+    /**
+     * Seals "message" and sends it as a single frame of the given type, which must be {@link Frame#TYPE_RECORD}
+     * over UDP. {@link Multiplexer} uses this to send {@link Frame#TYPE_MUX} records.
+     * @return <code>true</code> if the whole frame was written
+     * @see #sendRecord(byte, byte[])
+     */
+    boolean sendRecord(byte type, byte flags, byte[] message) {
+        if (mRecordLayer == null) {
+            Console.d("Could not send record: No secret key.");
+            return false;
+        }
+
+        byte[] compressed = isCompressing() ? mCompressor.compress(message) : null;
+        if (compressed != null) {
+            flags |= Frame.FLAG_COMPRESSED;
+            message = compressed;
+        }
+
+        if (mDatagramTransport != null) {
+            // the transport seals each datagram with an explicit sequence number, which survives loss and reordering
+            return sendFrame(type, flags, ByteBuffer.wrap(message));
+        }
+
+        // sealed and sent under the write lock, so records reach the other party in the order they were sealed
+        mWriteLock.lock();
+        try {
+            flags = mRecordLayer.markKeyUpdate(flags);
+            byte[] record = mRecordLayer.seal(type, flags, message);
+            return record != null && sendFrame(type, flags, ByteBuffer.wrap(record));
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    /**
+     * Seals the remaining bytes of "message" and sends them as a single {@link Frame#TYPE_RECORD} frame, like
+     * {@link #sendRecord(byte, byte[])}, but without allocating: the record is sealed into a buffer from the
+     * {@link BufferPool} and written from there. Records sent this way are not compressed.
+     * @param flags the frame flags, such as {@link Frame#FLAG_SIGNED}
+     * @param message the data to send; its position is advanced to its limit
+     * @return <code>true</code> if the whole frame was written
+     */
+    public boolean sendRecord(byte flags, ByteBuffer message) {
+        if (mRecordLayer == null) {
+            Console.d("Could not send record: No secret key.");
+            return false;
+        }
+        if (mDatagramTransport != null) {
+            return sendFrame(Frame.TYPE_RECORD, flags, message);
+        }
+
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer record = pool.acquire(message.remaining() + RecordLayer.TAG_SIZE);
+        try {
+            mWriteLock.lock();
+            try {
+                flags = mRecordLayer.markKeyUpdate(flags);
+                if (!mRecordLayer.seal(Frame.TYPE_RECORD, flags, message, record)) {
+                    return false;
+                }
+                record.flip();
+                return sendFrame(Frame.TYPE_RECORD, flags, record);
+            } finally {
+                mWriteLock.unlock();
+            }
+        } finally {
+            pool.release(record);
+        }
+    }
+
+    /**
+     * Receives the next record and opens it into a buffer from the {@link BufferPool}, like
+     * {@link #receiveRecord()} but without allocating: the record is read into a pooled buffer and opened straight
+     * into another. The caller owns the returned buffer, and must hand it back with
+     * {@link BufferPool#release(ByteBuffer)} once done with it.
+     * @return a buffer holding the message between its position and limit, or <code>null</code> if it could not
+     * be received, or was not a record, or failed verification
+     */
+    public ByteBuffer receiveRecordBuffer() {
+        if (mRecordLayer == null) {
+            Console.d("Could not receive record: No secret key.");
+            return null;
+        }
+        if (mDatagramTransport != null) {
+            return toPooledBuffer(receiveRecord());
+        }
+
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer record = null;
+        byte type;
+        byte flags;
+        mReadLock.lock();
+        try {
+            mHeaderIn.clear();
+            readFully(mHeaderIn);
+            mHeaderIn.flip();
+
+            int length = Frame.readPayloadLength(mHeaderIn);
+            type = Frame.readType(mHeaderIn);
+            flags = Frame.readFlags(mHeaderIn);
+
+            record = pool.acquire(length);
+            readFully(record);
+            record.flip();
+            mMetrics.frameReceived(length);
+        } catch (IOException e) {
+            pool.release(record);
+            Console.exception(e);
+            return null;
+        } finally {
+            mReadLock.unlock();
+        }
+
+        ByteBuffer message = null;
+        try {
+            if (type != Frame.TYPE_RECORD || record.remaining() < RecordLayer.TAG_SIZE) {
+                return null;
+            }
+            message = pool.acquire(record.remaining() - RecordLayer.TAG_SIZE);
+            if (!mRecordLayer.open(type, flags, record, message)) {
+                return null;
+            }
+            message.flip();
+
+            if ((flags & Frame.FLAG_COMPRESSED) != 0) {
+                // Inflater only works on arrays before Java 11, so compressed records take the slow path
+                byte[] compressed = new byte[message.remaining()];
+                message.get(compressed);
+                byte[] decompressed = mCompressor == null ? null : mCompressor.decompress(compressed);
+                if (decompressed == null) {
+                    Console.d("Could not decompress record.");
+                    return null;
+                }
+                pool.release(message);
+                message = toPooledBuffer(decompressed);
+            }
+
+            ByteBuffer result = message;
+            message = null;
+            return result;
+        } finally {
+            pool.release(record);
+            pool.release(message);
+        }
+    }
+
+    /**
+     * @return a buffer from the {@link BufferPool} holding a copy of "bytes", or <code>null</code> if "bytes" is
+     * <code>null</code>
+     */
+    private static ByteBuffer toPooledBuffer(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        ByteBuffer buffer = BufferPool.getDefault().acquire(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Receives the next frame and opens it with the {@link RecordLayer}.
+     * @return the original message, or <code>null</code> if it could not be received, or was not a record, or
+     * failed verification
+     */
+    public byte[] receiveRecord() {
+        return receiveRecord(Frame.TYPE_RECORD);
     }
 
     /**
-     * Gets the String value for an int, then pads that String to 8 characters.
-     * @param length
-     * @return a String with length 8
+     * Receives the next frame, which should be a record of the given type, and opens it.
+     * @see #receiveRecord()
      */
-    private static String getLengthString(int length) {
-        return StringUtil.padded(length, 8);
+    byte[] receiveRecord(byte type) {
+        if (mRecordLayer == null) {
+            Console.d("Could not receive record: No secret key.");
+            return null;
+        }
+
+        Frame frame = receiveFrame();
+        return frame == null || frame.getType() != type ? null : openRecord(frame);
+    }
+
+    /**
+     * Opens a record of any type received with {@link #receiveFrame()}, for a caller that also needs the frame's
+     * flags.
+     * @return the original message, or <code>null</code> if "frame" is <code>null</code>, or failed verification
+     */
+    byte[] openRecord(Frame frame) {
+        if (mRecordLayer == null) {
+            Console.d("Could not open record: No secret key.");
+            return null;
+        }
+        if (frame == null) {
+            return null;
+        }
+        byte type = frame.getType();
+
+        byte[] message;
+        if (mDatagramTransport != null) {
+            message = frame.getPayload();
+        } else {
+            message = mRecordLayer.open(type, frame.getFlags(), frame.getPayload());
+        }
+
+        if (message == null || !frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            return message;
+        }
+        byte[] decompressed = mCompressor == null ? null : mCompressor.decompress(message);
+        if (decompressed == null) {
+            Console.d("Could not decompress record.");
+        }
+        return decompressed;
     }
 
     /**
-     * Receives a byte stream sent by the other party. The other party sends the first 8 bytes as the length
-     * of the message, encoded as a String. On the receiving end, we decode this String to an integer, then
-     * receive exactly that many bytes from the Socket InputStream.
-     * @return
+     * Receives the payload of the next frame sent by the other party. Nothing stops such a frame from being
+     * replayed; use {@link #receiveRecord()}, whose records are bound to their place in the connection, for
+     * anything that needs protecting.
+     * @return the payload, or <code>null</code> if the connection failed or the frame was malformed
      */
     public byte[] receiveBytes() {
+        Frame frame = receiveFrame();
+        return frame == null ? null : frame.getPayload();
+    }
+
+    /**
+     * Receives the next frame sent by the other party. Blocks until the whole frame has arrived, however many
+     * reads from the socket that takes.
+     * @return the frame, or <code>null</code> if the connection failed or the frame was malformed
+     */
+    public Frame receiveFrame() {
+        return receiveFrame(null);
+    }
+
+    /**
+     * Receives the next frame, reading its payload straight into "destination" rather than a new array.
+     * {@link FileTransfer} uses this to receive chunks into direct buffers.
+     * @param destination the buffer to read the payload into, from its position; <code>null</code> to allocate
+     * an array as {@link #receiveFrame()} does
+     * @return the frame, whose payload is <code>null</code> if it was read into "destination"; or
+     * <code>null</code> if the connection failed, or the frame was malformed or did not fit
+     */
+    Frame receiveFrame(ByteBuffer destination) {
+        return receiveFrame(destination, Frame.MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * Receives the next frame, as {@link #receiveFrame(ByteBuffer)} does, but fails without allocating anything if
+     * a TCP frame announces a payload longer than "maxLength".
+     */
+    private Frame receiveFrame(ByteBuffer destination, int maxLength) {
+        if (mDatagramTransport != null) {
+            return receiveDatagramFrame(destination);
+        }
+
         if (isConnected()) {
+            mReadLock.lock();
             try {
-                byte[] lengthInformation = new byte[8];
-                mSocket.getInputStream().read(lengthInformation, 0, 8);
+                mHeaderIn.clear();
+                readFully(mHeaderIn);
+                mHeaderIn.flip();
 
-                int length = Integer.parseInt(new String(lengthInformation).trim());
-
-                byte[] reading = new byte[length];
-                int receivedLength = mSocket.getInputStream().read(reading, 0, length);
+                int length = Frame.readPayloadLength(mHeaderIn);
+                if (length > maxLength) {
+                    throw new ProtocolException("Frame of " + length + " bytes is longer than " + maxLength);
+                }
 
-                if (receivedLength != length) {
-                    Console.d("Lengths are different");
+                byte[] payload = null;
+                if (destination == null) {
+                    payload = new byte[length];
+                    readFully(ByteBuffer.wrap(payload));
+                } else if (length <= destination.remaining()) {
+                    ByteBuffer target = destination.duplicate();
+                    target.limit(target.position() + length);
+                    readFully(target);
+                    destination.position(target.position());
+                } else {
+                    throw new ProtocolException("Frame of " + length + " bytes does not fit the buffer.");
                 }
+                mMetrics.frameReceived(length);
 
-                return reading;
-            } catch (IOException | NumberFormatException e) {
+                return new Frame(Frame.readType(mHeaderIn), Frame.readFlags(mHeaderIn), payload);
+            } catch (IOException e) {
                 Console.exception(e);
                 return null;
+            } finally {
+                mReadLock.unlock();
             }
         }
         return null;
     }
+
+    /**
+     * @see #receiveFrame(ByteBuffer)
+     */
+    private Frame receiveDatagramFrame(ByteBuffer destination) {
+        Frame frame = mDatagramTransport.receive();
+        if (frame == null) {
+            return null;
+        }
+        mMetrics.frameReceived(frame.getPayload().length);
+
+        if (destination == null) {
+            return frame;
+        }
+        if (frame.getPayload().length > destination.remaining()) {
+            Console.d("Frame of %d bytes does not fit the buffer.", frame.getPayload().length);
+            return null;
+        }
+        destination.put(frame.getPayload());
+        return new Frame(frame.getType(), frame.getFlags(), null);
+    }
+
+    /**
+     * Encrypts "plaintext" with the session's secret key and sends it to the other party as a sequence of
+     * {@link Frame#TYPE_STREAM} frames, a chunk at a time. Memory use does not depend on the length of
+     * "plaintext". The other party should read it with {@link #receiveStream()}.
+     * @param plaintext the data to send; read until it ends, then closed
+     * @return <code>true</code> if the whole stream was sent
+     */
+    public boolean sendStream(InputStream plaintext) {
+        if (!mCryptoSession.hasSecretKey()) {
+            Console.d("Could not send stream: No secret key.");
+            return false;
+        }
+
+        byte[] current = new byte[STREAM_FRAME_SIZE];
+        byte[] next = new byte[STREAM_FRAME_SIZE];
+        try (InputStream encrypted = mCryptoSession.encryptingStream(plaintext)) {
+            // read one frame ahead, so the last frame can be marked as the end of the stream
+            int length = fillBuffer(encrypted, current);
+            while (true) {
+                int nextLength = length == current.length ? fillBuffer(encrypted, next) : 0;
+                boolean isLast = nextLength == 0;
+
+                boolean sent = sendFrame(
+                        Frame.TYPE_STREAM,
+                        isLast ? Frame.FLAG_END_OF_STREAM : Frame.FLAG_NONE,
+                        length == current.length ? current : copyOf(current, length)
+                );
+
+                if (!sent) {
+                    return false;
+                }
+                if (isLast) {
+                    return true;
+                }
+
+                byte[] swap = current;
+                current = next;
+                next = swap;
+                length = nextLength;
+            }
+        } catch (IOException e) {
+            Console.exception(e);
+            return false;
+        }
+    }
+
+    /**
+     * Receives a stream sent with {@link #sendStream(InputStream)}. Frames are read from the socket and decrypted
+     * only as the returned stream is read, so the first bytes are available as soon as the first chunk arrives.
+     * No other frames should be received from this Communicator until the returned stream has been read to
+     * its end.
+     * @return a stream of the decrypted data; throws an {@link IOException} while reading if the stream was
+     * modified or truncated
+     */
+    public InputStream receiveStream() {
+        return mCryptoSession.decryptingStream(new FrameInputStream());
+    }
+
+    /**
+     * Sends a file to the other party, encrypted and authenticated a chunk at a time as {@link Frame#TYPE_FILE}
+     * frames. The file is read through memory mappings and encrypted into a direct buffer, so it never passes
+     * through the heap, whatever its size. If the other party already holds the start of the same file from an
+     * interrupted transfer, only the rest is sent. The other party should call {@link #receiveFile(Path)}.
+     * @param file the file to send
+     * @return <code>true</code> if the other party received and saved the whole file
+     * @see FileTransfer
+     */
+    public boolean sendFile(Path file) {
+        return FileTransfer.send(this, file);
+    }
+
+    /**
+     * Receives a file sent with {@link #sendFile(Path)}, writing each chunk straight to disk as it is verified.
+     * An interrupted transfer leaves a partial file next to "target", and the next transfer of the same file
+     * picks up where it left off.
+     * @param target the file to save to, or a directory to save into under the sender's file name
+     * @return the saved file, or <code>null</code> if the transfer failed
+     * @see FileTransfer
+     */
+    public Path receiveFile(Path target) {
+        return FileTransfer.receive(this, target);
+    }
+
+    /**
+     * Starts multiplexing independent streams of messages over this connection, so that many conversations can
+     * run at once without blocking each other, and without more connections or handshakes. Both parties should
+     * call this once the key exchange is complete; from then on, the {@link Multiplexer} owns the connection, and
+     * nothing else should be sent or received on this Communicator.
+     * @return the multiplexer, or <code>null</code> if there is no secret key yet, or the connection is over UDP,
+     * which cannot carry streams reliably
+     * @see Multiplexer
+     */
+    public Multiplexer multiplex() {
+        if (mRecordLayer == null || mDatagramTransport != null) {
+            Console.d("Could not multiplex: %s", mRecordLayer == null ? "No secret key." : "Not a TCP connection.");
+            return null;
+        }
+        return new Multiplexer(this);
+    }
+
+    /**
+     * Starts sending messages over this connection with a {@link PipelinedSender}, which keeps up to "window" of
+     * them in flight while it waits for the other party's acks. The other party should call
+     * {@link #receivePipelined()}. Nothing else should be received on this connection from then on.
+     * @return the sender, or <code>null</code> if the key exchange is not complete, or this is a UDP connection
+     */
+    public PipelinedSender sendPipelined(int window) {
+        if (mRecordLayer == null || mDatagramTransport != null) {
+            Console.d("Could not pipeline: %s", mRecordLayer == null ? "No secret key." : "Not a TCP connection.");
+            return null;
+        }
+        return new PipelinedSender(this, window);
+    }
+
+    /**
+     * Starts receiving the messages of the other party's {@link #sendPipelined(int)} with a
+     * {@link PipelinedReceiver}.
+     * @return the receiver, or <code>null</code> if the key exchange is not complete, or this is a UDP connection
+     */
+    public PipelinedReceiver receivePipelined() {
+        if (mRecordLayer == null || mDatagramTransport != null) {
+            Console.d("Could not pipeline: %s", mRecordLayer == null ? "No secret key." : "Not a TCP connection.");
+            return null;
+        }
+        return new PipelinedReceiver(this);
+    }
+
+    /**
+     * @return <code>true</code> if bytes of the next frame have already been read from the socket, so that
+     * receiving it will not have to wait for the other party
+     */
+    boolean hasBufferedInput() {
+        mReadLock.lock();
+        try {
+            return mReadBuffer.hasRemaining();
+        } finally {
+            mReadLock.unlock();
+        }
+    }
+
+    /**
+     * Sends one frame of the key exchange, offering compression if it is enabled.
+     * @return <code>true</code> if the frame was sent
+     */
+    private boolean sendHandshake(byte flags, byte[] payload) {
+        byte offered = mCompressionEnabled ? (byte) (flags | Frame.FLAG_COMPRESSED) : flags;
+        return sendFrame(Frame.TYPE_HANDSHAKE, offered, payload);
+    }
+
+    /**
+     * Receives the next frame, which is expected to be part of the key exchange.
+     * @return the payload of the frame, or <code>null</code> if no handshake frame was received
+     */
+    private byte[] receiveHandshake() {
+        Frame frame = receiveHandshakeFrame();
+        return frame == null ? null : frame.getPayload();
+    }
+
+    /**
+     * Receives the next handshake frame, refusing any longer than {@link Frame#MAX_HANDSHAKE_PAYLOAD_LENGTH}, so
+     * that a party which has not proven anything yet cannot make this one allocate a large buffer.
+     * @see #receiveHandshake()
+     */
+    private Frame receiveHandshakeFrame() {
+        Frame frame = receiveFrame(null, Frame.MAX_HANDSHAKE_PAYLOAD_LENGTH);
+        if (frame == null) {
+            return null;
+        }
+
+        if (frame.getType() != Frame.TYPE_HANDSHAKE) {
+            Console.w("Expected a handshake frame, but received type %d", frame.getType());
+            return null;
+        }
+
+        if (frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            mPartnerDecompresses = true;
+        }
+
+        return frame;
+    }
+
+    /**
+     * Fills "destination" completely, first from bytes already buffered and then from the socket. Large reads
+     * go straight into "destination" rather than being copied through the read buffer.
+     * @throws EOFException if the other party closes the connection first
+     */
+    private void readFully(ByteBuffer destination) throws IOException {
+        while (destination.hasRemaining()) {
+            if (mReadBuffer.hasRemaining()) {
+                int count = Math.min(mReadBuffer.remaining(), destination.remaining());
+                ByteBuffer slice = mReadBuffer.duplicate();
+                slice.limit(slice.position() + count);
+                destination.put(slice);
+                mReadBuffer.position(mReadBuffer.position() + count);
+            } else if (destination.remaining() >= mReadBuffer.capacity()) {
+                if (mChannel.read(destination) < 0) {
+                    throw new EOFException("Connection closed by the other party.");
+                }
+            } else {
+                mReadBuffer.clear();
+                int read = mChannel.read(mReadBuffer);
+                mReadBuffer.flip();
+                if (read < 0) {
+                    throw new EOFException("Connection closed by the other party.");
+                }
+            }
+        }
+    }
+
+    private static int fillBuffer(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static byte[] copyOf(byte[] buffer, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(buffer, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Presents the payloads of consecutive {@link Frame#TYPE_STREAM} frames as one continuous stream, receiving
+     * each frame only once the previous one has been read.
+     */
+    private class FrameInputStream extends InputStream {
+
+        private byte[] mCurrent = new byte[0];
+        private int mPosition;
+        private boolean mEnded;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            while (mPosition >= mCurrent.length) {
+                if (mEnded) {
+                    return -1;
+                }
+
+                Frame frame = receiveFrame();
+                if (frame == null) {
+                    throw new IOException("Connection failed while receiving stream.");
+                }
+                if (frame.getType() != Frame.TYPE_STREAM) {
+                    throw new IOException("Expected a stream frame, but received type " + frame.getType());
+                }
+
+                mCurrent = frame.getPayload();
+                mPosition = 0;
+                mEnded = frame.hasFlag(Frame.FLAG_END_OF_STREAM);
+            }
+
+            int count = Math.min(length, mCurrent.length - mPosition);
+            System.arraycopy(mCurrent, mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // drain the rest of the stream so the next frame received is not one of ours
+            while (!mEnded) {
+                mPosition = mCurrent.length;
+                if (read() < 0) {
+                    break;
+                }
+            }
+        }
+    }
 }
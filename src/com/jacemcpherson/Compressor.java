@@ -0,0 +1,153 @@
+package com.jacemcpherson;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses records before they are sealed, on connections where both parties asked for it during the handshake
+ * (see {@link Frame#FLAG_COMPRESSED}). Text and JSON often shrink 5 to 10 times, which saves bandwidth and the
+ * cipher's time on the bytes that are left out. Data that is already compressed or encrypted does not shrink, so
+ * each message is only sent compressed if that is worth it:
+ * <ul>
+ *     <li>messages shorter than {@link #MIN_SIZE} are sent as they are, since there is little to gain</li>
+ *     <li>for messages much longer than {@link #SAMPLE_SIZE}, a sample from the start is compressed first, and
+ *     the message is sent as it is if the sample does not shrink</li>
+ *     <li>compression gives up as soon as the output reaches 7/8 of the input's length</li>
+ *     <li>after a message fails to shrink, the next {@link #SKIP_AFTER_FAILURE} messages are sent as they are
+ *     without trying, so a run of incompressible data costs next to nothing</li>
+ * </ul>
+ * A compressed message starts with the algorithm and the original length:
+ * <pre>
+ *   | algorithm (1 byte) | length (4 bytes) | compressed data |
+ * </pre>
+ * The receiver allocates exactly the original length, and rejects lengths over {@link Frame#MAX_PAYLOAD_LENGTH},
+ * so a small record cannot make it inflate an arbitrary amount of data. Only Deflate is implemented; the algorithm
+ * byte leaves room for others.
+ * <br><br>
+ * Each connection has its own compressor. It is safe to use from several threads, but compresses one message at a
+ * time. Once {@link #close()}d, it sends every message as it is and rejects every compressed one, so a connection
+ * closed by one thread does not make another thread that is still sending or receiving on it throw.
+ */
+public class Compressor {
+
+    public static final byte ALGORITHM_DEFLATE = 1;
+
+    /** Messages shorter than this are never compressed. */
+    public static final int MIN_SIZE = 256;
+
+    /** How much of a long message is compressed to decide whether the rest is worth compressing. */
+    public static final int SAMPLE_SIZE = 4 * 1024;
+
+    /** How many messages are sent as they are after one fails to shrink. */
+    public static final int SKIP_AFTER_FAILURE = 16;
+
+    private static final int HEADER_SIZE = 1 + 4;
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater mInflater = new Inflater();
+    private final byte[] mSample = new byte[worthwhileLength(SAMPLE_SIZE)];
+    private int mSkip;
+    private boolean mClosed;
+
+    /**
+     * Compresses "message", if that is worth it.
+     * @return the compressed message, or <code>null</code> if "message" should be sent as it is
+     */
+    public synchronized byte[] compress(byte[] message) {
+        if (mClosed || message.length < MIN_SIZE) {
+            return null;
+        }
+        if (mSkip > 0) {
+            mSkip--;
+            return null;
+        }
+
+        if (message.length > 2 * SAMPLE_SIZE && deflate(message, SAMPLE_SIZE, mSample, 0, mSample.length) < 0) {
+            mSkip = SKIP_AFTER_FAILURE;
+            return null;
+        }
+
+        byte[] output = new byte[HEADER_SIZE + worthwhileLength(message.length)];
+        int length = deflate(message, message.length, output, HEADER_SIZE, output.length - HEADER_SIZE);
+        if (length < 0) {
+            mSkip = SKIP_AFTER_FAILURE;
+            return null;
+        }
+
+        output[0] = ALGORITHM_DEFLATE;
+        ByteBuffer.wrap(output, 1, 4).putInt(message.length);
+        Metrics.compressed(message.length, HEADER_SIZE + length);
+        return Arrays.copyOf(output, HEADER_SIZE + length);
+    }
+
+    /**
+     * Restores a message produced by {@link #compress(byte[])}.
+     * @return the original message, or <code>null</code> if "compressed" is malformed, or the compressor is closed
+     */
+    public synchronized byte[] decompress(byte[] compressed) {
+        if (mClosed || compressed.length < HEADER_SIZE || compressed[0] != ALGORITHM_DEFLATE) {
+            return null;
+        }
+
+        int length = ByteBuffer.wrap(compressed, 1, 4).getInt();
+        if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH) {
+            return null;
+        }
+
+        byte[] message = new byte[length];
+        mInflater.reset();
+        mInflater.setInput(compressed, HEADER_SIZE, compressed.length - HEADER_SIZE);
+        try {
+            int read = 0;
+            while (read < length) {
+                int inflated = mInflater.inflate(message, read, length - read);
+                if (inflated == 0 && (mInflater.finished() || mInflater.needsInput() || mInflater.needsDictionary())) {
+                    // the data ends before the length it claims, or needs a dictionary we never use
+                    return null;
+                }
+                read += inflated;
+            }
+            return message;
+        } catch (DataFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Frees the native memory held by the compressor. Safe to call more than once.
+     */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    /**
+     * Deflates the first "length" bytes of "input" into "output", giving up once "limit" bytes are written.
+     * @return the compressed length, or -1 if it would be "limit" bytes or more
+     */
+    private int deflate(byte[] input, int length, byte[] output, int offset, int limit) {
+        mDeflater.reset();
+        mDeflater.setInput(input, 0, length);
+        mDeflater.finish();
+
+        int written = 0;
+        while (!mDeflater.finished() && written < limit) {
+            written += mDeflater.deflate(output, offset + written, limit - written);
+        }
+        return mDeflater.finished() && written < limit ? written : -1;
+    }
+
+    /**
+     * @return the length compressed output must stay under for compressing "length" bytes to be worth it
+     */
+    private static int worthwhileLength(int length) {
+        return length - length / 8;
+    }
+}
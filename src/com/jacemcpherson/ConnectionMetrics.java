@@ -0,0 +1,118 @@
+package com.jacemcpherson;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the traffic on one connection, and how long its handshake took. Every {@link Communicator} and
+ * {@link NioSession} keeps one, and it is visible over JMX as
+ * <code>com.jacemcpherson:type=Connection,id=...</code> while the connection is open (see {@link Metrics}).
+ * <br><br>
+ * Everything recorded here is also added to the totals in {@link Metrics}.
+ */
+public class ConnectionMetrics implements ConnectionMetricsMXBean {
+
+    private static final AtomicLong sNextId = new AtomicLong(1);
+
+    private final long mId = sNextId.getAndIncrement();
+    private volatile String mRemoteAddress;
+
+    private final AtomicLong mFramesIn = new AtomicLong();
+    private final AtomicLong mFramesOut = new AtomicLong();
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+
+    private volatile long mPublicKeyExchangeNanos;
+    private volatile long mSecretKeyExchangeNanos;
+
+    /**
+     * Called once the connection is established, which makes it visible over JMX.
+     * @param remoteAddress the other end of the connection
+     */
+    void opened(Object remoteAddress) {
+        mRemoteAddress = String.valueOf(remoteAddress);
+        Metrics.register(this);
+    }
+
+    /**
+     * Called when the connection is closed. Safe to call more than once.
+     */
+    void closed() {
+        Metrics.unregister(this);
+    }
+
+    /**
+     * @param payloadLength the length of the frame's payload, not counting the header
+     */
+    void frameSent(int payloadLength) {
+        mFramesOut.incrementAndGet();
+        mBytesOut.addAndGet(Frame.HEADER_SIZE + payloadLength);
+        Metrics.frameSent(payloadLength);
+    }
+
+    /**
+     * @param payloadLength the length of the frame's payload, not counting the header
+     */
+    void frameReceived(int payloadLength) {
+        mFramesIn.incrementAndGet();
+        mBytesIn.addAndGet(Frame.HEADER_SIZE + payloadLength);
+        Metrics.frameReceived(payloadLength);
+    }
+
+    void publicKeyExchanged(long nanos) {
+        mPublicKeyExchangeNanos = nanos;
+        Metrics.PUBLIC_KEY_EXCHANGE.record(nanos);
+    }
+
+    void secretKeyExchanged(long nanos) {
+        mSecretKeyExchangeNanos = nanos;
+        Metrics.SECRET_KEY_EXCHANGE.record(nanos);
+    }
+
+    @Override
+    public long getId() {
+        return mId;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    @Override
+    public long getFramesIn() {
+        return mFramesIn.get();
+    }
+
+    @Override
+    public long getFramesOut() {
+        return mFramesOut.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    /**
+     * @return how long {@link Communicator#exchangeRSAPublicKey()} (or its {@link NioSession} equivalent) took,
+     * or 0 if it has not finished
+     */
+    @Override
+    public long getPublicKeyExchangeNanos() {
+        return mPublicKeyExchangeNanos;
+    }
+
+    /**
+     * @return how long {@link Communicator#exchangeSecretKey()} (or its {@link NioSession} equivalent) took, or 0
+     * if it has not finished
+     */
+    @Override
+    public long getSecretKeyExchangeNanos() {
+        return mSecretKeyExchangeNanos;
+    }
+}
@@ -0,0 +1,23 @@
+package com.jacemcpherson;
+
+/**
+ * The attributes of one connection, as seen over JMX. See {@link ConnectionMetrics}.
+ */
+public interface ConnectionMetricsMXBean {
+
+    long getId();
+
+    String getRemoteAddress();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getPublicKeyExchangeNanos();
+
+    long getSecretKeyExchangeNanos();
+}
@@ -1,8 +1,18 @@
 package com.jacemcpherson;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Formatter;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The Console class provides a way to log more verbosely. Specifically, log messages are more useful,
@@ -17,73 +27,192 @@ import java.util.Scanner;
  *
  * <br><br>To log exceptions, make use of <code>Console.</code>{@link Console#exception(Exception)}
  *
+ * <br><br>
+ * Logging never writes on the calling thread. Messages go into a bounded, lock-free {@link LogRingBuffer} and
+ * are formatted and printed by a background writer thread, so logging from the network path costs no more
+ * than queueing the arguments. Because formatting happens later, arguments must not be modified after they
+ * are logged; use {@link #base64(byte[])} to log bytes without encoding them up front. Messages below
+ * {@link #setLevel(LogType)} are dropped before anything is queued. When the buffer is full, the
+ * {@link OverflowPolicy} decides whether the message is dropped or the caller waits.
+ *
  * @author Jace McPherson
  */
 public class Console {
 
-    private static SimpleDateFormat sFormatter = new SimpleDateFormat("dd MMM, hh:mm:ss.SSS");
+    private static final int BUFFER_CAPACITY = 8192;
+
+    private static final DateTimeFormatter sFormatter = DateTimeFormatter.ofPattern("dd MMM, hh:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
     private static Scanner sScanner = new Scanner(System.in);
 
     public enum LogType {
-        ERROR, DEBUG, INFO, WARNING
+        ERROR(3), DEBUG(0), INFO(1), WARNING(2);
+
+        private final int mSeverity;
+
+        LogType(int severity) {
+            mSeverity = severity;
+        }
+    }
+
+    /**
+     * What to do with a message when the log buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Drop the message, and report how many were dropped once the buffer drains. Never stalls the caller. */
+        DROP,
+        /** Wait for the writer to make room. No message is lost, but a slow console slows the caller down. */
+        BLOCK
+    }
+
+    private static final LogRingBuffer sBuffer = new LogRingBuffer(BUFFER_CAPACITY);
+    private static final AtomicLong sDropped = new AtomicLong();
+
+    private static volatile int sMinimumSeverity = LogType.DEBUG.mSeverity;
+    private static volatile OverflowPolicy sOverflowPolicy = OverflowPolicy.DROP;
+
+    private static final Thread sWriterThread;
+    private static volatile boolean sWriterWaiting;
+
+    // the head of the buffer as of the writer's last flush to System.out
+    private static volatile long sWritten;
+
+    static {
+        sWriterThread = new Thread(new Writer(System.out), "Console");
+        sWriterThread.setDaemon(true);
+        sWriterThread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(TimeUnit.SECONDS.toMillis(1))));
     }
 
     public static void init() {
         System.out.print("CryptoSystem v0.1a\n> ");
     }
 
+    /**
+     * Messages of a lower severity than "level" are ignored. Severity goes DEBUG, INFO, WARNING, ERROR; the
+     * default is DEBUG, which logs everything.
+     */
+    public static void setLevel(LogType level) {
+        sMinimumSeverity = level.mSeverity;
+    }
+
+    public static boolean isEnabled(LogType type) {
+        return type.mSeverity >= sMinimumSeverity;
+    }
+
+    public static void setOverflowPolicy(OverflowPolicy policy) {
+        sOverflowPolicy = policy;
+    }
+
+    /**
+     * @return the number of messages dropped so far because the buffer was full
+     */
+    public static long getDroppedCount() {
+        return sDropped.get();
+    }
+
     public static void out(LogType type, String message, Object... args) {
-        System.out.printf(
-                "%s | %s: %s\n> ",
-                sFormatter.format(new Date()),
-                type.toString(),
-                String.format(message, args)
-        );
+        if (!isEnabled(type)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        while (!sBuffer.offer(now, type, message, args)) {
+            if (sOverflowPolicy == OverflowPolicy.DROP) {
+                sDropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(sWriterThread);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+
+        if (sWriterWaiting) {
+            LockSupport.unpark(sWriterThread);
+        }
+    }
+
+    /**
+     * Waits until everything logged so far has been printed.
+     */
+    public static void flush() {
+        flush(Long.MAX_VALUE);
+    }
+
+    private static void flush(long timeoutMillis) {
+        long target = sBuffer.getTail();
+        long deadline = System.currentTimeMillis() + Math.min(timeoutMillis, Long.MAX_VALUE / 2);
+        while (sWritten < target && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(sWriterThread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * @return an argument for the log methods that prints "bytes" as Base64, but only encodes them if the message
+     * is actually printed
+     */
+    public static Object base64(final byte[] bytes) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return bytes == null ? "null" : Base64.getEncoder().encodeToString(bytes);
+            }
+        };
     }
 
     public static String getLine() {
+        flush();
         String result = sScanner.nextLine();
         System.out.print("> ");
         return result;
     }
 
     public static String get() {
+        flush();
         String result = sScanner.next();
         System.out.print("> ");
         return result;
     }
 
     public static int getInt() {
+        flush();
         int result = sScanner.nextInt();
         System.out.print("> ");
         return result;
     }
 
     public static double getDouble() {
+        flush();
         double result = sScanner.nextDouble();
         System.out.print("> ");
         return result;
     }
 
     public static long getLong() {
+        flush();
         long result = sScanner.nextLong();
         System.out.print("> ");
         return result;
     }
 
     public static boolean getBoolean() {
+        flush();
         boolean result = sScanner.nextBoolean();
         System.out.print("> ");
         return result;
     }
 
     public static float getFloat() {
+        flush();
         float result = sScanner.nextFloat();
         System.out.print("> ");
         return result;
     }
 
     public static boolean hasNext() {
+        flush();
         return sScanner.hasNext();
     }
 
@@ -104,11 +233,93 @@ public class Console {
     }
 
     public static void exception(Exception e) {
+        if (!isEnabled(LogType.ERROR)) {
+            return;
+        }
 
-        e(e.getClass().getCanonicalName() + ": " + e.getMessage());
+        e("%s: %s", e.getClass().getCanonicalName(), e.getMessage());
 
         for (StackTraceElement el : e.getStackTrace()) {
-            e("\t" + el.toString());
+            e("\t%s", el);
+        }
+    }
+
+    /**
+     * Drains the buffer into System.out. The line layout is the same as it has always been; the timestamp is
+     * formatted at most once per second, and a single {@link Formatter} is reused for every line.
+     */
+    private static class Writer implements Runnable, LogRingBuffer.Handler {
+
+        private final PrintWriter mOut;
+        private final StringBuilder mLine = new StringBuilder(256);
+        private final Formatter mFormatter = new Formatter(mLine);
+
+        private long mCachedSecond = -1;
+        private String mCachedTimestamp;
+
+        Writer(PrintStream out) {
+            mOut = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), 8192), false);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (sBuffer.drain(this) > 0) {
+                    continue;
+                }
+
+                long dropped = sDropped.getAndSet(0);
+                if (dropped > 0) {
+                    mOut.printf("%d log messages were dropped because the log buffer was full\n> ", dropped);
+                }
+                mOut.flush();
+                sWritten = sBuffer.getHead();
+
+                sWriterWaiting = true;
+                if (sBuffer.isEmpty()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                sWriterWaiting = false;
+            }
+        }
+
+        @Override
+        public void onEntry(LogRingBuffer.Entry entry) {
+            mLine.setLength(0);
+            appendTimestamp(entry.mTimeMillis);
+            mLine.append(" | ").append(entry.mType.toString()).append(": ");
+
+            try {
+                if (entry.mArgs == null || entry.mArgs.length == 0) {
+                    mLine.append(entry.mMessage);
+                } else {
+                    mFormatter.format(entry.mMessage, entry.mArgs);
+                }
+            } catch (RuntimeException e) {
+                // a bad format string or a failing toString() should not take the writer down
+                mLine.append(entry.mMessage).append(" [").append(e).append(']');
+            }
+
+            mLine.append("\n> ");
+            mOut.append(mLine);
+        }
+
+        private void appendTimestamp(long timeMillis) {
+            long second = timeMillis / 1000;
+            if (second != mCachedSecond) {
+                mCachedSecond = second;
+                mCachedTimestamp = sFormatter.format(Instant.ofEpochMilli(timeMillis));
+            }
+
+            int millis = (int) (timeMillis % 1000);
+            mLine.append(mCachedTimestamp).append('.');
+            if (millis < 100) {
+                mLine.append('0');
+            }
+            if (millis < 10) {
+                mLine.append('0');
+            }
+            mLine.append(millis);
         }
     }
 }
@@ -0,0 +1,211 @@
+package com.jacemcpherson;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pools {@link Cipher}, {@link Mac}, {@link Signature} and {@link MessageDigest} instances, so the hot path never
+ * has to look them up with <code>getInstance</code> again. None of these classes are thread-safe, so an instance
+ * is taken out of its pool for the length of one operation, and put back afterwards. The pools are shared by
+ * every thread, rather than kept per thread, so that short-lived threads, such as virtual threads, still find
+ * instances to reuse; and each holds at most {@link #MAX_IDLE} idle instances per algorithm.
+ * <br><br>
+ * Each instance remembers the key (and mode) it was last initialized with, and an operation on a key is given an
+ * idle instance already initialized with that key if there is one. That skips <code>init</code> entirely, and
+ * relies on <code>doFinal</code>, <code>sign</code>, <code>verify</code> and <code>digest</code> resetting the
+ * instance for the next use. Otherwise an idle instance is re-initialized with the new key.
+ * <br><br>
+ * An instance whose operation throws is never put back, so the next operation starts from a fresh instance
+ * rather than one in an unknown state. When a key is no longer used, such as when a {@link CryptoSession} is
+ * closed, {@link #forget(Key)} drops the idle instances initialized with it, so that they stop holding it.
+ */
+class CryptoContexts {
+
+    /**
+     * The most idle instances kept for each algorithm; any more are left to the garbage collector.
+     */
+    static final int MAX_IDLE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final int SIGN = 1;
+    private static final int VERIFY = 2;
+
+    /**
+     * The work done with one instance, between taking it out of its pool and putting it back.
+     */
+    interface Operation<T, R> {
+        R apply(T instance) throws GeneralSecurityException;
+    }
+
+    private interface Factory<T> {
+        T create() throws GeneralSecurityException;
+    }
+
+    private interface Initializer<T> {
+        void init(T instance) throws GeneralSecurityException;
+    }
+
+    private static class Context<T> {
+        final T mInstance;
+        Key mKey;
+        int mMode;
+
+        Context(T instance) {
+            mInstance = instance;
+        }
+
+        /**
+         * @return <code>true</code> if the instance must be (re-)initialized for "key" and "mode"
+         */
+        boolean needsInit(Key key, int mode) {
+            if (mKey == key && mMode == mode) {
+                return false;
+            }
+            mKey = key;
+            mMode = mode;
+            return true;
+        }
+    }
+
+    private static class Pool<T> {
+        // most recently used last
+        private final ArrayDeque<Context<T>> mIdle = new ArrayDeque<>(); // guarded by this
+
+        /**
+         * @return an idle instance initialized with "key" and "mode" if there is one, else the most recently used
+         * idle instance, else <code>null</code>
+         */
+        synchronized Context<T> take(Key key, int mode) {
+            for (Iterator<Context<T>> iterator = mIdle.descendingIterator(); iterator.hasNext(); ) {
+                Context<T> context = iterator.next();
+                if (context.mKey == key && context.mMode == mode) {
+                    iterator.remove();
+                    return context;
+                }
+            }
+            return mIdle.pollLast();
+        }
+
+        synchronized void give(Context<T> context) {
+            if (mIdle.size() < MAX_IDLE) {
+                mIdle.addLast(context);
+            }
+        }
+
+        synchronized void forget(Key key) {
+            mIdle.removeIf(context -> context.mKey == key);
+        }
+    }
+
+    private static final Map<String, Pool<Cipher>> sCiphers = new ConcurrentHashMap<>();
+    private static final Map<String, Pool<Mac>> sMacs = new ConcurrentHashMap<>();
+    private static final Map<String, Pool<Signature>> sSignatures = new ConcurrentHashMap<>();
+    private static final Map<String, Pool<MessageDigest>> sDigests = new ConcurrentHashMap<>();
+
+    /**
+     * Runs "operation" with a {@link Cipher} for "transformation", initialized with "mode" and "key". Only suitable
+     * for transformations that do not need parameters, such as an IV.
+     * @return the result of "operation"
+     */
+    static <R> R cipher(String transformation, int mode, Key key, Operation<Cipher, R> operation)
+            throws GeneralSecurityException {
+        return run(pool(sCiphers, transformation), key, mode,
+                () -> Cipher.getInstance(transformation), cipher -> cipher.init(mode, key), operation);
+    }
+
+    /**
+     * Runs "operation" with a {@link Mac} for "algorithm", initialized with "key".
+     * @return the result of "operation"
+     */
+    static <R> R mac(String algorithm, Key key, Operation<Mac, R> operation) throws GeneralSecurityException {
+        return run(pool(sMacs, algorithm), key, 0, () -> Mac.getInstance(algorithm), mac -> mac.init(key), operation);
+    }
+
+    /**
+     * Runs "operation" with a {@link Signature} for "algorithm", initialized for signing with "privateKey".
+     * @return the result of "operation"
+     */
+    static <R> R signer(String algorithm, PrivateKey privateKey, Operation<Signature, R> operation)
+            throws GeneralSecurityException {
+        return run(pool(sSignatures, algorithm), privateKey, SIGN,
+                () -> Signature.getInstance(algorithm), signature -> signature.initSign(privateKey), operation);
+    }
+
+    /**
+     * Runs "operation" with a {@link Signature} for "algorithm", initialized for verifying with "publicKey".
+     * @return the result of "operation"
+     */
+    static <R> R verifier(String algorithm, PublicKey publicKey, Operation<Signature, R> operation)
+            throws GeneralSecurityException {
+        return run(pool(sSignatures, algorithm), publicKey, VERIFY,
+                () -> Signature.getInstance(algorithm), signature -> signature.initVerify(publicKey), operation);
+    }
+
+    /**
+     * Runs "operation" with a {@link MessageDigest} for "algorithm", reset and ready for use.
+     * @return the result of "operation"
+     */
+    static <R> R digest(String algorithm, Operation<MessageDigest, R> operation) throws GeneralSecurityException {
+        Pool<MessageDigest> pool = pool(sDigests, algorithm);
+        Context<MessageDigest> context = pool.take(null, 0);
+        if (context == null) {
+            context = new Context<>(MessageDigest.getInstance(algorithm));
+        } else {
+            context.mInstance.reset();
+        }
+
+        R result = operation.apply(context.mInstance);
+        pool.give(context);
+        return result;
+    }
+
+    /**
+     * Drops every idle instance initialized with "key". Call this once "key" will not be used again.
+     */
+    static void forget(Key key) {
+        if (key == null) {
+            return;
+        }
+        for (Pool<Cipher> pool : sCiphers.values()) {
+            pool.forget(key);
+        }
+        for (Pool<Mac> pool : sMacs.values()) {
+            pool.forget(key);
+        }
+        for (Pool<Signature> pool : sSignatures.values()) {
+            pool.forget(key);
+        }
+    }
+
+    private static <T> Pool<T> pool(Map<String, Pool<T>> pools, String algorithm) {
+        return pools.computeIfAbsent(algorithm, name -> new Pool<>());
+    }
+
+    /**
+     * Takes an instance out of "pool", (re-)initializes it for "key" and "mode" if it has to, and puts it back
+     * once "operation" returns. If anything throws, the instance is dropped instead.
+     */
+    private static <T, R> R run(Pool<T> pool, Key key, int mode, Factory<T> factory, Initializer<T> initializer,
+                                Operation<T, R> operation) throws GeneralSecurityException {
+        Context<T> context = pool.take(key, mode);
+        if (context == null) {
+            context = new Context<>(factory.create());
+        }
+        if (context.needsInit(key, mode)) {
+            initializer.init(context.mInstance);
+        }
+
+        R result = operation.apply(context.mInstance);
+        pool.give(context);
+        return result;
+    }
+}
@@ -0,0 +1,291 @@
+package com.jacemcpherson;
+
+import javax.crypto.SecretKey;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.List;
+
+/**
+ * Holds the keys belonging to a single conversation between this party and one partner: the partner's RSA
+ * public key and the AES secret key shared with that partner.
+ * <br><br>
+ * The static methods in {@link RSAEncryptionUtil} and {@link AESEncryptionUtil} work on a single partner, held in
+ * {@link #getDefault()}. A server talking to many clients at once keeps one <code>CryptoSession</code> per
+ * connection instead. This party's own RSA key pair is still shared, and is provided by {@link RSAEncryptionUtil}.
+ * <br><br>
+ * Sessions are safe to use from several threads at once: they hold no {@link javax.crypto.Cipher} or
+ * {@link javax.crypto.Mac} of their own, and instead borrow the instances pooled by {@link CryptoContexts},
+ * preferring ones already initialized with the session's key. Call {@link #close()} once the session is over, so
+ * that the pooled instances stop holding its key.
+ */
+public class CryptoSession {
+
+    private static final CryptoSession sDefault = new CryptoSession();
+
+    /**
+     * @return the session used by the static methods of {@link AESEncryptionUtil}, {@link RSAEncryptionUtil}
+     * and {@link SHA256Util}
+     */
+    public static CryptoSession getDefault() {
+        return sDefault;
+    }
+
+    private volatile PublicKey mPartnerPublicKey;
+    private volatile PeerKeyCache.Peer mPartner;
+    private volatile SecretKey mSecretKey;
+    private volatile HandshakeSuite mSuite = HandshakeSuite.RSA;
+
+    // the root and root signature of the last batch whose signature checked out, as { root, signature }
+    private volatile byte[][] mVerifiedBatch;
+
+    // held while checking a batch's root signature, so that messages of one batch checked on several threads at
+    // once, as by a VerificationPool, wait for the first check instead of all repeating it
+    private final Object mBatchLock = new Object();
+
+    public CryptoSession() {
+    }
+
+    public CryptoSession(PublicKey partnerPublicKey, SecretKey secretKey) {
+        setPartnerPublicKey(partnerPublicKey);
+        mSecretKey = secretKey;
+    }
+
+    /**
+     * Drops the instances {@link CryptoContexts} has initialized with this session's secret key. The session can
+     * still be used afterwards; its next operations just initialize fresh instances.
+     */
+    public void close() {
+        CryptoContexts.forget(mSecretKey);
+    }
+
+    public PublicKey getPartnerPublicKey() {
+        return mPartnerPublicKey;
+    }
+
+    public SecretKey getSecretKey() {
+        return mSecretKey;
+    }
+
+    /**
+     * Sets the partner's public key. If {@link PeerKeyCache#getDefault()} already holds an equal key, that instance
+     * is kept instead, along with the verifiers initialized with it.
+     */
+    public void setPartnerPublicKey(PublicKey partnerPublicKey) {
+        PeerKeyCache.Peer partner = partnerPublicKey == null
+                ? null
+                : PeerKeyCache.getDefault().lookup(partnerPublicKey);
+        mPartner = partner;
+        mPartnerPublicKey = partner == null ? null : partner.getPublicKey();
+        mVerifiedBatch = null;
+    }
+
+    public void setSecretKey(SecretKey secretKey) {
+        replaceSecretKey(secretKey);
+    }
+
+    /**
+     * @return how this session's keys were set up, which decides how {@link #signMessage(byte[])} signs
+     */
+    public HandshakeSuite getSuite() {
+        return mSuite;
+    }
+
+    public void setSuite(HandshakeSuite suite) {
+        mSuite = suite;
+    }
+
+    public boolean hasPartnerPublicKey() {
+        return mPartnerPublicKey != null;
+    }
+
+    public boolean hasSecretKey() {
+        return mSecretKey != null;
+    }
+
+    /**
+     * @return <code>true</code> if the partner's public key is one of the {@link KeyStoreUtil#getTrustedKeys()}
+     */
+    public boolean isPartnerTrusted() {
+        PublicKey partnerPublicKey = mPartnerPublicKey;
+        return partnerPublicKey != null && KeyStoreUtil.isTrusted(partnerPublicKey);
+    }
+
+    /**
+     * Decodes and stores the partner's encoded RSA public key.
+     * @param publicKey the X.509 encoded public key received from the partner
+     * @return <code>true</code> if the key was decoded successfully
+     */
+    public boolean decodePartnerPublicKey(byte[] publicKey) {
+        setPartnerPublicKey(RSAEncryptionUtil.parsePublicKey(publicKey));
+        return mPartnerPublicKey != null;
+    }
+
+    /**
+     * Generates a fresh AES secret key for this session, replacing any previous one.
+     * @return the encoded key, ready to be encrypted and sent to the partner
+     */
+    public byte[] generateSecretKey() {
+        SecretKey secretKey = AESEncryptionUtil.generateSecretKey();
+        replaceSecretKey(secretKey);
+        return secretKey == null ? null : secretKey.getEncoded();
+    }
+
+    /**
+     * Decrypts an RSA-encrypted secret key sent by the partner and stores it as this session's AES key.
+     * @param encryptedKey the secret key, encrypted under this party's public key
+     * @return <code>true</code> if the key was decrypted successfully
+     */
+    public boolean receiveEncryptedSecretKey(byte[] encryptedKey) {
+        byte[] secretKeyEncoded = RSAEncryptionUtil.decryptMessage(encryptedKey);
+        if (secretKeyEncoded == null) {
+            return false;
+        }
+
+        replaceSecretKey(AESEncryptionUtil.toSecretKey(secretKeyEncoded));
+        return true;
+    }
+
+    public byte[] encryptMessage(byte[] message) {
+        return AESEncryptionUtil.encryptMessage(mSecretKey, message);
+    }
+
+    public byte[] decryptMessage(byte[] message) {
+        return AESEncryptionUtil.decryptMessage(mSecretKey, message);
+    }
+
+    /**
+     * @see ParallelAESUtil#encryptMessage(SecretKey, byte[])
+     */
+    public byte[] encryptBulk(byte[] message) {
+        return ParallelAESUtil.encryptMessage(mSecretKey, message);
+    }
+
+    /**
+     * @see ParallelAESUtil#decryptMessage(SecretKey, byte[])
+     */
+    public byte[] decryptBulk(byte[] message) {
+        return ParallelAESUtil.decryptMessage(mSecretKey, message);
+    }
+
+    /**
+     * @see StreamingAESUtil#encryptingStream(SecretKey, InputStream)
+     */
+    public InputStream encryptingStream(InputStream plaintext) {
+        return StreamingAESUtil.encryptingStream(mSecretKey, plaintext);
+    }
+
+    /**
+     * @see StreamingAESUtil#decryptingStream(SecretKey, InputStream)
+     */
+    public InputStream decryptingStream(InputStream ciphertext) {
+        return StreamingAESUtil.decryptingStream(mSecretKey, ciphertext);
+    }
+
+    public byte[] encryptForPartner(byte[] message) {
+        return RSAEncryptionUtil.encryptMessage(mPartnerPublicKey, message);
+    }
+
+    public byte[] getHMAC(byte[] message) {
+        return SHA256Util.getHMAC(mSecretKey, message);
+    }
+
+    /**
+     * Signs "message" with this party's identity key for the session's {@link HandshakeSuite}: Ed25519 for
+     * {@link HandshakeSuite#ECDHE}, RSA otherwise.
+     */
+    public byte[] signMessage(byte[] message) {
+        return mSuite == HandshakeSuite.ECDHE
+                ? ECDHEUtil.signMessage(message)
+                : RSAEncryptionUtil.signMessage(message);
+    }
+
+    /**
+     * Verifies a signature with the partner's public key, using Ed25519 or RSA depending on the kind of key.
+     * @see PeerKeyCache.Peer#verifySignature(byte[], byte[])
+     */
+    public boolean verifySignature(byte[] message, byte[] signature) {
+        PeerKeyCache.Peer partner = mPartner;
+        if (partner == null) {
+            Console.d("Partner public key unknown");
+            return false;
+        }
+        return partner.verifySignature(message, signature);
+    }
+
+    /**
+     * Signs a batch of message HMACs with a single signature over their {@link MerkleTree} root, made with
+     * {@link #signMessage(byte[])}.
+     * @param hmacs the HMACs of the messages in the batch, in order
+     * @return one {@link BatchSignature} per HMAC, in the same order; <code>null</code> if signing failed
+     */
+    public BatchSignature[] signBatch(List<byte[]> hmacs) {
+        try {
+            MerkleTree tree = new MerkleTree(hmacs);
+            byte[] rootSignature = signMessage(tree.getRoot());
+            if (rootSignature == null) {
+                return null;
+            }
+
+            BatchSignature[] signatures = new BatchSignature[hmacs.size()];
+            for (int i = 0; i < signatures.length; i++) {
+                signatures[i] = new BatchSignature(signatures.length, i, tree.getProof(i), rootSignature);
+            }
+            return signatures;
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return null;
+        }
+    }
+
+    /**
+     * Verifies one message of a batch signed by the partner's {@link BatchSigner}. The root signature is only
+     * checked with RSA for the first message of each batch; the rest of the batch is checked against the
+     * remembered root, which costs a few hashes.
+     * @param message the message, as received
+     * @param batchSignature the signature that came with it
+     * @return whether "message" is part of a batch the partner signed
+     */
+    public boolean verifyBatchSignature(byte[] message, BatchSignature batchSignature) {
+        byte[] hmac = getHMAC(message);
+        byte[] root = hmac == null ? null : batchSignature.computeRoot(hmac);
+        if (root == null) {
+            return false;
+        }
+
+        byte[] signature = batchSignature.getRootSignature();
+        if (isVerifiedBatch(root, signature)) {
+            return true;
+        }
+
+        synchronized (mBatchLock) {
+            if (isVerifiedBatch(root, signature)) {
+                return true;
+            }
+            if (!verifySignature(root, signature)) {
+                return false;
+            }
+            mVerifiedBatch = new byte[][] { root, signature };
+            return true;
+        }
+    }
+
+    /**
+     * Stores "secretKey", and drops the pooled instances initialized with the key it replaces.
+     */
+    private void replaceSecretKey(SecretKey secretKey) {
+        SecretKey previous = mSecretKey;
+        mSecretKey = secretKey;
+        if (previous != secretKey) {
+            CryptoContexts.forget(previous);
+        }
+    }
+
+    private boolean isVerifiedBatch(byte[] root, byte[] signature) {
+        byte[][] verified = mVerifiedBatch;
+        return verified != null
+                && MessageDigest.isEqual(verified[0], root)
+                && MessageDigest.isEqual(verified[1], signature);
+    }
+}
@@ -0,0 +1,202 @@
+package com.jacemcpherson;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * Seals and opens the datagrams of a {@link DatagramTransport}, in the style of DTLS. Unlike {@link RecordLayer},
+ * which counts records implicitly and so needs them in order, every datagram carries its sequence number in its
+ * header, and can be opened on its own whatever was lost or reordered before it.
+ * <br><br>
+ * As in {@link RecordLayer}, each direction has its own key and IV derived from the shared secret key with
+ * {@link HKDFUtil} (under different labels, so the two never share a nonce), and a datagram's nonce is the IV
+ * combined with its sequence number. The whole datagram header is authenticated along with the payload. Incoming
+ * sequence numbers are checked against a {@link ReplayWindow}, so each datagram is accepted at most once.
+ */
+public class DatagramRecordLayer {
+
+    /** The number of bytes sealing adds to each datagram. */
+    public static final int TAG_SIZE = 16;
+
+    /** How far behind the newest datagram an older one may arrive and still be accepted, by default. */
+    public static final int REPLAY_WINDOW_SIZE = 1024;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final int KEY_SIZE = 16;
+    private static final int IV_SIZE = 12;
+
+    /**
+     * One direction of the connection: a key, a base IV and the {@link Cipher} to use.
+     */
+    private static class Direction {
+        final SecretKey mKey;
+        final byte[] mIV;
+        final Cipher mCipher;
+        final byte[] mNonce = new byte[IV_SIZE];
+
+        Direction(SecretKey key, byte[] iv) throws GeneralSecurityException {
+            mKey = key;
+            mIV = iv;
+            mCipher = Cipher.getInstance(TRANSFORMATION);
+        }
+
+        Cipher init(int mode, long sequence) throws GeneralSecurityException {
+            System.arraycopy(mIV, 0, mNonce, 0, IV_SIZE);
+            for (int i = 0; i < 8; i++) {
+                mNonce[IV_SIZE - 8 + i] ^= (byte) (sequence >>> (56 - 8 * i));
+            }
+
+            mCipher.init(mode, mKey, new GCMParameterSpec(TAG_SIZE * 8, mNonce));
+            return mCipher;
+        }
+    }
+
+    private final Direction mSend;
+    private final Direction mReceive;
+
+    // guarded by mSend
+    private long mSendSequence;
+
+    // guarded by mReceive
+    private final ReplayWindow mWindow;
+
+    /**
+     * Constructs a record layer for one end of a datagram connection, with a replay window of
+     * {@link #REPLAY_WINDOW_SIZE}.
+     * @param secretKey the shared secret key, as set up by {@link Communicator#exchangeSecretKey()}
+     * @param isServer whether this end is the server; the two ends must pass opposite values
+     * @throws GeneralSecurityException if AES-GCM is unavailable
+     */
+    public DatagramRecordLayer(SecretKey secretKey, boolean isServer) throws GeneralSecurityException {
+        this(secretKey, isServer, REPLAY_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructs a record layer for one end of a datagram connection.
+     * @param secretKey the shared secret key, as set up by {@link Communicator#exchangeSecretKey()}
+     * @param isServer whether this end is the server; the two ends must pass opposite values
+     * @param replayWindowSize how far behind the newest datagram an older one may arrive and still be accepted. At
+     * high datagram rates, the same amount of reordering in the network spans more sequence numbers, so the window
+     * should grow with the rate. It costs one bit per sequence number.
+     * @throws GeneralSecurityException if AES-GCM is unavailable
+     */
+    public DatagramRecordLayer(SecretKey secretKey, boolean isServer, int replayWindowSize)
+            throws GeneralSecurityException {
+        mWindow = new ReplayWindow(replayWindowSize);
+
+        byte[] pseudorandomKey = HKDFUtil.extract(null, secretKey.getEncoded());
+
+        Direction client = new Direction(
+                AESEncryptionUtil.toSecretKey(HKDFUtil.expand(pseudorandomKey, "client datagram key", KEY_SIZE)),
+                HKDFUtil.expand(pseudorandomKey, "client datagram iv", IV_SIZE)
+        );
+        Direction server = new Direction(
+                AESEncryptionUtil.toSecretKey(HKDFUtil.expand(pseudorandomKey, "server datagram key", KEY_SIZE)),
+                HKDFUtil.expand(pseudorandomKey, "server datagram iv", IV_SIZE)
+        );
+
+        mSend = isServer ? server : client;
+        mReceive = isServer ? client : server;
+    }
+
+    /**
+     * Hands out "count" consecutive sequence numbers for outgoing datagrams. Each must be sealed at most once.
+     * @return the first of them
+     */
+    public long reserveSequences(int count) {
+        synchronized (mSend) {
+            long first = mSendSequence;
+            mSendSequence += count;
+            return first;
+        }
+    }
+
+    /**
+     * Encrypts and authenticates one outgoing datagram.
+     * @param sequence a sequence number from {@link #reserveSequences(int)}, which "header" should also carry
+     * @param header the datagram header, authenticated but not encrypted
+     * @param plaintext the buffer holding the payload
+     * @param offset where the payload starts in "plaintext"
+     * @param length the length of the payload
+     * @return the sealed payload, {@link #TAG_SIZE} bytes longer; <code>null</code> if sealing failed
+     */
+    public byte[] seal(long sequence, byte[] header, byte[] plaintext, int offset, int length) {
+        synchronized (mSend) {
+            try {
+                long start = System.nanoTime();
+                Cipher cipher = mSend.init(Cipher.ENCRYPT_MODE, sequence);
+                cipher.updateAAD(header);
+                byte[] sealed = cipher.doFinal(plaintext, offset, length);
+                Metrics.AES_ENCRYPT.recordSince(start);
+                return sealed;
+            } catch (GeneralSecurityException e) {
+                Console.exception(e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Decrypts and verifies one incoming datagram, and records its sequence number as seen.
+     * @param sequence the sequence number from the datagram's header
+     * @param datagram the whole datagram
+     * @param headerLength the length of the header at the start of "datagram"
+     * @param length the length of the whole datagram
+     * @return the original payload, or <code>null</code> if the datagram was modified or replayed, or is too old
+     */
+    public byte[] open(long sequence, byte[] datagram, int headerLength, int length) {
+        if (length - headerLength < TAG_SIZE) {
+            Metrics.integrityFailed();
+            return null;
+        }
+
+        synchronized (mReceive) {
+            if (!mWindow.check(sequence)) {
+                if (mWindow.isTooOld(sequence)) {
+                    Metrics.outOfWindow();
+                } else {
+                    Metrics.replayed();
+                }
+                return null;
+            }
+
+            byte[] plaintext;
+            try {
+                long start = System.nanoTime();
+                Cipher cipher = mReceive.init(Cipher.DECRYPT_MODE, sequence);
+                cipher.updateAAD(datagram, 0, headerLength);
+                plaintext = cipher.doFinal(datagram, headerLength, length - headerLength);
+                Metrics.AES_DECRYPT.recordSince(start);
+            } catch (GeneralSecurityException e) {
+                // authentication failed; the window stays where it is
+                Metrics.integrityFailed();
+                return null;
+            }
+
+            mWindow.update(sequence);
+            return plaintext;
+        }
+    }
+
+    public int getReplayWindowSize() {
+        return mWindow.getSize();
+    }
+
+    public long getSendSequence() {
+        synchronized (mSend) {
+            return mSendSequence;
+        }
+    }
+
+    /**
+     * @return the highest sequence number received so far, or -1
+     */
+    public long getHighestReceivedSequence() {
+        synchronized (mReceive) {
+            return mWindow.getHighest();
+        }
+    }
+}
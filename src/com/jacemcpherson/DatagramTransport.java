@@ -0,0 +1,632 @@
+package com.jacemcpherson;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries {@link Frame}s over UDP, for a {@link Communicator} created with
+ * {@link Communicator#Communicator(DatagramTransport)}. Each frame is split into datagrams of at most
+ * {@link #getMaxDatagramSize()} bytes, each of which starts with a header:
+ * <pre>
+ *   +---------+------+-------+---------------------+--------------------+--------------------+
+ *   | version | type | flags | sequence (8 bytes)  | fragment index (2) | fragment count (2) |  payload ...
+ *   +---------+------+-------+---------------------+--------------------+--------------------+
+ * </pre>
+ * The fragments of one frame have consecutive sequence numbers, so the receiver finds the first of them by
+ * subtracting the fragment index, and puts the frame back together once every fragment has arrived.
+ * <br><br>
+ * Once the secret key is known (see {@link #setSecretKey(SecretKey)}), every datagram is sealed on its own by a
+ * {@link DatagramRecordLayer}, with its header as associated data. Each one can be opened whatever was lost or
+ * reordered before it, and replays are caught by a {@link ReplayWindow}. These frames are delivered as they
+ * complete, so possibly out of order, and a frame that loses a fragment is never delivered: like UDP itself, this
+ * transport does not retransmit data.
+ * <br><br>
+ * Handshake frames are sent before there is a key, in plain text as they are over TCP. A handshake cannot survive
+ * a lost message, so the receiver acknowledges each handshake frame, and unless this is turned off with
+ * {@link #setHandshakeRetransmission(boolean)}, the sender retransmits it with exponential backoff until it is
+ * acknowledged. Handshake frames are delivered in order, exactly once. A sealed datagram from the other party
+ * also counts as an acknowledgement of every handshake frame sent so far, since it only starts sealing once its
+ * side of the handshake is done; otherwise the last handshake frame would wait for an acknowledgement that a
+ * party with nothing left to receive never sends.
+ * <br><br>
+ * A transport talks to a single peer. The server learns who that is from the first datagram it receives, which
+ * the client sends (and repeats until the server answers) in {@link #connect(InetSocketAddress)}.
+ */
+public class DatagramTransport {
+
+    public static final int HEADER_SIZE = 15;
+
+    /**
+     * The default largest datagram sent, header included. This keeps datagrams inside a typical 1500-byte
+     * Ethernet MTU once the IP and UDP headers are added, so they are never fragmented by IP.
+     */
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = 1400;
+
+    // control messages of the transport itself; never delivered as frames
+    private static final byte TYPE_CONNECT = 100;
+    private static final byte TYPE_ACK = 101;
+
+    private static final long INITIAL_RETRANSMIT_MILLIS = 250;
+    private static final long MAX_RETRANSMIT_MILLIS = 4000;
+    private static final int MAX_TRANSMISSIONS = 7;
+
+    private static final long DEFAULT_RECEIVE_TIMEOUT_MILLIS = 30 * 1000;
+
+    // how long a reader holds on to the socket at a time, so a handshake sender waiting for its ack gets a turn
+    private static final long POLL_MILLIS = 50;
+
+    private static final int RECEIVE_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PARTIAL_FRAMES = 16;
+    private static final int MAX_HANDSHAKE_FRAGMENTS = 64;
+    private static final int MAX_FRAGMENTS = 0xFFFF;
+    private static final int MAX_QUEUED_FRAMES = 1024;
+
+    /**
+     * Waits for a client to {@link #connect(InetSocketAddress)} on "port", and returns the server's end of the
+     * connection to it.
+     * @throws IOException if the port could not be bound
+     */
+    public static DatagramTransport accept(int port) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port));
+
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            SocketAddress client;
+            do {
+                buffer.clear();
+                client = channel.receive(buffer);
+                buffer.flip();
+            } while (buffer.remaining() < HEADER_SIZE
+                    || buffer.get(0) != Frame.VERSION
+                    || buffer.get(1) != TYPE_CONNECT);
+
+            channel.connect(client);
+            DatagramTransport transport = new DatagramTransport(channel, true, client);
+            transport.sendControl(TYPE_CONNECT, 0);
+            return transport;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects to a server waiting in {@link #accept(int)}.
+     * @throws IOException if the server did not answer
+     */
+    public static DatagramTransport connect(InetSocketAddress server) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.connect(server);
+            DatagramTransport transport = new DatagramTransport(channel, false, server);
+
+            long timeout = INITIAL_RETRANSMIT_MILLIS;
+            for (int transmission = 0; transmission < MAX_TRANSMISSIONS; transmission++) {
+                transport.sendControl(TYPE_CONNECT, 0);
+                if (transport.await(() -> transport.mConnected, timeout)) {
+                    return transport;
+                }
+                timeout = Math.min(timeout * 2, MAX_RETRANSMIT_MILLIS);
+            }
+
+            throw new ConnectException("No answer from " + server);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private final DatagramChannel mChannel;
+    private final Selector mSelector;
+    private final boolean mIsServer;
+    private final SocketAddress mRemoteAddress;
+
+    private volatile int mMaxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+    private volatile boolean mRetransmitHandshake = true;
+    private volatile long mReceiveTimeoutMillis = DEFAULT_RECEIVE_TIMEOUT_MILLIS;
+    private volatile int mReplayWindowSize = DatagramRecordLayer.REPLAY_WINDOW_SIZE;
+    private volatile DatagramRecordLayer mRecordLayer;
+
+    // guarded by mWriteLock
+    private final Object mWriteLock = new Object();
+    private final ByteBuffer mHeaderOut = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer[] mGatherBuffers = new ByteBuffer[2];
+    private long mHandshakeSequenceOut;
+    private volatile long mLastHandshakeOut = -1;
+
+    // guarded by mReadLock
+    private final Object mReadLock = new Object();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+    private final ArrayDeque<Frame> mReceived = new ArrayDeque<>();
+    private final Map<Long, Reassembly> mHandshakeFragments = partialFrames();
+    private final Map<Long, Reassembly> mRecordFragments = partialFrames();
+    private long mHandshakeSequenceIn;
+    private long mAcknowledged = -1;
+    private boolean mConnected;
+
+    private DatagramTransport(DatagramChannel channel, boolean isServer, SocketAddress remoteAddress)
+            throws IOException {
+        mChannel = channel;
+        mIsServer = isServer;
+        mRemoteAddress = remoteAddress;
+        mConnected = isServer;
+
+        mChannel.configureBlocking(false);
+        mSelector = Selector.open();
+        mChannel.register(mSelector, SelectionKey.OP_READ);
+    }
+
+    public boolean isServer() {
+        return mIsServer;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    public DatagramChannel getChannel() {
+        return mChannel;
+    }
+
+    public int getMaxDatagramSize() {
+        return mMaxDatagramSize;
+    }
+
+    /**
+     * Sets the largest datagram to send, header included. Both ends may use different sizes.
+     */
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        if (maxDatagramSize <= HEADER_SIZE + DatagramRecordLayer.TAG_SIZE) {
+            throw new IllegalArgumentException("Datagrams must be larger than their header and tag.");
+        }
+        mMaxDatagramSize = Math.min(maxDatagramSize, RECEIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * Turns retransmission of unacknowledged handshake frames on (the default) or off. With it off, handshake
+     * frames are sent once, like any other, and a lost one makes the handshake fail.
+     */
+    public void setHandshakeRetransmission(boolean retransmit) {
+        mRetransmitHandshake = retransmit;
+    }
+
+    /**
+     * Sets how long {@link #receive()} waits for a frame before giving up. Defaults to 30 seconds.
+     */
+    public void setReceiveTimeout(long timeoutMillis) {
+        mReceiveTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets how far behind the newest datagram an older one may arrive and still be accepted. Defaults to
+     * {@link DatagramRecordLayer#REPLAY_WINDOW_SIZE}. Must be called before the handshake sets up the secret key.
+     */
+    public void setReplayWindowSize(int replayWindowSize) {
+        if (replayWindowSize <= 0) {
+            throw new IllegalArgumentException("The replay window must hold at least one sequence number.");
+        }
+        mReplayWindowSize = replayWindowSize;
+    }
+
+    /**
+     * Starts sealing every frame but handshakes with keys derived from "secretKey". Called by
+     * {@link Communicator} once the handshake has set up the secret key.
+     * @throws GeneralSecurityException if AES-GCM is unavailable
+     */
+    void setSecretKey(SecretKey secretKey) throws GeneralSecurityException {
+        mRecordLayer = new DatagramRecordLayer(secretKey, mIsServer, mReplayWindowSize);
+    }
+
+    /**
+     * @return the record layer sealing this transport's datagrams, or <code>null</code> before
+     * {@link #setSecretKey(SecretKey)}
+     */
+    public DatagramRecordLayer getRecordLayer() {
+        return mRecordLayer;
+    }
+
+    /**
+     * Sends the remaining bytes of "payload" as one frame, in as many datagrams as it takes. A handshake frame
+     * does not return until the other party has acknowledged it, or retransmission has given up.
+     * @return <code>true</code> if the frame was sent (and, for a handshake frame, acknowledged)
+     */
+    boolean send(byte type, byte flags, ByteBuffer payload) {
+        try {
+            if (type == Frame.TYPE_HANDSHAKE) {
+                return sendHandshake(flags, payload);
+            }
+            return sendSealed(type, flags, payload);
+        } catch (IOException e) {
+            Console.exception(e);
+            return false;
+        }
+    }
+
+    /**
+     * Receives the next frame, waiting up to the receive timeout.
+     * @return the frame, or <code>null</code> if none arrived in time, or the transport failed
+     */
+    Frame receive() {
+        try {
+            Frame[] frame = new Frame[1];
+            if (await(() -> (frame[0] = mReceived.poll()) != null, mReceiveTimeoutMillis)) {
+                return frame[0];
+            }
+            Console.d("Timed out waiting for a frame from %s.", mRemoteAddress);
+            return null;
+        } catch (IOException e) {
+            Console.exception(e);
+            return null;
+        }
+    }
+
+    public void close() {
+        try {
+            mSelector.close();
+            mChannel.close();
+        } catch (IOException e) {
+
+        }
+    }
+
+    private boolean sendHandshake(byte flags, ByteBuffer payload) throws IOException {
+        List<ByteBuffer> datagrams = new ArrayList<>();
+        long first;
+        synchronized (mWriteLock) {
+            int fragmentSize = mMaxDatagramSize - HEADER_SIZE;
+            int count = fragmentCount(payload.remaining(), fragmentSize);
+            if (count > MAX_HANDSHAKE_FRAGMENTS) {
+                Console.d("Could not send handshake: %d bytes is too large.", payload.remaining());
+                return false;
+            }
+
+            first = mHandshakeSequenceOut;
+            mHandshakeSequenceOut += count;
+            mLastHandshakeOut = first;
+
+            for (int i = 0; i < count; i++) {
+                int length = Math.min(fragmentSize, payload.remaining());
+                ByteBuffer datagram = ByteBuffer.allocate(HEADER_SIZE + length);
+                writeHeader(datagram, Frame.TYPE_HANDSHAKE, flags, first + i, i, count);
+                ByteBuffer fragment = payload.duplicate();
+                fragment.limit(fragment.position() + length);
+                datagram.put(fragment);
+                payload.position(payload.position() + length);
+                datagram.flip();
+                datagrams.add(datagram);
+            }
+            writeAll(datagrams);
+        }
+
+        if (!mRetransmitHandshake) {
+            return true;
+        }
+
+        long timeout = INITIAL_RETRANSMIT_MILLIS;
+        for (int transmission = 1; ; transmission++) {
+            if (await(() -> mAcknowledged >= first, timeout)) {
+                return true;
+            }
+            if (transmission == MAX_TRANSMISSIONS) {
+                Console.d("Handshake frame %d was never acknowledged by %s.", first, mRemoteAddress);
+                return false;
+            }
+
+            Console.d("Retransmitting handshake frame %d to %s", first, mRemoteAddress);
+            synchronized (mWriteLock) {
+                for (ByteBuffer datagram : datagrams) {
+                    datagram.rewind();
+                }
+                writeAll(datagrams);
+            }
+            timeout = Math.min(timeout * 2, MAX_RETRANSMIT_MILLIS);
+        }
+    }
+
+    private boolean sendSealed(byte type, byte flags, ByteBuffer payload) throws IOException {
+        DatagramRecordLayer recordLayer = mRecordLayer;
+        if (recordLayer == null) {
+            Console.d("Could not send data: No secret key.");
+            return false;
+        }
+
+        synchronized (mWriteLock) {
+            int fragmentSize = mMaxDatagramSize - HEADER_SIZE - DatagramRecordLayer.TAG_SIZE;
+            int count = fragmentCount(payload.remaining(), fragmentSize);
+            if (count > MAX_FRAGMENTS) {
+                Console.d("Could not send data: %d bytes is too large.", payload.remaining());
+                return false;
+            }
+
+            long first = recordLayer.reserveSequences(count);
+            byte[] fragment = new byte[Math.min(fragmentSize, payload.remaining())];
+
+            for (int i = 0; i < count; i++) {
+                int length = Math.min(fragmentSize, payload.remaining());
+                payload.get(fragment, 0, length);
+
+                mHeaderOut.clear();
+                writeHeader(mHeaderOut, type, flags, first + i, i, count);
+                mHeaderOut.flip();
+
+                byte[] sealed = recordLayer.seal(first + i, mHeaderOut.array(), fragment, 0, length);
+                if (sealed == null) {
+                    return false;
+                }
+
+                mGatherBuffers[0] = mHeaderOut;
+                mGatherBuffers[1] = ByteBuffer.wrap(sealed);
+                try {
+                    write(mGatherBuffers);
+                } finally {
+                    mGatherBuffers[1] = null;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void sendControl(byte type, long sequence) throws IOException {
+        synchronized (mWriteLock) {
+            mHeaderOut.clear();
+            writeHeader(mHeaderOut, type, Frame.FLAG_NONE, sequence, 0, 1);
+            mHeaderOut.flip();
+            write(mHeaderOut);
+        }
+    }
+
+    private void writeAll(List<ByteBuffer> datagrams) throws IOException {
+        for (ByteBuffer datagram : datagrams) {
+            write(datagram);
+        }
+    }
+
+    /**
+     * Sends one datagram. The channel is non-blocking, so this waits briefly and tries again if the socket's send
+     * buffer is full, rather than dropping the datagram.
+     */
+    private void write(ByteBuffer... datagram) throws IOException {
+        while (mChannel.write(datagram) == 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+    }
+
+    private static void writeHeader(ByteBuffer header, byte type, byte flags, long sequence, int index, int count) {
+        header.put(Frame.VERSION);
+        header.put(type);
+        header.put(flags);
+        header.putLong(sequence);
+        header.putShort((short) index);
+        header.putShort((short) count);
+    }
+
+    private static int fragmentCount(int length, int fragmentSize) {
+        return Math.max(1, (length + fragmentSize - 1) / fragmentSize);
+    }
+
+    /**
+     * A condition checked while holding the read lock.
+     */
+    private interface Condition {
+        boolean isMet();
+    }
+
+    /**
+     * Reads and handles datagrams until "condition" is met, or "timeoutMillis" passes.
+     * @return whether the condition was met
+     */
+    private boolean await(Condition condition, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            synchronized (mReadLock) {
+                if (condition.isMet()) {
+                    return true;
+                }
+
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                poll(Math.min(remaining, POLL_MILLIS));
+            }
+        }
+    }
+
+    /**
+     * Waits up to "timeoutMillis" for datagrams to arrive, and handles all that have.
+     */
+    private void poll(long timeoutMillis) throws IOException {
+        if (mSelector.select(Math.max(1, timeoutMillis)) > 0) {
+            mSelector.selectedKeys().clear();
+        }
+
+        while (true) {
+            mReadBuffer.clear();
+            int read;
+            try {
+                read = mChannel.read(mReadBuffer);
+            } catch (PortUnreachableException e) {
+                // nobody is listening at the other end yet (or any more); retransmission or the timeout deal with it
+                return;
+            }
+            if (read <= 0) {
+                return;
+            }
+            mReadBuffer.flip();
+            handleDatagram(mReadBuffer);
+        }
+    }
+
+    private void handleDatagram(ByteBuffer datagram) throws IOException {
+        if (datagram.remaining() < HEADER_SIZE || datagram.get(0) != Frame.VERSION) {
+            return;
+        }
+
+        byte type = datagram.get(1);
+        byte flags = datagram.get(2);
+        long sequence = datagram.getLong(3);
+        int index = datagram.getShort(11) & 0xFFFF;
+        int count = datagram.getShort(13) & 0xFFFF;
+        if (index >= count || index > sequence) {
+            return;
+        }
+
+        mConnected = true;
+
+        switch (type) {
+            case TYPE_CONNECT:
+                if (mIsServer) {
+                    // the client did not hear our answer
+                    sendControl(TYPE_CONNECT, 0);
+                }
+                break;
+            case TYPE_ACK:
+                mAcknowledged = Math.max(mAcknowledged, sequence);
+                break;
+            case Frame.TYPE_HANDSHAKE:
+                handleHandshake(datagram, flags, sequence - index, index, count);
+                break;
+            default:
+                handleSealed(datagram, type, flags, sequence, index, count);
+                break;
+        }
+    }
+
+    private void handleHandshake(ByteBuffer datagram, byte flags, long first, int index, int count)
+            throws IOException {
+        if (first < mHandshakeSequenceIn) {
+            // a frame we already have: our acknowledgement was lost
+            sendControl(TYPE_ACK, first);
+            return;
+        }
+        if (first != mHandshakeSequenceIn || count > MAX_HANDSHAKE_FRAGMENTS) {
+            return;
+        }
+
+        byte[] fragment = new byte[datagram.remaining() - HEADER_SIZE];
+        System.arraycopy(datagram.array(), HEADER_SIZE, fragment, 0, fragment.length);
+
+        Frame frame = reassemble(mHandshakeFragments, first, Frame.TYPE_HANDSHAKE, flags, index, count, fragment);
+        if (frame != null) {
+            mHandshakeSequenceIn = first + count;
+            enqueue(frame);
+            sendControl(TYPE_ACK, first);
+        }
+    }
+
+    private void handleSealed(ByteBuffer datagram, byte type, byte flags, long sequence, int index, int count) {
+        DatagramRecordLayer recordLayer = mRecordLayer;
+        if (recordLayer == null) {
+            return;
+        }
+
+        byte[] fragment = recordLayer.open(sequence, datagram.array(), HEADER_SIZE, datagram.limit());
+        if (fragment == null) {
+            return;
+        }
+        mAcknowledged = Math.max(mAcknowledged, mLastHandshakeOut);
+
+        Frame frame = reassemble(mRecordFragments, sequence - index, type, flags, index, count, fragment);
+        if (frame != null) {
+            enqueue(frame);
+        }
+    }
+
+    /**
+     * Adds "fragment" to the frame starting at sequence number "first".
+     * @return the whole frame, if this was its last missing fragment
+     */
+    private static Frame reassemble(Map<Long, Reassembly> partialFrames, long first, byte type, byte flags,
+                                    int index, int count, byte[] fragment) {
+        if (count == 1) {
+            return new Frame(type, flags, fragment);
+        }
+
+        Reassembly reassembly = partialFrames.get(first);
+        if (reassembly == null) {
+            reassembly = new Reassembly(type, flags, count);
+            partialFrames.put(first, reassembly);
+        }
+
+        if (reassembly.mType != type
+                || reassembly.mFlags != flags
+                || reassembly.mFragments.length != count
+                || reassembly.mFragments[index] != null) {
+            return null;
+        }
+        if (reassembly.mLength + fragment.length > Frame.MAX_PAYLOAD_LENGTH) {
+            partialFrames.remove(first);
+            return null;
+        }
+
+        reassembly.mFragments[index] = fragment;
+        reassembly.mLength += fragment.length;
+        if (++reassembly.mReceived < count) {
+            return null;
+        }
+
+        partialFrames.remove(first);
+        byte[] payload = new byte[reassembly.mLength];
+        int offset = 0;
+        for (byte[] part : reassembly.mFragments) {
+            System.arraycopy(part, 0, payload, offset, part.length);
+            offset += part.length;
+        }
+        return new Frame(type, flags, payload);
+    }
+
+    private void enqueue(Frame frame) {
+        if (mReceived.size() >= MAX_QUEUED_FRAMES) {
+            Console.d("Dropping frame from %s: too many frames waiting to be received.", mRemoteAddress);
+            return;
+        }
+        mReceived.add(frame);
+    }
+
+    /**
+     * @return a map of frames still missing fragments, which forgets the oldest once it holds
+     * {@link #MAX_PARTIAL_FRAMES}
+     */
+    private static Map<Long, Reassembly> partialFrames() {
+        return new LinkedHashMap<Long, Reassembly>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Reassembly> eldest) {
+                return size() > MAX_PARTIAL_FRAMES;
+            }
+        };
+    }
+
+    /**
+     * The fragments of a frame received so far.
+     */
+    private static class Reassembly {
+        final byte mType;
+        final byte mFlags;
+        final byte[][] mFragments;
+        int mReceived;
+        int mLength;
+
+        Reassembly(byte type, byte flags, int count) {
+            mType = type;
+            mFlags = flags;
+            mFragments = new byte[count][];
+        }
+    }
+}
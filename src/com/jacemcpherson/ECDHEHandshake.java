@@ -0,0 +1,145 @@
+package com.jacemcpherson;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+
+/**
+ * One side of an {@link HandshakeSuite#ECDHE} handshake. Each connection uses a new instance, and so a new
+ * ephemeral X25519 key pair.
+ * <br><br>
+ * The server speaks first. Its hello holds its RSA public key, for clients that fall back to
+ * {@link HandshakeSuite#RSA}, and its key share. A key share is the sender's Ed25519 public key, its ephemeral
+ * X25519 public key, and an Ed25519 signature. The server signs its own ephemeral key. The client signs both
+ * ephemeral keys, which also proves it saw the server's. Once the client's share arrives, both sides derive the
+ * AES secret key from the X25519 shared secret with {@link HKDFUtil}, salted with both ephemeral keys.
+ */
+public class ECDHEHandshake {
+
+    private static final int KEY_SIZE = 16;
+
+    private final KeyPair mEphemeralKeyPair;
+    private final byte[] mEphemeralPublicKey;
+
+    /**
+     * @throws GeneralSecurityException if this JDK does not support X25519; see {@link ECDHEUtil#isSupported()}
+     */
+    public ECDHEHandshake() throws GeneralSecurityException {
+        mEphemeralKeyPair = ECDHEUtil.generateEphemeralKeyPair();
+        mEphemeralPublicKey = mEphemeralKeyPair.getPublic().getEncoded();
+    }
+
+    /**
+     * Server side: builds the server's first handshake message.
+     * @return the payload of a {@link Frame#FLAG_ECDHE} handshake frame; <code>null</code> if it could not be built
+     */
+    public byte[] createServerHello() {
+        byte[] signature = ECDHEUtil.signMessage(mEphemeralPublicKey);
+        if (signature == null) {
+            return null;
+        }
+
+        byte[] share = ECDHEUtil.joinFields(
+                ECDHEUtil.getSigningPublicKey().getEncoded(),
+                mEphemeralPublicKey,
+                signature
+        );
+        return ECDHEUtil.joinFields(RSAEncryptionUtil.getPublicKeyEncoded(), share);
+    }
+
+    /**
+     * Client side: splits the server's hello.
+     * @return the server's RSA public key and its key share, or <code>null</code> if "hello" is malformed
+     */
+    public static byte[][] splitServerHello(byte[] hello) {
+        return ECDHEUtil.splitFields(hello, 2);
+    }
+
+    /**
+     * Client side: checks the server's key share, answers it, and stores the derived secret key and the server's
+     * Ed25519 public key in "session".
+     * @param session the connection's keys
+     * @param serverShare the key share from {@link #splitServerHello(byte[])}
+     * @return the client's key share, to be sent to the server; <code>null</code> if the server's share was not
+     * valid
+     */
+    public byte[] respond(CryptoSession session, byte[] serverShare) {
+        byte[][] fields = ECDHEUtil.splitFields(serverShare, 3);
+        if (fields == null) {
+            return null;
+        }
+
+        PublicKey serverSigningKey = ECDHEUtil.parseSigningPublicKey(fields[0]);
+        if (serverSigningKey == null || !ECDHEUtil.verifySignature(serverSigningKey, fields[1], fields[2])) {
+            Console.d("The server's key share is not signed correctly.");
+            return null;
+        }
+
+        byte[] transcript = concat(fields[1], mEphemeralPublicKey);
+        byte[] signature = ECDHEUtil.signMessage(transcript);
+        if (signature == null || !deriveSecretKey(session, fields[1], transcript)) {
+            return null;
+        }
+        session.setPartnerPublicKey(serverSigningKey);
+
+        return ECDHEUtil.joinFields(ECDHEUtil.getSigningPublicKey().getEncoded(), mEphemeralPublicKey, signature);
+    }
+
+    /**
+     * Server side: checks the client's key share, and stores the derived secret key and the client's Ed25519
+     * public key in "session".
+     * @param session the connection's keys
+     * @param clientShare the client's answer to {@link #createServerHello()}
+     * @return <code>true</code> if the client's share was valid
+     */
+    public boolean complete(CryptoSession session, byte[] clientShare) {
+        byte[][] fields = ECDHEUtil.splitFields(clientShare, 3);
+        if (fields == null) {
+            return false;
+        }
+
+        byte[] transcript = concat(mEphemeralPublicKey, fields[1]);
+        PublicKey clientSigningKey = ECDHEUtil.parseSigningPublicKey(fields[0]);
+        if (clientSigningKey == null || !ECDHEUtil.verifySignature(clientSigningKey, transcript, fields[2])) {
+            Console.d("The client's key share is not signed correctly.");
+            return false;
+        }
+
+        if (!deriveSecretKey(session, fields[1], transcript)) {
+            return false;
+        }
+        session.setPartnerPublicKey(clientSigningKey);
+        return true;
+    }
+
+    /**
+     * @param partnerEphemeralKey the partner's encoded X25519 public key
+     * @param transcript both ephemeral public keys, the server's first
+     */
+    private boolean deriveSecretKey(CryptoSession session, byte[] partnerEphemeralKey, byte[] transcript) {
+        PublicKey partnerKey = ECDHEUtil.parseAgreementPublicKey(partnerEphemeralKey);
+        if (partnerKey == null) {
+            return false;
+        }
+
+        try {
+            byte[] sharedSecret = ECDHEUtil.agree(mEphemeralKeyPair.getPrivate(), partnerKey);
+            byte[] pseudorandomKey = HKDFUtil.extract(transcript, sharedSecret);
+            session.setSecretKey(AESEncryptionUtil.toSecretKey(
+                    HKDFUtil.expand(pseudorandomKey, "ecdhe secret key", KEY_SIZE)
+            ));
+            session.setSuite(HandshakeSuite.ECDHE);
+            return true;
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return false;
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = new byte[first.length + second.length];
+        System.arraycopy(first, 0, joined, 0, first.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+}
@@ -0,0 +1,206 @@
+package com.jacemcpherson;
+
+import javax.crypto.KeyAgreement;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * This class provides quick access to the algorithms of the {@link HandshakeSuite#ECDHE} handshake:<br>
+ * * Generating ephemeral X25519 key pairs, and agreeing on a shared secret with them
+ * * The Ed25519 identity key pair of this party, kept in {@link KeyStoreUtil}
+ * * Signing messages with the Ed25519 private key, and verifying them with a partner's Ed25519 public key
+ * * Encoding/decoding X25519 and Ed25519 public keys
+ *
+ * <br><br>
+ * The algorithms are looked up by name, so this class compiles and loads on any JDK. Use {@link #isSupported()}
+ * to find out whether the running JDK provides them.
+ */
+public class ECDHEUtil {
+
+    static final String KEY_AGREEMENT_ALGORITHM = "X25519";
+    static final String SIGNATURE_ALGORITHM = "Ed25519";
+
+    private static volatile Boolean sSupported;
+    private static volatile KeyPair sSigningKeyPair;
+
+    /**
+     * @return <code>true</code> if this JDK provides X25519 and Ed25519
+     */
+    public static boolean isSupported() {
+        if (sSupported == null) {
+            try {
+                KeyAgreement.getInstance(KEY_AGREEMENT_ALGORITHM);
+                Signature.getInstance(SIGNATURE_ALGORITHM);
+                sSupported = true;
+            } catch (GeneralSecurityException e) {
+                sSupported = false;
+            }
+        }
+        return sSupported;
+    }
+
+    public static PrivateKey getSigningPrivateKey() {
+        if (sSigningKeyPair == null) {
+            generateSigningKeyPair();
+        }
+        return sSigningKeyPair.getPrivate();
+    }
+
+    public static PublicKey getSigningPublicKey() {
+        if (sSigningKeyPair == null) {
+            generateSigningKeyPair();
+        }
+        return sSigningKeyPair.getPublic();
+    }
+
+    /**
+     * @return a fresh X25519 key pair, to be used for a single connection and then forgotten
+     */
+    public static KeyPair generateEphemeralKeyPair() throws GeneralSecurityException {
+        return KeyPairGenerator.getInstance(KEY_AGREEMENT_ALGORITHM).generateKeyPair();
+    }
+
+    /**
+     * @return the X25519 shared secret of "privateKey" and "partnerPublicKey"
+     */
+    public static byte[] agree(PrivateKey privateKey, PublicKey partnerPublicKey) throws GeneralSecurityException {
+        KeyAgreement keyAgreement = KeyAgreement.getInstance(KEY_AGREEMENT_ALGORITHM);
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(partnerPublicKey, true);
+        return keyAgreement.generateSecret();
+    }
+
+    /**
+     * Decodes an X.509 encoded X25519 public key.
+     * @return the decoded {@link PublicKey}, or <code>null</code> if it could not be decoded
+     */
+    public static PublicKey parseAgreementPublicKey(byte[] publicKey) {
+        return parsePublicKey(KEY_AGREEMENT_ALGORITHM, publicKey);
+    }
+
+    /**
+     * Decodes an X.509 encoded Ed25519 public key, or takes it from {@link PeerKeyCache#getDefault()} if it has been
+     * decoded before.
+     * @return the decoded {@link PublicKey}, or <code>null</code> if it could not be decoded
+     */
+    public static PublicKey parseSigningPublicKey(byte[] publicKey) {
+        PeerKeyCache.Peer peer = PeerKeyCache.getDefault().lookup(SIGNATURE_ALGORITHM, publicKey);
+        return peer == null ? null : peer.getPublicKey();
+    }
+
+    /**
+     * @return <code>true</code> if "publicKey" is an Ed25519 key, and so should be verified with
+     * {@link #verifySignature(PublicKey, byte[], byte[])}
+     */
+    public static boolean isSigningKey(PublicKey publicKey) {
+        return publicKey != null
+                && (publicKey.getAlgorithm().equals("EdDSA") || publicKey.getAlgorithm().equals(SIGNATURE_ALGORITHM));
+    }
+
+    public static byte[] signMessage(byte[] message) {
+        try {
+            long start = System.nanoTime();
+            byte[] signature = CryptoContexts.signer(SIGNATURE_ALGORITHM, getSigningPrivateKey(), privateSignature -> {
+                privateSignature.update(message);
+                return privateSignature.sign();
+            });
+            Metrics.ED25519_SIGN.recordSince(start);
+            return signature;
+        } catch (Exception e) {
+            Console.exception(e);
+            return null;
+        }
+    }
+
+    /**
+     * @param partnerPublicKey the Ed25519 public key of the signing party
+     * @param message
+     * @param signature
+     * @return whether "signature" is a valid signature of "message" under "partnerPublicKey"
+     */
+    public static boolean verifySignature(PublicKey partnerPublicKey, byte[] message, byte[] signature) {
+        try {
+            long start = System.nanoTime();
+            boolean valid = CryptoContexts.verifier(SIGNATURE_ALGORITHM, partnerPublicKey, publicSignature -> {
+                publicSignature.update(message);
+                return publicSignature.verify(signature);
+            });
+            Metrics.ED25519_VERIFY.recordSince(start);
+            if (!valid) {
+                Metrics.signatureFailed();
+            }
+            return valid;
+        } catch (Exception e) {
+            Console.exception(e);
+            return false;
+        }
+    }
+
+    /**
+     * Lays out several fields as one handshake payload, each preceded by its length as 2 bytes.
+     */
+    static byte[] joinFields(byte[]... fields) {
+        int length = 0;
+        for (byte[] field : fields) {
+            length += 2 + field.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] field : fields) {
+            buffer.putShort((short) field.length);
+            buffer.put(field);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reverses {@link #joinFields(byte[]...)}.
+     * @return exactly "count" fields, or <code>null</code> if "joined" is malformed
+     */
+    static byte[][] splitFields(byte[] joined, int count) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(joined);
+            byte[][] fields = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                fields[i] = new byte[buffer.getShort() & 0xffff];
+                buffer.get(fields[i]);
+            }
+            return buffer.hasRemaining() ? null : fields;
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private static PublicKey parsePublicKey(String algorithm, byte[] publicKey) {
+        try {
+            return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(publicKey));
+        } catch (GeneralSecurityException e) {
+            Console.d("Could not decode %s public key.", algorithm);
+            return null;
+        }
+    }
+
+    private static synchronized void generateSigningKeyPair() {
+        if (sSigningKeyPair != null) {
+            // another thread got here first
+            return;
+        }
+
+        sSigningKeyPair = KeyStoreUtil.loadOrCreateKeyPair("ed25519", SIGNATURE_ALGORITHM, () -> {
+            try {
+                return KeyPairGenerator.getInstance(SIGNATURE_ALGORITHM).generateKeyPair();
+            } catch (GeneralSecurityException e) {
+                Console.d("This machine does not support Ed25519 signatures.");
+                return null;
+            }
+        });
+    }
+}
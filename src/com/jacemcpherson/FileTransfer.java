@@ -0,0 +1,459 @@
+package com.jacemcpherson;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Sends files of any size over a {@link Communicator}, for {@link Communicator#sendFile(Path)} and
+ * {@link Communicator#receiveFile(Path)}. The sender reads the file through memory mappings and encrypts each chunk
+ * into a direct buffer, which is written straight to the socket; the receiver reads each chunk into a direct
+ * buffer, decrypts it into another, and writes it straight to the file at its offset. Neither side copies file
+ * data onto the heap.
+ * <br><br>
+ * A transfer goes:
+ * <ol>
+ *     <li>Alice sends an offer record: the transfer id, the file size, a random salt and nonce prefix, and the
+ *     file name.</li>
+ *     <li>Bob replies with a record holding the index of the first chunk he needs, or -1 to refuse.</li>
+ *     <li>Alice sends every chunk from there on as a {@link Frame#TYPE_FILE} frame, the last one marked
+ *     {@link Frame#FLAG_END_OF_STREAM}.</li>
+ *     <li>Bob replies with a record holding the number of chunks he has, once the file is saved.</li>
+ * </ol>
+ * Each chunk is sealed with AES-GCM under a key derived for this transfer only from the shared secret key and the
+ * salt. As in {@link StreamingAESUtil}, its nonce is the nonce prefix, the chunk index and a final marker, so
+ * chunks cannot be moved, dropped or marked final without the key.
+ * <br><br>
+ * Bob writes to a partial file next to the target, and keeps the transfer id and the number of chunks written in
+ * a progress file beside it. If the connection drops, the next offer of the same file (the same name, size and
+ * modification time) resumes after the last chunk written. Chunks are re-encrypted under the new transfer's key,
+ * so nothing is ever sent twice under the same nonce.
+ */
+public class FileTransfer {
+
+    /** The number of plaintext bytes in every chunk but the last. */
+    public static final int CHUNK_SIZE = 256 * 1024;
+
+    // how much of the file the sender maps at once
+    private static final long MAPPING_SIZE = 64L * CHUNK_SIZE;
+
+    private static final int TRANSFER_ID_SIZE = 16;
+    private static final int SALT_SIZE = 16;
+    private static final int NONCE_PREFIX_SIZE = 3;
+    private static final int NONCE_SIZE = NONCE_PREFIX_SIZE + 8 + 1;
+    private static final int TAG_SIZE = 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String KEY_LABEL = "SecureCommunication file key";
+
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String PROGRESS_SUFFIX = ".progress";
+    private static final int PROGRESS_SIZE = TRANSFER_ID_SIZE + 8;
+
+    private static final long REFUSED = -1;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * Alice's side of a transfer.
+     * @return <code>true</code> if Bob received and saved the whole file
+     */
+    static boolean send(Communicator communicator, Path file) {
+        if (communicator.getRecordLayer() == null) {
+            Console.d("Could not send file: No secret key.");
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkCount = chunkCount(size);
+            String name = file.getFileName().toString();
+
+            Offer offer = new Offer(
+                    transferId(name, size, Files.getLastModifiedTime(file).toMillis()),
+                    size,
+                    randomBytes(SALT_SIZE),
+                    randomBytes(NONCE_PREFIX_SIZE),
+                    name
+            );
+            communicator.sendRecord(Frame.FLAG_NONE, offer.encode());
+
+            long firstChunk = readLong(communicator.receiveRecord());
+            if (firstChunk < 0 || firstChunk > chunkCount) {
+                Console.d("The other party refused %s.", name);
+                return false;
+            }
+            if (firstChunk > 0) {
+                Console.d("Resuming %s from chunk %d of %d.", name, firstChunk, chunkCount);
+            }
+
+            SecretKey key = deriveKey(communicator.getCryptoSession().getSecretKey(), offer.mSalt);
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            byte[] nonce = Arrays.copyOf(offer.mNoncePrefix, NONCE_SIZE);
+            ByteBuffer output = ByteBuffer.allocateDirect(CHUNK_SIZE + TAG_SIZE);
+
+            MappedByteBuffer mapping = null;
+            long mappingStart = 0;
+
+            for (long index = firstChunk; index < chunkCount; index++) {
+                long position = index * CHUNK_SIZE;
+                int length = (int) Math.min(CHUNK_SIZE, size - position);
+
+                if (mapping == null || position + length > mappingStart + mapping.capacity()) {
+                    mappingStart = position;
+                    long mappingSize = Math.min(MAPPING_SIZE, size - position);
+                    mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, mappingSize);
+                }
+
+                ByteBuffer chunk = mapping.duplicate();
+                chunk.position((int) (position - mappingStart));
+                chunk.limit(chunk.position() + length);
+
+                boolean isFinal = index == chunkCount - 1;
+                setNonce(nonce, index, isFinal);
+
+                long start = System.nanoTime();
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+                output.clear();
+                cipher.doFinal(chunk, output);
+                Metrics.AES_ENCRYPT.recordSince(start);
+                output.flip();
+
+                byte flags = isFinal ? Frame.FLAG_END_OF_STREAM : Frame.FLAG_NONE;
+                if (!communicator.sendFrame(Frame.TYPE_FILE, flags, output)) {
+                    Console.d("Sending %s was interrupted at chunk %d of %d.", name, index, chunkCount);
+                    return false;
+                }
+            }
+
+            long received = readLong(communicator.receiveRecord());
+            if (received != chunkCount) {
+                Console.d("The other party did not save %s.", name);
+                return false;
+            }
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            Console.exception(e);
+            return false;
+        }
+    }
+
+    /**
+     * Bob's side of a transfer.
+     * @return the saved file, or <code>null</code> if the transfer failed
+     */
+    static Path receive(Communicator communicator, Path target) {
+        if (communicator.getRecordLayer() == null) {
+            Console.d("Could not receive file: No secret key.");
+            return null;
+        }
+
+        Offer offer = Offer.decode(communicator.receiveRecord());
+        if (offer == null) {
+            Console.d("Did not receive a file offer.");
+            return null;
+        }
+
+        Path file = resolveTarget(target, offer.mName);
+        if (file == null) {
+            Console.d("Refusing file with unusable name: %s", offer.mName);
+            communicator.sendRecord(Frame.FLAG_NONE, longBytes(REFUSED));
+            return null;
+        }
+
+        Path partial = file.resolveSibling(file.getFileName() + PARTIAL_SUFFIX);
+        Path progress = file.resolveSibling(file.getFileName() + PROGRESS_SUFFIX);
+        long chunkCount = chunkCount(offer.mSize);
+
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileChannel progressOut = FileChannel.open(progress, StandardOpenOption.CREATE,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            long firstChunk = readProgress(progressOut, offer, out.size());
+            if (firstChunk == 0) {
+                out.truncate(0);
+                writeProgress(progressOut, offer.mTransferId, 0);
+            } else {
+                Console.d("Resuming %s from chunk %d of %d.", offer.mName, firstChunk, chunkCount);
+            }
+            communicator.sendRecord(Frame.FLAG_NONE, longBytes(firstChunk));
+
+            if (!receiveChunks(communicator, offer, firstChunk, out, progressOut)) {
+                return null;
+            }
+
+            out.truncate(offer.mSize);
+            out.force(true);
+        } catch (IOException | GeneralSecurityException e) {
+            Console.exception(e);
+            return null;
+        }
+
+        try {
+            try {
+                Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.deleteIfExists(progress);
+        } catch (IOException e) {
+            Console.exception(e);
+            return null;
+        }
+
+        communicator.sendRecord(Frame.FLAG_NONE, longBytes(chunkCount));
+        return file;
+    }
+
+    /**
+     * Receives, decrypts and writes every chunk from "firstChunk" on, recording each in the progress file once it
+     * is written.
+     * @return <code>false</code> if the transfer was interrupted, or a chunk failed authentication
+     */
+    private static boolean receiveChunks(Communicator communicator, Offer offer, long firstChunk,
+                                         FileChannel out, FileChannel progressOut)
+            throws IOException, GeneralSecurityException {
+        long chunkCount = chunkCount(offer.mSize);
+
+        SecretKey key = deriveKey(communicator.getCryptoSession().getSecretKey(), offer.mSalt);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        byte[] nonce = Arrays.copyOf(offer.mNoncePrefix, NONCE_SIZE);
+        ByteBuffer input = ByteBuffer.allocateDirect(CHUNK_SIZE + TAG_SIZE);
+        ByteBuffer output = ByteBuffer.allocateDirect(CHUNK_SIZE + TAG_SIZE);
+
+        for (long index = firstChunk; index < chunkCount; index++) {
+            long position = index * CHUNK_SIZE;
+            boolean isFinal = index == chunkCount - 1;
+
+            input.clear();
+            Frame frame = communicator.receiveFrame(input);
+            if (frame == null || frame.getType() != Frame.TYPE_FILE) {
+                Console.d("Receiving %s was interrupted at chunk %d of %d.", offer.mName, index, chunkCount);
+                return false;
+            }
+            input.flip();
+
+            setNonce(nonce, index, isFinal);
+
+            long start = System.nanoTime();
+            output.clear();
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+                cipher.doFinal(input, output);
+            } catch (AEADBadTagException e) {
+                Metrics.integrityFailed();
+                Console.d("Chunk %d of %s failed verification.", index, offer.mName);
+                return false;
+            }
+            Metrics.AES_DECRYPT.recordSince(start);
+            output.flip();
+
+            if (output.remaining() != Math.min(CHUNK_SIZE, offer.mSize - position)
+                    || frame.hasFlag(Frame.FLAG_END_OF_STREAM) != isFinal) {
+                Console.d("Chunk %d of %s has the wrong length.", index, offer.mName);
+                return false;
+            }
+
+            while (output.hasRemaining()) {
+                position += out.write(output, position);
+            }
+            writeProgress(progressOut, offer.mTransferId, index + 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of chunks to resume from, if the progress file belongs to the same transfer and the
+     * partial file holds all of them; 0 otherwise
+     */
+    private static long readProgress(FileChannel progress, Offer offer, long partialSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PROGRESS_SIZE);
+        while (buffer.hasRemaining()) {
+            if (progress.read(buffer, buffer.position()) < 0) {
+                return 0;
+            }
+        }
+        buffer.flip();
+
+        byte[] transferId = new byte[TRANSFER_ID_SIZE];
+        buffer.get(transferId);
+        long completed = buffer.getLong();
+
+        if (!MessageDigest.isEqual(transferId, offer.mTransferId)
+                || completed < 0
+                || completed > chunkCount(offer.mSize)
+                || partialSize < Math.min(completed * CHUNK_SIZE, offer.mSize)) {
+            return 0;
+        }
+        return completed;
+    }
+
+    private static void writeProgress(FileChannel progress, byte[] transferId, long completed) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PROGRESS_SIZE);
+        buffer.put(transferId);
+        buffer.putLong(completed);
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            progress.write(buffer, buffer.position());
+        }
+    }
+
+    /**
+     * @return the file to save "name" to, or <code>null</code> if "name" cannot be used
+     */
+    private static Path resolveTarget(Path target, String name) {
+        if (!Files.isDirectory(target)) {
+            return target;
+        }
+
+        try {
+            // keep only the last element, so the sender cannot write outside the directory
+            Path fileName = Paths.get(name).getFileName();
+            if (fileName == null) {
+                return null;
+            }
+            String last = fileName.toString();
+            if (last.isEmpty() || last.equals(".") || last.equals("..")) {
+                return null;
+            }
+
+            // the file, and the .part and .progress files next to it, must all be directly inside the directory
+            Path resolved = target.resolve(last);
+            Path parent = resolved.toAbsolutePath().normalize().getParent();
+            return target.toAbsolutePath().normalize().equals(parent) ? resolved : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Identifies a file across connections, so that an interrupted transfer is only resumed by the same file.
+     */
+    private static byte[] transferId(String name, long size, long lastModified) throws GeneralSecurityException {
+        return CryptoContexts.digest("SHA-256", digest -> {
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            digest.update(longBytes(size));
+            digest.update(longBytes(lastModified));
+            return Arrays.copyOf(digest.digest(), TRANSFER_ID_SIZE);
+        });
+    }
+
+    private static SecretKey deriveKey(SecretKey secretKey, byte[] salt) throws GeneralSecurityException {
+        byte[] pseudorandomKey = HKDFUtil.extract(salt, secretKey.getEncoded());
+        return new SecretKeySpec(HKDFUtil.expand(pseudorandomKey, KEY_LABEL, 16), "AES");
+    }
+
+    private static void setNonce(byte[] nonce, long chunkIndex, boolean isFinal) {
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE_PREFIX_SIZE + i] = (byte) (chunkIndex >>> (56 - 8 * i));
+        }
+        nonce[NONCE_PREFIX_SIZE + 8] = (byte) (isFinal ? 1 : 0);
+    }
+
+    /**
+     * @return the number of chunks a file of "size" bytes is sent in; an empty file is still sent as one chunk
+     */
+    private static long chunkCount(long size) {
+        return Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        sRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] longBytes(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    /**
+     * @return the long in a record from the other party, or {@link #REFUSED} if there was none
+     */
+    private static long readLong(byte[] record) {
+        return record == null || record.length != 8 ? REFUSED : ByteBuffer.wrap(record).getLong();
+    }
+
+    /**
+     * The first record of a transfer:
+     * <pre>
+     *   | transfer id (16) | size (8) | salt (16) | nonce prefix (3) | name (UTF-8, the rest) |
+     * </pre>
+     */
+    private static class Offer {
+
+        private final byte[] mTransferId;
+        private final long mSize;
+        private final byte[] mSalt;
+        private final byte[] mNoncePrefix;
+        private final String mName;
+
+        Offer(byte[] transferId, long size, byte[] salt, byte[] noncePrefix, String name) {
+            mTransferId = transferId;
+            mSize = size;
+            mSalt = salt;
+            mNoncePrefix = noncePrefix;
+            mName = name;
+        }
+
+        byte[] encode() {
+            byte[] name = mName.getBytes(StandardCharsets.UTF_8);
+            return ByteBuffer.allocate(TRANSFER_ID_SIZE + 8 + SALT_SIZE + NONCE_PREFIX_SIZE + name.length)
+                    .put(mTransferId)
+                    .putLong(mSize)
+                    .put(mSalt)
+                    .put(mNoncePrefix)
+                    .put(name)
+                    .array();
+        }
+
+        /**
+         * @return the offer in "record", or <code>null</code> if it is missing or malformed
+         */
+        static Offer decode(byte[] record) {
+            if (record == null) {
+                return null;
+            }
+
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                byte[] transferId = new byte[TRANSFER_ID_SIZE];
+                buffer.get(transferId);
+                long size = buffer.getLong();
+                byte[] salt = new byte[SALT_SIZE];
+                buffer.get(salt);
+                byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+                buffer.get(noncePrefix);
+                byte[] name = new byte[buffer.remaining()];
+                buffer.get(name);
+
+                if (size < 0) {
+                    return null;
+                }
+                return new Offer(transferId, size, salt, noncePrefix, new String(name, StandardCharsets.UTF_8));
+            } catch (BufferUnderflowException e) {
+                return null;
+            }
+        }
+    }
+}
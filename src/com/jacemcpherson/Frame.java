@@ -0,0 +1,172 @@
+package com.jacemcpherson;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * A single unit of data sent between the two parties. On the wire, every frame starts with a fixed-size binary
+ * header, followed directly by the payload:
+ * <pre>
+ *   +---------+------+-------+------------------+
+ *   | version | type | flags | length (4 bytes) |  payload (length bytes) ...
+ *   +---------+------+-------+------------------+
+ * </pre>
+ * The length is a big-endian unsigned 32-bit integer, limited to {@link #MAX_PAYLOAD_LENGTH}. Frames with a
+ * different {@link #VERSION} are rejected, so the format can change without old and new parties silently
+ * misreading each other.
+ */
+public class Frame {
+
+    public static final byte VERSION = 1;
+
+    public static final int HEADER_SIZE = 7;
+
+    /**
+     * The largest payload a single frame may carry. This stops the other party from making us allocate
+     * arbitrarily large buffers.
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * The largest payload a frame may carry before the key exchange has finished. Public keys, key shares, the
+     * encrypted secret key and session tickets all fit well within it, and a client that has not proven anything
+     * yet cannot make the server allocate more than this per connection.
+     */
+    public static final int MAX_HANDSHAKE_PAYLOAD_LENGTH = 8 * 1024;
+
+    /** Application data, as sent by {@link Communicator#sendBytes(byte[])}. */
+    public static final byte TYPE_DATA = 1;
+
+    /** Key exchange messages, as sent by {@link Communicator#exchangeRSAPublicKey()} and friends. */
+    public static final byte TYPE_HANDSHAKE = 2;
+
+    /** Part of an encrypted stream, as sent by {@link Communicator#sendStream(java.io.InputStream)}. */
+    public static final byte TYPE_STREAM = 3;
+
+    /** A message sealed by a {@link RecordLayer}. */
+    public static final byte TYPE_RECORD = 4;
+
+    /** A chunk of a file, as sent by {@link Communicator#sendFile(java.nio.file.Path)}. */
+    public static final byte TYPE_FILE = 5;
+
+    /** A record carrying part of a message on one of the streams of a {@link Multiplexer}. */
+    public static final byte TYPE_MUX = 6;
+
+    /** A record carrying one message of a {@link PipelinedSender}, with its sequence number. */
+    public static final byte TYPE_DELIVERY = 7;
+
+    /** A record carrying the outcomes of the messages a {@link PipelinedReceiver} has checked. */
+    public static final byte TYPE_ACK = 8;
+
+    public static final byte FLAG_NONE = 0;
+
+    /** Marks the last frame of a {@link #TYPE_STREAM} or {@link #TYPE_FILE} sequence. */
+    public static final byte FLAG_END_OF_STREAM = 1;
+
+    /** Marks a {@link #TYPE_RECORD} whose body ends with a signature of the message. */
+    public static final byte FLAG_SIGNED = 2;
+
+    /** Marks a {@link #TYPE_RECORD} whose body ends with an encoded {@link BatchSignature} of the message. */
+    public static final byte FLAG_BATCH_SIGNED = 4;
+
+    /**
+     * Marks a {@link #TYPE_HANDSHAKE} frame that offers a {@link SessionTicket} instead of a public key, or that
+     * accepts such an offer.
+     */
+    public static final byte FLAG_RESUME = 8;
+
+    /** Marks a {@link #TYPE_HANDSHAKE} frame that carries a new {@link SessionTicket}. */
+    public static final byte FLAG_TICKET = 16;
+
+    /** Marks a {@link #TYPE_HANDSHAKE} frame that carries an {@link ECDHEHandshake} hello or key share. */
+    public static final byte FLAG_ECDHE = 32;
+
+    /**
+     * Marks a {@link #TYPE_RECORD} whose message was compressed by a {@link Compressor} before it was sealed. On a
+     * {@link #TYPE_HANDSHAKE} frame, tells the other party that the sender can decompress records; records are only
+     * compressed towards a party that has said so.
+     */
+    public static final byte FLAG_COMPRESSED = 64;
+
+    /**
+     * Marks the last {@link #TYPE_RECORD} or {@link #TYPE_MUX} record sealed under the current key; the records after
+     * it use the next key (see {@link RecordLayer}).
+     */
+    public static final byte FLAG_KEY_UPDATE = (byte) 128;
+
+    private final byte mType;
+    private final byte mFlags;
+    private final byte[] mPayload;
+
+    public Frame(byte type, byte flags, byte[] payload) {
+        mType = type;
+        mFlags = flags;
+        mPayload = payload;
+    }
+
+    public byte getType() {
+        return mType;
+    }
+
+    public byte getFlags() {
+        return mFlags;
+    }
+
+    public boolean hasFlag(byte flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    /**
+     * Writes a frame header into "header", starting at its current position.
+     * @param header a buffer with at least {@link #HEADER_SIZE} bytes remaining
+     * @param type the frame type, such as {@link #TYPE_DATA}
+     * @param flags the frame flags
+     * @param length the length of the payload that will follow the header
+     */
+    public static void writeHeader(ByteBuffer header, byte type, byte flags, int length) {
+        header.put(VERSION);
+        header.put(type);
+        header.put(flags);
+        header.putInt(length);
+    }
+
+    /**
+     * Reads the payload length out of a complete frame header, validating the version and length.
+     * @param header a buffer positioned at the start of a header, with at least {@link #HEADER_SIZE} bytes
+     * @return the length of the payload that follows the header
+     * @throws ProtocolException if the header is for a different version, or the length is out of range
+     */
+    public static int readPayloadLength(ByteBuffer header) throws ProtocolException {
+        int start = header.position();
+
+        byte version = header.get(start);
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported frame version: " + version);
+        }
+
+        int length = header.getInt(start + 3);
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + Integer.toUnsignedString(length));
+        }
+
+        return length;
+    }
+
+    /**
+     * @return the type of the frame whose header starts at the current position of "header"
+     */
+    public static byte readType(ByteBuffer header) {
+        return header.get(header.position() + 1);
+    }
+
+    /**
+     * @return the flags of the frame whose header starts at the current position of "header"
+     */
+    public static byte readFlags(ByteBuffer header) {
+        return header.get(header.position() + 2);
+    }
+}
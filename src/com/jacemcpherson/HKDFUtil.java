@@ -0,0 +1,75 @@
+package com.jacemcpherson;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * HMAC-based key derivation (HKDF, RFC 5869) using HMAC-SHA256. Used to turn one shared secret into several
+ * independent keys, such as a separate key for each direction of a connection.
+ */
+public class HKDFUtil {
+
+    private static final int HASH_LENGTH = 32;
+
+    /**
+     * HKDF-Extract: concentrates the entropy of "inputKeyMaterial" into a fixed-length pseudorandom key.
+     * @param salt a non-secret random value; may be <code>null</code>, in which case a block of zeros is used
+     * @param inputKeyMaterial the shared secret
+     * @return a 32-byte pseudorandom key, suitable for {@link #expand(byte[], String, int)}
+     */
+    public static byte[] extract(byte[] salt, byte[] inputKeyMaterial) throws GeneralSecurityException {
+        if (salt == null || salt.length == 0) {
+            salt = new byte[HASH_LENGTH];
+        }
+
+        SecretKeySpec saltKey = new SecretKeySpec(salt, SHA256Util.HMAC_ALGORITHM);
+        return CryptoContexts.mac(SHA256Util.HMAC_ALGORITHM, saltKey, mac -> mac.doFinal(inputKeyMaterial));
+    }
+
+    /**
+     * HKDF-Expand: derives "length" bytes of output key material from a pseudorandom key.
+     * @param pseudorandomKey the output of {@link #extract(byte[], byte[])}
+     * @param label distinguishes keys derived for different purposes from the same pseudorandom key
+     * @param length the number of bytes to derive; at most 255 * 32
+     * @return "length" bytes of key material
+     */
+    public static byte[] expand(byte[] pseudorandomKey, String label, int length) throws GeneralSecurityException {
+        if (length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("Cannot derive more than " + (255 * HASH_LENGTH) + " bytes.");
+        }
+
+        SecretKeySpec key = new SecretKeySpec(pseudorandomKey, SHA256Util.HMAC_ALGORITHM);
+        byte[] info = label.getBytes(StandardCharsets.UTF_8);
+
+        return CryptoContexts.mac(SHA256Util.HMAC_ALGORITHM, key, mac -> {
+            byte[] output = new byte[length];
+            byte[] previous = new byte[0];
+            int offset = 0;
+            for (int counter = 1; offset < length; counter++) {
+                mac.update(previous);
+                mac.update(info);
+                mac.update((byte) counter);
+                previous = mac.doFinal();
+
+                int count = Math.min(previous.length, length - offset);
+                System.arraycopy(previous, 0, output, offset, count);
+                offset += count;
+            }
+            return output;
+        });
+    }
+
+    /**
+     * Derives an AES key from a shared secret key in one step.
+     * @param secretKey the shared secret
+     * @param label distinguishes this key from other keys derived from "secretKey"
+     * @param length the key length in bytes (16 for AES-128)
+     * @return the derived AES key
+     */
+    public static SecretKey deriveKey(SecretKey secretKey, String label, int length) throws GeneralSecurityException {
+        byte[] pseudorandomKey = extract(null, secretKey.getEncoded());
+        return new SecretKeySpec(expand(pseudorandomKey, label, length), "AES");
+    }
+}
@@ -0,0 +1,29 @@
+package com.jacemcpherson;
+
+/**
+ * The ways a {@link Communicator} or {@link NioSession} can set up a connection's secret key, and the kind of
+ * signatures used on that connection afterwards.
+ */
+public enum HandshakeSuite {
+
+    /**
+     * The client sends its RSA public key, then an AES key encrypted with RSA-OAEP under the server's public
+     * key. Messages are signed with SHA256withRSA. Always available.
+     */
+    RSA,
+
+    /**
+     * Both sides send an ephemeral X25519 public key, signed with their Ed25519 identity key, and derive the
+     * AES key from the X25519 shared secret with {@link HKDFUtil}. Much cheaper than {@link #RSA}, and the keys
+     * of past connections stay safe even if an identity key leaks later. Messages are signed with Ed25519.
+     * Needs a JDK that provides X25519 and Ed25519 (Java 15 and up).
+     */
+    ECDHE;
+
+    /**
+     * @return {@link #ECDHE} where this JDK supports it, {@link #RSA} otherwise
+     */
+    public static HandshakeSuite getDefault() {
+        return ECDHEUtil.isSupported() ? ECDHE : RSA;
+    }
+}
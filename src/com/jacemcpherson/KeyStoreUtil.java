@@ -0,0 +1,246 @@
+package com.jacemcpherson;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Keeps this party's identity key pairs, and the public keys of the peers it trusts, in PEM files, so that a
+ * restart keeps the same identity and does not have to generate a new RSA key pair.
+ * <br><br>
+ * Files live in {@link #getDirectory()} (<code>keys</code> in the working directory by default):<br>
+ * * <code>&lt;name&gt;.key</code> and <code>&lt;name&gt;.pub</code>: an identity key pair, such as
+ * <code>rsa</code> or <code>ed25519</code>, as PKCS#8 and X.509 PEM.
+ * * <code>trusted/*.pub</code>: the X.509 PEM public keys of trusted peers.
+ *
+ * <br><br>
+ * Nothing is read until it is first needed, and each file is only read once per process. Files are written to
+ * a temporary file first and then moved into place, so several processes sharing a directory never see half a
+ * key. Parties that should have different identities need different directories.
+ */
+public class KeyStoreUtil {
+
+    public static final String DEFAULT_DIRECTORY = "keys";
+
+    private static final String TRUSTED_DIRECTORY = "trusted";
+    private static final String PRIVATE_KEY_EXTENSION = ".key";
+    private static final String PUBLIC_KEY_EXTENSION = ".pub";
+
+    // the algorithms a trusted key file may hold; X.509 PEM does not say which
+    private static final String[] PUBLIC_KEY_ALGORITHMS = { "RSA", "Ed25519", "X25519" };
+
+    private static volatile Path sDirectory = Paths.get(DEFAULT_DIRECTORY);
+    private static volatile List<PublicKey> sTrustedKeys;
+
+    public static Path getDirectory() {
+        return sDirectory;
+    }
+
+    /**
+     * Changes where keys are read from and saved to. Only affects keys that have not been loaded yet.
+     */
+    public static void setDirectory(Path directory) {
+        sDirectory = directory;
+        sTrustedKeys = null;
+    }
+
+    /**
+     * Loads the identity key pair "name", or generates and saves it if it does not exist yet (or cannot be read).
+     * @param name the file name, without extension
+     * @param algorithm the key algorithm, such as "RSA" or "Ed25519"
+     * @param generator generates a new key pair if there is none to load
+     * @return the key pair, or <code>null</code> if it could be neither loaded nor generated
+     */
+    public static KeyPair loadOrCreateKeyPair(String name, String algorithm, Supplier<KeyPair> generator) {
+        KeyPair keyPair = loadKeyPair(name, algorithm);
+        if (keyPair != null) {
+            return keyPair;
+        }
+
+        keyPair = generator.get();
+        if (keyPair != null && !saveKeyPair(name, keyPair)) {
+            Console.w("Could not save the %s key pair; a new one will be generated next time.", name);
+        }
+        return keyPair;
+    }
+
+    /**
+     * @return the identity key pair "name", or <code>null</code> if it does not exist or cannot be read
+     */
+    public static KeyPair loadKeyPair(String name, String algorithm) {
+        Path privateKeyFile = sDirectory.resolve(name + PRIVATE_KEY_EXTENSION);
+        Path publicKeyFile = sDirectory.resolve(name + PUBLIC_KEY_EXTENSION);
+        if (!Files.isRegularFile(privateKeyFile) || !Files.isRegularFile(publicKeyFile)) {
+            return null;
+        }
+
+        try {
+            KeyFactory keyFactory = KeyFactory.getInstance(algorithm);
+            PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(readPem(privateKeyFile)));
+            PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(readPem(publicKeyFile)));
+            return new KeyPair(publicKey, privateKey);
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+            Console.w("Could not read the %s key pair from %s: %s", name, sDirectory, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Saves "keyPair" as the identity key pair "name". The private key file is only readable by its owner, where
+     * the file system supports that.
+     * @return <code>true</code> if both files were written
+     */
+    public static boolean saveKeyPair(String name, KeyPair keyPair) {
+        try {
+            Files.createDirectories(sDirectory);
+            writePem(sDirectory.resolve(name + PRIVATE_KEY_EXTENSION), "PRIVATE KEY",
+                    keyPair.getPrivate().getEncoded(), true);
+            writePem(sDirectory.resolve(name + PUBLIC_KEY_EXTENSION), "PUBLIC KEY",
+                    keyPair.getPublic().getEncoded(), false);
+            return true;
+        } catch (IOException e) {
+            Console.exception(e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the public keys in the trusted directory, read on first use; empty if there are none
+     */
+    public static List<PublicKey> getTrustedKeys() {
+        List<PublicKey> trustedKeys = sTrustedKeys;
+        if (trustedKeys == null) {
+            synchronized (KeyStoreUtil.class) {
+                if (sTrustedKeys == null) {
+                    sTrustedKeys = Collections.unmodifiableList(readTrustedKeys());
+                }
+                trustedKeys = sTrustedKeys;
+            }
+        }
+        return trustedKeys;
+    }
+
+    /**
+     * @return <code>true</code> if "publicKey" is one of the {@link #getTrustedKeys()}
+     */
+    public static boolean isTrusted(PublicKey publicKey) {
+        for (PublicKey trustedKey : getTrustedKeys()) {
+            if (trustedKey.equals(publicKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves "publicKey" in the trusted directory as "name".pub, and adds it to {@link #getTrustedKeys()}.
+     * @return <code>true</code> if the key was saved
+     */
+    public static synchronized boolean addTrustedKey(String name, PublicKey publicKey) {
+        try {
+            Path trustedDirectory = sDirectory.resolve(TRUSTED_DIRECTORY);
+            Files.createDirectories(trustedDirectory);
+            writePem(trustedDirectory.resolve(name + PUBLIC_KEY_EXTENSION), "PUBLIC KEY", publicKey.getEncoded(), false);
+        } catch (IOException e) {
+            Console.exception(e);
+            return false;
+        }
+
+        List<PublicKey> trustedKeys = new ArrayList<>(getTrustedKeys());
+        trustedKeys.add(publicKey);
+        sTrustedKeys = Collections.unmodifiableList(trustedKeys);
+        return true;
+    }
+
+    private static List<PublicKey> readTrustedKeys() {
+        List<PublicKey> trustedKeys = new ArrayList<>();
+        Path trustedDirectory = sDirectory.resolve(TRUSTED_DIRECTORY);
+        if (!Files.isDirectory(trustedDirectory)) {
+            return trustedKeys;
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(trustedDirectory, "*" + PUBLIC_KEY_EXTENSION)) {
+            for (Path file : files) {
+                PublicKey publicKey = parsePublicKey(readPem(file));
+                if (publicKey == null) {
+                    Console.w("Ignoring trusted key %s: not a supported public key.", file.getFileName());
+                } else {
+                    trustedKeys.add(publicKey);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Console.w("Could not read trusted keys from %s: %s", trustedDirectory, e.getMessage());
+        }
+        return trustedKeys;
+    }
+
+    private static PublicKey parsePublicKey(byte[] encoded) {
+        for (String algorithm : PUBLIC_KEY_ALGORITHMS) {
+            try {
+                return KeyFactory.getInstance(algorithm).generatePublic(new X509EncodedKeySpec(encoded));
+            } catch (GeneralSecurityException e) {
+                // not this algorithm; try the next one
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the bytes between the BEGIN and END lines of a PEM file
+     * @throws IllegalArgumentException if the contents are not valid Base64
+     */
+    private static byte[] readPem(Path file) throws IOException {
+        StringBuilder base64 = new StringBuilder();
+        for (String line : Files.readAllLines(file, StandardCharsets.US_ASCII)) {
+            if (!line.startsWith("-----")) {
+                base64.append(line.trim());
+            }
+        }
+        return Base64.getDecoder().decode(base64.toString());
+    }
+
+    private static void writePem(Path file, String type, byte[] encoded, boolean isPrivate) throws IOException {
+        String pem = "-----BEGIN " + type + "-----\n"
+                + Base64.getMimeEncoder(64, new byte[] { '\n' }).encodeToString(encoded) + "\n"
+                + "-----END " + type + "-----\n";
+
+        Path temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(
+                        temporary,
+                        PosixFilePermissions.fromString(isPrivate ? "rw-------" : "rw-r--r--")
+                );
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system
+            }
+            Files.write(temporary, pem.getBytes(StandardCharsets.US_ASCII));
+
+            try {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.jacemcpherson;
+
+import javax.management.openmbean.CompositeData;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, in the style of HdrHistogram: each power of two is split into
+ * {@link #SUB_BUCKET_COUNT} equal buckets, so any recorded value is known to within 1/16 (about 6%) whatever its
+ * size, with a fixed amount of memory.
+ * <br><br>
+ * Recording is lock-free and allocates nothing, so it can be called from any thread on the hot path. Values from
+ * 0 up to about 36 minutes are kept apart; anything longer falls into the last bucket. Reading the histogram
+ * through {@link #getSnapshot()} copies the buckets, and may be done at any time.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    // values up to 2^MAX_MAGNITUDE - 1 nanoseconds get their own bucket
+    private static final int MAX_MAGNITUDE = 41;
+    private static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder mTotalNanos = new LongAdder();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * Records one duration.
+     * @param nanos the duration, in nanoseconds; negative values are counted as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        mCounts.incrementAndGet(bucketOf(nanos));
+        mTotalNanos.add(nanos);
+
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    /**
+     * Records the time since "startNanos", a value of {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public Snapshot getSnapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mTotalNanos.sum(), mMaxNanos.get());
+    }
+
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKET_COUNT) {
+            return (int) nanos;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(nanos);
+        if (magnitude >= MAX_MAGNITUDE) {
+            return BUCKET_COUNT - 1;
+        }
+
+        int subBucket = (int) (nanos >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return the largest value that falls into "bucket"
+     */
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+
+        int magnitude = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKET_COUNT;
+        long lowest = (long) (SUB_BUCKET_COUNT + subBucket) << (magnitude - SUB_BUCKET_BITS);
+        return lowest + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * The state of a {@link LatencyHistogram} at one point in time. Its getters make it readable as composite
+     * data over JMX, and {@link #from(CompositeData)} lets JMX clients read it back.
+     */
+    public static class Snapshot {
+
+        private final long mCount;
+        private final long mMeanNanos;
+        private final long mMaxNanos;
+        private final long mP50Nanos;
+        private final long mP90Nanos;
+        private final long mP99Nanos;
+        private final long mP999Nanos;
+
+        private Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            mCount = count;
+            mMeanNanos = count == 0 ? 0 : totalNanos / count;
+            mMaxNanos = maxNanos;
+            mP50Nanos = percentile(counts, count, maxNanos, 50);
+            mP90Nanos = percentile(counts, count, maxNanos, 90);
+            mP99Nanos = percentile(counts, count, maxNanos, 99);
+            mP999Nanos = percentile(counts, count, maxNanos, 99.9);
+        }
+
+        private Snapshot(CompositeData data) {
+            mCount = (Long) data.get("count");
+            mMeanNanos = (Long) data.get("meanNanos");
+            mMaxNanos = (Long) data.get("maxNanos");
+            mP50Nanos = (Long) data.get("p50Nanos");
+            mP90Nanos = (Long) data.get("p90Nanos");
+            mP99Nanos = (Long) data.get("p99Nanos");
+            mP999Nanos = (Long) data.get("p999Nanos");
+        }
+
+        /**
+         * Rebuilds a snapshot read over JMX.
+         */
+        public static Snapshot from(CompositeData data) {
+            return new Snapshot(data);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMeanNanos() {
+            return mMeanNanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        public long getP50Nanos() {
+            return mP50Nanos;
+        }
+
+        public long getP90Nanos() {
+            return mP90Nanos;
+        }
+
+        public long getP99Nanos() {
+            return mP99Nanos;
+        }
+
+        public long getP999Nanos() {
+            return mP999Nanos;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return a value that at least "percentile" percent of the recorded values are no larger than, to the
+         * precision of the buckets; 0 if nothing was recorded
+         */
+        private static long percentile(long[] counts, long count, long maxNanos, double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+    }
+}
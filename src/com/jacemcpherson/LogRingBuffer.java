@@ -0,0 +1,129 @@
+package com.jacemcpherson;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of log entries for {@link Console}, with any number of producers and a single
+ * consumer (the writer thread).
+ * <br><br>
+ * Entries are allocated once, up front, and reused: a producer claims a slot by advancing the tail with a CAS,
+ * fills in that slot's entry, then publishes it by bumping the slot's sequence number. The consumer reads the
+ * entry in place and hands the slot back the same way. So logging a line allocates nothing beyond the caller's
+ * own arguments.
+ */
+class LogRingBuffer {
+
+    /**
+     * One log line, not yet formatted.
+     */
+    static class Entry {
+        long mTimeMillis;
+        Console.LogType mType;
+        String mMessage;
+        Object[] mArgs;
+    }
+
+    interface Handler {
+        void onEntry(Entry entry);
+    }
+
+    private final int mMask;
+    private final Entry[] mEntries;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+
+    // only advanced by the consumer; volatile so producers and flush() can see how far it has got
+    private volatile long mHead;
+
+    /**
+     * @param capacity the number of entries; rounded up to a power of two
+     */
+    LogRingBuffer(int capacity) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        mMask = size - 1;
+        mEntries = new Entry[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mEntries[i] = new Entry();
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an entry, unless the buffer is full. Safe to call from any thread.
+     * @return <code>false</code> if the buffer was full and nothing was added
+     */
+    boolean offer(long timeMillis, Console.LogType type, String message, Object[] args) {
+        long position = mTail.get();
+        while (true) {
+            int index = (int) (position & mMask);
+            long difference = mSequences.get(index) - position;
+
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    Entry entry = mEntries[index];
+                    entry.mTimeMillis = timeMillis;
+                    entry.mType = type;
+                    entry.mMessage = message;
+                    entry.mArgs = args;
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                // the consumer has not freed this slot yet
+                return false;
+            } else {
+                // another producer claimed this slot first
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Passes every published entry to "handler", oldest first, and frees their slots. Must only be called from
+     * the single consumer thread.
+     * @return the number of entries drained
+     */
+    int drain(Handler handler) {
+        int count = 0;
+        long position = mHead;
+        while (true) {
+            int index = (int) (position & mMask);
+            if (mSequences.get(index) != position + 1) {
+                // not published yet
+                break;
+            }
+
+            Entry entry = mEntries[index];
+            handler.onEntry(entry);
+            entry.mMessage = null;
+            entry.mArgs = null;
+
+            mSequences.set(index, position + mMask + 1);
+            position++;
+            count++;
+        }
+        mHead = position;
+        return count;
+    }
+
+    /**
+     * @return the number of entries ever claimed by producers
+     */
+    long getTail() {
+        return mTail.get();
+    }
+
+    /**
+     * @return the number of entries ever drained by the consumer
+     */
+    long getHead() {
+        return mHead;
+    }
+
+    boolean isEmpty() {
+        return mHead >= mTail.get();
+    }
+}
@@ -1,11 +1,77 @@
 package com.jacemcpherson;
 
-import java.util.Base64;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class Main {
 
+    /**
+     * How often the servers log a {@link Metrics} snapshot.
+     */
+    private static final long METRICS_REPORT_PERIOD_MILLIS = 60 * 1000;
+
     public static void main(String[] args) {
         Console.init();
+        Metrics.registerMBeans();
+
+        if (args.length > 0 && args[0].equals("--nio")) {
+            runNioServer();
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--threads")) {
+            runBlockingServer(args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors());
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--benchmark")) {
+            Benchmark.run(args.length > 1 ? args[1] : "");
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--reconnect")) {
+            runReconnectingClient(args.length > 1 ? Integer.parseInt(args[1]) : 2);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--udp")) {
+            runDatagramParty(args.length > 1 && args[1].equals("server"));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--mux")) {
+            if (args.length > 1 && args[1].equals("server")) {
+                runMultiplexedServer();
+            } else {
+                runMultiplexedClient(args.length > 1 ? Integer.parseInt(args[1]) : 8);
+            }
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--pipeline")) {
+            if (args.length > 1 && args[1].equals("server")) {
+                runPipelinedServer();
+            } else {
+                runPipelinedClient(args.length > 1 ? Integer.parseInt(args[1]) : 200,
+                        args.length > 2 ? Integer.parseInt(args[2]) : PipelinedSender.DEFAULT_WINDOW);
+            }
+            return;
+        }
+
+        if (args.length > 1 && args[0].equals("--send")) {
+            runFileSender(Paths.get(args[1]));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("--receive")) {
+            runFileReceiver(Paths.get(args.length > 1 ? args[1] : "."));
+            return;
+        }
 
         // the Communicator for this party (doesn't matter if it's server or client)
         Communicator communicator = null;
@@ -48,90 +114,444 @@ public class Main {
 
         communicator.exchangeSecretKey();
 
+        if (!KeyStoreUtil.getTrustedKeys().isEmpty() && !communicator.getCryptoSession().isPartnerTrusted()) {
+            Console.w("The other party's public key is not one of the trusted keys in %s", KeyStoreUtil.getDirectory());
+        }
+
+        Protocol.performMessageSteps(communicator);
+
         Console.d(StringUtil.repeatedCharacter('=', 40));
-        Console.d("*** STEP 2 ***");
+        Console.d("*** CLOSING ***");
 
-        if (!communicator.isServer()) {  // I'm Alice
-            // Step 2: Alice sends AES encrypted message (30 bytes)
-            byte[] message = AESEncryptionUtil.generateRandomMessage(30);
-            byte[] encryptedMessage = AESEncryptionUtil.encryptMessage(message);
+        communicator.close();
+        Metrics.report();
 
-            Console.d("Alice will send (unencrypted): %s", Base64.getEncoder().encodeToString(message));
+    }
+
+    /**
+     * Runs Alice against an already running server "connections" times in a row. Every connection after the
+     * first presents the {@link SessionTicket} issued on the one before, and so skips the RSA handshake.
+     * @param connections the number of times to connect
+     */
+    private static void runReconnectingClient(int connections) {
+        for (int i = 0; i < connections; i++) {
+            Communicator communicator;
+            try {
+                communicator = new Communicator(false);
+            } catch (IOException e) {
+                Console.d("Could not connect to server.");
+                Console.exception(e);
+                return;
+            }
 
-            communicator.sendBytes(encryptedMessage);
-        } else {    // I'm Bob
-            // Step 2: Alice sends AEX
-            byte[] encryptedMessage = communicator.receiveBytes();
-            byte[] decryptedMessage = AESEncryptionUtil.decryptMessage(encryptedMessage);
+            if (!communicator.exchangeRSAPublicKey() || !communicator.exchangeSecretKey()) {
+                Console.d("Key exchange failed.");
+                communicator.close();
+                return;
+            }
+            Console.d("Alice %s", communicator.isResumed() ? "resumed her session" : "completed a full handshake");
 
-            Console.d("Bob received (unencrypted): %s", Base64.getEncoder().encodeToString(decryptedMessage));
+            Protocol.performMessageSteps(communicator);
+            communicator.close();
         }
+        Metrics.report();
+    }
 
-        Console.d(StringUtil.repeatedCharacter('=', 40));
-        Console.d("*** STEP 3 ***");
+    /**
+     * Runs Alice or Bob over UDP (see {@link DatagramTransport}), performing the same steps as in
+     * {@link #main(String[])}. Bob waits for one Alice on {@link Communicator#SERVER_PORT}.
+     * @param isServer whether to run Bob
+     */
+    private static void runDatagramParty(boolean isServer) {
+        DatagramTransport transport;
+        try {
+            if (isServer) {
+                Console.d("Waiting for a client over UDP...");
+                transport = DatagramTransport.accept(Communicator.SERVER_PORT);
+            } else {
+                transport = DatagramTransport.connect(
+                        new InetSocketAddress(Communicator.SERVER_IP, Communicator.SERVER_PORT)
+                );
+            }
+        } catch (IOException e) {
+            Console.d("Could not connect over UDP.");
+            Console.exception(e);
+            return;
+        }
+        Console.d("Connected to %s over UDP", transport.getRemoteAddress());
 
-        if (!communicator.isServer()) { // I'm Alice
-            // Step 3: Alice sends a 40 byte message, followed by its HMAC.
+        Communicator communicator = new Communicator(transport);
+        if (communicator.exchangeRSAPublicKey() && communicator.exchangeSecretKey()) {
+            Protocol.performMessageSteps(communicator);
+        } else {
+            Console.d("Key exchange failed.");
+        }
 
-            byte[] message = AESEncryptionUtil.generateRandomMessage(40);
-            byte[] messageHMAC = SHA256Util.getHMAC(message);
+        communicator.close();
+        Metrics.report();
+    }
 
-            Console.d("Alice will send message: %s", Base64.getEncoder().encodeToString(message));
-            Console.d("Alice computed HMAC: %s", StringUtil.bytesToHex(messageHMAC));
+    /**
+     * Runs Alice against an already running {@link #runMultiplexedServer()}. She opens "streams" streams over one
+     * connection: the first sends one large message while the rest make many small round trips at the same time,
+     * which are not held up behind it.
+     */
+    private static void runMultiplexedClient(int streams) {
+        Communicator communicator;
+        try {
+            communicator = new Communicator(false);
+        } catch (IOException e) {
+            Console.d("Could not connect to server.");
+            Console.exception(e);
+            return;
+        }
 
-            communicator.sendBytes(message);
-            communicator.sendBytes(messageHMAC);
-        } else {    // I'm Bob
-            byte[] receivedMessage = communicator.receiveBytes();
-            byte[] receivedHMAC = communicator.receiveBytes();
+        Multiplexer multiplexer = null;
+        if (communicator.exchangeRSAPublicKey() && communicator.exchangeSecretKey()) {
+            multiplexer = communicator.multiplex();
+        }
+        if (multiplexer == null) {
+            Console.d("Key exchange failed.");
+            communicator.close();
+            return;
+        }
 
-            byte[] computedHMAC = SHA256Util.getHMAC(receivedMessage);
+        Thread[] threads = new Thread[streams];
+        for (int i = 0; i < streams; i++) {
+            Multiplexer.Stream stream = multiplexer.openStream();
+            byte[] message = new byte[i == 0 ? 8 * 1024 * 1024 : 64];
+            int roundTrips = i == 0 ? 1 : 100;
+            threads[i] = new Thread(() -> {
+                long start = System.nanoTime();
+                for (int j = 0; j < roundTrips; j++) {
+                    byte[] echo = stream.send(message) ? stream.receive() : null;
+                    if (echo == null || echo.length != message.length) {
+                        Console.d("Alice: stream %d failed", stream.getId());
+                        return;
+                    }
+                }
+                stream.close();
+                Console.d("Alice: stream %d made %d round trips of %d bytes in %d ms", stream.getId(), roundTrips,
+                        message.length, (System.nanoTime() - start) / 1000000);
+            }, "Alice-stream-" + stream.getId());
+            threads[i].start();
+        }
 
-            boolean hashesMatch = SHA256Util.messagesEqual(receivedHMAC, computedHMAC);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        multiplexer.close();
+        Metrics.report();
+    }
+
+    /**
+     * Runs Bob as a {@link BlockingServer} that multiplexes each connection, and echoes every message back on the
+     * stream it arrived on. Each stream gets its own thread.
+     */
+    private static void runMultiplexedServer() {
+        BlockingServer server = new BlockingServer(
+                Communicator.SERVER_PORT,
+                Runtime.getRuntime().availableProcessors(),
+                communicator -> {
+                    Multiplexer multiplexer = communicator.multiplex();
+                    if (multiplexer == null) {
+                        return;
+                    }
 
-            Console.d("Bob received message: %s", Base64.getEncoder().encodeToString(receivedMessage));
-            Console.d("Bob received HMAC: %s", StringUtil.bytesToHex(receivedHMAC));
-            Console.d("Bob computed HMAC: %s", StringUtil.bytesToHex(computedHMAC));
-            Console.d("Bob determined the message was %s", hashesMatch ? "NOT MODIFIED" : "MODIFIED");
+                    Multiplexer.Stream stream;
+                    while ((stream = multiplexer.accept()) != null) {
+                        Multiplexer.Stream accepted = stream;
+                        Thread thread = new Thread(() -> {
+                            byte[] message;
+                            while ((message = accepted.receive()) != null && accepted.send(message)) {
+                                // echoed
+                            }
+                            accepted.close();
+                        }, "Bob-stream-" + stream.getId());
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                    multiplexer.close();
+                }
+        );
+
+        try {
+            Console.d("Starting multiplexing echo server...");
+            Metrics.startReporting(METRICS_REPORT_PERIOD_MILLIS);
+            server.serve();
+        } catch (IOException e) {
+            Console.d("Could not run multiplexing server.");
+            Console.exception(e);
         }
+    }
 
-        Console.d(StringUtil.repeatedCharacter('=', 40));
-        Console.d("*** STEP 4 ***");
+    /**
+     * Runs Alice against an already running {@link #runPipelinedServer()}. She signs "count" messages and sends
+     * them with a {@link PipelinedSender}, keeping up to "window" in flight, then waits for Bob's verdict on each.
+     */
+    private static void runPipelinedClient(int count, int window) {
+        Communicator communicator;
+        try {
+            communicator = new Communicator(false);
+        } catch (IOException e) {
+            Console.d("Could not connect to server.");
+            Console.exception(e);
+            return;
+        }
 
-        if (!communicator.isServer()) { // I'm Alice
+        PipelinedSender sender = null;
+        if (communicator.exchangeRSAPublicKey() && communicator.exchangeSecretKey()) {
+            sender = communicator.sendPipelined(window);
+        }
+        if (sender == null) {
+            Console.d("Key exchange failed.");
+            communicator.close();
+            return;
+        }
+
+        CryptoSession session = communicator.getCryptoSession();
+        List<CompletableFuture<Boolean>> outcomes = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
             byte[] message = AESEncryptionUtil.generateRandomMessage(50);
-            byte[] hmac = SHA256Util.getHMAC(message);
-            byte[] signature = RSAEncryptionUtil.signMessage(hmac);
+            byte[] signature = session.signMessage(message);
+            outcomes.add(sender.send(Frame.FLAG_SIGNED, Protocol.appendSignature(message, signature)));
+        }
+        sender.flush();
 
-            Console.d("Alice will send message: %s", Base64.getEncoder().encodeToString(message));
-            Console.d("Alice computed HMAC: %s", StringUtil.bytesToHex(hmac));
-            Console.d("Alice signed: %s", Base64.getEncoder().encodeToString(signature));
+        int verified = 0;
+        for (CompletableFuture<Boolean> outcome : outcomes) {
+            if (outcome.getNow(false)) {
+                verified++;
+            }
+        }
+        Console.d("Alice: Bob verified %d of %d messages in %d ms, with up to %d in flight",
+                verified, count, (System.nanoTime() - start) / 1000000, window);
 
-            communicator.sendBytes(message);
-            communicator.sendBytes(hmac);
-            communicator.sendBytes(signature);
-        } else {    // I'm Bob
-            byte[] receivedMessage = communicator.receiveBytes();
-            byte[] receivedHmac = communicator.receiveBytes();
-            byte[] receivedSignature = communicator.receiveBytes();
+        sender.close();
+        communicator.close();
+        Metrics.report();
+    }
 
-            byte[] computedHmac = SHA256Util.getHMAC(receivedMessage);
+    /**
+     * Runs Bob as a {@link BlockingServer} that receives each Alice's pipelined messages, verifies their
+     * signatures on the {@link VerificationPool}, and acknowledges each one with the result. The connection's
+     * thread only reads, while the pool checks several messages at once.
+     */
+    private static void runPipelinedServer() {
+        BlockingServer server = new BlockingServer(
+                Communicator.SERVER_PORT,
+                Runtime.getRuntime().availableProcessors(),
+                communicator -> {
+                    PipelinedReceiver receiver = communicator.receivePipelined();
+                    if (receiver == null) {
+                        return;
+                    }
 
-            boolean hashesMatch = SHA256Util.messagesEqual(receivedHmac, computedHmac);
-            boolean signatureValid = RSAEncryptionUtil.verifySignature(receivedHmac, receivedSignature);
+                    CryptoSession session = communicator.getCryptoSession();
+                    List<CompletableFuture<Boolean>> outcomes = new ArrayList<>();
+                    PipelinedReceiver.Delivery delivery;
+                    while ((delivery = receiver.receive()) != null) {
+                        PipelinedReceiver.Delivery received = delivery;
+                        outcomes.add(VerificationPool.getDefault()
+                                .verify(session, Frame.FLAG_SIGNED, received.getMessage())
+                                .thenApply(verification -> {
+                                    receiver.acknowledge(received, verification.isVerified());
+                                    return verification.isVerified();
+                                }));
+                    }
 
-            Console.d("Bob received message: %s", Base64.getEncoder().encodeToString(receivedMessage));
-            Console.d("Bob received HMAC: %s", StringUtil.bytesToHex(receivedHmac));
-            Console.d("Bob computed HMAC: %s", StringUtil.bytesToHex(computedHmac));
-            Console.d("Bob determined the message was %s", hashesMatch ? "NOT MODIFIED" : "MODIFIED");
-            Console.d("Bob received signature: %s", Base64.getEncoder().encodeToString(receivedSignature));
-            Console.d("Bob determined the signature is %s", signatureValid ? "VALID" : "NOT VALID");
+                    int verified = 0;
+                    for (CompletableFuture<Boolean> outcome : outcomes) {
+                        if (outcome.join()) {
+                            verified++;
+                        }
+                    }
+                    Console.d("Bob verified %d of %d pipelined messages", verified, outcomes.size());
+                }
+        );
+
+        try {
+            Console.d("Starting pipelined server...");
+            Metrics.startReporting(METRICS_REPORT_PERIOD_MILLIS);
+            server.serve();
+        } catch (IOException e) {
+            Console.d("Could not run pipelined server.");
+            Console.exception(e);
         }
+    }
 
-        Console.d(StringUtil.repeatedCharacter('=', 40));
-        Console.d("*** CLOSING ***");
+    /**
+     * Runs Alice against an already running {@link #runFileReceiver(Path)}, and sends her "file".
+     */
+    private static void runFileSender(Path file) {
+        Communicator communicator;
+        try {
+            communicator = new Communicator(false);
+        } catch (IOException e) {
+            Console.d("Could not connect to server.");
+            Console.exception(e);
+            return;
+        }
+
+        if (communicator.exchangeRSAPublicKey() && communicator.exchangeSecretKey()) {
+            long start = System.nanoTime();
+            if (communicator.sendFile(file)) {
+                Console.d("Alice sent %s in %d ms", file, (System.nanoTime() - start) / 1000000);
+            } else {
+                Console.d("Alice could not send %s", file);
+            }
+        } else {
+            Console.d("Key exchange failed.");
+        }
 
         communicator.close();
+        Metrics.report();
+    }
+
+    /**
+     * Runs Bob as a {@link BlockingServer} that saves the file each Alice sends into "directory".
+     */
+    private static void runFileReceiver(Path directory) {
+        BlockingServer server = new BlockingServer(
+                Communicator.SERVER_PORT,
+                Runtime.getRuntime().availableProcessors(),
+                communicator -> {
+                    Path file = communicator.receiveFile(directory);
+                    if (file != null) {
+                        Console.d("Bob saved %s", file);
+                    }
+                }
+        );
+
+        try {
+            Console.d("Receiving files into %s...", directory.toAbsolutePath());
+            Metrics.startReporting(METRICS_REPORT_PERIOD_MILLIS);
+            server.serve();
+        } catch (IOException e) {
+            Console.d("Could not run file server.");
+            Console.exception(e);
+        }
+    }
+
+    /**
+     * Runs Bob as a {@link BlockingServer}, which gives each Alice her own (virtual, where available) thread and
+     * performs the same steps as in {@link #main(String[])} for each of them.
+     * @param maxConcurrentHandshakes the maximum number of key exchanges to run at the same time
+     */
+    private static void runBlockingServer(int maxConcurrentHandshakes) {
+        BlockingServer server = new BlockingServer(
+                Communicator.SERVER_PORT,
+                maxConcurrentHandshakes,
+                Protocol::performMessageSteps
+        );
+
+        try {
+            Console.d("Starting thread-per-connection server...");
+            Metrics.startReporting(METRICS_REPORT_PERIOD_MILLIS);
+            server.serve();
+        } catch (IOException e) {
+            Console.d("Could not run thread-per-connection server.");
+            Console.exception(e);
+        }
+    }
+
+    /**
+     * Bob's progress through the steps on one {@link NioSession}, kept as its attachment.
+     */
+    private static class BobSession {
+        // only used by the session's worker thread
+        int mStep;
 
+        // checks the signed records of steps 4 and 5 off the worker thread
+        final VerificationQueue mVerification;
+
+        BobSession(NioSession session) {
+            mVerification = VerificationPool.getDefault()
+                    .newQueue(session.getCryptoSession(), Protocol::logVerification);
+        }
+    }
+
+    /**
+     * Runs Bob as an {@link NioServer}, which can serve any number of Alices at once. Each client goes through
+     * the same steps as in {@link #main(String[])}; the session's {@link BobSession} counts the steps completed so
+     * far.
+     */
+    private static void runNioServer() {
+        NioServer server = new NioServer(new NioServer.Handler() {
+            @Override
+            public void onSessionReady(NioSession session) {
+                session.setAttachment(new BobSession(session));
+                Console.d("Bob received secret key from %s", session.getChannel().socket().getRemoteSocketAddress());
+            }
+
+            @Override
+            public void onFrame(NioSession session, Frame frame) {
+                BobSession bob = (BobSession) session.getAttachment();
+                onBobFrame(session, bob, ++bob.mStep, frame);
+            }
+
+            @Override
+            public void onSessionClosed(NioSession session) {
+                Console.d("Session closed: %s", session.getChannel().socket().getRemoteSocketAddress());
+            }
+        });
+
+        try {
+            Console.d("Starting NIO server...");
+            Metrics.startReporting(METRICS_REPORT_PERIOD_MILLIS);
+            server.start();
+            server.awaitTermination();
+        } catch (IOException | InterruptedException e) {
+            Console.d("Could not run NIO server.");
+            Console.exception(e);
+            server.stop();
+        }
+    }
+
+    /**
+     * Bob's side of steps 2 to 5, one frame per step, except for step 5, which is one frame per message. The
+     * signed records of steps 4 and 5 are only opened here, on the server's worker thread, and handed to the
+     * {@link VerificationPool} to be checked, so that the worker can go on reading other sessions.
+     */
+    private static void onBobFrame(NioSession session, BobSession bob, int step, Frame frame) {
+        switch (step) {
+            case 1: {
+                byte[] decryptedMessage = session.getCryptoSession().decryptMessage(frame.getPayload());
+                Console.d("Bob received (unencrypted): %s", Console.base64(decryptedMessage));
+                break;
+            }
+            case 2:
+                Protocol.logReceivedRecord(session.openRecord(frame));
+                break;
+            default:
+                if (step <= 3 + Protocol.BATCH_MESSAGE_COUNT) {
+                    submitSignedRecord(session, bob, frame);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Hands a signed record to the session's {@link VerificationQueue} without blocking the worker thread. While
+     * the queue is full, the session stops reading, and the client's further records wait in the socket buffers.
+     */
+    private static void submitSignedRecord(NioSession session, BobSession bob, Frame frame) {
+        if (!bob.mVerification.trySubmit(frame.getFlags(), session.openRecord(frame))) {
+            // reading pauses as soon as the queue fills up, so no record should find it full
+            Console.w("Closing session: too many records waiting to be verified");
+            session.close();
+            return;
+        }
+
+        if (bob.mVerification.isFull()) {
+            session.pauseReading();
+            bob.mVerification.whenNotFull(session::resumeReading);
+        }
     }
 }
@@ -0,0 +1,117 @@
+package com.jacemcpherson;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SHA-256 Merkle tree over a list of leaves, such as message HMACs. Used by {@link BatchSigner} so that one
+ * signature over the root covers every leaf, and each leaf can be checked against the root with a short proof.
+ * <br><br>
+ * Leaves and internal nodes are hashed with different prefixes, so a leaf can never be passed off as an internal
+ * node. When a level has an odd number of nodes, the last node is carried up to the next level unchanged.
+ */
+public class MerkleTree {
+
+    public static final int HASH_SIZE = 32;
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final List<byte[][]> mLevels = new ArrayList<>();
+
+    /**
+     * Builds the tree for "leaves".
+     * @param leaves the leaves, in order; must not be empty
+     */
+    public MerkleTree(List<byte[]> leaves) throws GeneralSecurityException {
+        if (leaves.isEmpty()) {
+            throw new IllegalArgumentException("A Merkle tree needs at least one leaf.");
+        }
+
+        byte[][] level = new byte[leaves.size()][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = hashLeaf(leaves.get(i));
+        }
+        mLevels.add(level);
+
+        while (level.length > 1) {
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parent.length; i++) {
+                int left = 2 * i;
+                parent[i] = left + 1 < level.length ? hashNode(level[left], level[left + 1]) : level[left];
+            }
+            mLevels.add(parent);
+            level = parent;
+        }
+    }
+
+    public byte[] getRoot() {
+        return mLevels.get(mLevels.size() - 1)[0];
+    }
+
+    public int getLeafCount() {
+        return mLevels.get(0).length;
+    }
+
+    /**
+     * @return the sibling hashes needed to recompute the root from the leaf at "index", from the bottom up.
+     * Levels where the node was carried up without a sibling are skipped.
+     */
+    public byte[][] getProof(int index) {
+        List<byte[]> proof = new ArrayList<>();
+        for (int depth = 0; depth < mLevels.size() - 1; depth++) {
+            byte[][] level = mLevels.get(depth);
+            int sibling = index ^ 1;
+            if (sibling < level.length) {
+                proof.add(level[sibling]);
+            }
+            index /= 2;
+        }
+        return proof.toArray(new byte[0][]);
+    }
+
+    /**
+     * Recomputes the root of a tree of "leafCount" leaves from one leaf and its proof.
+     * @return the root, or <code>null</code> if the proof has the wrong shape for "index" and "leafCount"
+     */
+    public static byte[] computeRoot(byte[] leaf, int index, int leafCount, byte[][] proof)
+            throws GeneralSecurityException {
+        if (index < 0 || index >= leafCount) {
+            return null;
+        }
+
+        byte[] node = hashLeaf(leaf);
+        int used = 0;
+        int levelSize = leafCount;
+        while (levelSize > 1) {
+            int sibling = index ^ 1;
+            if (sibling < levelSize) {
+                if (used >= proof.length) {
+                    return null;
+                }
+                node = (index & 1) == 0 ? hashNode(node, proof[used]) : hashNode(proof[used], node);
+                used++;
+            }
+            index /= 2;
+            levelSize = (levelSize + 1) / 2;
+        }
+
+        return used == proof.length ? node : null;
+    }
+
+    private static byte[] hashLeaf(byte[] leaf) throws GeneralSecurityException {
+        return CryptoContexts.digest("SHA-256", digest -> {
+            digest.update(LEAF_PREFIX);
+            return digest.digest(leaf);
+        });
+    }
+
+    private static byte[] hashNode(byte[] left, byte[] right) throws GeneralSecurityException {
+        return CryptoContexts.digest("SHA-256", digest -> {
+            digest.update(NODE_PREFIX);
+            digest.update(left);
+            return digest.digest(right);
+        });
+    }
+}
@@ -0,0 +1,374 @@
+package com.jacemcpherson;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide instrumentation: latency histograms for the crypto operations and the handshake phases, failure
+ * counts, and traffic totals. The crypto utilities and {@link ConnectionMetrics} record into it as they go;
+ * recording is lock-free and cheap enough to leave on all the time.
+ * <br><br>
+ * Call {@link #registerMBeans()} to publish it over JMX: everything here appears as
+ * <code>com.jacemcpherson:type=Metrics</code>, and each open connection as a {@link ConnectionMetrics} bean.
+ * {@link #startReporting(long)} logs a snapshot to {@link Console} periodically, and {@link #report()} once.
+ * <br><br>
+ * Histograms are in nanoseconds, and count every operation since the process started.
+ */
+public class Metrics {
+
+    private static final String DOMAIN = "com.jacemcpherson";
+
+    /** AES encryption: whole messages, records and stream chunks. */
+    public static final LatencyHistogram AES_ENCRYPT = new LatencyHistogram();
+    /** AES decryption: whole messages, records and stream chunks. */
+    public static final LatencyHistogram AES_DECRYPT = new LatencyHistogram();
+    public static final LatencyHistogram HMAC = new LatencyHistogram();
+    public static final LatencyHistogram RSA_SIGN = new LatencyHistogram();
+    public static final LatencyHistogram RSA_VERIFY = new LatencyHistogram();
+    public static final LatencyHistogram ED25519_SIGN = new LatencyHistogram();
+    public static final LatencyHistogram ED25519_VERIFY = new LatencyHistogram();
+    /** {@link Communicator#exchangeRSAPublicKey()}, on either side, including any resumption or ECDHE. */
+    public static final LatencyHistogram PUBLIC_KEY_EXCHANGE = new LatencyHistogram();
+    /** {@link Communicator#exchangeSecretKey()}, on either side, including the session ticket. */
+    public static final LatencyHistogram SECRET_KEY_EXCHANGE = new LatencyHistogram();
+    /** A record's time in a {@link VerificationPool}, from being handed over to its signature having been checked. */
+    public static final LatencyHistogram VERIFICATION = new LatencyHistogram();
+
+    private static final LongAdder sIntegrityFailures = new LongAdder();
+    private static final LongAdder sSignatureFailures = new LongAdder();
+    private static final LongAdder sReplays = new LongAdder();
+    private static final LongAdder sOutOfWindow = new LongAdder();
+    private static final LongAdder sVerificationQueueDepth = new LongAdder();
+    private static final LongAdder sFramesIn = new LongAdder();
+    private static final LongAdder sFramesOut = new LongAdder();
+    private static final LongAdder sBytesIn = new LongAdder();
+    private static final LongAdder sBytesOut = new LongAdder();
+    private static final LongAdder sCompressionBytesIn = new LongAdder();
+    private static final LongAdder sCompressionBytesOut = new LongAdder();
+
+    private static final Map<ConnectionMetrics, ObjectName> sConnections = new ConcurrentHashMap<>();
+
+    private static volatile MBeanServer sMBeanServer;
+    private static ScheduledExecutorService sReporter;
+    private static ScheduledFuture<?> sReport;
+
+    /**
+     * Counts a record or stream chunk that failed authentication: modified, replayed or out of order. Replays that
+     * a {@link ReplayWindow} catches before authentication are counted by {@link #replayed()} and
+     * {@link #outOfWindow()} instead.
+     */
+    public static void integrityFailed() {
+        sIntegrityFailures.increment();
+    }
+
+    /**
+     * Counts a datagram dropped because its sequence number had already been accepted.
+     */
+    public static void replayed() {
+        sReplays.increment();
+    }
+
+    /**
+     * Counts a datagram dropped because its sequence number was too far behind the newest for the replay window to
+     * tell whether it had been seen.
+     */
+    public static void outOfWindow() {
+        sOutOfWindow.increment();
+    }
+
+    /**
+     * Counts a signature that did not verify.
+     */
+    public static void signatureFailed() {
+        sSignatureFailures.increment();
+    }
+
+    /**
+     * Counts a record handed to a {@link VerificationPool}, until {@link #verificationFinished(long)}.
+     */
+    static void verificationQueued() {
+        sVerificationQueueDepth.increment();
+    }
+
+    /**
+     * Records the time since a record was handed to a {@link VerificationPool} at "queuedNanos", now that it has
+     * been checked.
+     */
+    static void verificationFinished(long queuedNanos) {
+        sVerificationQueueDepth.decrement();
+        VERIFICATION.recordSince(queuedNanos);
+    }
+
+    /**
+     * Counts a message that {@link Compressor} shrank from "originalLength" to "compressedLength" bytes.
+     */
+    static void compressed(int originalLength, int compressedLength) {
+        sCompressionBytesIn.add(originalLength);
+        sCompressionBytesOut.add(compressedLength);
+    }
+
+    static void frameSent(int payloadLength) {
+        sFramesOut.increment();
+        sBytesOut.add(Frame.HEADER_SIZE + payloadLength);
+    }
+
+    static void frameReceived(int payloadLength) {
+        sFramesIn.increment();
+        sBytesIn.add(Frame.HEADER_SIZE + payloadLength);
+    }
+
+    /**
+     * Publishes these metrics over JMX, along with every connection opened from now on. Safe to call more than
+     * once.
+     */
+    public static synchronized void registerMBeans() {
+        if (sMBeanServer != null) {
+            return;
+        }
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new MBean(), new ObjectName(DOMAIN + ":type=Metrics"));
+            sMBeanServer = server;
+        } catch (JMException e) {
+            Console.w("Could not register metrics with JMX: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Logs a snapshot of these metrics every "periodMillis", until {@link #stopReporting()}.
+     */
+    public static synchronized void startReporting(long periodMillis) {
+        stopReporting();
+
+        if (sReporter == null) {
+            sReporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        sReport = sReporter.scheduleAtFixedRate(Metrics::report, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopReporting() {
+        if (sReport != null) {
+            sReport.cancel(false);
+            sReport = null;
+        }
+    }
+
+    /**
+     * Logs a snapshot of these metrics: traffic, failures, and every histogram that has recorded anything.
+     */
+    public static void report() {
+        Console.i("Metrics: %d open connections, %d/%d frames and %d/%d bytes in/out",
+                sConnections.size(), sFramesIn.sum(), sFramesOut.sum(), sBytesIn.sum(), sBytesOut.sum());
+        Console.i("Metrics: %d integrity failures, %d signature failures, %d replays, %d out of window",
+                sIntegrityFailures.sum(), sSignatureFailures.sum(), sReplays.sum(), sOutOfWindow.sum());
+        if (VERIFICATION.getSnapshot().getCount() > 0) {
+            Console.i("Metrics: %d records waiting for verification", sVerificationQueueDepth.sum());
+        }
+        if (sCompressionBytesIn.sum() > 0) {
+            Console.i("Metrics: compressed %d bytes to %d", sCompressionBytesIn.sum(), sCompressionBytesOut.sum());
+        }
+
+        report("aes.encrypt", AES_ENCRYPT);
+        report("aes.decrypt", AES_DECRYPT);
+        report("hmac", HMAC);
+        report("rsa.sign", RSA_SIGN);
+        report("rsa.verify", RSA_VERIFY);
+        report("ed25519.sign", ED25519_SIGN);
+        report("ed25519.verify", ED25519_VERIFY);
+        report("handshake.publicKey", PUBLIC_KEY_EXCHANGE);
+        report("handshake.secretKey", SECRET_KEY_EXCHANGE);
+        report("verification", VERIFICATION);
+    }
+
+    private static void report(String name, LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+        if (snapshot.getCount() == 0) {
+            return;
+        }
+
+        Console.i("Metrics: %-19s n=%-8d mean=%-9s p50=%-9s p99=%-9s p99.9=%-9s max=%s",
+                name,
+                snapshot.getCount(),
+                formatNanos(snapshot.getMeanNanos()),
+                formatNanos(snapshot.getP50Nanos()),
+                formatNanos(snapshot.getP99Nanos()),
+                formatNanos(snapshot.getP999Nanos()),
+                formatNanos(snapshot.getMaxNanos()));
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1000) {
+            return nanos + "ns";
+        } else if (nanos < 1000000) {
+            return String.format("%.1fus", nanos / 1e3);
+        } else if (nanos < 1000000000) {
+            return String.format("%.2fms", nanos / 1e6);
+        }
+        return String.format("%.2fs", nanos / 1e9);
+    }
+
+    /**
+     * Counts "connection" as open, and publishes it over JMX if {@link #registerMBeans()} has been called.
+     */
+    static void register(ConnectionMetrics connection) {
+        ObjectName name;
+        try {
+            name = new ObjectName(DOMAIN + ":type=Connection,id=" + connection.getId());
+        } catch (JMException e) {
+            return;
+        }
+        if (sConnections.putIfAbsent(connection, name) != null) {
+            return;
+        }
+
+        MBeanServer server = sMBeanServer;
+        if (server != null) {
+            try {
+                server.registerMBean(connection, name);
+            } catch (JMException e) {
+                Console.d("Could not register connection %d with JMX: %s", connection.getId(), e.getMessage());
+            }
+        }
+    }
+
+    static void unregister(ConnectionMetrics connection) {
+        ObjectName name = sConnections.remove(connection);
+        MBeanServer server = sMBeanServer;
+        if (name == null || server == null) {
+            return;
+        }
+
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            // registered before registerMBeans(), or already gone
+        }
+    }
+
+    private static class MBean implements MetricsMXBean {
+
+        @Override
+        public LatencyHistogram.Snapshot getAesEncrypt() {
+            return AES_ENCRYPT.getSnapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getAesDecrypt() {
+            return AES_DECRYPT.getSnapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getHmac() {
+            return HMAC.getSnapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getRsaSign() {
+            return RSA_SIGN.getSnapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getRsaVerify() {
+            return RSA_VERIFY.getSnapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getEd25519Sign() {
+            return ED25519_SIGN.getSnapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getEd25519Verify() {
+            return ED25519_VERIFY.getSnapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getPublicKeyExchange() {
+            return PUBLIC_KEY_EXCHANGE.getSnapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getSecretKeyExchange() {
+            return SECRET_KEY_EXCHANGE.getSnapshot();
+        }
+
+        @Override
+        public LatencyHistogram.Snapshot getVerification() {
+            return VERIFICATION.getSnapshot();
+        }
+
+        @Override
+        public long getVerificationQueueDepth() {
+            return sVerificationQueueDepth.sum();
+        }
+
+        @Override
+        public long getIntegrityFailures() {
+            return sIntegrityFailures.sum();
+        }
+
+        @Override
+        public long getSignatureFailures() {
+            return sSignatureFailures.sum();
+        }
+
+        @Override
+        public long getReplays() {
+            return sReplays.sum();
+        }
+
+        @Override
+        public long getOutOfWindowDrops() {
+            return sOutOfWindow.sum();
+        }
+
+        @Override
+        public int getOpenConnections() {
+            return sConnections.size();
+        }
+
+        @Override
+        public long getFramesIn() {
+            return sFramesIn.sum();
+        }
+
+        @Override
+        public long getFramesOut() {
+            return sFramesOut.sum();
+        }
+
+        @Override
+        public long getBytesIn() {
+            return sBytesIn.sum();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return sBytesOut.sum();
+        }
+
+        @Override
+        public long getCompressionBytesIn() {
+            return sCompressionBytesIn.sum();
+        }
+
+        @Override
+        public long getCompressionBytesOut() {
+            return sCompressionBytesOut.sum();
+        }
+    }
+}
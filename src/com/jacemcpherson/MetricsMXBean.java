@@ -0,0 +1,51 @@
+package com.jacemcpherson;
+
+/**
+ * The process-wide metrics, as seen over JMX. See {@link Metrics}.
+ */
+public interface MetricsMXBean {
+
+    LatencyHistogram.Snapshot getAesEncrypt();
+
+    LatencyHistogram.Snapshot getAesDecrypt();
+
+    LatencyHistogram.Snapshot getHmac();
+
+    LatencyHistogram.Snapshot getRsaSign();
+
+    LatencyHistogram.Snapshot getRsaVerify();
+
+    LatencyHistogram.Snapshot getEd25519Sign();
+
+    LatencyHistogram.Snapshot getEd25519Verify();
+
+    LatencyHistogram.Snapshot getPublicKeyExchange();
+
+    LatencyHistogram.Snapshot getSecretKeyExchange();
+
+    LatencyHistogram.Snapshot getVerification();
+
+    long getVerificationQueueDepth();
+
+    long getIntegrityFailures();
+
+    long getSignatureFailures();
+
+    long getReplays();
+
+    long getOutOfWindowDrops();
+
+    int getOpenConnections();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getCompressionBytesIn();
+
+    long getCompressionBytesOut();
+}
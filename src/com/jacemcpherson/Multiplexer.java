@@ -0,0 +1,691 @@
+package com.jacemcpherson;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs many independent streams of messages over one connection, once its key exchange is complete (see
+ * {@link Communicator#multiplex()}). Each stream is an ordered conversation of its own, so a slow or large
+ * message on one stream does not hold up the others, and many request/response exchanges can be in flight at
+ * once without opening more connections or repeating the handshake.
+ * <br><br>
+ * Messages are split into chunks of at most {@link #CHUNK_SIZE} bytes, and sent as {@link Frame#TYPE_MUX}
+ * records. Every record is sealed by the connection's {@link RecordLayer}, and starts with a small header, so the
+ * stream IDs are encrypted along with the data:
+ * <pre>
+ *   | kind (1 byte) | flags (1 byte) | stream ID (4 bytes) | data ... |
+ * </pre>
+ * A single writer thread sends the chunks, taking one chunk from each stream that has data in turn, so a large
+ * message is interleaved fairly with everything else being sent.
+ * <br><br>
+ * Each stream has a flow-control window in each direction: a party may only have {@link #INITIAL_WINDOW} bytes
+ * of a stream's data outstanding, until the other party reads them and gives the window back. A stream whose
+ * reader falls behind therefore stops its writer, without holding up any other stream or buffering without
+ * limit. A party that sends beyond the window breaks the protocol, and the connection is closed.
+ * <br><br>
+ * Either party may open a stream with {@link #openStream()}; the other party receives it from {@link #accept()}
+ * when its first message arrives. A stream is given its ID when its first message is queued, so each party's
+ * streams appear on the wire in increasing order of ID; streams the client opens have odd IDs, and streams the
+ * server opens have even IDs, so the two never clash. When a party is done with the connection, {@link #close()}
+ * tells the other party so, and both close their ends once neither has anything more to read.
+ */
+public class Multiplexer {
+
+    /** The largest chunk of a message sent in one record. */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    /** How many bytes of a stream may be sent before the other party has read them. */
+    public static final int INITIAL_WINDOW = 256 * 1024;
+
+    /** How many streams the other party may have open at once. Streams beyond this are reset. */
+    public static final int MAX_STREAMS = 256;
+
+    private static final int HEADER_SIZE = 1 + 1 + 4;
+
+    /** A chunk of a message. */
+    private static final byte KIND_DATA = 0;
+
+    /** Gives back window to the sender: a 4-byte count of bytes read. */
+    private static final byte KIND_WINDOW_UPDATE = 1;
+
+    /** Abandons a stream. */
+    private static final byte KIND_RESET = 2;
+
+    /** Says that the sender will send nothing more on any stream, and is about to close the connection. */
+    private static final byte KIND_CLOSE = 3;
+
+    /** How long {@link #close()} waits for the other party to agree before closing the connection anyway. */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private static final byte FLAG_END_OF_MESSAGE = 1;
+    private static final byte FLAG_END_OF_STREAM = 2;
+
+    /**
+     * One stream of messages. {@link #send(byte[])} and {@link #receive()} may be called from different threads,
+     * but each should only be called by one thread at a time.
+     */
+    public class Stream {
+
+        // guarded by Multiplexer.this.mLock; 0 until the first message is queued
+        private volatile int mId;
+        private final ArrayDeque<Outgoing> mPending = new ArrayDeque<>();
+        private int mSendWindow = INITIAL_WINDOW;
+        private boolean mScheduled;
+        private boolean mLocalClosed;
+
+        // guarded by this
+        private final ArrayDeque<byte[]> mChunks = new ArrayDeque<>();
+        private final ArrayDeque<Byte> mChunkFlags = new ArrayDeque<>();
+        private int mReceiveWindow = INITIAL_WINDOW;
+        private int mUnacknowledged;
+        private boolean mRemoteClosed;
+
+        private volatile boolean mReset;
+
+        private Stream(int id) {
+            mId = id;
+        }
+
+        /**
+         * @return the stream's ID, or 0 if nothing has been sent on a stream we opened yet
+         */
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Sends "message" on this stream, blocking until all of it has been written to the connection, which may
+         * take a while if the other party is slow to read this stream.
+         * @return <code>true</code> if the whole message was sent
+         */
+        public boolean send(byte[] message) {
+            return enqueue(this, new Outgoing(message, FLAG_END_OF_MESSAGE));
+        }
+
+        /**
+         * Receives the next message on this stream, blocking until all of it has arrived.
+         * @return the message, or <code>null</code> if the other party closed the stream, or the stream or the
+         * connection failed, or this is a stream we opened and have sent nothing on, so the other party cannot know
+         * of it
+         */
+        public byte[] receive() {
+            if (mId == 0) {
+                return null;
+            }
+
+            ByteArrayOutputStream message = null;
+            while (true) {
+                byte[] chunk;
+                byte flags;
+                int windowUpdate = 0;
+                synchronized (this) {
+                    while (mChunks.isEmpty() && !mRemoteClosed && !mReset && !mClosed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+                    }
+                    if (mChunks.isEmpty()) {
+                        return null;
+                    }
+
+                    chunk = mChunks.poll();
+                    flags = mChunkFlags.poll();
+                    mUnacknowledged += chunk.length;
+                    if (mUnacknowledged >= INITIAL_WINDOW / 2) {
+                        // give the window back in large steps, rather than one small update per chunk
+                        windowUpdate = mUnacknowledged;
+                        mReceiveWindow += mUnacknowledged;
+                        mUnacknowledged = 0;
+                    }
+                }
+                if (windowUpdate > 0) {
+                    sendControl(KIND_WINDOW_UPDATE, mId, windowUpdate);
+                }
+
+                if ((flags & FLAG_END_OF_MESSAGE) != 0 && message == null) {
+                    return chunk;
+                }
+                if (message == null) {
+                    message = new ByteArrayOutputStream(2 * chunk.length);
+                }
+                message.write(chunk, 0, chunk.length);
+                if ((flags & FLAG_END_OF_MESSAGE) != 0) {
+                    return message.toByteArray();
+                }
+            }
+        }
+
+        /**
+         * Tells the other party that no more messages will be sent on this stream, once those already queued
+         * have been. Messages can still be received until the other party closes its end too.
+         */
+        public void close() {
+            enqueue(this, new Outgoing(new byte[0], FLAG_END_OF_STREAM));
+        }
+
+        /**
+         * Abandons this stream in both directions, discarding anything not yet sent or received.
+         */
+        public void reset() {
+            if (mId != 0) {
+                sendControl(KIND_RESET, mId, 0);
+            }
+            onReset();
+        }
+
+        private void onReset() {
+            mReset = true;
+            mStreams.remove(mId);
+            synchronized (this) {
+                mChunks.clear();
+                mChunkFlags.clear();
+                notifyAll();
+            }
+            synchronized (mLock) {
+                mPending.clear();
+                mReady.remove(this);
+                mScheduled = false;
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Queues a chunk that arrived from the other party.
+         * @return <code>false</code> if the chunk is larger than the window the other party had left
+         */
+        private synchronized boolean onData(byte flags, byte[] chunk) {
+            if (chunk.length > mReceiveWindow) {
+                return false;
+            }
+            mReceiveWindow -= chunk.length;
+
+            if ((flags & FLAG_END_OF_STREAM) != 0) {
+                mRemoteClosed = true;
+            } else if (!mReset) {
+                mChunks.add(chunk);
+                mChunkFlags.add(flags);
+            }
+            notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * A message waiting to be sent, and how much of it has been.
+     */
+    private static class Outgoing {
+        final byte[] mData;
+        final byte mFlags;
+        int mOffset;
+        boolean mSent;
+
+        Outgoing(byte[] data, byte flags) {
+            mData = data;
+            mFlags = flags;
+        }
+
+        int remaining() {
+            return mData.length - mOffset;
+        }
+    }
+
+    private final Communicator mCommunicator;
+    private final Map<Integer, Stream> mStreams = new ConcurrentHashMap<>();
+
+    private volatile boolean mClosed;
+
+    // guarded by mLock
+    private final Object mLock = new Object();
+    private final ArrayDeque<Stream> mReady = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> mControl = new ArrayDeque<>();
+    private final ArrayDeque<Stream> mAccepted = new ArrayDeque<>();
+    private int mNextStreamId;
+    private int mHighestRemoteStreamId;
+    private boolean mWriting;
+    private boolean mCloseQueued;
+    private boolean mCloseSent;
+    private boolean mCloseReceived;
+
+    Multiplexer(Communicator communicator) {
+        mCommunicator = communicator;
+        mNextStreamId = communicator.isServer() ? 2 : 1;
+
+        Thread reader = new Thread(this::readLoop, "Multiplexer-reader");
+        reader.setDaemon(true);
+        Thread writer = new Thread(this::writeLoop, "Multiplexer-writer");
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    /**
+     * Opens a new stream. The other party learns of it when its first message arrives.
+     * @return the stream, or <code>null</code> if the connection is closing
+     */
+    public Stream openStream() {
+        synchronized (mLock) {
+            return mClosed || mCloseQueued ? null : new Stream(0);
+        }
+    }
+
+    /**
+     * Waits for the other party to open a stream.
+     * @return the stream, or <code>null</code> if the connection closed first
+     */
+    public Stream accept() {
+        synchronized (mLock) {
+            while (mAccepted.isEmpty() && !mClosed && !mCloseReceived) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return mAccepted.poll();
+        }
+    }
+
+    /**
+     * @return the number of streams currently open
+     */
+    public int getStreamCount() {
+        return mStreams.size();
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Waits for everything queued so far to be sent, tells the other party that we are done, and closes the
+     * connection once it agrees. Every stream fails from then on.
+     */
+    public void close() {
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        synchronized (mLock) {
+            while (!mClosed && (!mReady.isEmpty() || mWriting) && System.currentTimeMillis() < deadline) {
+                if (!waitUntil(deadline)) {
+                    break;
+                }
+            }
+            queueClose();
+            while (!mClosed && System.currentTimeMillis() < deadline) {
+                if (!waitUntil(deadline)) {
+                    break;
+                }
+            }
+        }
+        fail();
+    }
+
+    /**
+     * Waits on mLock until notified or "deadline" passes. Must hold mLock.
+     * @return <code>false</code> if the thread was interrupted
+     */
+    private boolean waitUntil(long deadline) {
+        try {
+            mLock.wait(Math.max(1, deadline - System.currentTimeMillis()));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Queues our {@link #KIND_CLOSE} record, after which nothing more is sent. Must hold mLock.
+     */
+    private void queueClose() {
+        if (!mCloseQueued) {
+            mCloseQueued = true;
+            mControl.add(encodeControl(KIND_CLOSE, 0, 0));
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the connection straight away, waking every thread waiting on it.
+     */
+    private void fail() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        mCommunicator.close();
+
+        for (Stream stream : mStreams.values()) {
+            synchronized (stream) {
+                stream.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queues "outgoing" on "stream" and waits for the writer to send the whole of it.
+     */
+    private boolean enqueue(Stream stream, Outgoing outgoing) {
+        synchronized (mLock) {
+            if (mClosed || mCloseQueued || stream.mReset || stream.mLocalClosed) {
+                return false;
+            }
+            if ((outgoing.mFlags & FLAG_END_OF_STREAM) != 0) {
+                stream.mLocalClosed = true;
+            }
+            if (stream.mId == 0) {
+                // streams are numbered in the order their first chunks will be sent, since mReady is first come,
+                // first served
+                stream.mId = mNextStreamId;
+                mNextStreamId += 2;
+                mStreams.put(stream.mId, stream);
+            }
+
+            stream.mPending.add(outgoing);
+            schedule(stream);
+
+            while (!outgoing.mSent && !mClosed && !stream.mReset) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return outgoing.mSent;
+        }
+    }
+
+    /**
+     * Puts "stream" in line for the writer, if it has something to send and the window to send it.
+     * Must hold mLock.
+     */
+    private void schedule(Stream stream) {
+        Outgoing next = stream.mPending.peek();
+        if (!stream.mScheduled && next != null && (stream.mSendWindow > 0 || next.remaining() == 0)) {
+            stream.mScheduled = true;
+            mReady.add(stream);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues a control record, which the writer sends ahead of any data.
+     */
+    private void sendControl(byte kind, int streamId, int value) {
+        synchronized (mLock) {
+            if (!mCloseQueued) {
+                mControl.add(encodeControl(kind, streamId, value));
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private static byte[] encodeControl(byte kind, int streamId, int value) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 4);
+        record.put(kind).put(Frame.FLAG_NONE).putInt(streamId).putInt(value);
+        return record.array();
+    }
+
+    /**
+     * Sends control records and chunks of messages, one chunk from each ready stream in turn, until our
+     * {@link #KIND_CLOSE} record has been sent or the connection fails.
+     */
+    private void writeLoop() {
+        while (true) {
+            byte[] record;
+            Stream stream = null;
+            Outgoing outgoing = null;
+            synchronized (mLock) {
+                while (mControl.isEmpty() && mReady.isEmpty() && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+
+                record = mControl.poll();
+                if (record == null) {
+                    stream = mReady.poll();
+                    stream.mScheduled = false;
+                    outgoing = stream.mPending.peek();
+
+                    int length = Math.min(Math.min(outgoing.remaining(), CHUNK_SIZE), stream.mSendWindow);
+                    boolean isLast = length == outgoing.remaining();
+                    record = encodeData(stream.mId, isLast ? outgoing.mFlags : Frame.FLAG_NONE, outgoing, length);
+                    stream.mSendWindow -= length;
+
+                    if (isLast) {
+                        stream.mPending.poll();
+                    } else {
+                        outgoing = null;
+                    }
+                    // to the back of the line, so every other stream sends a chunk before this one sends another
+                    schedule(stream);
+                }
+                mWriting = true;
+            }
+
+            boolean sent = mCommunicator.sendRecord(Frame.TYPE_MUX, Frame.FLAG_NONE, record);
+
+            boolean isClose = record[0] == KIND_CLOSE;
+            synchronized (mLock) {
+                mWriting = false;
+                if (outgoing != null) {
+                    outgoing.mSent = sent;
+                    removeIfFinished(stream);
+                }
+                if (isClose) {
+                    mCloseSent = true;
+                }
+                mLock.notifyAll();
+            }
+
+            if (!sent || (isClose && isCloseComplete())) {
+                fail();
+                return;
+            }
+            if (isClose) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Encodes the next "length" bytes of "outgoing" as a data record, and advances its offset.
+     */
+    private static byte[] encodeData(int streamId, byte flags, Outgoing outgoing, int length) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.put(KIND_DATA).put(flags).putInt(streamId);
+        record.put(outgoing.mData, outgoing.mOffset, length);
+        outgoing.mOffset += length;
+        return record.array();
+    }
+
+    /**
+     * Receives records and hands them to their streams, until the other party's {@link #KIND_CLOSE} record
+     * arrives or the connection fails.
+     */
+    private void readLoop() {
+        while (!mClosed) {
+            byte[] record = mCommunicator.receiveRecord(Frame.TYPE_MUX);
+            if (record == null || record.length < HEADER_SIZE) {
+                if (!mClosed) {
+                    Console.d("Multiplexed connection failed.");
+                }
+                fail();
+                return;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            byte kind = buffer.get();
+            byte flags = buffer.get();
+            int streamId = buffer.getInt();
+
+            if (kind == KIND_CLOSE) {
+                onClose();
+                return;
+            }
+            if (!onRecord(kind, flags, streamId, buffer)) {
+                Console.d("Protocol error on stream %d; closing connection.", streamId);
+                fail();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handles the other party's {@link #KIND_CLOSE} record: nothing more will arrive, so every stream ends, and
+     * the connection closes once our own close record is out.
+     */
+    private void onClose() {
+        synchronized (mLock) {
+            mCloseReceived = true;
+            mAccepted.clear();
+            queueClose();
+            mLock.notifyAll();
+        }
+        for (Stream stream : mStreams.values()) {
+            synchronized (stream) {
+                stream.mRemoteClosed = true;
+                stream.notifyAll();
+            }
+        }
+        if (isCloseComplete()) {
+            fail();
+        }
+    }
+
+    private boolean isCloseComplete() {
+        synchronized (mLock) {
+            return mCloseSent && mCloseReceived;
+        }
+    }
+
+    /**
+     * Handles one record from the other party.
+     * @return <code>false</code> if the record breaks the protocol
+     */
+    private boolean onRecord(byte kind, byte flags, int streamId, ByteBuffer body) {
+        Stream stream = mStreams.get(streamId);
+        switch (kind) {
+            case KIND_DATA: {
+                if (stream == null) {
+                    stream = openRemoteStream(streamId);
+                    if (stream == null) {
+                        // data still in flight on a stream that has been reset or refused is dropped
+                        return isKnownStreamId(streamId);
+                    }
+                }
+
+                byte[] chunk = new byte[body.remaining()];
+                body.get(chunk);
+                if (!stream.onData(flags, chunk)) {
+                    return false;
+                }
+                if ((flags & FLAG_END_OF_STREAM) != 0) {
+                    synchronized (mLock) {
+                        removeIfFinished(stream);
+                    }
+                }
+                return true;
+            }
+            case KIND_WINDOW_UPDATE: {
+                int increment = body.remaining() >= 4 ? body.getInt() : -1;
+                if (increment <= 0) {
+                    return false;
+                }
+                if (stream != null) {
+                    synchronized (mLock) {
+                        if ((long) stream.mSendWindow + increment > Integer.MAX_VALUE) {
+                            return false;
+                        }
+                        stream.mSendWindow += increment;
+                        schedule(stream);
+                    }
+                }
+                return true;
+            }
+            case KIND_RESET:
+                if (stream != null) {
+                    stream.onReset();
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Creates the stream for the first message the other party sends on it, and passes it to {@link #accept()}.
+     * @return the stream, or <code>null</code> if "streamId" is not a new stream of the other party's, or too many
+     * of its streams are open already
+     */
+    private Stream openRemoteStream(int streamId) {
+        synchronized (mLock) {
+            if (!isRemoteStreamId(streamId) || streamId <= mHighestRemoteStreamId) {
+                return null;
+            }
+            mHighestRemoteStreamId = streamId;
+
+            int remoteStreams = 0;
+            for (Stream stream : mStreams.values()) {
+                if (isRemoteStreamId(stream.mId)) {
+                    remoteStreams++;
+                }
+            }
+            if (remoteStreams >= MAX_STREAMS) {
+                Console.d("Refusing stream %d: too many open streams.", streamId);
+                sendControl(KIND_RESET, streamId, 0);
+                return null;
+            }
+
+            Stream stream = new Stream(streamId);
+            mStreams.put(streamId, stream);
+            mAccepted.add(stream);
+            mLock.notifyAll();
+            return stream;
+        }
+    }
+
+    private boolean isRemoteStreamId(int streamId) {
+        return streamId > 0 && (streamId % 2 == 0) != mCommunicator.isServer();
+    }
+
+    /**
+     * @return <code>true</code> if "streamId" belongs to a stream that has been opened, by either party
+     */
+    private boolean isKnownStreamId(int streamId) {
+        synchronized (mLock) {
+            if (isRemoteStreamId(streamId)) {
+                return streamId <= mHighestRemoteStreamId;
+            }
+            return streamId > 0 && streamId < mNextStreamId;
+        }
+    }
+
+    /**
+     * Forgets "stream" once both parties have closed it. Must hold mLock.
+     */
+    private void removeIfFinished(Stream stream) {
+        boolean remoteClosed;
+        synchronized (stream) {
+            remoteClosed = stream.mRemoteClosed;
+        }
+        if (stream.mLocalClosed && stream.mPending.isEmpty() && remoteClosed) {
+            mStreams.remove(stream.mId);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.jacemcpherson;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking server built on {@link ServerSocketChannel} and {@link Selector}. Unlike
+ * {@link Communicator#startServer()}, which can only ever talk to one client, an <code>NioServer</code> serves
+ * any number of clients at once using a small, fixed number of threads.
+ * <br><br>
+ * One thread accepts connections and hands them out round-robin to a set of worker threads. Each worker runs
+ * its own {@link Selector} and services the reads and writes for the {@link NioSession}s assigned to it. Each
+ * session performs the key exchange on its own, and keeps its own keys in a {@link CryptoSession}.
+ * <br><br>
+ * Users of this class supply a {@link Handler}, which is told when a session has finished its key exchange and
+ * whenever a frame arrives afterward. Handler methods are called on a worker thread, so they should not block.
+ */
+public class NioServer {
+
+    /**
+     * Receives events for the sessions of an {@link NioServer}.
+     */
+    public interface Handler {
+
+        /**
+         * Called once the session has received the client's public key and the shared secret key.
+         */
+        void onSessionReady(NioSession session);
+
+        /**
+         * Called for each frame received after the key exchange. {@link Frame#TYPE_RECORD} frames should be opened
+         * with the session's {@link NioSession#getRecordLayer()} in the order they arrive.
+         */
+        void onFrame(NioSession session, Frame frame);
+
+        /**
+         * Called after the session's connection has been closed, by either side.
+         */
+        void onSessionClosed(NioSession session);
+    }
+
+    private final int mPort;
+    private final Handler mHandler;
+    private final Worker[] mWorkers;
+
+    private final Set<NioSession> mSessions = ConcurrentHashMap.newKeySet();
+
+    private ServerSocketChannel mServerChannel;
+    private Selector mAcceptSelector;
+    private Thread mAcceptThread;
+    private int mNextWorker;
+
+    private volatile boolean mRunning;
+
+    /**
+     * Constructs a new NioServer. The server does not listen until {@link #start()} is called.
+     * @param port the port to listen on
+     * @param workerCount the number of selector threads to service connections with
+     * @param handler receives session events
+     */
+    public NioServer(int port, int workerCount, Handler handler) {
+        mPort = port;
+        mHandler = handler;
+        mWorkers = new Worker[Math.max(1, workerCount)];
+    }
+
+    /**
+     * Constructs a new NioServer on {@link Communicator#SERVER_PORT} with one worker per available processor.
+     * @param handler receives session events
+     */
+    public NioServer(Handler handler) {
+        this(Communicator.SERVER_PORT, Runtime.getRuntime().availableProcessors(), handler);
+    }
+
+    /**
+     * Binds the server socket and starts the accept and worker threads.
+     * @throws IOException if the server socket could not be opened
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+
+        // load (or generate) the key pairs up front, rather than on the first client's worker thread
+        RSAEncryptionUtil.getPublicKey();
+        if (ECDHEUtil.isSupported()) {
+            ECDHEUtil.getSigningPublicKey();
+        }
+
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.bind(new InetSocketAddress(mPort));
+        mServerChannel.configureBlocking(false);
+
+        mAcceptSelector = Selector.open();
+        mServerChannel.register(mAcceptSelector, SelectionKey.OP_ACCEPT);
+
+        mRunning = true;
+
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker();
+            Thread thread = new Thread(mWorkers[i], "NioServer-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        mAcceptThread = new Thread(this::acceptLoop, "NioServer-accept");
+        mAcceptThread.start();
+    }
+
+    /**
+     * Stops accepting connections and closes every open session.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+
+        try {
+            mAcceptSelector.close();
+            mServerChannel.close();
+        } catch (IOException e) {
+            Console.exception(e);
+        }
+
+        for (Worker worker : mWorkers) {
+            worker.shutdown();
+        }
+
+        for (NioSession session : mSessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Blocks the current thread until the server is stopped.
+     */
+    public void awaitTermination() throws InterruptedException {
+        if (mAcceptThread != null) {
+            mAcceptThread.join();
+        }
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    void onSessionClosed(NioSession session) {
+        if (mSessions.remove(session)) {
+            mHandler.onSessionClosed(session);
+        }
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                mAcceptSelector.select();
+
+                Iterator<SelectionKey> keys = mAcceptSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    keys.next();
+                    keys.remove();
+
+                    SocketChannel channel;
+                    while ((channel = mServerChannel.accept()) != null) {
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+
+                        Worker worker = mWorkers[mNextWorker];
+                        mNextWorker = (mNextWorker + 1) % mWorkers.length;
+
+                        NioSession session = new NioSession(this, worker, channel);
+                        mSessions.add(session);
+                        worker.register(session);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (mRunning) {
+                    Console.d("Could not accept connection.");
+                    Console.exception(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Services the sessions assigned to it using its own {@link Selector}. Other threads never touch the
+     * selector directly; they queue registrations and changes to what a session is waiting for, such as queued
+     * writes, then wake the selector up.
+     */
+    class Worker implements Runnable {
+
+        private final Selector mSelector;
+        private final Queue<NioSession> mPendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> mPendingInterestUpdates = new ConcurrentLinkedQueue<>();
+
+        Worker() throws IOException {
+            mSelector = Selector.open();
+        }
+
+        /**
+         * Queues "session" to be registered with this worker's selector. Called on the accept thread, which only
+         * hands the session over; everything else, including the hello, happens on the worker.
+         */
+        void register(NioSession session) {
+            mPendingRegistrations.add(session);
+            mSelector.wakeup();
+        }
+
+        /**
+         * Has the worker watch for whatever "session" is now waiting for, such as a write it just queued.
+         */
+        void requestInterestUpdate(NioSession session) {
+            mPendingInterestUpdates.add(session);
+            mSelector.wakeup();
+        }
+
+        void shutdown() {
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (mRunning) {
+                    mSelector.select();
+
+                    processRegistrations();
+                    processInterestUpdates();
+
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        process(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (mRunning) {
+                    Console.exception(e);
+                }
+            } finally {
+                try {
+                    mSelector.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        private void processRegistrations() {
+            NioSession session;
+            while ((session = mPendingRegistrations.poll()) != null) {
+                try {
+                    SelectionKey key = session.getChannel().register(mSelector, SelectionKey.OP_READ, session);
+                    session.setSelectionKey(key);
+
+                    // as in Communicator.exchangeRSAPublicKey(), the server sends its public key(s) first
+                    session.sendHello();
+                } catch (IOException e) {
+                    session.close();
+                }
+            }
+        }
+
+        private void processInterestUpdates() {
+            NioSession session;
+            while ((session = mPendingInterestUpdates.poll()) != null) {
+                SelectionKey key = session.getChannel().keyFor(mSelector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(session.getInterestOps());
+                }
+            }
+        }
+
+        private void process(SelectionKey key) {
+            NioSession session = (NioSession) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    session.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    session.onWritable();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                session.close();
+            } catch (RuntimeException e) {
+                // a failure in one session, or in its handler, must not end the worker and every other session on it
+                Console.exception(e);
+                session.close();
+            }
+        }
+    }
+}
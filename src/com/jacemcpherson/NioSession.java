@@ -0,0 +1,555 @@
+package com.jacemcpherson;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One client connection accepted by an {@link NioServer}. Each session owns its socket channel, its partial
+ * read state and its own {@link CryptoSession}, so many clients can be in different stages of the handshake
+ * at the same time.
+ * <br><br>
+ * A session goes through the same steps as {@link Communicator#exchangeRSAPublicKey()} and
+ * {@link Communicator#exchangeSecretKey()} on the server side: the server's public key is sent as soon as the
+ * client connects, then the client's public key and the RSA-encrypted secret key are received, and the client is
+ * issued a {@link SessionTicket}. A client that answers with an {@link ECDHEHandshake} key share instead needs
+ * no RSA-encrypted key, and a client that presents a ticket skips straight to the ready state. After that, every
+ * frame is passed to the server's {@link NioServer.Handler}, and records can be opened with
+ * {@link #openRecord(Frame)}.
+ * <br><br>
+ * Frames use the same {@link Frame} format as {@link Communicator}, so a blocking client can talk to a
+ * non-blocking server.
+ * <br><br>
+ * Frames waiting to be written are counted in bytes, with the same watermarks as a {@link SendQueue}. A worker
+ * thread must never block, so sending never waits; instead, once the queue reaches the high watermark the session
+ * stops being {@link #isWritable()}, and a handler with more to send should hold it back until
+ * {@link #whenWritable(Runnable)} says the queue has drained to the low watermark. A client that stops reading
+ * altogether is disconnected once {@link #MAX_QUEUED_BYTES} are waiting for it.
+ */
+public class NioSession {
+
+    /** The number of queued bytes at which a session is closed rather than given more to send. */
+    public static final long MAX_QUEUED_BYTES = 16L * SendQueue.DEFAULT_HIGH_WATERMARK;
+
+    public enum State {
+        AWAITING_PUBLIC_KEY, AWAITING_SECRET_KEY, READY, CLOSED
+    }
+
+    private final NioServer mServer;
+    private final NioServer.Worker mWorker;
+    private final SocketChannel mChannel;
+    private final CryptoSession mCryptoSession = new CryptoSession();
+    private volatile RecordLayer mRecordLayer;
+    private final ConnectionMetrics mMetrics = new ConnectionMetrics();
+    private long mPhaseStart = System.nanoTime();
+    private ECDHEHandshake mECDHEHandshake;
+    // only created once the session is ready, and only if the client offered compression: each one holds a few
+    // hundred KB of native zlib state, which unauthenticated connections should not get to claim
+    private volatile Compressor mCompressor;
+    private volatile boolean mPartnerDecompresses;
+
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.allocate(Frame.HEADER_SIZE);
+    private ByteBuffer mPayloadBuffer;
+
+    private final Queue<ByteBuffer> mWriteQueue = new ConcurrentLinkedQueue<>();
+
+    // guarded by mQueueLock
+    private final Object mQueueLock = new Object();
+    private long mQueuedBytes;
+    private boolean mWritable = true;
+    private Runnable mOnWritable;
+    // held while a record is sealed and queued, so records are queued in the order they were sealed
+    private final Object mWriteLock = new Object();
+
+    private volatile State mState = State.AWAITING_PUBLIC_KEY;
+    private volatile boolean mReadingPaused;
+    private SelectionKey mSelectionKey;
+    private volatile Object mAttachment;
+
+    NioSession(NioServer server, NioServer.Worker worker, SocketChannel channel) {
+        mServer = server;
+        mWorker = worker;
+        mChannel = channel;
+        mMetrics.opened(channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * @return the traffic and handshake timings for this session
+     */
+    public ConnectionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public CryptoSession getCryptoSession() {
+        return mCryptoSession;
+    }
+
+    /**
+     * @return the record layer for this session, or <code>null</code> until the session is ready
+     */
+    public RecordLayer getRecordLayer() {
+        return mRecordLayer;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public boolean isReady() {
+        return mState == State.READY;
+    }
+
+    public SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * @return an arbitrary object the {@link NioServer.Handler} associated with this session
+     */
+    public Object getAttachment() {
+        return mAttachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        mAttachment = attachment;
+    }
+
+    /**
+     * Queues "bytes" to be sent to the client as one {@link Frame#TYPE_DATA} frame. This method is safe to call
+     * from any thread; the actual write happens on the session's selector thread.
+     * @param bytes the data to send to the client
+     */
+    public void sendBytes(byte[] bytes) {
+        sendFrame(Frame.TYPE_DATA, Frame.FLAG_NONE, bytes);
+    }
+
+    /**
+     * Queues one frame to be sent to the client. Safe to call from any thread, and never blocks, even when the
+     * session is not {@link #isWritable()}.
+     * @param type the frame type, such as {@link Frame#TYPE_DATA}
+     * @param flags the frame flags
+     * @param payload the data to send to the client
+     */
+    public void sendFrame(byte type, byte flags, byte[] payload) {
+        if (payload == null) {
+            Console.d("bytes are null.");
+            return;
+        }
+
+        if (mState == State.CLOSED) {
+            Console.d("Could not send data: Not connected.");
+            return;
+        }
+
+        int length = Frame.HEADER_SIZE + payload.length;
+        long queuedBytes;
+        synchronized (mQueueLock) {
+            queuedBytes = mQueuedBytes;
+            if (queuedBytes < MAX_QUEUED_BYTES) {
+                mQueuedBytes += length;
+                if (mQueuedBytes >= SendQueue.DEFAULT_HIGH_WATERMARK) {
+                    mWritable = false;
+                }
+            }
+        }
+        if (queuedBytes >= MAX_QUEUED_BYTES) {
+            Console.w("Closing session: %d bytes are waiting for the client to read them", queuedBytes);
+            close();
+            return;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        Frame.writeHeader(frame, type, flags, payload.length);
+        frame.put(payload);
+        frame.flip();
+        mMetrics.frameSent(payload.length);
+
+        mWriteQueue.add(frame);
+        mWorker.requestInterestUpdate(this);
+    }
+
+    /**
+     * @return <code>true</code> unless the frames waiting to be written have reached the high watermark, and have
+     * not drained to the low watermark since
+     */
+    public boolean isWritable() {
+        synchronized (mQueueLock) {
+            return mWritable;
+        }
+    }
+
+    /**
+     * Runs "onWritable" once the session is {@link #isWritable()}: straight away on the calling thread if it is
+     * now, or else on the session's worker thread once enough has been written. Only the last callback given is
+     * kept, and it is never run if the session closes first.
+     */
+    public void whenWritable(Runnable onWritable) {
+        synchronized (mQueueLock) {
+            if (!mWritable) {
+                mOnWritable = onWritable;
+                return;
+            }
+        }
+        onWritable.run();
+    }
+
+    /**
+     * @return the number of bytes queued and not yet written
+     */
+    public long getQueuedBytes() {
+        synchronized (mQueueLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    /**
+     * Seals "message" with the session's {@link RecordLayer} and queues it as a {@link Frame#TYPE_RECORD} frame.
+     * Safe to call from any thread; records are queued in the order they are sealed.
+     * @param flags the frame flags, such as {@link Frame#FLAG_SIGNED}
+     * @param message the data to send to the client
+     */
+    public void sendRecord(byte flags, byte[] message) {
+        RecordLayer recordLayer = mRecordLayer;
+        if (recordLayer == null) {
+            Console.d("Could not send record: No secret key.");
+            return;
+        }
+
+        Compressor compressor = mCompressor;
+        byte[] compressed = compressor == null ? null : compressor.compress(message);
+        if (compressed != null) {
+            flags |= Frame.FLAG_COMPRESSED;
+            message = compressed;
+        }
+
+        // sealed and queued under the write lock, so records reach the client in the order they were sealed
+        synchronized (mWriteLock) {
+            flags = recordLayer.markKeyUpdate(flags);
+            sendFrame(Frame.TYPE_RECORD, flags, recordLayer.seal(flags, message));
+        }
+    }
+
+    /**
+     * Opens a record received from the client with the session's {@link RecordLayer}, and decompresses it if the
+     * client compressed it.
+     * @return the original message, or <code>null</code> if "frame" is not a record, or failed verification
+     */
+    public byte[] openRecord(Frame frame) {
+        RecordLayer recordLayer = mRecordLayer;
+        byte[] message = recordLayer == null ? null : recordLayer.open(frame);
+        if (message == null || !frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            return message;
+        }
+
+        Compressor compressor = mCompressor;
+        byte[] decompressed = compressor == null ? null : compressor.decompress(message);
+        if (decompressed == null) {
+            Console.d("Could not decompress record.");
+        }
+        return decompressed;
+    }
+
+    /**
+     * Stops reading from the client until {@link #resumeReading()} is called, so that a handler which cannot keep
+     * up can push back on the client through TCP flow control, without blocking the worker thread. Takes effect
+     * after the frame being handled, if any. Must be called on the session's worker thread, such as from
+     * {@link NioServer.Handler#onFrame(NioSession, Frame)}.
+     */
+    public void pauseReading() {
+        mReadingPaused = true;
+        if (mSelectionKey != null && mSelectionKey.isValid()) {
+            mSelectionKey.interestOps(getInterestOps());
+        }
+    }
+
+    /**
+     * Starts reading from the client again after {@link #pauseReading()}. Safe to call from any thread.
+     */
+    public void resumeReading() {
+        mReadingPaused = false;
+        mWorker.requestInterestUpdate(this);
+    }
+
+    /**
+     * Closes the connection. Safe to call more than once, and from any thread.
+     */
+    public void close() {
+        if (mState == State.CLOSED) {
+            return;
+        }
+        mState = State.CLOSED;
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // already closed
+        }
+
+        mWriteQueue.clear();
+        synchronized (mQueueLock) {
+            mQueuedBytes = 0;
+            mOnWritable = null;
+        }
+        mMetrics.closed();
+        Compressor compressor = mCompressor;
+        if (compressor != null) {
+            compressor.close();
+        }
+        mCryptoSession.close();
+        mServer.onSessionClosed(this);
+    }
+
+    /**
+     * Queues one frame of the handshake, offering the client compression of records.
+     */
+    private void sendHandshake(byte flags, byte[] payload) {
+        sendFrame(Frame.TYPE_HANDSHAKE, (byte) (flags | Frame.FLAG_COMPRESSED), payload);
+    }
+
+    /**
+     * Sends the server's first handshake frame: an {@link ECDHEHandshake} hello where this JDK supports it, or
+     * just the RSA public key otherwise.
+     */
+    void sendHello() {
+        if (HandshakeSuite.getDefault() == HandshakeSuite.ECDHE) {
+            try {
+                mECDHEHandshake = new ECDHEHandshake();
+                byte[] hello = mECDHEHandshake.createServerHello();
+                if (hello != null) {
+                    sendHandshake(Frame.FLAG_ECDHE, hello);
+                    return;
+                }
+            } catch (GeneralSecurityException e) {
+                Console.exception(e);
+            }
+            mECDHEHandshake = null;
+        }
+
+        sendHandshake(Frame.FLAG_NONE, RSAEncryptionUtil.getPublicKeyEncoded());
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        mSelectionKey = selectionKey;
+    }
+
+    /**
+     * Called on the selector thread when the channel is readable. Reads as much as is available, dispatching
+     * every frame that is completed along the way.
+     */
+    void onReadable() throws IOException {
+        while (mState != State.CLOSED && !mReadingPaused) {
+            if (mPayloadBuffer == null) {
+                if (mChannel.read(mHeaderBuffer) < 0) {
+                    close();
+                    return;
+                }
+
+                if (mHeaderBuffer.hasRemaining()) {
+                    return;
+                }
+
+                mHeaderBuffer.flip();
+                int length;
+                try {
+                    length = Frame.readPayloadLength(mHeaderBuffer);
+                } catch (ProtocolException e) {
+                    Console.w("Closing session: %s", e.getMessage());
+                    close();
+                    return;
+                }
+                if (mState != State.READY && length > Frame.MAX_HANDSHAKE_PAYLOAD_LENGTH) {
+                    Console.w("Closing session: handshake frame of %d bytes is too long", length);
+                    close();
+                    return;
+                }
+                mPayloadBuffer = ByteBuffer.allocate(length);
+            }
+
+            if (mPayloadBuffer.hasRemaining() && mChannel.read(mPayloadBuffer) < 0) {
+                close();
+                return;
+            }
+
+            if (mPayloadBuffer.hasRemaining()) {
+                return;
+            }
+
+            Frame frame = new Frame(
+                    Frame.readType(mHeaderBuffer),
+                    Frame.readFlags(mHeaderBuffer),
+                    mPayloadBuffer.array()
+            );
+            mPayloadBuffer = null;
+            mHeaderBuffer.clear();
+            mMetrics.frameReceived(frame.getPayload().length);
+
+            onFrame(frame);
+        }
+    }
+
+    /**
+     * Called on the selector thread when the channel is writable. Writes queued frames until the queue is
+     * empty or the socket buffer is full.
+     */
+    void onWritable() throws IOException {
+        ByteBuffer frame;
+        while ((frame = mWriteQueue.peek()) != null) {
+            mChannel.write(frame);
+            if (frame.hasRemaining()) {
+                return;
+            }
+            mWriteQueue.poll();
+            onFrameWritten(frame.limit());
+        }
+
+        // nothing left to write; stop listening for OP_WRITE until more data is queued
+        mSelectionKey.interestOps(getInterestOps());
+    }
+
+    /**
+     * Takes a written frame off the count of queued bytes, and tells whoever is waiting once the queue has drained
+     * to the low watermark.
+     */
+    private void onFrameWritten(int length) {
+        Runnable onWritable = null;
+        synchronized (mQueueLock) {
+            mQueuedBytes -= length;
+            if (!mWritable && mQueuedBytes <= SendQueue.DEFAULT_LOW_WATERMARK) {
+                mWritable = true;
+                onWritable = mOnWritable;
+                mOnWritable = null;
+            }
+        }
+
+        if (onWritable != null) {
+            onWritable.run();
+        }
+    }
+
+    /**
+     * @return the operations the selector should watch for: reads unless they are paused, and writes while any are
+     * queued
+     */
+    int getInterestOps() {
+        return (mReadingPaused ? 0 : SelectionKey.OP_READ) | (mWriteQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+    }
+
+    private void onFrame(Frame frame) {
+        if (mState != State.READY && frame.getType() != Frame.TYPE_HANDSHAKE) {
+            Console.w("Closing session: expected a handshake frame, but received type %d", frame.getType());
+            close();
+            return;
+        }
+
+        if (frame.getType() == Frame.TYPE_HANDSHAKE && frame.hasFlag(Frame.FLAG_COMPRESSED)) {
+            mPartnerDecompresses = true;
+        }
+
+        switch (mState) {
+            case AWAITING_PUBLIC_KEY:
+                if (frame.hasFlag(Frame.FLAG_RESUME)) {
+                    byte[] reply = SessionTicket.acceptOffer(mCryptoSession, frame.getPayload());
+                    if (reply == null) {
+                        // declined; the client follows up with its public key
+                        sendHandshake(Frame.FLAG_NONE, new byte[0]);
+                        return;
+                    }
+                    if (!setupRecordLayer()) {
+                        return;
+                    }
+                    onPublicKeyExchanged();
+                    mMetrics.secretKeyExchanged(0);
+                    sendHandshake(Frame.FLAG_RESUME, reply);
+                    mState = State.READY;
+                    mServer.getHandler().onSessionReady(this);
+                    return;
+                }
+
+                if (frame.hasFlag(Frame.FLAG_ECDHE)) {
+                    if (mECDHEHandshake == null || !mECDHEHandshake.complete(mCryptoSession, frame.getPayload())) {
+                        close();
+                        return;
+                    }
+                    mECDHEHandshake = null;
+                    onPublicKeyExchanged();
+                    onKeysReady();
+                    return;
+                }
+
+                if (!mCryptoSession.decodePartnerPublicKey(frame.getPayload())) {
+                    close();
+                    return;
+                }
+                mECDHEHandshake = null;
+                onPublicKeyExchanged();
+                mState = State.AWAITING_SECRET_KEY;
+                break;
+            case AWAITING_SECRET_KEY:
+                if (!mCryptoSession.receiveEncryptedSecretKey(frame.getPayload())) {
+                    close();
+                    return;
+                }
+                onKeysReady();
+                break;
+            case READY:
+                mServer.getHandler().onFrame(this, frame);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Finishes a full handshake: sets up the record layer, issues the client a {@link SessionTicket} and hands
+     * the session to the handler.
+     */
+    private void onKeysReady() {
+        if (!setupRecordLayer()) {
+            return;
+        }
+
+        byte[] ticket = SessionTicket.issue(mCryptoSession);
+        sendHandshake(Frame.FLAG_TICKET, ticket == null ? new byte[0] : ticket);
+        mMetrics.secretKeyExchanged(System.nanoTime() - mPhaseStart);
+        mState = State.READY;
+        mServer.getHandler().onSessionReady(this);
+    }
+
+    /**
+     * Ends the first phase of the handshake, which runs from the server's hello to the client's answer, and
+     * starts timing the second.
+     */
+    private void onPublicKeyExchanged() {
+        long now = System.nanoTime();
+        mMetrics.publicKeyExchanged(now - mPhaseStart);
+        mPhaseStart = now;
+    }
+
+    /**
+     * Sets up the record layer once the secret key is known, and a compressor if both sides offered compression,
+     * closing the session if that fails.
+     */
+    private boolean setupRecordLayer() {
+        try {
+            RecordLayer recordLayer = new RecordLayer(mCryptoSession.getSecretKey(), true);
+            if (mPartnerDecompresses) {
+                mCompressor = new Compressor();
+                if (mState == State.CLOSED) {
+                    // closed by another thread before it could see the compressor
+                    mCompressor.close();
+                }
+            }
+            mRecordLayer = recordLayer;
+            return true;
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            close();
+            return false;
+        }
+    }
+}
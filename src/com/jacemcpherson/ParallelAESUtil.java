@@ -0,0 +1,273 @@
+package com.jacemcpherson;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Encrypts and decrypts large messages with AES-GCM on several threads at once. {@link AESEncryptionUtil} runs the
+ * cipher over the whole message on one thread, which for messages of hundreds of megabytes leaves every other core
+ * idle. Here the message is cut into segments of {@link #SEGMENT_SIZE} bytes, each with its own nonce and tag, and
+ * the segments are encrypted on a {@link ForkJoinPool}. Decryption checks and decrypts the segments in parallel in
+ * the same way, each straight into its place in the output.
+ * <br><br>
+ * An encrypted message is laid out as:
+ * <pre>
+ *   | salt (16 bytes) | nonce prefix (7 bytes) | segment size (4 bytes) | segment 0 | segment 1 | ... |
+ * </pre>
+ * Each segment is its ciphertext followed by its GCM tag. Every segment but the last holds exactly "segment size"
+ * bytes of plaintext, so the receiver knows where each one starts without reading the others. As in
+ * {@link StreamingAESUtil}, the salt derives a key for this message only, and each segment's nonce is the nonce
+ * prefix followed by the segment's index and a final marker, so segments cannot be reordered, dropped or cut off
+ * the end without failing authentication.
+ * <br><br>
+ * Segments only pay for the threads they keep busy, so messages shorter than a couple of segments are better off
+ * with {@link AESEncryptionUtil#encryptMessage(SecretKey, byte[])}.
+ */
+public class ParallelAESUtil {
+
+    /** The number of plaintext bytes in every segment but the last. */
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+
+    /** The largest segment size a receiver accepts, so a forged header cannot make it allocate too much per task. */
+    public static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int SALT_SIZE = 16;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    private static final int NONCE_SIZE = NONCE_PREFIX_SIZE + 4 + 1;
+    private static final int TAG_SIZE = 16;
+    private static final int HEADER_SIZE = SALT_SIZE + NONCE_PREFIX_SIZE + 4;
+
+    private static final byte[] KEY_LABEL = "SecureCommunication bulk key".getBytes();
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    // GCM ciphers need a fresh nonce for every segment, so they cannot come from CryptoContexts
+    private static final ThreadLocal<Cipher> sCiphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("This machine does not support AES/GCM.", e);
+        }
+    });
+
+    /**
+     * Encrypts "message" on the common {@link ForkJoinPool}.
+     * @see #encryptMessage(SecretKey, byte[], ForkJoinPool)
+     */
+    public static byte[] encryptMessage(SecretKey secretKey, byte[] message) {
+        return encryptMessage(secretKey, message, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Encrypts "message" a segment at a time on "pool".
+     * @param secretKey the shared secret key
+     * @param message the data to encrypt
+     * @param pool the pool whose threads encrypt the segments
+     * @return the encrypted message, or <code>null</code> if it could not be encrypted
+     */
+    public static byte[] encryptMessage(SecretKey secretKey, byte[] message, ForkJoinPool pool) {
+        int segmentCount = Math.max(1, (int) ((message.length + (long) SEGMENT_SIZE - 1) / SEGMENT_SIZE));
+        long outputLength = HEADER_SIZE + message.length + (long) segmentCount * TAG_SIZE;
+        if (outputLength > Integer.MAX_VALUE - 8) {
+            Console.exception(new IllegalArgumentException("Message is too long to encrypt in one piece."));
+            return null;
+        }
+
+        try {
+            byte[] salt = new byte[SALT_SIZE];
+            byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+            sRandom.nextBytes(salt);
+            sRandom.nextBytes(noncePrefix);
+
+            byte[] output = new byte[(int) outputLength];
+            ByteBuffer.wrap(output).put(salt).put(noncePrefix).putInt(SEGMENT_SIZE);
+
+            Segments segments = new Segments(Cipher.ENCRYPT_MODE, deriveMessageKey(secretKey, salt), noncePrefix,
+                    SEGMENT_SIZE, segmentCount, message, message.length, output);
+            pool.invoke(segments.task(0, segmentCount));
+            segments.throwIfFailed();
+            return output;
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return null;
+        }
+    }
+
+    /**
+     * Decrypts "message" on the common {@link ForkJoinPool}.
+     * @see #decryptMessage(SecretKey, byte[], ForkJoinPool)
+     */
+    public static byte[] decryptMessage(SecretKey secretKey, byte[] message) {
+        return decryptMessage(secretKey, message, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decrypts a message produced by {@link #encryptMessage(SecretKey, byte[], ForkJoinPool)} a segment at a time
+     * on "pool".
+     * @param secretKey the shared secret key
+     * @param message the encrypted message
+     * @param pool the pool whose threads decrypt the segments
+     * @return the original message, or <code>null</code> if it is malformed or any segment fails authentication
+     */
+    public static byte[] decryptMessage(SecretKey secretKey, byte[] message, ForkJoinPool pool) {
+        if (message.length < HEADER_SIZE + TAG_SIZE) {
+            Console.d("Bulk message is too short: %d bytes", message.length);
+            return null;
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(message);
+        byte[] salt = new byte[SALT_SIZE];
+        byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        header.get(salt).get(noncePrefix);
+        int segmentSize = header.getInt();
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            Console.d("Invalid bulk segment size: %d", segmentSize);
+            return null;
+        }
+
+        // every segment but the last is full, and the last one holds at least its tag
+        int body = message.length - HEADER_SIZE;
+        int fullSegments = body / (segmentSize + TAG_SIZE);
+        int remainder = body % (segmentSize + TAG_SIZE);
+        if (remainder > 0 && remainder < TAG_SIZE) {
+            Console.d("Bulk message was truncated inside a segment.");
+            return null;
+        }
+        int segmentCount = fullSegments + (remainder > 0 ? 1 : 0);
+        int plaintextLength = body - segmentCount * TAG_SIZE;
+
+        try {
+            byte[] output = new byte[plaintextLength];
+            Segments segments = new Segments(Cipher.DECRYPT_MODE, deriveMessageKey(secretKey, salt), noncePrefix,
+                    segmentSize, segmentCount, message, message.length, output);
+            pool.invoke(segments.task(0, segmentCount));
+            segments.throwIfFailed();
+            return output;
+        } catch (GeneralSecurityException e) {
+            Metrics.integrityFailed();
+            Console.d("Bulk message failed authentication: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Derives the key for a single message from the shared secret key and the message's salt, so that the secret
+     * key is never used directly for GCM, and messages do not share a key.
+     */
+    private static SecretKey deriveMessageKey(SecretKey secretKey, byte[] salt) throws GeneralSecurityException {
+        byte[] derived = CryptoContexts.mac(SHA256Util.HMAC_ALGORITHM, secretKey, mac -> {
+            mac.update(KEY_LABEL);
+            return mac.doFinal(salt);
+        });
+
+        return new SecretKeySpec(derived, 0, 16, "AES");
+    }
+
+    /**
+     * The work of encrypting or decrypting one message: where each segment's input and output are, and the first
+     * failure, if any, so that the remaining segments can be skipped.
+     */
+    private static class Segments {
+        final int mMode;
+        final SecretKey mKey;
+        final byte[] mNoncePrefix;
+        final int mSegmentSize;
+        final int mSegmentCount;
+        final byte[] mInput;
+        final int mInputLength;
+        final byte[] mOutput;
+        final AtomicReference<GeneralSecurityException> mFailure = new AtomicReference<>();
+
+        Segments(int mode, SecretKey key, byte[] noncePrefix, int segmentSize, int segmentCount,
+                 byte[] input, int inputLength, byte[] output) {
+            mMode = mode;
+            mKey = key;
+            mNoncePrefix = noncePrefix;
+            mSegmentSize = segmentSize;
+            mSegmentCount = segmentCount;
+            mInput = input;
+            mInputLength = inputLength;
+            mOutput = output;
+        }
+
+        RecursiveAction task(int from, int to) {
+            return new SegmentTask(this, from, to);
+        }
+
+        void throwIfFailed() throws GeneralSecurityException {
+            GeneralSecurityException failure = mFailure.get();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        void process(int index) {
+            if (mFailure.get() != null) {
+                return;
+            }
+
+            boolean encrypting = mMode == Cipher.ENCRYPT_MODE;
+            long plaintextOffset = (long) index * mSegmentSize;
+            long ciphertextOffset = HEADER_SIZE + (long) index * (mSegmentSize + TAG_SIZE);
+
+            int inputOffset = (int) (encrypting ? plaintextOffset : ciphertextOffset);
+            int outputOffset = (int) (encrypting ? ciphertextOffset : plaintextOffset);
+            int inputLength = Math.min(encrypting ? mSegmentSize : mSegmentSize + TAG_SIZE,
+                    mInputLength - inputOffset);
+
+            byte[] nonce = Arrays.copyOf(mNoncePrefix, NONCE_SIZE);
+            nonce[NONCE_PREFIX_SIZE] = (byte) (index >>> 24);
+            nonce[NONCE_PREFIX_SIZE + 1] = (byte) (index >>> 16);
+            nonce[NONCE_PREFIX_SIZE + 2] = (byte) (index >>> 8);
+            nonce[NONCE_PREFIX_SIZE + 3] = (byte) index;
+            nonce[NONCE_PREFIX_SIZE + 4] = (byte) (index == mSegmentCount - 1 ? 1 : 0);
+
+            Cipher cipher = sCiphers.get();
+            long start = System.nanoTime();
+            try {
+                cipher.init(mMode, mKey, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+                cipher.doFinal(mInput, inputOffset, inputLength, mOutput, outputOffset);
+                (encrypting ? Metrics.AES_ENCRYPT : Metrics.AES_DECRYPT).recordSince(start);
+            } catch (GeneralSecurityException e) {
+                mFailure.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /**
+     * Processes a range of segments, splitting it in half until each task has a single segment.
+     */
+    private static class SegmentTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Segments mSegments;
+        private final int mFrom;
+        private final int mTo;
+
+        SegmentTask(Segments segments, int from, int to) {
+            mSegments = segments;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom == 1) {
+                mSegments.process(mFrom);
+                return;
+            }
+
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new SegmentTask(mSegments, mFrom, middle), new SegmentTask(mSegments, middle, mTo));
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.jacemcpherson;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The public keys of the peers this party has talked to, indexed by fingerprint: the SHA-256 hash of the X.509
+ * encoded key. Decoding a key with {@link KeyFactory} costs far more than hashing it, so a peer that connects again
+ * gets the {@link PublicKey} decoded the first time instead of a new one. Bounded: once it holds "capacity" peers,
+ * the least recently used one is evicted.
+ * <br><br>
+ * Each {@link Peer} also keeps a few {@link Signature} instances already initialized with its key.
+ * {@link Peer#verifySignature(byte[], byte[])} borrows one, so any number of threads can verify signatures for any
+ * number of peers at once, and none of them has to re-initialize a verifier each time it switches between peers,
+ * as the shared verifiers in {@link CryptoContexts} may have to.
+ * <br><br>
+ * Only long-term identity keys belong here. Ephemeral keys, such as the X25519 keys of {@link ECDHEHandshake}, are
+ * never seen twice, and would only push real peers out.
+ */
+public class PeerKeyCache {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /** How many initialized verifiers each peer keeps between uses. */
+    private static final int MAX_IDLE_VERIFIERS = Runtime.getRuntime().availableProcessors();
+
+    private static final PeerKeyCache sDefault = new PeerKeyCache(DEFAULT_CAPACITY);
+
+    /**
+     * @return the cache {@link RSAEncryptionUtil}, {@link ECDHEUtil} and {@link CryptoSession} use
+     */
+    public static PeerKeyCache getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * One peer's public key, and the verifiers initialized with it.
+     */
+    public static class Peer {
+        private final ByteBuffer mFingerprint;
+        private final String mKeyAlgorithm;
+        private final PublicKey mPublicKey;
+        private final String mSignatureAlgorithm;
+        private final ConcurrentLinkedQueue<Signature> mVerifiers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mIdleVerifiers = new AtomicInteger();
+
+        Peer(ByteBuffer fingerprint, String keyAlgorithm, PublicKey publicKey) {
+            mFingerprint = fingerprint;
+            mKeyAlgorithm = keyAlgorithm;
+            mPublicKey = publicKey;
+            mSignatureAlgorithm = ECDHEUtil.isSigningKey(publicKey)
+                    ? ECDHEUtil.SIGNATURE_ALGORITHM
+                    : RSAEncryptionUtil.SIGNATURE_ALGORITHM;
+        }
+
+        /**
+         * @return the SHA-256 hash of the encoded key, in hex; <code>null</code> if the key has no encoding
+         */
+        public String getFingerprint() {
+            return mFingerprint == null ? null : StringUtil.bytesToHex(mFingerprint.array());
+        }
+
+        public PublicKey getPublicKey() {
+            return mPublicKey;
+        }
+
+        /**
+         * Verifies a signature made by this peer, with Ed25519 or RSA depending on the kind of key. Safe to call
+         * from several threads at once.
+         * @return whether "signature" is a valid signature of "message" under this peer's key
+         */
+        public boolean verifySignature(byte[] message, byte[] signature) {
+            boolean ed25519 = mSignatureAlgorithm.equals(ECDHEUtil.SIGNATURE_ALGORITHM);
+            try {
+                long start = System.nanoTime();
+                Signature verifier = mVerifiers.poll();
+                if (verifier == null) {
+                    verifier = Signature.getInstance(mSignatureAlgorithm);
+                    verifier.initVerify(mPublicKey);
+                } else {
+                    mIdleVerifiers.decrementAndGet();
+                }
+
+                verifier.update(message);
+                boolean valid = verifier.verify(signature);
+                (ed25519 ? Metrics.ED25519_VERIFY : Metrics.RSA_VERIFY).recordSince(start);
+                if (!valid) {
+                    Metrics.signatureFailed();
+                }
+
+                // verify() leaves the verifier initialized with the same key, ready for the next message
+                if (mIdleVerifiers.incrementAndGet() <= MAX_IDLE_VERIFIERS) {
+                    mVerifiers.add(verifier);
+                } else {
+                    mIdleVerifiers.decrementAndGet();
+                }
+                return valid;
+            } catch (Exception e) {
+                // the verifier is in an unknown state, so it is dropped rather than given back
+                Console.exception(e);
+                return false;
+            }
+        }
+    }
+
+    // keyed by the SHA-256 hash of the encoded key, wrapped so that it is compared by content
+    private final Map<ByteBuffer, Peer> mPeers;
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+
+    public PeerKeyCache(final int capacity) {
+        mPeers = new LinkedHashMap<ByteBuffer, Peer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Peer> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Finds the peer whose X.509 encoded public key is "encoded", decoding and adding it if it is not cached yet.
+     * @param keyAlgorithm the {@link KeyFactory} algorithm of the key, such as "RSA" or "Ed25519"
+     * @return the peer, or <code>null</code> if the key could not be decoded as a "keyAlgorithm" key
+     */
+    public Peer lookup(String keyAlgorithm, byte[] encoded) {
+        ByteBuffer fingerprint = fingerprint(encoded);
+        if (fingerprint != null) {
+            Peer peer = get(fingerprint);
+            if (peer != null && peer.mKeyAlgorithm.equals(keyAlgorithm)) {
+                mHits.increment();
+                return peer;
+            }
+        }
+
+        mMisses.increment();
+        PublicKey publicKey;
+        try {
+            publicKey = KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(encoded));
+        } catch (GeneralSecurityException e) {
+            Console.d("Could not decode %s public key.", keyAlgorithm);
+            return null;
+        }
+
+        Peer peer = new Peer(fingerprint, keyAlgorithm, publicKey);
+        return fingerprint == null ? peer : putIfAbsent(peer);
+    }
+
+    /**
+     * Finds the peer whose public key equals "publicKey", adding it if it is not cached yet.
+     * @return the peer, whose key is the instance that was cached first
+     */
+    public Peer lookup(PublicKey publicKey) {
+        // JDKs name Ed25519 keys "EdDSA", but they are decoded as "Ed25519"
+        String keyAlgorithm = ECDHEUtil.isSigningKey(publicKey)
+                ? ECDHEUtil.SIGNATURE_ALGORITHM
+                : publicKey.getAlgorithm();
+        byte[] encoded = publicKey.getEncoded();
+        ByteBuffer fingerprint = encoded == null ? null : fingerprint(encoded);
+        if (fingerprint == null) {
+            return new Peer(null, keyAlgorithm, publicKey);
+        }
+
+        Peer peer = get(fingerprint);
+        if (peer != null) {
+            mHits.increment();
+            return peer;
+        }
+
+        mMisses.increment();
+        return putIfAbsent(new Peer(fingerprint, keyAlgorithm, publicKey));
+    }
+
+    private synchronized Peer get(ByteBuffer fingerprint) {
+        return mPeers.get(fingerprint);
+    }
+
+    public synchronized int size() {
+        return mPeers.size();
+    }
+
+    public synchronized void clear() {
+        mPeers.clear();
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    /**
+     * @return the number of lookups that had to add a peer
+     */
+    public long getMisses() {
+        return mMisses.sum();
+    }
+
+    /**
+     * Adds "peer", unless another thread added the same key while it was being decoded.
+     * @return the peer now cached under its fingerprint
+     */
+    private synchronized Peer putIfAbsent(Peer peer) {
+        Peer existing = mPeers.get(peer.mFingerprint);
+        if (existing != null && existing.mKeyAlgorithm.equals(peer.mKeyAlgorithm)) {
+            return existing;
+        }
+        mPeers.put(peer.mFingerprint, peer);
+        return peer;
+    }
+
+    /**
+     * @return the SHA-256 hash of "encoded", or <code>null</code> if it could not be computed
+     */
+    private static ByteBuffer fingerprint(byte[] encoded) {
+        try {
+            return ByteBuffer.wrap(CryptoContexts.digest("SHA-256", digest -> digest.digest(encoded)));
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return null;
+        }
+    }
+}
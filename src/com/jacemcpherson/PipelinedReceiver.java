@@ -0,0 +1,265 @@
+package com.jacemcpherson;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bob's side of pipelined delivery: receives the messages of a {@link PipelinedSender} in order, and tells Alice
+ * whether each one passed his checks (see {@link Communicator#receivePipelined()}).
+ * <br><br>
+ * Bob reads each message with {@link #receive()}, checks it however the application needs, such as by verifying
+ * its signature, and reports the outcome with {@link #acknowledge(Delivery, boolean)}. Outcomes are not sent one
+ * by one. They are collected, and sent as one {@link Frame#TYPE_ACK} record just before {@link #receive()} would
+ * wait for more data, or once {@link #ACK_EVERY} have built up, or straight away if {@link #receive()} is already
+ * waiting. A busy connection therefore carries one small ack for many messages:
+ * <pre>
+ *   | cumulative (8 bytes) | failure count (2 bytes) | failed sequence numbers (8 bytes each) |
+ *   | selective count (2 bytes) | selective outcomes (sequence number, 8 bytes, and verified, 1 byte, each) |
+ * </pre>
+ * Every message up to and including the cumulative sequence number has an outcome, and passed unless it is listed
+ * as failed. Messages acknowledged ahead of an earlier one that has no outcome yet are listed as selective
+ * outcomes, so Alice learns of them without waiting.
+ * <br><br>
+ * If the connection drops, {@link #resume(Communicator)} continues on a new one. Alice resends every message she
+ * has no outcome for; the ones Bob has already received are not delivered again, and he repeats their outcomes
+ * instead. The last {@link #HISTORY} outcomes are kept for this, in a fixed ring.
+ * <br><br>
+ * When the sender closes, it sends an empty record instead of a message. The receiver answers with an empty ack,
+ * and {@link #receive()} returns <code>null</code> from then on.
+ * <br><br>
+ * {@link #receive()} should only be called by one thread at a time, but {@link #acknowledge(Delivery, boolean)}
+ * may be called from any thread.
+ */
+public class PipelinedReceiver {
+
+    /**
+     * How many outcomes are remembered. The sender may not have more than this many messages without an outcome,
+     * so {@link PipelinedSender#MAX_WINDOW} is the same.
+     */
+    public static final int HISTORY = 1024;
+
+    /** How many outcomes may build up before they are sent, even while more messages are arriving. */
+    public static final int ACK_EVERY = 32;
+
+    private static final byte UNKNOWN = 0;
+    private static final byte VERIFIED = 1;
+    private static final byte FAILED = 2;
+
+    /** Marks an outcome that has been sent as a selective outcome. */
+    private static final byte REPORTED = 4;
+
+    /**
+     * One message, as received.
+     */
+    public static class Delivery {
+        private final long mSequence;
+        private final byte mFlags;
+        private final byte[] mMessage;
+
+        Delivery(long sequence, byte flags, byte[] message) {
+            mSequence = sequence;
+            mFlags = flags;
+            mMessage = message;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * @return the flags the sender gave the message, such as {@link Frame#FLAG_SIGNED}
+         */
+        public byte getFlags() {
+            return mFlags;
+        }
+
+        public byte[] getMessage() {
+            return mMessage;
+        }
+    }
+
+    private volatile Communicator mCommunicator;
+    private volatile boolean mFinished;
+
+    // held while an ack is built and sent, so that acks go out in the order they were built. The sender takes
+    // every message up to an ack's cumulative sequence number that it does not list as failed to have passed, so
+    // an older ack arriving after a newer one would report the newer one's failures as verified.
+    private final Object mAckLock = new Object();
+
+    // guarded by this
+    private final byte[] mOutcomes = new byte[HISTORY];
+    private long mDelivered = -1;
+    private long mCumulative = -1;
+    private long mReportedCumulative = -1;
+    private int mUnreported;
+    private boolean mWaiting;
+
+    PipelinedReceiver(Communicator communicator) {
+        mCommunicator = communicator;
+    }
+
+    /**
+     * Waits for the next message. Any outcomes not yet sent are sent first if nothing more has arrived yet.
+     * @return the message, or <code>null</code> if the sender has closed, the connection failed, or the sender
+     * broke the protocol
+     */
+    public Delivery receive() {
+        while (!mFinished) {
+            Communicator communicator = mCommunicator;
+            boolean idle = !communicator.hasBufferedInput();
+            synchronized (this) {
+                mWaiting = idle;
+            }
+            if (idle) {
+                sendAck(false);
+            }
+
+            byte[] record = communicator.receiveRecord(Frame.TYPE_DELIVERY);
+            synchronized (this) {
+                mWaiting = false;
+            }
+            if (record != null && record.length == 0) {
+                mFinished = true;
+                synchronized (mAckLock) {
+                    communicator.sendRecord(Frame.TYPE_ACK, Frame.FLAG_NONE, new byte[0]);
+                }
+                return null;
+            }
+            if (record == null || record.length < 8 + 1) {
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            long sequence = buffer.getLong();
+            byte flags = buffer.get();
+
+            synchronized (this) {
+                if (sequence <= mDelivered) {
+                    // resent after a reconnect; its outcome is repeated by the next ack, if it has one
+                    continue;
+                }
+                if (sequence != mDelivered + 1 || sequence - mCumulative > HISTORY) {
+                    Console.d("Pipelined message %d is out of order, or beyond the window.", sequence);
+                    return null;
+                }
+
+                mDelivered = sequence;
+                mOutcomes[slotOf(sequence)] = UNKNOWN;
+            }
+
+            byte[] message = new byte[buffer.remaining()];
+            buffer.get(message);
+            return new Delivery(sequence, flags, message);
+        }
+        return null;
+    }
+
+    /**
+     * @return <code>true</code> once the sender has closed
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Records whether "delivery" passed the application's checks, to be sent to the sender with the next ack.
+     * Each delivery should be acknowledged once.
+     */
+    public void acknowledge(Delivery delivery, boolean verified) {
+        boolean ackNow;
+        synchronized (this) {
+            long sequence = delivery.getSequence();
+            if (sequence <= mCumulative || sequence > mDelivered || mOutcomes[slotOf(sequence)] != UNKNOWN) {
+                return;
+            }
+
+            mOutcomes[slotOf(sequence)] = verified ? VERIFIED : FAILED;
+            while (mCumulative < mDelivered && mOutcomes[slotOf(mCumulative + 1)] != UNKNOWN) {
+                mCumulative++;
+            }
+            // while receive() is waiting for the sender, nothing else would send this outcome
+            ackNow = ++mUnreported >= ACK_EVERY || mWaiting;
+        }
+
+        if (ackNow) {
+            sendAck(false);
+        }
+    }
+
+    /**
+     * Continues on "communicator" after the previous connection dropped, with the same session's keys already
+     * exchanged. Every outcome the sender may have missed is sent again straight away.
+     */
+    public void resume(Communicator communicator) {
+        mCommunicator = communicator;
+        sendAck(true);
+    }
+
+    /**
+     * Sends the outcomes recorded since the last ack, if there are any. Safe to call from several threads at once.
+     * @param all whether to send every outcome still remembered, for a sender that may have missed some
+     */
+    private void sendAck(boolean all) {
+        synchronized (mAckLock) {
+            byte[] ack = buildAck(all);
+            if (ack != null) {
+                mCommunicator.sendRecord(Frame.TYPE_ACK, Frame.FLAG_NONE, ack);
+            }
+        }
+    }
+
+    /**
+     * Lays out the outcomes recorded since the last ack, and marks them as reported. Must hold mAckLock.
+     * @return the ack, or <code>null</code> if there is nothing to send
+     */
+    private byte[] buildAck(boolean all) {
+        synchronized (this) {
+            if (all) {
+                // the ring holds the outcomes of the last HISTORY messages delivered, which covers every message
+                // the sender can still be waiting on
+                mReportedCumulative = Math.max(-1, mDelivered - HISTORY);
+                for (long sequence = mCumulative + 1; sequence <= mDelivered; sequence++) {
+                    mOutcomes[slotOf(sequence)] &= ~REPORTED;
+                }
+            } else if (mUnreported == 0) {
+                return null;
+            }
+
+            List<Long> failed = new ArrayList<>();
+            for (long sequence = mReportedCumulative + 1; sequence <= mCumulative; sequence++) {
+                if ((mOutcomes[slotOf(sequence)] & ~REPORTED) == FAILED) {
+                    failed.add(sequence);
+                }
+            }
+
+            List<Long> selective = new ArrayList<>();
+            for (long sequence = mCumulative + 1; sequence <= mDelivered; sequence++) {
+                byte outcome = mOutcomes[slotOf(sequence)];
+                if (outcome != UNKNOWN && (outcome & REPORTED) == 0) {
+                    selective.add(sequence);
+                    mOutcomes[slotOf(sequence)] |= REPORTED;
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(8 + 2 + failed.size() * 8 + 2 + selective.size() * 9);
+            buffer.putLong(mCumulative);
+            buffer.putShort((short) failed.size());
+            for (long sequence : failed) {
+                buffer.putLong(sequence);
+            }
+            buffer.putShort((short) selective.size());
+            for (long sequence : selective) {
+                buffer.putLong(sequence);
+                buffer.put((byte) (mOutcomes[slotOf(sequence)] & ~REPORTED));
+            }
+            mReportedCumulative = mCumulative;
+            mUnreported = 0;
+            return buffer.array();
+        }
+    }
+
+    private static int slotOf(long sequence) {
+        return (int) (sequence % HISTORY);
+    }
+}
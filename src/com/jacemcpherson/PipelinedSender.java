@@ -0,0 +1,315 @@
+package com.jacemcpherson;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Alice's side of pipelined delivery: sends messages without waiting for each one to be answered, and learns from
+ * Bob's acks whether each one passed his checks (see {@link Communicator#sendPipelined(int)}).
+ * <br><br>
+ * Each message is given the next sequence number and sent as a {@link Frame#TYPE_DELIVERY} record:
+ * <pre>
+ *   | sequence number (8 bytes) | flags (1 byte) | message |
+ * </pre>
+ * Up to "window" messages may be waiting for their outcome at once; {@link #send(byte, byte[])} only blocks once
+ * that many are outstanding. Over a link with a long round trip, the window keeps the link busy instead of
+ * leaving it idle for a round trip per message. Bob's {@link PipelinedReceiver} answers with cumulative acks, and
+ * a reader thread completes the future {@link #send(byte, byte[])} returned for each message as they arrive.
+ * <br><br>
+ * Messages are kept until their outcome arrives, and only until then. If the connection drops, the sender keeps
+ * the ones still outstanding; {@link #resume(Communicator)} sends them again, in order, over a new connection.
+ * <br><br>
+ * {@link #close()} sends an empty record to say that no more messages follow, and waits for the receiver to
+ * answer with an empty ack, so that both parties can close the connection without either one cutting off the
+ * other's read.
+ */
+public class PipelinedSender {
+
+    public static final int DEFAULT_WINDOW = 64;
+
+    /** How long {@link #close()} waits for the receiver to agree. */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    /** The largest window, which is as many outcomes as a {@link PipelinedReceiver} remembers. */
+    public static final int MAX_WINDOW = PipelinedReceiver.HISTORY;
+
+    /**
+     * A message that has been sent, and has no outcome yet.
+     */
+    private static class Outstanding {
+        final long mSequence;
+        final byte[] mRecord;
+        final CompletableFuture<Boolean> mOutcome = new CompletableFuture<>();
+
+        Outstanding(long sequence, byte flags, byte[] message) {
+            mSequence = sequence;
+            mRecord = ByteBuffer.allocate(8 + 1 + message.length)
+                    .putLong(sequence)
+                    .put(flags)
+                    .put(message)
+                    .array();
+        }
+    }
+
+    private final int mWindow;
+    private volatile Communicator mCommunicator;
+    private volatile Thread mReader;
+
+    // held while sending, so that records go out in order of sequence number
+    private final Object mSendLock = new Object();
+
+    // guarded by mLock
+    private final Object mLock = new Object();
+    private final Map<Long, Outstanding> mOutstanding = new LinkedHashMap<>();
+    private long mNextSequence;
+    private boolean mClosed;
+    // messages taken out of mOutstanding whose futures have not been completed yet
+    private int mCompleting;
+
+    PipelinedSender(Communicator communicator, int window) {
+        if (window <= 0 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("The window must be between 1 and " + MAX_WINDOW + ".");
+        }
+        mWindow = window;
+        mCommunicator = communicator;
+        startReader(communicator);
+    }
+
+    /**
+     * Sends "message", once fewer than "window" messages are waiting for their outcome.
+     * @param flags flags for the receiver, such as {@link Frame#FLAG_SIGNED}
+     * @return a future that completes with <code>true</code> if the receiver verified the message, or
+     * <code>false</code> if he rejected it; or completes exceptionally if the sender is closed first
+     */
+    public CompletableFuture<Boolean> send(byte flags, byte[] message) {
+        while (true) {
+            // wait for room without holding mSendLock, so that resume() is not shut out while the window is full
+            if (!awaitWindow()) {
+                CompletableFuture<Boolean> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IOException("The sender is closed."));
+                return failed;
+            }
+
+            synchronized (mSendLock) {
+                Outstanding outstanding;
+                synchronized (mLock) {
+                    if (mClosed || mOutstanding.size() >= mWindow) {
+                        // closed, or another thread took the room first
+                        continue;
+                    }
+                    outstanding = new Outstanding(mNextSequence++, flags, message);
+                    mOutstanding.put(outstanding.mSequence, outstanding);
+                }
+
+                // if this fails, the message is still outstanding, and is sent again by resume()
+                mCommunicator.sendRecord(Frame.TYPE_DELIVERY, Frame.FLAG_NONE, outstanding.mRecord);
+                return outstanding.mOutcome;
+            }
+        }
+    }
+
+    /**
+     * Waits until fewer than "window" messages are outstanding.
+     * @return <code>false</code> if the sender was closed first, or the thread was interrupted
+     */
+    private boolean awaitWindow() {
+        synchronized (mLock) {
+            while (mOutstanding.size() >= mWindow && !mClosed) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !mClosed;
+        }
+    }
+
+    /**
+     * Waits until every message sent so far has its outcome, and the future for it has been completed.
+     * @return <code>false</code> if the sender was closed first, or the thread was interrupted
+     */
+    public boolean flush() {
+        synchronized (mLock) {
+            while ((!mOutstanding.isEmpty() || mCompleting > 0) && !mClosed) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return mOutstanding.isEmpty();
+        }
+    }
+
+    /**
+     * Continues on "communicator" after the previous connection dropped, with the same session's keys already
+     * exchanged. Every message without an outcome is sent again, in order, before any new one.
+     */
+    public void resume(Communicator communicator) {
+        synchronized (mSendLock) {
+            Outstanding[] outstanding;
+            synchronized (mLock) {
+                mCommunicator = communicator;
+                outstanding = mOutstanding.values().toArray(new Outstanding[0]);
+            }
+
+            startReader(communicator);
+            for (Outstanding message : outstanding) {
+                communicator.sendRecord(Frame.TYPE_DELIVERY, Frame.FLAG_NONE, message.mRecord);
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages waiting for their outcome
+     */
+    public int getOutstandingCount() {
+        synchronized (mLock) {
+            return mOutstanding.size();
+        }
+    }
+
+    public int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Stops sending, and tells the receiver so. Messages still waiting for their outcome complete exceptionally.
+     * The connection is left open, but nothing more is read from it.
+     */
+    public void close() {
+        List<Outstanding> abandoned;
+        synchronized (mSendLock) {
+            synchronized (mLock) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+            }
+            if (mCommunicator.sendRecord(Frame.TYPE_DELIVERY, Frame.FLAG_NONE, new byte[0])) {
+                try {
+                    mReader.join(CLOSE_TIMEOUT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        synchronized (mLock) {
+            abandoned = new ArrayList<>(mOutstanding.values());
+            mOutstanding.clear();
+            mLock.notifyAll();
+        }
+
+        for (Outstanding outstanding : abandoned) {
+            outstanding.mOutcome.completeExceptionally(new IOException("Closed before the outcome arrived."));
+        }
+    }
+
+    private void startReader(Communicator communicator) {
+        Thread reader = new Thread(() -> readAcks(communicator), "PipelinedSender-acks");
+        reader.setDaemon(true);
+        reader.start();
+        mReader = reader;
+    }
+
+    /**
+     * Reads acks from "communicator" until it fails, or is replaced by {@link #resume(Communicator)}.
+     */
+    private void readAcks(Communicator communicator) {
+        byte[] ack;
+        while ((ack = communicator.receiveRecord(Frame.TYPE_ACK)) != null) {
+            if (ack.length == 0) {
+                // the receiver has seen our close, and sends nothing more
+                return;
+            }
+            if (!onAck(ack)) {
+                Console.d("Malformed pipelined ack.");
+                break;
+            }
+        }
+
+        synchronized (mLock) {
+            if (communicator == mCommunicator && !mClosed && !mOutstanding.isEmpty()) {
+                Console.d("Connection lost with %d pipelined messages outstanding.", mOutstanding.size());
+            }
+        }
+    }
+
+    /**
+     * Completes the messages "ack" gives an outcome for. The futures are completed outside mLock, so that anything
+     * chained to them may send more messages.
+     * @return <code>false</code> if "ack" is malformed
+     */
+    private boolean onAck(byte[] ack) {
+        ByteBuffer buffer = ByteBuffer.wrap(ack);
+        List<Outstanding> verified = new ArrayList<>();
+        List<Outstanding> rejected = new ArrayList<>();
+        boolean wellFormed;
+
+        synchronized (mLock) {
+            try {
+                long cumulative = buffer.getLong();
+                int failures = buffer.getShort() & 0xffff;
+                for (int i = 0; i < failures; i++) {
+                    take(buffer.getLong(), rejected);
+                }
+
+                // everything else up to the cumulative sequence number passed
+                Iterator<Outstanding> iterator = mOutstanding.values().iterator();
+                while (iterator.hasNext()) {
+                    Outstanding outstanding = iterator.next();
+                    if (outstanding.mSequence > cumulative) {
+                        break;
+                    }
+                    verified.add(outstanding);
+                    iterator.remove();
+                }
+
+                int selective = buffer.getShort() & 0xffff;
+                for (int i = 0; i < selective; i++) {
+                    long sequence = buffer.getLong();
+                    take(sequence, buffer.get() == 1 ? verified : rejected);
+                }
+                wellFormed = !buffer.hasRemaining();
+            } catch (BufferUnderflowException e) {
+                wellFormed = false;
+            }
+            mCompleting += verified.size() + rejected.size();
+            mLock.notifyAll();
+        }
+
+        for (Outstanding outstanding : verified) {
+            outstanding.mOutcome.complete(true);
+        }
+        for (Outstanding outstanding : rejected) {
+            outstanding.mOutcome.complete(false);
+        }
+
+        synchronized (mLock) {
+            mCompleting -= verified.size() + rejected.size();
+            mLock.notifyAll();
+        }
+        return wellFormed;
+    }
+
+    /**
+     * Moves the message "sequence" to "outcomes", if it is still outstanding. Must hold mLock.
+     */
+    private void take(long sequence, List<Outstanding> outcomes) {
+        Outstanding outstanding = mOutstanding.remove(sequence);
+        if (outstanding != null) {
+            outcomes.add(outstanding);
+        }
+    }
+}
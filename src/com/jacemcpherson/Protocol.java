@@ -0,0 +1,245 @@
+package com.jacemcpherson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The messages Alice and Bob exchange once their keys are set up (steps 2 to 5). Each step reads its keys from
+ * the {@link Communicator}'s own {@link CryptoSession}, so the steps can run for many connections at once, as in
+ * {@link BlockingServer}.
+ */
+public class Protocol {
+
+    /** The number of messages Alice sends in step 5, all covered by one batch signature. */
+    public static final int BATCH_MESSAGE_COUNT = 4;
+
+    /**
+     * Performs steps 2 to 5 on an already connected Communicator. Assumes {@link Communicator#exchangeRSAPublicKey()}
+     * and {@link Communicator#exchangeSecretKey()} have both succeeded.
+     * @param communicator the connection to perform the steps over; acts as Bob if it is the server, Alice otherwise
+     */
+    public static void performMessageSteps(Communicator communicator) {
+        CryptoSession session = communicator.getCryptoSession();
+
+        Console.d(StringUtil.repeatedCharacter('=', 40));
+        Console.d("*** STEP 2 ***");
+
+        if (!communicator.isServer()) {  // I'm Alice
+            // Step 2: Alice sends AES encrypted message (30 bytes)
+            byte[] message = AESEncryptionUtil.generateRandomMessage(30);
+            byte[] encryptedMessage = session.encryptMessage(message);
+
+            Console.d("Alice will send (unencrypted): %s", Console.base64(message));
+
+            communicator.sendBytes(encryptedMessage);
+        } else {    // I'm Bob
+            // Step 2: Alice sends AEX
+            byte[] encryptedMessage = communicator.receiveBytes();
+            byte[] decryptedMessage = session.decryptMessage(encryptedMessage);
+
+            Console.d("Bob received (unencrypted): %s", Console.base64(decryptedMessage));
+        }
+
+        Console.d(StringUtil.repeatedCharacter('=', 40));
+        Console.d("*** STEP 3 ***");
+
+        if (!communicator.isServer()) { // I'm Alice
+            // Step 3: Alice sends a 40 byte message, sealed in a single authenticated record.
+
+            byte[] message = AESEncryptionUtil.generateRandomMessage(40);
+
+            Console.d("Alice will send message: %s", Console.base64(message));
+
+            communicator.sendRecord(Frame.FLAG_NONE, message);
+        } else {    // I'm Bob
+            byte[] receivedMessage = communicator.receiveRecord();
+
+            logReceivedRecord(receivedMessage);
+        }
+
+        Console.d(StringUtil.repeatedCharacter('=', 40));
+        Console.d("*** STEP 4 ***");
+
+        // Bob's checks of the signed records of steps 4 and 5
+        VerificationQueue verification = null;
+
+        if (!communicator.isServer()) { // I'm Alice
+            // Step 4: Alice signs a 50 byte message (RSA or Ed25519, depending on the handshake), and seals the
+            // message and signature in one record.
+
+            byte[] message = AESEncryptionUtil.generateRandomMessage(50);
+            byte[] signature = session.signMessage(message);
+            if (signature == null) {
+                Console.d("Alice could not sign the message.");
+                return;
+            }
+
+            Console.d("Alice will send message: %s", Console.base64(message));
+            Console.d("Alice signed: %s", Console.base64(signature));
+
+            communicator.sendRecord(Frame.FLAG_SIGNED, appendSignature(message, signature));
+        } else {    // I'm Bob
+            // signatures are checked on the VerificationPool while this thread goes on reading, and logged in order
+            verification = VerificationPool.getDefault().newQueue(session, Protocol::logVerification);
+            submitSignedRecord(verification, communicator);
+
+            // finish logging step 4 before step 5 starts
+            verification.flush();
+        }
+
+        Console.d(StringUtil.repeatedCharacter('=', 40));
+        Console.d("*** STEP 5 ***");
+
+        if (!communicator.isServer()) { // I'm Alice
+            // Step 5: Alice sends several 20 byte messages, signed as one batch.
+
+            List<byte[]> messages = new ArrayList<>();
+            List<CompletableFuture<BatchSignature>> signatures = new ArrayList<>();
+            BatchSigner signer = new BatchSigner(session, BATCH_MESSAGE_COUNT, 0);
+            for (int i = 0; i < BATCH_MESSAGE_COUNT; i++) {
+                byte[] message = AESEncryptionUtil.generateRandomMessage(20);
+                messages.add(message);
+                signatures.add(signer.add(session.getHMAC(message)));
+            }
+            signer.close();
+
+            for (int i = 0; i < BATCH_MESSAGE_COUNT; i++) {
+                BatchSignature signature = awaitBatchSignature(signatures.get(i));
+                if (signature == null) {
+                    Console.d("Alice could not sign the batch.");
+                    return;
+                }
+
+                Console.d("Alice will send message: %s", Console.base64(messages.get(i)));
+
+                communicator.sendRecord(Frame.FLAG_BATCH_SIGNED, appendSignature(messages.get(i), signature.encode()));
+            }
+        } else {    // I'm Bob
+            for (int i = 0; i < BATCH_MESSAGE_COUNT; i++) {
+                submitSignedRecord(verification, communicator);
+            }
+            verification.flush();
+        }
+    }
+
+    /**
+     * Receives the next record and hands it to "verification" with the flags it arrived with, waiting for room if
+     * too many records are already being checked.
+     */
+    private static void submitSignedRecord(VerificationQueue verification, Communicator communicator) {
+        Frame frame = communicator.receiveFrame();
+        if (frame == null || frame.getType() != Frame.TYPE_RECORD) {
+            verification.submit(Frame.FLAG_NONE, null);
+            return;
+        }
+        verification.submit(frame.getFlags(), communicator.openRecord(frame));
+    }
+
+    private static BatchSignature awaitBatchSignature(CompletableFuture<BatchSignature> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Console.exception(e);
+            return null;
+        }
+    }
+
+    /**
+     * Logs Bob's view of step 3. A record that fails to open was modified (or replayed) in transit.
+     * @param receivedMessage the opened record, or <code>null</code> if it failed to open
+     */
+    static void logReceivedRecord(byte[] receivedMessage) {
+        boolean verified = receivedMessage != null;
+
+        if (verified) {
+            Console.d("Bob received message: %s", Console.base64(receivedMessage));
+        }
+        Console.d("Bob determined the message was %s", verified ? "NOT MODIFIED" : "MODIFIED");
+    }
+
+    /**
+     * Logs Bob's view of a signed record from step 4 or step 5, once the {@link VerificationPool} has checked it.
+     */
+    static void logVerification(VerificationPool.Verification verification) {
+        if ((verification.getFlags() & Frame.FLAG_BATCH_SIGNED) != 0) {
+            logReceivedBatchSignedRecord(verification);
+        } else if ((verification.getFlags() & Frame.FLAG_SIGNED) != 0) {
+            logReceivedSignedRecord(verification);
+        } else {
+            // the record arrived without the signature it should carry
+            logReceivedRecord(verification.getMessage());
+            Console.d("Bob determined the signature is NOT VALID");
+        }
+    }
+
+    /**
+     * Logs Bob's view of step 4.
+     */
+    static void logReceivedSignedRecord(VerificationPool.Verification verification) {
+        boolean verified = verification.isIntact();
+
+        if (verified) {
+            Console.d("Bob received message: %s", Console.base64(verification.getMessage()));
+            Console.d("Bob received signature: %s", Console.base64(verification.getSignature()));
+        }
+        Console.d("Bob determined the message was %s", verified ? "NOT MODIFIED" : "MODIFIED");
+        Console.d("Bob determined the signature is %s", verification.isVerified() ? "VALID" : "NOT VALID");
+    }
+
+    /**
+     * Logs Bob's view of one message of step 5.
+     */
+    static void logReceivedBatchSignedRecord(VerificationPool.Verification verification) {
+        boolean verified = verification.isIntact();
+
+        if (verified) {
+            BatchSignature batchSignature = verification.getBatchSignature();
+            Console.d("Bob received message %d of %d in batch: %s",
+                    batchSignature.getIndex() + 1,
+                    batchSignature.getLeafCount(),
+                    Console.base64(verification.getMessage()));
+        }
+        Console.d("Bob determined the message was %s", verified ? "NOT MODIFIED" : "MODIFIED");
+        Console.d("Bob determined the batch signature is %s", verification.isVerified() ? "VALID" : "NOT VALID");
+    }
+
+    /**
+     * Lays out a message and its signature as one record body: the message, then the signature, then the
+     * signature's length as 2 bytes.
+     */
+    static byte[] appendSignature(byte[] message, byte[] signature) {
+        byte[] signed = new byte[message.length + signature.length + 2];
+        System.arraycopy(message, 0, signed, 0, message.length);
+        System.arraycopy(signature, 0, signed, message.length, signature.length);
+        signed[signed.length - 2] = (byte) (signature.length >>> 8);
+        signed[signed.length - 1] = (byte) signature.length;
+        return signed;
+    }
+
+    /**
+     * Reverses {@link #appendSignature(byte[], byte[])}.
+     * @return the message and the signature, or <code>null</code> if "signed" is malformed
+     */
+    static byte[][] splitSignature(byte[] signed) {
+        if (signed.length < 2) {
+            return null;
+        }
+
+        int signatureLength = ((signed[signed.length - 2] & 0xff) << 8) | (signed[signed.length - 1] & 0xff);
+        int messageLength = signed.length - 2 - signatureLength;
+        if (messageLength < 0) {
+            return null;
+        }
+
+        byte[] message = new byte[messageLength];
+        byte[] signature = new byte[signatureLength];
+        System.arraycopy(signed, 0, message, 0, messageLength);
+        System.arraycopy(signed, messageLength, signature, 0, signatureLength);
+        return new byte[][] { message, signature };
+    }
+}
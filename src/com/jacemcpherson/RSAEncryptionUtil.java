@@ -1,12 +1,9 @@
 package com.jacemcpherson;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import java.security.*;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
+import java.util.List;
 
 /**
  * This class provides quick access to functionality such as:<br>
@@ -16,17 +13,23 @@ import java.security.spec.X509EncodedKeySpec;
  * * Decrypting messages using RSA private key
  * * Signing messages using RSA private key
  * * Verifying signatures using partner RSA public key.
+ * * Signing and verifying batches of messages with one signature (see {@link BatchSigner})
  *
  * <br><br>
- * Key size is default to 2048 bits.
+ * Key size is default to 2048 bits. The key pair is loaded from {@link KeyStoreUtil} on first use, and only
+ * generated (and saved there) if it does not exist yet.
+ * <br><br>
+ * The partner public key lives in {@link CryptoSession#getDefault()}; the methods without a key argument are
+ * shortcuts for that session. Ciphers and signatures are pooled by {@link CryptoContexts}.
  */
 public class RSAEncryptionUtil {
 
     private static int KEY_SIZE = 2048;
 
-    private static KeyPair sKeyPair;
+    static final String TRANSFORMATION = "RSA/ECB/OAEPWithSHA1AndMGF1Padding";
+    static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
 
-    private static PublicKey sPartnerPublicKey;
+    private static volatile KeyPair sKeyPair;
 
     public static PrivateKey getPrivateKey() {
         if (sKeyPair == null) {
@@ -43,7 +46,7 @@ public class RSAEncryptionUtil {
     }
 
     public static PublicKey getPartnerPublicKey() {
-        return sPartnerPublicKey;
+        return CryptoSession.getDefault().getPartnerPublicKey();
     }
 
     public static byte[] getPublicKeyEncoded() {
@@ -51,42 +54,61 @@ public class RSAEncryptionUtil {
     }
 
     public static void decodePublicKey(byte[] publicKey) {
-        try {
-            X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(publicKey);
-            KeyFactory rsaKeyFactory = KeyFactory.getInstance("RSA");
-            sPartnerPublicKey = rsaKeyFactory.generatePublic(publicKeySpec);
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            Console.d("This machine does not support RSA encryption methods.");
+        PublicKey partnerPublicKey = parsePublicKey(publicKey);
+
+        if (partnerPublicKey != null) {
+            CryptoSession.getDefault().setPartnerPublicKey(partnerPublicKey);
         }
     }
 
+    /**
+     * Decodes an X.509 encoded RSA public key without storing it as the partner public key. Keys that have been
+     * decoded before are taken from {@link PeerKeyCache#getDefault()} instead.
+     * @param publicKey the encoded key, as produced by {@link #getPublicKeyEncoded()}
+     * @return the decoded {@link PublicKey}, or <code>null</code> if it could not be decoded
+     */
+    public static PublicKey parsePublicKey(byte[] publicKey) {
+        PeerKeyCache.Peer peer = PeerKeyCache.getDefault().lookup("RSA", publicKey);
+        return peer == null ? null : peer.getPublicKey();
+    }
+
     public static byte[] decryptMessage(byte[] partnerBytes) {
         try {
-            Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA1AndMGF1Padding");
-            cipher.init(Cipher.DECRYPT_MODE, getPrivateKey());
-            return cipher.doFinal(partnerBytes);
+            return CryptoContexts.cipher(
+                    TRANSFORMATION, Cipher.DECRYPT_MODE, getPrivateKey(), cipher -> cipher.doFinal(partnerBytes)
+            );
         } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
             Console.d("This machine does not support RSA encryption methods.");
         } catch (InvalidKeyException e) {
             // Shouldn't ever hit this block
             Console.d("There was an error with the private key: It may not have been initialized properly.");
             Console.exception(e);
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
+        } catch (GeneralSecurityException e) {
             Console.exception(e);
         }
         return null;
     }
 
     public static byte[] encryptMessage(byte[] myBytes) {
+        return encryptMessage(getPartnerPublicKey(), myBytes);
+    }
+
+    /**
+     * Encrypts a message for a specific partner, rather than the partner stored in this class.
+     * @param partnerPublicKey the public key of the receiving party
+     * @param myBytes
+     * @return "myBytes" encrypted with RSA-OAEP under "partnerPublicKey"
+     */
+    public static byte[] encryptMessage(PublicKey partnerPublicKey, byte[] myBytes) {
         try {
-            Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA1AndMGF1Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, sPartnerPublicKey);
-            return cipher.doFinal(myBytes);
+            return CryptoContexts.cipher(
+                    TRANSFORMATION, Cipher.ENCRYPT_MODE, partnerPublicKey, cipher -> cipher.doFinal(myBytes)
+            );
         } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
             Console.d("This machine does not support RSA encryption methods.");
         } catch (InvalidKeyException e) {
             Console.d("Partner public key unknown");
-        } catch (IllegalBlockSizeException | BadPaddingException e) {
+        } catch (GeneralSecurityException e) {
             Console.exception(e);
         }
         return null;
@@ -94,11 +116,13 @@ public class RSAEncryptionUtil {
 
     public static byte[] signMessage(byte[] message) {
         try {
-            Signature privateSignature = Signature.getInstance("SHA256withRSA");
-            privateSignature.initSign(getPrivateKey());
-            privateSignature.update(message);
-
-            return privateSignature.sign();
+            long start = System.nanoTime();
+            byte[] signature = CryptoContexts.signer(SIGNATURE_ALGORITHM, getPrivateKey(), privateSignature -> {
+                privateSignature.update(message);
+                return privateSignature.sign();
+            });
+            Metrics.RSA_SIGN.recordSince(start);
+            return signature;
         } catch (Exception e) {
             Console.exception(e);
             return null;
@@ -106,26 +130,76 @@ public class RSAEncryptionUtil {
     }
 
     public static boolean verifySignature(byte[] message, byte[] signature) {
-        try {
-            Signature publicSignature = Signature.getInstance("SHA256withRSA");
-            publicSignature.initVerify(getPartnerPublicKey());
-            publicSignature.update(message);
+        return verifySignature(getPartnerPublicKey(), message, signature);
+    }
 
-            return publicSignature.verify(signature);
+    /**
+     * Verifies a signature made by a specific partner, rather than the partner stored in this class.
+     * @param partnerPublicKey the public key of the signing party
+     * @param message
+     * @param signature
+     * @return whether "signature" is a valid signature of "message" under "partnerPublicKey"
+     */
+    public static boolean verifySignature(PublicKey partnerPublicKey, byte[] message, byte[] signature) {
+        try {
+            long start = System.nanoTime();
+            boolean valid = CryptoContexts.verifier(SIGNATURE_ALGORITHM, partnerPublicKey, publicSignature -> {
+                publicSignature.update(message);
+                return publicSignature.verify(signature);
+            });
+            Metrics.RSA_VERIFY.recordSince(start);
+            if (!valid) {
+                Metrics.signatureFailed();
+            }
+            return valid;
         } catch (Exception e) {
             Console.exception(e);
             return false;
         }
     }
 
-    private static void generateRsaKeyPair() {
+    /**
+     * Signs a batch of message HMACs with a single signature over their {@link MerkleTree} root.
+     * @param hmacs the HMACs of the messages in the batch, in order
+     * @return one {@link BatchSignature} per HMAC, in the same order; <code>null</code> if signing failed
+     */
+    public static BatchSignature[] signBatch(List<byte[]> hmacs) {
+        return CryptoSession.getDefault().signBatch(hmacs);
+    }
+
+    /**
+     * Verifies a whole batch at once: rebuilds the {@link MerkleTree} from every HMAC in the batch and checks the
+     * one root signature, instead of checking each message on its own.
+     * @param partnerPublicKey the public key of the signing party
+     * @param hmacs the HMACs of every message in the batch, in the order they were signed
+     * @param rootSignature the signature shared by the batch, from {@link BatchSignature#getRootSignature()}
+     * @return whether "rootSignature" covers exactly these HMACs
+     */
+    public static boolean verifyBatchSignature(PublicKey partnerPublicKey, List<byte[]> hmacs, byte[] rootSignature) {
         try {
-            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
-            generator.initialize(KEY_SIZE, new SecureRandom());
+            return verifySignature(partnerPublicKey, new MerkleTree(hmacs).getRoot(), rootSignature);
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return false;
+        }
+    }
 
-            sKeyPair = generator.generateKeyPair();
-        } catch (NoSuchAlgorithmException ex) {
-            Console.d("This machine does not support RSA encryption methods.");
+    private static synchronized void generateRsaKeyPair() {
+        if (sKeyPair != null) {
+            // another thread got here first
+            return;
         }
+
+        sKeyPair = KeyStoreUtil.loadOrCreateKeyPair("rsa", "RSA", () -> {
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(KEY_SIZE, new SecureRandom());
+
+                return generator.generateKeyPair();
+            } catch (NoSuchAlgorithmException ex) {
+                Console.d("This machine does not support RSA encryption methods.");
+                return null;
+            }
+        });
     }
 }
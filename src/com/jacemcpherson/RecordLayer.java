@@ -0,0 +1,362 @@
+package com.jacemcpherson;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Seals messages into single authenticated-encryption records, and opens them again on the other side. A
+ * record replaces the separate message, HMAC and signature frames: it is encrypted and integrity-protected
+ * with AES-GCM in one pass, and checked in one pass on receipt.
+ * <br><br>
+ * Each direction of the connection has its own key, derived from the shared secret key with {@link HKDFUtil},
+ * and its own sequence number. A record's nonce is the direction's IV combined with its sequence number, so
+ * nonces are never reused, and a record that is dropped, replayed or reordered fails to open. The frame's
+ * type and flags are authenticated along with the payload.
+ * <br><br>
+ * Keys are not used forever. Once a direction has sealed {@link #DEFAULT_MAX_RECORDS} records or
+ * {@link #DEFAULT_MAX_BYTES} bytes under one key (see {@link #setKeyUpdateLimits(long, long)}), the sender marks
+ * its next record with {@link Frame#FLAG_KEY_UPDATE}. That record is still sealed under the current key; every
+ * record after it uses the next key, which both parties derive from the current traffic secret with HKDF, and the
+ * sequence number starts again from 0. The flag is authenticated, so the receiver switches at exactly the same
+ * record, and nothing waits for the switch. No public-key operation is needed, and old keys are forgotten, so a
+ * key that leaks later does not expose earlier records.
+ * <br><br>
+ * Sealing and opening may happen on different threads, but each direction should only be used by one thread
+ * at a time.
+ */
+public class RecordLayer {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final int KEY_SIZE = 16;
+    private static final int IV_SIZE = 12;
+    /** The number of bytes sealing adds to each record. */
+    public static final int TAG_SIZE = 16;
+
+    private static final int AAD_SIZE = 2 + 8;
+    private static final int SECRET_SIZE = 32;
+
+    /**
+     * The number of records sealed under one key before it is replaced. AES-GCM stays well within its safety
+     * margin up to about 2^24 full-size records per key.
+     */
+    public static final long DEFAULT_MAX_RECORDS = 1L << 24;
+
+    /** The number of plaintext bytes sealed under one key before it is replaced. */
+    public static final long DEFAULT_MAX_BYTES = 1L << 34;
+
+    /**
+     * One direction of the connection: a traffic secret with the key and base IV derived from it, a sequence
+     * number and the {@link Cipher} to use.
+     */
+    private static class Direction {
+        byte[] mSecret;
+        SecretKey mKey;
+        byte[] mIV;
+        final Cipher mCipher;
+        final byte[] mNonce = new byte[IV_SIZE];
+        final byte[] mAAD = new byte[AAD_SIZE];
+        long mSequence;
+        long mBytes;
+        int mEpoch;
+
+        Direction(byte[] secret, SecretKey key, byte[] iv) throws GeneralSecurityException {
+            mSecret = secret;
+            mKey = key;
+            mIV = iv;
+            mCipher = Cipher.getInstance(TRANSFORMATION);
+        }
+
+        /**
+         * Replaces the traffic secret, key and IV with the next ones, forgetting the old ones.
+         */
+        void updateKey() throws GeneralSecurityException {
+            byte[] secret = HKDFUtil.expand(mSecret, "traffic update", SECRET_SIZE);
+            Arrays.fill(mSecret, (byte) 0);
+            mSecret = secret;
+            mKey = AESEncryptionUtil.toSecretKey(HKDFUtil.expand(secret, "key", KEY_SIZE));
+            mIV = HKDFUtil.expand(secret, "iv", IV_SIZE);
+            mSequence = 0;
+            mBytes = 0;
+            mEpoch++;
+        }
+
+        /**
+         * Prepares the cipher for the record with the current sequence number.
+         */
+        Cipher init(int mode, byte type, byte flags) throws GeneralSecurityException {
+            System.arraycopy(mIV, 0, mNonce, 0, IV_SIZE);
+            for (int i = 0; i < 8; i++) {
+                byte sequenceByte = (byte) (mSequence >>> (56 - 8 * i));
+                mNonce[IV_SIZE - 8 + i] ^= sequenceByte;
+                mAAD[2 + i] = sequenceByte;
+            }
+            mAAD[0] = type;
+            mAAD[1] = flags;
+
+            mCipher.init(mode, mKey, new GCMParameterSpec(TAG_SIZE * 8, mNonce));
+            mCipher.updateAAD(mAAD);
+            return mCipher;
+        }
+    }
+
+    private final Direction mSend;
+    private final Direction mReceive;
+
+    // guarded by mSend
+    private long mMaxRecords = DEFAULT_MAX_RECORDS;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private boolean mKeyUpdateRequested;
+
+    /**
+     * Constructs a record layer for one end of a connection.
+     * @param secretKey the shared secret key, as set up by {@link Communicator#exchangeSecretKey()}
+     * @param isServer whether this end is the server; the two ends must pass opposite values
+     * @throws GeneralSecurityException if AES-GCM is unavailable
+     */
+    public RecordLayer(SecretKey secretKey, boolean isServer) throws GeneralSecurityException {
+        byte[] pseudorandomKey = HKDFUtil.extract(null, secretKey.getEncoded());
+
+        Direction client = new Direction(
+                HKDFUtil.expand(pseudorandomKey, "client traffic secret", SECRET_SIZE),
+                AESEncryptionUtil.toSecretKey(HKDFUtil.expand(pseudorandomKey, "client write key", KEY_SIZE)),
+                HKDFUtil.expand(pseudorandomKey, "client write iv", IV_SIZE)
+        );
+        Direction server = new Direction(
+                HKDFUtil.expand(pseudorandomKey, "server traffic secret", SECRET_SIZE),
+                AESEncryptionUtil.toSecretKey(HKDFUtil.expand(pseudorandomKey, "server write key", KEY_SIZE)),
+                HKDFUtil.expand(pseudorandomKey, "server write iv", IV_SIZE)
+        );
+
+        mSend = isServer ? server : client;
+        mReceive = isServer ? client : server;
+    }
+
+    /**
+     * Sets how much may be sealed under one key before it is replaced. Whichever limit is reached first triggers
+     * the update.
+     * @param maxRecords the number of records, at least 1
+     * @param maxBytes the number of plaintext bytes, at least 1
+     */
+    public void setKeyUpdateLimits(long maxRecords, long maxBytes) {
+        synchronized (mSend) {
+            mMaxRecords = Math.max(1, maxRecords);
+            mMaxBytes = Math.max(1, maxBytes);
+        }
+    }
+
+    /**
+     * Replaces the sending key after the next record, whatever the limits say.
+     */
+    public void requestKeyUpdate() {
+        synchronized (mSend) {
+            mKeyUpdateRequested = true;
+        }
+    }
+
+    /**
+     * Adds {@link Frame#FLAG_KEY_UPDATE} to "flags" if the next record is due to be the last under the current
+     * key. Senders should pass the flags of every record through this before sealing it, and send the record with
+     * the flags it returns.
+     * @param flags the flags the record would otherwise be sent with
+     * @return the flags to seal and send the record with
+     */
+    public byte markKeyUpdate(byte flags) {
+        synchronized (mSend) {
+            if (mKeyUpdateRequested || mSend.mSequence + 1 >= mMaxRecords || mSend.mBytes >= mMaxBytes) {
+                return (byte) (flags | Frame.FLAG_KEY_UPDATE);
+            }
+            return flags;
+        }
+    }
+
+    /**
+     * Encrypts and authenticates "plaintext" as the next outgoing record.
+     * @param flags the flags of the frame the record will be sent in
+     * @param plaintext the message to seal
+     * @return the record, to be sent as a {@link Frame#TYPE_RECORD} frame; <code>null</code> if sealing failed
+     */
+    public byte[] seal(byte flags, byte[] plaintext) {
+        return seal(Frame.TYPE_RECORD, flags, plaintext);
+    }
+
+    /**
+     * Seals "plaintext" as the next outgoing record, to be sent in a frame of the given type, such as
+     * {@link Frame#TYPE_MUX}. Records of every type share the same sequence numbers.
+     * @see #seal(byte, byte[])
+     */
+    public byte[] seal(byte type, byte flags, byte[] plaintext) {
+        synchronized (mSend) {
+            try {
+                long start = System.nanoTime();
+                byte[] record = mSend.init(Cipher.ENCRYPT_MODE, type, flags).doFinal(plaintext);
+                Metrics.AES_ENCRYPT.recordSince(start);
+                mSend.mSequence++;
+                mSend.mBytes += plaintext.length;
+
+                if ((flags & Frame.FLAG_KEY_UPDATE) != 0) {
+                    mSend.updateKey();
+                    mKeyUpdateRequested = false;
+                }
+                return record;
+            } catch (GeneralSecurityException e) {
+                Console.exception(e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Seals the remaining bytes of "plaintext" straight into "record", without allocating anything, using
+     * {@link Cipher#doFinal(ByteBuffer, ByteBuffer)}. Both may be direct buffers, such as ones from a
+     * {@link BufferPool}.
+     * @param type the type of the frame the record will be sent in
+     * @param flags the flags of the frame, passed through {@link #markKeyUpdate(byte)}
+     * @param plaintext the message; its position is advanced to its limit
+     * @param record where to write the record, with at least {@link #TAG_SIZE} bytes more remaining than
+     * "plaintext"; its position is advanced past the record
+     * @return <code>true</code> if the record was sealed
+     */
+    public boolean seal(byte type, byte flags, ByteBuffer plaintext, ByteBuffer record) {
+        synchronized (mSend) {
+            try {
+                long start = System.nanoTime();
+                int length = plaintext.remaining();
+                mSend.init(Cipher.ENCRYPT_MODE, type, flags).doFinal(plaintext, record);
+                Metrics.AES_ENCRYPT.recordSince(start);
+                mSend.mSequence++;
+                mSend.mBytes += length;
+
+                if ((flags & Frame.FLAG_KEY_UPDATE) != 0) {
+                    mSend.updateKey();
+                    mKeyUpdateRequested = false;
+                }
+                return true;
+            } catch (GeneralSecurityException e) {
+                Console.exception(e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Decrypts and verifies the next incoming record. The check is done inside AES-GCM, in constant time.
+     * @param flags the flags of the frame the record arrived in
+     * @param record the payload of a {@link Frame#TYPE_RECORD} frame
+     * @return the original message, or <code>null</code> if the record was modified, replayed or out of order
+     */
+    public byte[] open(byte flags, byte[] record) {
+        return open(Frame.TYPE_RECORD, flags, record);
+    }
+
+    /**
+     * Opens the next incoming record, which arrived in a frame of the given type. If the record is marked with
+     * {@link Frame#FLAG_KEY_UPDATE}, the records after it are opened with the next key.
+     * @see #open(byte, byte[])
+     */
+    public byte[] open(byte type, byte flags, byte[] record) {
+        if (record == null || record.length < TAG_SIZE) {
+            Metrics.integrityFailed();
+            return null;
+        }
+
+        synchronized (mReceive) {
+            try {
+                long start = System.nanoTime();
+                byte[] plaintext = mReceive.init(Cipher.DECRYPT_MODE, type, flags).doFinal(record);
+                Metrics.AES_DECRYPT.recordSince(start);
+                mReceive.mSequence++;
+
+                if ((flags & Frame.FLAG_KEY_UPDATE) != 0) {
+                    mReceive.updateKey();
+                }
+                return plaintext;
+            } catch (GeneralSecurityException e) {
+                // authentication failed; the sequence number stays where it is
+                Metrics.integrityFailed();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Opens the remaining bytes of "record" straight into "plaintext", without allocating anything.
+     * @param type the type of the frame the record arrived in
+     * @param flags the flags of the frame
+     * @param record the record; its position is advanced to its limit
+     * @param plaintext where to write the message, with at least as many bytes remaining as "record", less
+     * {@link #TAG_SIZE}; its position is advanced past the message
+     * @return <code>true</code> if the record was opened; <code>false</code> if it was modified, replayed or out of
+     * order, in which case nothing is written to "plaintext"
+     * @see #open(byte, byte, byte[])
+     */
+    public boolean open(byte type, byte flags, ByteBuffer record, ByteBuffer plaintext) {
+        if (record.remaining() < TAG_SIZE) {
+            Metrics.integrityFailed();
+            return false;
+        }
+
+        synchronized (mReceive) {
+            try {
+                long start = System.nanoTime();
+                mReceive.init(Cipher.DECRYPT_MODE, type, flags).doFinal(record, plaintext);
+                Metrics.AES_DECRYPT.recordSince(start);
+                mReceive.mSequence++;
+
+                if ((flags & Frame.FLAG_KEY_UPDATE) != 0) {
+                    mReceive.updateKey();
+                }
+                return true;
+            } catch (GeneralSecurityException e) {
+                // authentication failed; the sequence number stays where it is
+                Metrics.integrityFailed();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Opens a record received as a frame.
+     * @see #open(byte, byte[])
+     */
+    public byte[] open(Frame frame) {
+        if (frame == null || frame.getType() != Frame.TYPE_RECORD) {
+            return null;
+        }
+        return open(frame.getFlags(), frame.getPayload());
+    }
+
+    public long getSendSequence() {
+        synchronized (mSend) {
+            return mSend.mSequence;
+        }
+    }
+
+    public long getReceiveSequence() {
+        synchronized (mReceive) {
+            return mReceive.mSequence;
+        }
+    }
+
+    /**
+     * @return the number of times the sending key has been replaced
+     */
+    public int getSendEpoch() {
+        synchronized (mSend) {
+            return mSend.mEpoch;
+        }
+    }
+
+    /**
+     * @return the number of times the receiving key has been replaced
+     */
+    public int getReceiveEpoch() {
+        synchronized (mReceive) {
+            return mReceive.mEpoch;
+        }
+    }
+}
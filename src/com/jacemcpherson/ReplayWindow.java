@@ -0,0 +1,94 @@
+package com.jacemcpherson;
+
+/**
+ * Remembers which of the most recent sequence numbers have been seen, for transports that may deliver records
+ * late, out of order or more than once (see {@link DatagramRecordLayer}). It keeps one bit per sequence number in a
+ * fixed ring of words, as described in RFC 6479, so it uses the same small amount of memory and never allocates
+ * however many records go through it.
+ * <br><br>
+ * A sequence number is accepted once, and only if it is no more than {@link #getSize()} behind the highest one
+ * accepted so far. Callers should {@link #check(long)} a sequence number first, and {@link #update(long)} the window
+ * only once the record has been authenticated, so that forged records cannot move it.
+ * <br><br>
+ * Not thread-safe.
+ */
+public class ReplayWindow {
+
+    private static final int WORD_BITS = 64;
+
+    private final long[] mWords;
+    private final int mSize;
+    private long mHighest = -1;
+
+    /**
+     * @param size the number of sequence numbers behind the highest that are still accepted; rounded up to a
+     * multiple of 64
+     */
+    public ReplayWindow(int size) {
+        int words = (Math.max(size, 1) + WORD_BITS - 1) / WORD_BITS;
+        // one more word than needed, so the window can slide a whole word at a time
+        mWords = new long[words + 1];
+        mSize = words * WORD_BITS;
+    }
+
+    /**
+     * @param sequence a sequence number, 0 or more
+     * @return <code>true</code> if "sequence" has not been seen, and is not too old to tell
+     */
+    public boolean check(long sequence) {
+        if (sequence < 0) {
+            return false;
+        }
+        if (sequence > mHighest) {
+            return true;
+        }
+        if (mHighest - sequence >= mSize) {
+            return false;
+        }
+        return (mWords[wordOf(sequence)] & bitOf(sequence)) == 0;
+    }
+
+    /**
+     * Tells apart the two reasons {@link #check(long)} can reject a sequence number.
+     * @return <code>true</code> if "sequence" is too far behind the highest one seen for the window to tell whether
+     * it is a replay; <code>false</code> if the window still covers it
+     */
+    public boolean isTooOld(long sequence) {
+        return sequence < 0 || mHighest - sequence >= mSize;
+    }
+
+    /**
+     * Marks "sequence" as seen, sliding the window forward if it is the highest yet.
+     * @param sequence a sequence number that passed {@link #check(long)}
+     */
+    public void update(long sequence) {
+        if (sequence > mHighest) {
+            long oldWord = mHighest < 0 ? -1 : mHighest / WORD_BITS;
+            long clear = Math.min(sequence / WORD_BITS - oldWord, mWords.length);
+            for (long i = 1; i <= clear; i++) {
+                mWords[(int) ((oldWord + i) % mWords.length)] = 0;
+            }
+            mHighest = sequence;
+        }
+        mWords[wordOf(sequence)] |= bitOf(sequence);
+    }
+
+    /**
+     * @return the highest sequence number seen, or -1 if none has been
+     */
+    public long getHighest() {
+        return mHighest;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    private int wordOf(long sequence) {
+        return (int) ((sequence / WORD_BITS) % mWords.length);
+    }
+
+    private static long bitOf(long sequence) {
+        return 1L << (sequence % WORD_BITS);
+    }
+}
@@ -2,23 +2,34 @@ package com.jacemcpherson;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 
 public class SHA256Util {
 
+    static final String HMAC_ALGORITHM = "HmacSHA256";
+
     /**
      * Performs a hash of the message using SHA-256 with a secret key (which is stored in {@link AESEncryptionUtil}).
      * @param message
      * @return
      */
     public static byte[] getHMAC(byte[] message) {
-        try {
-            SecretKey secretKey = AESEncryptionUtil.getSecretKey();
-
-            Mac sha256Mac = Mac.getInstance("HmacSHA256");
-            sha256Mac.init(secretKey);
+        return getHMAC(AESEncryptionUtil.getSecretKey(), message);
+    }
 
-            return sha256Mac.doFinal(message);
+    /**
+     * Performs a hash of the message using SHA-256 with the given secret key.
+     * @param secretKey the session key to use for the HMAC
+     * @param message
+     * @return the HMAC of "message", or <code>null</code> if it could not be computed
+     */
+    public static byte[] getHMAC(SecretKey secretKey, byte[] message) {
+        try {
+            long start = System.nanoTime();
+            byte[] hmac = CryptoContexts.mac(HMAC_ALGORITHM, secretKey, sha256Mac -> sha256Mac.doFinal(message));
+            Metrics.HMAC.recordSince(start);
+            return hmac;
         } catch (Exception e) {
             Console.exception(e);
             return null;
@@ -26,12 +37,37 @@ public class SHA256Util {
     }
 
     /**
-     * Compares two byte arrays for equality.
+     * Computes the HMAC of the remaining bytes of "message" into "hmac" with {@link Mac#update(ByteBuffer)},
+     * without allocating, so "message" can be a direct buffer from a {@link BufferPool}.
+     * @param secretKey the session key to use for the HMAC
+     * @param message the data to authenticate; its position is advanced to its limit
+     * @param hmac receives the HMAC; at least 32 bytes long
+     * @return <code>true</code> if the HMAC was computed
+     */
+    public static boolean getHMAC(SecretKey secretKey, ByteBuffer message, byte[] hmac) {
+        try {
+            long start = System.nanoTime();
+            CryptoContexts.mac(HMAC_ALGORITHM, secretKey, sha256Mac -> {
+                sha256Mac.update(message);
+                sha256Mac.doFinal(hmac, 0);
+                return null;
+            });
+            Metrics.HMAC.recordSince(start);
+            return true;
+        } catch (Exception e) {
+            Console.exception(e);
+            return false;
+        }
+    }
+
+    /**
+     * Compares two byte arrays for equality. The comparison takes the same time however many leading bytes
+     * match, so it does not leak how close a forged HMAC was to the real one.
      * @param message1
      * @param message2
      * @return whether message1 and message2 are equal.
      */
     public static boolean messagesEqual(byte[] message1, byte[] message2) {
-        return Arrays.equals(message1, message2);
+        return MessageDigest.isEqual(message1, message2);
     }
 }
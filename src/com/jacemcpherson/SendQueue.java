@@ -0,0 +1,229 @@
+package com.jacemcpherson;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Sends a connection's frames from a writer thread of its own, so that callers of
+ * {@link Communicator#sendBytes(byte[])} and the other send methods only queue their frames and return (see
+ * {@link Communicator#startSendQueue(int, int)}). Each time the writer wakes up, it takes every frame queued
+ * since its last write, up to {@link #MAX_GATHER} of them, and sends them in a single gathering write, so a burst
+ * of small messages costs a few system calls rather than one each.
+ * <br><br>
+ * The queue is bounded by two watermarks, counted in bytes. Once the frames waiting to be written reach the high
+ * watermark, the queue stops being writable, and producers block in {@link #enqueue(ByteBuffer)} until the writer
+ * has drained it to the low watermark. A slow receiver therefore slows its producers down instead of making the
+ * queue grow without limit, and the gap between the two marks stops producers from waking up for every frame.
+ * Producers that would rather not block can check {@link #isWritable()} first.
+ * <br><br>
+ * If a write fails, the error is logged once, the frames still queued are dropped, and every later
+ * {@link #enqueue(ByteBuffer)} returns <code>false</code>.
+ */
+public class SendQueue {
+
+    public static final int DEFAULT_LOW_WATERMARK = 256 * 1024;
+    public static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+
+    /** The most frames sent in one gathering write. */
+    public static final int MAX_GATHER = 64;
+
+    /** How long {@link #close()} waits for the queued frames to be written. */
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final SocketChannel mChannel;
+    private final int mLowWatermark;
+    private final int mHighWatermark;
+    private final Thread mWriter;
+
+    // guarded by mLock
+    private final Object mLock = new Object();
+    private final ArrayDeque<ByteBuffer> mQueue = new ArrayDeque<>();
+    private long mQueuedBytes;
+    private boolean mWritable = true;
+    private boolean mWriting;
+    private boolean mClosed;
+    private boolean mFailed;
+    private long mWrites;
+    private long mFramesWritten;
+
+    // only used by the writer thread
+    private final ByteBuffer[] mGather = new ByteBuffer[MAX_GATHER];
+
+    /**
+     * Starts a writer thread for "channel". The channel must stay in blocking mode.
+     * @param lowWatermark the number of queued bytes at or below which a full queue becomes writable again
+     * @param highWatermark the number of queued bytes at which the queue stops being writable
+     */
+    public SendQueue(SocketChannel channel, int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || highWatermark <= lowWatermark) {
+            throw new IllegalArgumentException("The high watermark must be above the low watermark.");
+        }
+
+        mChannel = channel;
+        mLowWatermark = lowWatermark;
+        mHighWatermark = highWatermark;
+
+        mWriter = new Thread(this::writeLoop, "SendQueue-writer");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Queues one complete frame, header included, to be written after every frame queued before it. Blocks while
+     * the queue is not writable. The queue takes ownership of "frame", which must not be changed afterwards.
+     * @return <code>false</code> if the queue has been closed or has failed, or the thread was interrupted
+     */
+    public boolean enqueue(ByteBuffer frame) {
+        synchronized (mLock) {
+            while (!mWritable && !mClosed && !mFailed) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (mClosed || mFailed) {
+                return false;
+            }
+
+            mQueue.add(frame);
+            mQueuedBytes += frame.remaining();
+            if (mQueuedBytes >= mHighWatermark) {
+                mWritable = false;
+            }
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if {@link #enqueue(ByteBuffer)} would not block: the queue has not reached its high
+     * watermark, or has since drained to its low watermark
+     */
+    public boolean isWritable() {
+        synchronized (mLock) {
+            return mWritable;
+        }
+    }
+
+    /**
+     * Blocks until every frame queued so far has been written.
+     * @return <code>false</code> if a write failed, or the thread was interrupted
+     */
+    public boolean flush() {
+        synchronized (mLock) {
+            while ((!mQueue.isEmpty() || mWriting) && !mFailed) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return !mFailed;
+        }
+    }
+
+    /**
+     * Stops accepting frames, and waits a few seconds for the ones already queued to be written. The channel is
+     * left open.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+
+        try {
+            mWriter.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of bytes queued and not yet written
+     */
+    public long getQueuedBytes() {
+        synchronized (mLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    /**
+     * @return the number of gathering writes so far; compared with {@link #getFramesWritten()}, how well frames
+     * are being coalesced
+     */
+    public long getWrites() {
+        synchronized (mLock) {
+            return mWrites;
+        }
+    }
+
+    public long getFramesWritten() {
+        synchronized (mLock) {
+            return mFramesWritten;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            int count = 0;
+            long bytes = 0;
+            synchronized (mLock) {
+                while (mQueue.isEmpty() && !mClosed && !mFailed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mQueue.isEmpty() || mFailed) {
+                    return;
+                }
+
+                while (count < MAX_GATHER && !mQueue.isEmpty()) {
+                    ByteBuffer frame = mQueue.poll();
+                    bytes += frame.remaining();
+                    mGather[count++] = frame;
+                }
+                mWriting = true;
+            }
+
+            try {
+                while (mGather[count - 1].hasRemaining()) {
+                    mChannel.write(mGather, 0, count);
+                }
+            } catch (IOException e) {
+                synchronized (mLock) {
+                    if (!mClosed) {
+                        Console.exception(e);
+                    }
+                    mFailed = true;
+                    mWriting = false;
+                    mQueue.clear();
+                    mQueuedBytes = 0;
+                    mLock.notifyAll();
+                }
+                return;
+            } finally {
+                Arrays.fill(mGather, 0, count, null);
+            }
+
+            synchronized (mLock) {
+                mWriting = false;
+                mWrites++;
+                mFramesWritten += count;
+                mQueuedBytes -= bytes;
+                if (!mWritable && mQueuedBytes <= mLowWatermark) {
+                    mWritable = true;
+                }
+                mLock.notifyAll();
+            }
+        }
+    }
+}
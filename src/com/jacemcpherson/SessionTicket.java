@@ -0,0 +1,299 @@
+package com.jacemcpherson;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+
+/**
+ * A resumption ticket, which lets a client that has already completed a full handshake with the server set up
+ * fresh keys on its next connection with one symmetric round-trip instead.
+ * <br><br>
+ * After a full handshake, both sides derive a resumption secret from the shared secret key. The server seals that
+ * secret, together with the client's public key, the {@link HandshakeSuite} and the time of issue, under a ticket
+ * key only the server knows, and sends the result to the client. The server keeps no state of its own: when the
+ * client presents the ticket later, along with a fresh nonce, the server opens it to recover the secret. Each side
+ * then mixes the secret with both sides' nonces to get the new connection's key, so no two connections share a
+ * key.
+ * <br><br>
+ * The server side uses {@link #issue(CryptoSession)} and {@link #acceptOffer(CryptoSession, byte[])}. The client
+ * keeps its tickets in a {@link TicketCache}, and uses {@link #createOffer()} and
+ * {@link #resume(CryptoSession, byte[])}.
+ */
+public class SessionTicket {
+
+    /** How long a ticket may be used for after it was issued. */
+    public static final long LIFETIME_MILLIS = 60 * 60 * 1000;
+
+    private static final int NONCE_SIZE = 32;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int SECRET_SIZE = 32;
+    private static final int IV_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int KEY_SIZE = 16;
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    // the server's ticket key; generated on first use and never leaves this process
+    private static volatile SecretKey sTicketKey;
+
+    private final byte[] mTicket;
+    private final byte[] mResumptionSecret;
+    private final PublicKey mPartnerPublicKey;
+    private final HandshakeSuite mSuite;
+    private final long mIssuedAt;
+
+    // the nonce sent with this ticket, once it has been offered
+    private byte[] mClientNonce;
+
+    SessionTicket(
+            byte[] ticket,
+            byte[] resumptionSecret,
+            PublicKey partnerPublicKey,
+            HandshakeSuite suite,
+            long issuedAt
+    ) {
+        mTicket = ticket;
+        mResumptionSecret = resumptionSecret;
+        mPartnerPublicKey = partnerPublicKey;
+        mSuite = suite;
+        mIssuedAt = issuedAt;
+    }
+
+    /**
+     * @return the opaque ticket, as sent over the wire
+     */
+    public byte[] getTicket() {
+        return mTicket;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() - mIssuedAt > LIFETIME_MILLIS;
+    }
+
+    /**
+     * Client side: builds the message that presents this ticket to the server. A ticket should only be
+     * presented once.
+     * @return a fresh nonce followed by the ticket
+     */
+    public byte[] createOffer() {
+        mClientNonce = generateNonce();
+
+        byte[] offer = new byte[NONCE_SIZE + mTicket.length];
+        System.arraycopy(mClientNonce, 0, offer, 0, NONCE_SIZE);
+        System.arraycopy(mTicket, 0, offer, NONCE_SIZE, mTicket.length);
+        return offer;
+    }
+
+    /**
+     * Client side: completes a resumption the server accepted, storing the new secret key in "session".
+     * @param session the new connection's keys
+     * @param reply the server's answer to {@link #createOffer()}
+     * @return <code>true</code> if the key was derived
+     */
+    public boolean resume(CryptoSession session, byte[] reply) {
+        if (mClientNonce == null || reply.length < NONCE_SIZE) {
+            return false;
+        }
+
+        byte[] serverNonce = new byte[NONCE_SIZE];
+        System.arraycopy(reply, 0, serverNonce, 0, NONCE_SIZE);
+        return deriveSecretKey(session, mClientNonce, serverNonce);
+    }
+
+    /**
+     * Client side: keeps the ticket the server issued for "session", along with the resumption secret this side
+     * derives for itself.
+     * @param ticket the opaque ticket received from the server
+     * @param session the keys of the connection the ticket was issued on
+     * @return the ticket, ready to be put in a {@link TicketCache}; <code>null</code> if there was no ticket or
+     * it could not be derived
+     */
+    public static SessionTicket received(byte[] ticket, CryptoSession session) {
+        byte[] resumptionSecret = ticket == null || ticket.length == 0 ? null : deriveResumptionSecret(session);
+        if (resumptionSecret == null) {
+            return null;
+        }
+        return new SessionTicket(ticket, resumptionSecret, null, session.getSuite(), System.currentTimeMillis());
+    }
+
+    /**
+     * Client side: picks the next ticket out of the server's answer to a resumption.
+     * @see #received(byte[], CryptoSession)
+     */
+    public static SessionTicket receivedWithReply(byte[] reply, CryptoSession session) {
+        if (reply.length <= NONCE_SIZE) {
+            return null;
+        }
+
+        byte[] ticket = new byte[reply.length - NONCE_SIZE];
+        System.arraycopy(reply, NONCE_SIZE, ticket, 0, ticket.length);
+        return received(ticket, session);
+    }
+
+    /**
+     * Server side: issues a ticket for a connection that has just set up its keys.
+     * @param session the keys of the connection, including the client's public key
+     * @return the opaque ticket to send to the client, or <code>null</code> if it could not be issued
+     */
+    public static byte[] issue(CryptoSession session) {
+        byte[] resumptionSecret = deriveResumptionSecret(session);
+        if (resumptionSecret == null || !session.hasPartnerPublicKey()) {
+            return null;
+        }
+
+        byte[] publicKey = session.getPartnerPublicKey().getEncoded();
+        ByteBuffer contents = ByteBuffer.allocate(8 + SECRET_SIZE + 1 + publicKey.length);
+        contents.putLong(System.currentTimeMillis());
+        contents.put(resumptionSecret);
+        contents.put((byte) session.getSuite().ordinal());
+        contents.put(publicKey);
+
+        byte[] iv = new byte[IV_SIZE];
+        sRandom.nextBytes(iv);
+
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, getTicketKey(), new GCMParameterSpec(TAG_SIZE * 8, iv));
+            byte[] sealed = cipher.doFinal(contents.array());
+
+            byte[] ticket = new byte[IV_SIZE + sealed.length];
+            System.arraycopy(iv, 0, ticket, 0, IV_SIZE);
+            System.arraycopy(sealed, 0, ticket, IV_SIZE, sealed.length);
+            return ticket;
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return null;
+        }
+    }
+
+    /**
+     * Server side: answers a client's {@link #createOffer()}. If the ticket is valid, the new secret key and the
+     * client's public key are stored in "session".
+     * @param session the new connection's keys
+     * @param offer the offer received from the client
+     * @return the reply to send to the client: the server's nonce, followed by a new ticket for the resumed
+     * connection. <code>null</code> if the ticket was not accepted, in which case a full handshake is needed.
+     */
+    public static byte[] acceptOffer(CryptoSession session, byte[] offer) {
+        if (offer == null || offer.length <= NONCE_SIZE) {
+            return null;
+        }
+
+        byte[] clientNonce = new byte[NONCE_SIZE];
+        byte[] ticket = new byte[offer.length - NONCE_SIZE];
+        System.arraycopy(offer, 0, clientNonce, 0, NONCE_SIZE);
+        System.arraycopy(offer, NONCE_SIZE, ticket, 0, ticket.length);
+
+        SessionTicket redeemed = redeem(ticket);
+        byte[] serverNonce = generateNonce();
+        if (redeemed == null || !redeemed.deriveSecretKey(session, clientNonce, serverNonce)) {
+            return null;
+        }
+        session.setPartnerPublicKey(redeemed.mPartnerPublicKey);
+
+        byte[] nextTicket = issue(session);
+        if (nextTicket == null) {
+            return serverNonce;
+        }
+
+        byte[] reply = new byte[NONCE_SIZE + nextTicket.length];
+        System.arraycopy(serverNonce, 0, reply, 0, NONCE_SIZE);
+        System.arraycopy(nextTicket, 0, reply, NONCE_SIZE, nextTicket.length);
+        return reply;
+    }
+
+    /**
+     * Opens a ticket presented by a client.
+     * @return the ticket's contents, or <code>null</code> if it was not issued by this server, was modified, or
+     * has expired
+     */
+    private static SessionTicket redeem(byte[] ticket) {
+        if (ticket.length < IV_SIZE + TAG_SIZE + 8 + SECRET_SIZE + 1) {
+            return null;
+        }
+
+        byte[] contents;
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getTicketKey(), new GCMParameterSpec(TAG_SIZE * 8, ticket, 0, IV_SIZE));
+            contents = cipher.doFinal(ticket, IV_SIZE, ticket.length - IV_SIZE);
+        } catch (GeneralSecurityException e) {
+            // not one of ours, or modified
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(contents);
+        long issuedAt = buffer.getLong();
+        byte[] resumptionSecret = new byte[SECRET_SIZE];
+        buffer.get(resumptionSecret);
+        HandshakeSuite suite = HandshakeSuite.values()[buffer.get()];
+        byte[] publicKey = new byte[buffer.remaining()];
+        buffer.get(publicKey);
+
+        PublicKey partnerPublicKey = suite == HandshakeSuite.ECDHE
+                ? ECDHEUtil.parseSigningPublicKey(publicKey)
+                : RSAEncryptionUtil.parsePublicKey(publicKey);
+        if (partnerPublicKey == null) {
+            return null;
+        }
+
+        SessionTicket redeemed = new SessionTicket(ticket, resumptionSecret, partnerPublicKey, suite, issuedAt);
+        return redeemed.isExpired() ? null : redeemed;
+    }
+
+    /**
+     * Mixes the resumption secret with both nonces into the new connection's secret key.
+     */
+    private boolean deriveSecretKey(CryptoSession session, byte[] clientNonce, byte[] serverNonce) {
+        byte[] salt = new byte[clientNonce.length + serverNonce.length];
+        System.arraycopy(clientNonce, 0, salt, 0, clientNonce.length);
+        System.arraycopy(serverNonce, 0, salt, clientNonce.length, serverNonce.length);
+
+        try {
+            byte[] pseudorandomKey = HKDFUtil.extract(salt, mResumptionSecret);
+            session.setSecretKey(AESEncryptionUtil.toSecretKey(
+                    HKDFUtil.expand(pseudorandomKey, "resumed secret key", KEY_SIZE)
+            ));
+            session.setSuite(mSuite);
+            return true;
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return false;
+        }
+    }
+
+    private static byte[] generateNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        sRandom.nextBytes(nonce);
+        return nonce;
+    }
+
+    private static byte[] deriveResumptionSecret(CryptoSession session) {
+        if (!session.hasSecretKey()) {
+            return null;
+        }
+
+        try {
+            byte[] pseudorandomKey = HKDFUtil.extract(null, session.getSecretKey().getEncoded());
+            return HKDFUtil.expand(pseudorandomKey, "resumption secret", SECRET_SIZE);
+        } catch (GeneralSecurityException e) {
+            Console.exception(e);
+            return null;
+        }
+    }
+
+    private static SecretKey getTicketKey() {
+        if (sTicketKey == null) {
+            synchronized (SessionTicket.class) {
+                if (sTicketKey == null) {
+                    sTicketKey = AESEncryptionUtil.generateSecretKey();
+                }
+            }
+        }
+        return sTicketKey;
+    }
+}
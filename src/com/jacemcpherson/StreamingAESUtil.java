@@ -0,0 +1,317 @@
+package com.jacemcpherson;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Encrypts and decrypts streams of any length with AES-GCM, a fixed-size chunk at a time. Unlike
+ * {@link AESEncryptionUtil#encryptMessage(byte[])}, the whole message never has to be held in memory, and the
+ * receiver can read the first decrypted bytes as soon as the first chunk arrives.
+ * <br><br>
+ * An encrypted stream starts with a header: a random salt, which is used to derive a key for this stream only
+ * from the shared secret key, and a random nonce prefix. Each chunk that follows is written as:
+ * <pre>
+ *   | final (1 byte) | length (4 bytes) | ciphertext + GCM tag (length bytes) |
+ * </pre>
+ * Each chunk's nonce is the nonce prefix, followed by the chunk's index and the final marker. Because both are
+ * part of the nonce, chunks cannot be reordered, dropped or marked final by anyone without the key, and a
+ * stream that ends without a final chunk is reported as truncated.
+ */
+public class StreamingAESUtil {
+
+    /** The number of plaintext bytes in every chunk but the last. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int SALT_SIZE = 16;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    private static final int NONCE_SIZE = NONCE_PREFIX_SIZE + 4 + 1;
+    private static final int TAG_SIZE = 16;
+    private static final int CHUNK_HEADER_SIZE = 1 + 4;
+
+    private static final byte[] KEY_LABEL = "SecureCommunication stream key".getBytes();
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /**
+     * Wraps "plaintext" in a stream that produces its encrypted form.
+     * @param secretKey the shared secret key
+     * @param plaintext the data to encrypt; closed when the returned stream is closed
+     * @return a stream of the encrypted header and chunks
+     */
+    public static InputStream encryptingStream(SecretKey secretKey, InputStream plaintext) {
+        return new EncryptingStream(secretKey, plaintext);
+    }
+
+    /**
+     * Wraps "plaintext" in a stream that produces its encrypted form.
+     * @param secretKey the shared secret key
+     * @param plaintext the data to encrypt; closed when the returned stream is closed
+     * @return a stream of the encrypted header and chunks
+     */
+    public static InputStream encryptingStream(SecretKey secretKey, ReadableByteChannel plaintext) {
+        return new EncryptingStream(secretKey, Channels.newInputStream(plaintext));
+    }
+
+    /**
+     * Wraps a stream produced by {@link #encryptingStream(SecretKey, InputStream)} in a stream that produces the
+     * original plaintext. Each chunk is authenticated before any of its bytes are returned.
+     * @param secretKey the shared secret key
+     * @param ciphertext the encrypted data; closed when the returned stream is closed
+     * @return a stream of the decrypted data
+     */
+    public static InputStream decryptingStream(SecretKey secretKey, InputStream ciphertext) {
+        return new DecryptingStream(secretKey, ciphertext);
+    }
+
+    /**
+     * Derives the key for a single stream from the shared secret key and the stream's salt, so that the secret
+     * key is never used directly for GCM, and streams do not share a key.
+     */
+    private static SecretKey deriveStreamKey(SecretKey secretKey, byte[] salt) throws GeneralSecurityException {
+        byte[] derived = CryptoContexts.mac(SHA256Util.HMAC_ALGORITHM, secretKey, mac -> {
+            mac.update(KEY_LABEL);
+            return mac.doFinal(salt);
+        });
+
+        return new SecretKeySpec(derived, 0, 16, "AES");
+    }
+
+    private static void setNonce(byte[] nonce, int chunkIndex, boolean isFinal) {
+        nonce[NONCE_PREFIX_SIZE] = (byte) (chunkIndex >>> 24);
+        nonce[NONCE_PREFIX_SIZE + 1] = (byte) (chunkIndex >>> 16);
+        nonce[NONCE_PREFIX_SIZE + 2] = (byte) (chunkIndex >>> 8);
+        nonce[NONCE_PREFIX_SIZE + 3] = (byte) chunkIndex;
+        nonce[NONCE_PREFIX_SIZE + 4] = (byte) (isFinal ? 1 : 0);
+    }
+
+    /**
+     * Reads until "buffer" is full or "in" ends.
+     * @return the number of bytes read
+     */
+    private static int readAvailable(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, offset + total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Base class for the two directions: serves bytes out of an output buffer, refilling it a chunk at a time.
+     */
+    private abstract static class ChunkedStream extends InputStream {
+
+        protected final InputStream mSource;
+        protected final Cipher mCipher;
+        protected final SecretKey mSecretKey;
+        protected final byte[] mNonce = new byte[NONCE_SIZE];
+
+        protected byte[] mOutput;
+        protected int mOutputPosition;
+        protected int mOutputLimit;
+
+        protected int mChunkIndex;
+        protected boolean mFinished;
+
+        ChunkedStream(SecretKey secretKey, InputStream source) {
+            mSecretKey = secretKey;
+            mSource = source;
+            try {
+                mCipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("This machine does not support AES/GCM.", e);
+            }
+        }
+
+        /**
+         * Fills {@link #mOutput} with the next chunk of output.
+         * @return <code>false</code> if there is no more output
+         */
+        protected abstract boolean fill() throws IOException;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = read(single, 0, 1);
+            return read < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            while (mOutputPosition >= mOutputLimit) {
+                if (mFinished || !fill()) {
+                    return -1;
+                }
+            }
+
+            int count = Math.min(length, mOutputLimit - mOutputPosition);
+            System.arraycopy(mOutput, mOutputPosition, buffer, offset, count);
+            mOutputPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mOutputLimit - mOutputPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFinished = true;
+            mSource.close();
+        }
+
+        protected void nextChunkIndex() throws IOException {
+            if (mChunkIndex == -1) {
+                throw new IOException("Stream is too long: chunk index overflowed.");
+            }
+            mChunkIndex++;
+        }
+    }
+
+    private static class EncryptingStream extends ChunkedStream {
+
+        private final byte[] mPlaintext = new byte[CHUNK_SIZE];
+        private SecretKey mStreamKey;
+
+        // one byte read ahead of the current chunk, so we know whether the current chunk is the last one
+        private int mLookahead = -1;
+
+        EncryptingStream(SecretKey secretKey, InputStream source) {
+            super(secretKey, source);
+            mOutput = new byte[CHUNK_HEADER_SIZE + CHUNK_SIZE + TAG_SIZE];
+        }
+
+        @Override
+        protected boolean fill() throws IOException {
+            try {
+                if (mStreamKey == null) {
+                    writeStreamHeader();
+                    return true;
+                }
+
+                int length = 0;
+                if (mLookahead >= 0) {
+                    mPlaintext[length++] = (byte) mLookahead;
+                }
+                length += readAvailable(mSource, mPlaintext, length, CHUNK_SIZE - length);
+
+                mLookahead = length == CHUNK_SIZE ? mSource.read() : -1;
+                boolean isFinal = mLookahead < 0;
+
+                long start = System.nanoTime();
+                setNonce(mNonce, mChunkIndex, isFinal);
+                mCipher.init(Cipher.ENCRYPT_MODE, mStreamKey, new GCMParameterSpec(TAG_SIZE * 8, mNonce));
+                int written = mCipher.doFinal(mPlaintext, 0, length, mOutput, CHUNK_HEADER_SIZE);
+                Metrics.AES_ENCRYPT.recordSince(start);
+
+                mOutput[0] = (byte) (isFinal ? 1 : 0);
+                mOutput[1] = (byte) (written >>> 24);
+                mOutput[2] = (byte) (written >>> 16);
+                mOutput[3] = (byte) (written >>> 8);
+                mOutput[4] = (byte) written;
+
+                mOutputPosition = 0;
+                mOutputLimit = CHUNK_HEADER_SIZE + written;
+
+                nextChunkIndex();
+                mFinished = isFinal;
+                return true;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt chunk " + mChunkIndex, e);
+            }
+        }
+
+        private void writeStreamHeader() throws GeneralSecurityException {
+            byte[] salt = new byte[SALT_SIZE];
+            sRandom.nextBytes(salt);
+            sRandom.nextBytes(mNonce);
+
+            mStreamKey = deriveStreamKey(mSecretKey, salt);
+
+            System.arraycopy(salt, 0, mOutput, 0, SALT_SIZE);
+            System.arraycopy(mNonce, 0, mOutput, SALT_SIZE, NONCE_PREFIX_SIZE);
+            mOutputPosition = 0;
+            mOutputLimit = SALT_SIZE + NONCE_PREFIX_SIZE;
+        }
+    }
+
+    private static class DecryptingStream extends ChunkedStream {
+
+        private final byte[] mCiphertext = new byte[CHUNK_SIZE + TAG_SIZE];
+        private final byte[] mChunkHeader = new byte[CHUNK_HEADER_SIZE];
+        private SecretKey mStreamKey;
+
+        DecryptingStream(SecretKey secretKey, InputStream source) {
+            super(secretKey, source);
+            mOutput = new byte[CHUNK_SIZE];
+        }
+
+        @Override
+        protected boolean fill() throws IOException {
+            try {
+                if (mStreamKey == null) {
+                    readStreamHeader();
+                }
+
+                readExactly(mChunkHeader, CHUNK_HEADER_SIZE);
+
+                boolean isFinal = mChunkHeader[0] == 1;
+                int length = ((mChunkHeader[1] & 0xff) << 24) | ((mChunkHeader[2] & 0xff) << 16)
+                        | ((mChunkHeader[3] & 0xff) << 8) | (mChunkHeader[4] & 0xff);
+
+                if (length < TAG_SIZE || length > mCiphertext.length || (!isFinal && length != mCiphertext.length)) {
+                    throw new IOException("Invalid chunk length: " + length);
+                }
+
+                readExactly(mCiphertext, length);
+
+                long start = System.nanoTime();
+                setNonce(mNonce, mChunkIndex, isFinal);
+                mCipher.init(Cipher.DECRYPT_MODE, mStreamKey, new GCMParameterSpec(TAG_SIZE * 8, mNonce));
+                mOutputLimit = mCipher.doFinal(mCiphertext, 0, length, mOutput, 0);
+                Metrics.AES_DECRYPT.recordSince(start);
+                mOutputPosition = 0;
+
+                nextChunkIndex();
+                mFinished = isFinal;
+                return true;
+            } catch (GeneralSecurityException e) {
+                Metrics.integrityFailed();
+                throw new IOException("Chunk " + mChunkIndex + " failed authentication.", e);
+            }
+        }
+
+        private void readStreamHeader() throws IOException, GeneralSecurityException {
+            byte[] header = new byte[SALT_SIZE + NONCE_PREFIX_SIZE];
+            readExactly(header, header.length);
+
+            mStreamKey = deriveStreamKey(mSecretKey, Arrays.copyOf(header, SALT_SIZE));
+            System.arraycopy(header, SALT_SIZE, mNonce, 0, NONCE_PREFIX_SIZE);
+        }
+
+        private void readExactly(byte[] buffer, int length) throws IOException {
+            if (readAvailable(mSource, buffer, 0, length) != length) {
+                throw new EOFException("Encrypted stream was truncated before its final chunk.");
+            }
+        }
+    }
+}
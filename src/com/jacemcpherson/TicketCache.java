@@ -0,0 +1,58 @@
+package com.jacemcpherson;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The client's store of {@link SessionTicket}s, one per server. Bounded: once it holds "capacity" tickets, the
+ * least recently used one is evicted, and expired tickets are dropped as soon as they are looked up.
+ * <br><br>
+ * Each ticket is taken out of the cache when it is used, and replaced by the new ticket the server issues on
+ * the resumed connection, so no ticket is presented twice.
+ */
+public class TicketCache {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private static final TicketCache sDefault = new TicketCache(DEFAULT_CAPACITY);
+
+    /**
+     * @return the cache {@link Communicator} uses for its own connections
+     */
+    public static TicketCache getDefault() {
+        return sDefault;
+    }
+
+    private final Map<String, SessionTicket> mTickets;
+
+    public TicketCache(final int capacity) {
+        mTickets = new LinkedHashMap<String, SessionTicket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SessionTicket> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized void put(String server, SessionTicket ticket) {
+        mTickets.put(server, ticket);
+    }
+
+    /**
+     * Takes the ticket for "server" out of the cache.
+     * @param server the server's address, as passed to {@link #put(String, SessionTicket)}
+     * @return the ticket, or <code>null</code> if there is none or it has expired
+     */
+    public synchronized SessionTicket take(String server) {
+        SessionTicket ticket = mTickets.remove(server);
+        return ticket == null || ticket.isExpired() ? null : ticket;
+    }
+
+    public synchronized int size() {
+        return mTickets.size();
+    }
+
+    public synchronized void clear() {
+        mTickets.clear();
+    }
+}
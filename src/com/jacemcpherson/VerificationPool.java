@@ -0,0 +1,163 @@
+package com.jacemcpherson;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Checks the signatures of received records on a fixed pool of worker threads, so that the thread reading a
+ * connection only has to open each record before it goes back to reading. On an {@link NioServer}, whose worker
+ * threads each read many connections, this keeps one connection's RSA verifications from holding up the others.
+ * <br><br>
+ * Records are still opened on the reading thread: each one is sealed under the next sequence number, so they can
+ * only be opened in order, and opening costs far less than checking a signature. What the pool receives is the
+ * opened record, with the frame's flags saying how it was signed: {@link Frame#FLAG_SIGNED} for a message followed
+ * by its signature, as laid out by {@link Protocol#appendSignature(byte[], byte[])}, or
+ * {@link Frame#FLAG_BATCH_SIGNED} for a message followed by its {@link BatchSignature}.
+ * <br><br>
+ * {@link #verify(CryptoSession, byte, byte[])} completes in whatever order the workers finish. A
+ * {@link VerificationQueue} hands the results of one connection to the application in the order the records
+ * arrived. The time each record spends in the pool and the number waiting are recorded in {@link Metrics}.
+ */
+public class VerificationPool {
+
+    private static final VerificationPool sDefault = new VerificationPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * @return a pool with one worker per available processor
+     */
+    public static VerificationPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * One record, once it has been checked.
+     */
+    public static class Verification {
+        private final byte mFlags;
+        private final byte[] mMessage;
+        private final byte[] mSignature;
+        private final BatchSignature mBatchSignature;
+        private final boolean mVerified;
+
+        Verification(byte flags, byte[] message, byte[] signature, BatchSignature batchSignature,
+                     boolean verified) {
+            mFlags = flags;
+            mMessage = message;
+            mSignature = signature;
+            mBatchSignature = batchSignature;
+            mVerified = verified;
+        }
+
+        /**
+         * @return the flags the record was submitted with
+         */
+        public byte getFlags() {
+            return mFlags;
+        }
+
+        /**
+         * @return the message without its signature, or <code>null</code> if the record did not open or was
+         * malformed
+         */
+        public byte[] getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * @return the signature of a {@link Frame#FLAG_SIGNED} record, or <code>null</code>
+         */
+        public byte[] getSignature() {
+            return mSignature;
+        }
+
+        /**
+         * @return the batch signature of a {@link Frame#FLAG_BATCH_SIGNED} record, or <code>null</code>
+         */
+        public BatchSignature getBatchSignature() {
+            return mBatchSignature;
+        }
+
+        /**
+         * @return <code>true</code> if the record opened, and was laid out as its flags say
+         */
+        public boolean isIntact() {
+            return mMessage != null;
+        }
+
+        /**
+         * @return <code>true</code> if the record is intact and its signature, if it has one, is valid
+         */
+        public boolean isVerified() {
+            return mVerified;
+        }
+    }
+
+    private final ExecutorService mWorkers;
+
+    /**
+     * Starts "threads" daemon worker threads.
+     */
+    public VerificationPool(int threads) {
+        mWorkers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "VerificationPool-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return a queue that releases the checks of one connection's records to "listener" in the order they were
+     * submitted
+     */
+    public VerificationQueue newQueue(CryptoSession session, Consumer<Verification> listener) {
+        return new VerificationQueue(this, session, listener, VerificationQueue.DEFAULT_MAX_PENDING);
+    }
+
+    /**
+     * Checks "record" on one of the workers.
+     * @param session the keys of the connection the record arrived on
+     * @param flags how the record was signed, such as {@link Frame#FLAG_SIGNED}
+     * @param record the opened record, or <code>null</code> if it failed to open
+     * @return a future that completes once the record has been checked
+     */
+    public CompletableFuture<Verification> verify(CryptoSession session, byte flags, byte[] record) {
+        long queued = System.nanoTime();
+        Metrics.verificationQueued();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return check(session, flags, record);
+            } finally {
+                Metrics.verificationFinished(queued);
+            }
+        }, mWorkers);
+    }
+
+    /**
+     * Checks "record" on the calling thread.
+     * @see #verify(CryptoSession, byte, byte[])
+     */
+    static Verification check(CryptoSession session, byte flags, byte[] record) {
+        if ((flags & Frame.FLAG_SIGNED) != 0) {
+            byte[][] parts = record == null ? null : Protocol.splitSignature(record);
+            if (parts == null) {
+                return new Verification(flags, null, null, null, false);
+            }
+            return new Verification(flags, parts[0], parts[1], null, session.verifySignature(parts[0], parts[1]));
+        }
+
+        if ((flags & Frame.FLAG_BATCH_SIGNED) != 0) {
+            byte[][] parts = record == null ? null : Protocol.splitSignature(record);
+            BatchSignature batchSignature = parts == null ? null : BatchSignature.decode(parts[1]);
+            if (batchSignature == null) {
+                return new Verification(flags, null, null, null, false);
+            }
+            return new Verification(flags, parts[0], null, batchSignature,
+                    session.verifyBatchSignature(parts[0], batchSignature));
+        }
+
+        // nothing to check beyond the record itself, which opened if it is not null
+        return new Verification(flags, record, null, null, record != null);
+    }
+}
@@ -0,0 +1,180 @@
+package com.jacemcpherson;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * The records of one connection on their way through a {@link VerificationPool} (see
+ * {@link VerificationPool#newQueue(CryptoSession, Consumer)}). The thread reading the connection submits each
+ * record as it is opened, and goes straight back to reading. The workers check several records at once, but their
+ * results are handed to the listener strictly in the order the records were submitted, one at a time: a record
+ * that is slow to check holds back the ones after it, and never the other way round.
+ * <br><br>
+ * At most {@link #DEFAULT_MAX_PENDING} records may be waiting for their result, or for an earlier one's; after
+ * that, {@link #submit(byte, byte[])} blocks until the oldest has been released, so a connection cannot queue
+ * unbounded work in the pool. A thread that must not block, such as a worker of an {@link NioServer}, uses
+ * {@link #trySubmit(byte, byte[])} instead, stops reading the connection once the queue {@link #isFull()}, and
+ * resumes when {@link #whenNotFull(Runnable)} says so. The listener runs on whichever thread completes the record
+ * at the head of the queue, which is usually a worker, and should not block for long.
+ */
+public class VerificationQueue {
+
+    public static final int DEFAULT_MAX_PENDING = 256;
+
+    private final VerificationPool mPool;
+    private final CryptoSession mSession;
+    private final Consumer<VerificationPool.Verification> mListener;
+    private final int mMaxPending;
+
+    // guarded by mLock
+    private final Object mLock = new Object();
+    private final ArrayDeque<CompletableFuture<VerificationPool.Verification>> mPending = new ArrayDeque<>();
+    private boolean mReleasing;
+    private Runnable mOnNotFull;
+
+    VerificationQueue(VerificationPool pool, CryptoSession session,
+                      Consumer<VerificationPool.Verification> listener, int maxPending) {
+        mPool = pool;
+        mSession = session;
+        mListener = listener;
+        mMaxPending = maxPending;
+    }
+
+    /**
+     * Hands "record" to the pool, once fewer than {@link #DEFAULT_MAX_PENDING} records are pending.
+     * @param flags how the record was signed, such as {@link Frame#FLAG_SIGNED}
+     * @param record the opened record, or <code>null</code> if it failed to open
+     * @return <code>false</code> if the thread was interrupted while waiting for room
+     */
+    public boolean submit(byte flags, byte[] record) {
+        CompletableFuture<VerificationPool.Verification> verification;
+        synchronized (mLock) {
+            while (mPending.size() >= mMaxPending) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            verification = enqueue(flags, record);
+        }
+
+        // outside mLock, since this runs straight away if the check has already finished
+        verification.whenComplete((result, failure) -> release());
+        return true;
+    }
+
+    /**
+     * Hands "record" to the pool if fewer than {@link #DEFAULT_MAX_PENDING} records are pending, without waiting.
+     * @param flags how the record was signed, such as {@link Frame#FLAG_SIGNED}
+     * @param record the opened record, or <code>null</code> if it failed to open
+     * @return <code>false</code> if the queue was full, in which case "record" was not submitted
+     */
+    public boolean trySubmit(byte flags, byte[] record) {
+        CompletableFuture<VerificationPool.Verification> verification;
+        synchronized (mLock) {
+            if (mPending.size() >= mMaxPending) {
+                return false;
+            }
+            verification = enqueue(flags, record);
+        }
+
+        verification.whenComplete((result, failure) -> release());
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the next {@link #trySubmit(byte, byte[])} would fail
+     */
+    public boolean isFull() {
+        synchronized (mLock) {
+            return mPending.size() >= mMaxPending;
+        }
+    }
+
+    /**
+     * Runs "onNotFull" once the queue has room for another record: straight away on the calling thread if it has
+     * room now, or else on the thread that releases the next record. Only the last callback given is kept.
+     */
+    public void whenNotFull(Runnable onNotFull) {
+        synchronized (mLock) {
+            if (mPending.size() >= mMaxPending) {
+                mOnNotFull = onNotFull;
+                return;
+            }
+        }
+        onNotFull.run();
+    }
+
+    // guarded by mLock
+    private CompletableFuture<VerificationPool.Verification> enqueue(byte flags, byte[] record) {
+        CompletableFuture<VerificationPool.Verification> verification = mPool.verify(mSession, flags, record);
+        mPending.add(verification);
+        return verification;
+    }
+
+    /**
+     * Waits until every record submitted so far has been handed to the listener.
+     * @return <code>false</code> if the thread was interrupted
+     */
+    public boolean flush() {
+        synchronized (mLock) {
+            while (!mPending.isEmpty() || mReleasing) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of records submitted and not yet handed to the listener
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * Hands every finished record at the head of the queue to the listener. Only one thread does so at a time;
+     * any other finds it busy and leaves, and the releasing thread picks up what it finished on its next pass.
+     */
+    private void release() {
+        while (true) {
+            CompletableFuture<VerificationPool.Verification> head;
+            Runnable onNotFull;
+            synchronized (mLock) {
+                head = mPending.peek();
+                if (mReleasing || head == null || !head.isDone()) {
+                    return;
+                }
+                mPending.poll();
+                mReleasing = true;
+                onNotFull = mOnNotFull;
+                mOnNotFull = null;
+                mLock.notifyAll();
+            }
+
+            try {
+                if (onNotFull != null) {
+                    onNotFull.run();
+                }
+                mListener.accept(head.join());
+            } catch (RuntimeException e) {
+                Console.exception(e);
+            } finally {
+                synchronized (mLock) {
+                    mReleasing = false;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.jacemcpherson;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that {@link PipelinedReceiver} reports every outcome to the {@link PipelinedSender} correctly when
+ * {@link PipelinedReceiver#acknowledge(PipelinedReceiver.Delivery, boolean)} is called from many threads at once,
+ * as it is by the {@link VerificationPool} workers of <code>Main --pipeline server</code>. Acks sent out of order
+ * used to let the sender take failed messages as verified.
+ * <br><br>
+ * Runs without a test framework: <code>java com.jacemcpherson.PipelinedReceiverTest</code> exits with an error if
+ * any check fails.
+ */
+public class PipelinedReceiverTest {
+
+    private static final int MESSAGE_COUNT = 2000;
+    private static final int WINDOW = PipelinedSender.MAX_WINDOW;
+    private static final int ACKNOWLEDGING_THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        Console.setLevel(Console.LogType.INFO);
+        try {
+            concurrentAcknowledgementsKeepFailures();
+        } catch (AssertionError e) {
+            Console.e("PipelinedReceiverTest failed: %s", e.getMessage());
+            Console.flush();
+            System.exit(1);
+        }
+        Console.i("PipelinedReceiverTest passed");
+        Console.flush();
+        System.exit(0);
+    }
+
+    /**
+     * Every message whose sequence number is a multiple of 3 fails; the rest pass. Outcomes are recorded by
+     * several threads at once, in no particular order.
+     */
+    private static void concurrentAcknowledgementsKeepFailures() throws Exception {
+        Communicator[] pair = connectedPair();
+        PipelinedSender sender = pair[0].sendPipelined(WINDOW);
+        PipelinedReceiver receiver = pair[1].receivePipelined();
+
+        List<CompletableFuture<Boolean>> outcomes = new ArrayList<>();
+        Thread alice = new Thread(() -> {
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                outcomes.add(sender.send(Frame.FLAG_NONE, new byte[] { (byte) i }));
+            }
+            sender.flush();
+        });
+        alice.start();
+
+        ExecutorService acknowledging = Executors.newFixedThreadPool(ACKNOWLEDGING_THREADS);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            PipelinedReceiver.Delivery delivery = receiver.receive();
+            check(delivery != null && delivery.getSequence() == i, "message " + i + " was not delivered in order");
+            acknowledging.execute(() -> receiver.acknowledge(delivery, delivery.getSequence() % 3 != 0));
+        }
+        acknowledging.shutdown();
+        check(acknowledging.awaitTermination(10, TimeUnit.SECONDS), "acknowledging threads did not finish");
+
+        // waiting for more sends the outcomes not reported yet, as a server does; the wait ends when Alice closes
+        Thread bob = new Thread(() -> check(receiver.receive() == null, "a message was delivered twice"));
+        bob.start();
+
+        alice.join(TimeUnit.SECONDS.toMillis(30));
+        check(!alice.isAlive(), "the sender never received every outcome");
+
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            Boolean verified = outcomes.get(i).getNow(null);
+            check(verified != null, "message " + i + " has no outcome");
+            check(verified == (i % 3 != 0), "message " + i + " was reported as " + (verified ? "verified" : "failed"));
+        }
+
+        sender.close();
+        bob.join();
+        check(receiver.isFinished(), "the receiver did not see the sender close");
+        pair[0].close();
+        pair[1].close();
+    }
+
+    /**
+     * @return { Alice, Bob }, connected over loopback with their keys exchanged
+     */
+    private static Communicator[] connectedPair() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel aliceChannel = SocketChannel.open(server.getLocalAddress());
+        SocketChannel bobChannel = server.accept();
+        server.close();
+
+        Communicator alice = new Communicator(aliceChannel, false);
+        Communicator bob = new Communicator(bobChannel, true);
+        Thread bobHandshake = new Thread(() -> {
+            bob.exchangeRSAPublicKey();
+            bob.exchangeSecretKey();
+        });
+        bobHandshake.start();
+        check(alice.exchangeRSAPublicKey() && alice.exchangeSecretKey(), "Alice's key exchange failed");
+        bobHandshake.join();
+        return new Communicator[] { alice, bob };
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.jacemcpherson;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks that two {@link RecordLayer}s stay in step across key updates: the record marked with
+ * {@link Frame#FLAG_KEY_UPDATE} is still sealed under the old key, the next one is sealed under the new key with
+ * the sequence number back at 0, and the update happens whether it was triggered by the record limit, the byte
+ * limit or {@link RecordLayer#requestKeyUpdate()}. The limits are set low, so that several epochs pass in a few
+ * records.
+ * <br><br>
+ * Runs without a test framework: <code>java com.jacemcpherson.RecordLayerTest</code> exits with an error if any
+ * check fails.
+ */
+public class RecordLayerTest {
+
+    private static final int MAX_RECORDS = 4;
+    private static final int MAX_BYTES = 1000;
+    private static final int RECORD_SIZE = 300;
+
+    public static void main(String[] args) throws Exception {
+        Console.setLevel(Console.LogType.INFO);
+        try {
+            recordLimitUpdatesKeys();
+            markedRecordIsSealedUnderOldKey();
+            requestedUpdateHappensOnce();
+            byteLimitUpdatesKeyMidStream();
+            tamperedKeyUpdateFlagIsRejected();
+        } catch (AssertionError e) {
+            Console.e("RecordLayerTest failed: %s", e.getMessage());
+            Console.flush();
+            System.exit(1);
+        }
+        Console.i("RecordLayerTest passed");
+        Console.flush();
+        System.exit(0);
+    }
+
+    /**
+     * With a limit of {@link #MAX_RECORDS} records per key, every fourth record is marked, and both ends move to
+     * the next epoch together.
+     */
+    private static void recordLimitUpdatesKeys() throws Exception {
+        RecordLayer[] pair = pair();
+        RecordLayer alice = pair[0];
+        RecordLayer bob = pair[1];
+        alice.setKeyUpdateLimits(MAX_RECORDS, Long.MAX_VALUE);
+
+        int epochs = 5;
+        for (int i = 0; i < epochs * MAX_RECORDS; i++) {
+            byte flags = alice.markKeyUpdate(Frame.FLAG_NONE);
+            boolean last = i % MAX_RECORDS == MAX_RECORDS - 1;
+            checkMarked(flags, i, last);
+            check(alice.getSendSequence() == i % MAX_RECORDS, "record " + i + " has the wrong sequence number");
+
+            roundTrip(alice, bob, flags, message(i, 20));
+            check(alice.getSendEpoch() == (i + 1) / MAX_RECORDS, "Alice is in the wrong epoch after record " + i);
+            check(bob.getReceiveEpoch() == alice.getSendEpoch(), "Bob fell out of step after record " + i);
+            check(bob.getReceiveSequence() == alice.getSendSequence(), "sequence numbers differ after record " + i);
+        }
+        check(alice.getSendSequence() == 0, "the sequence number did not start again from 0");
+        check(alice.getSendEpoch() == epochs, "Alice went through " + alice.getSendEpoch() + " epochs");
+        check(bob.getSendEpoch() == 0, "Bob's own sending key was replaced too");
+    }
+
+    /**
+     * The marked record opens under the old key; the record after it, with the same sequence number, plaintext and
+     * flags as the first record of the old epoch, comes out different, so it was sealed under a new key.
+     */
+    private static void markedRecordIsSealedUnderOldKey() throws Exception {
+        RecordLayer[] pair = pair();
+        RecordLayer alice = pair[0];
+        RecordLayer bob = pair[1];
+
+        byte[] message = message(0, 20);
+        byte[] first = alice.seal(Frame.FLAG_NONE, message);
+        check(Arrays.equals(bob.open(Frame.FLAG_NONE, first), message), "the first record did not open");
+
+        alice.requestKeyUpdate();
+        byte flags = alice.markKeyUpdate(Frame.FLAG_NONE);
+        byte[] marked = alice.seal(flags, message);
+        check(alice.getSendSequence() == 0 && alice.getSendEpoch() == 1, "sealing the marked record did not update");
+        // Bob only moves to the next key once the marked record has opened
+        check(Arrays.equals(bob.open(flags, marked), message), "the marked record was not sealed under the old key");
+
+        byte[] next = alice.seal(Frame.FLAG_NONE, message);
+        check(!Arrays.equals(next, first), "the record after the update was sealed under the old key");
+        check(Arrays.equals(bob.open(Frame.FLAG_NONE, next), message), "Bob could not open a record under the new key");
+        check(bob.getReceiveSequence() == 1 && bob.getReceiveEpoch() == 1, "Bob is not at sequence 1 of epoch 1");
+    }
+
+    /**
+     * {@link RecordLayer#requestKeyUpdate()} marks the next record only, however far below the limits the key is.
+     */
+    private static void requestedUpdateHappensOnce() throws Exception {
+        RecordLayer[] pair = pair();
+        RecordLayer alice = pair[0];
+        RecordLayer bob = pair[1];
+
+        roundTrip(alice, bob, alice.markKeyUpdate(Frame.FLAG_NONE), message(0, 20));
+        check(!isMarked(alice.markKeyUpdate(Frame.FLAG_NONE)), "a record was marked before any update was due");
+
+        alice.requestKeyUpdate();
+        byte flags = alice.markKeyUpdate(Frame.FLAG_SIGNED);
+        check(isMarked(flags), "the requested update did not mark the next record");
+        check((flags & Frame.FLAG_SIGNED) != 0, "marking the record dropped its other flags");
+        roundTrip(alice, bob, flags, message(1, 20));
+
+        check(!isMarked(alice.markKeyUpdate(Frame.FLAG_NONE)), "the request marked more than one record");
+        roundTrip(alice, bob, Frame.FLAG_NONE, message(2, 20));
+        check(alice.getSendEpoch() == 1 && bob.getReceiveEpoch() == 1, "the requested update did not happen once");
+    }
+
+    /**
+     * With a budget of {@link #MAX_BYTES} bytes per key and records of {@link #RECORD_SIZE} bytes, the budget runs
+     * out part-way through the fourth record, so the fifth is the last under each key. Sealed and opened in pooled
+     * buffers, as {@link NioSession} does.
+     */
+    private static void byteLimitUpdatesKeyMidStream() throws Exception {
+        RecordLayer[] pair = pair();
+        RecordLayer alice = pair[0];
+        RecordLayer bob = pair[1];
+        alice.setKeyUpdateLimits(Long.MAX_VALUE, MAX_BYTES);
+
+        int recordsPerKey = (MAX_BYTES + RECORD_SIZE - 1) / RECORD_SIZE + 1;
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer record = pool.acquire(RECORD_SIZE + RecordLayer.TAG_SIZE);
+        ByteBuffer plaintext = pool.acquire(RECORD_SIZE);
+        try {
+            for (int i = 0; i < 3 * recordsPerKey; i++) {
+                byte flags = alice.markKeyUpdate(Frame.FLAG_NONE);
+                boolean last = i % recordsPerKey == recordsPerKey - 1;
+                checkMarked(flags, i, last);
+
+                byte[] message = message(i, RECORD_SIZE);
+                record.clear();
+                boolean sealed = alice.seal(Frame.TYPE_RECORD, flags, ByteBuffer.wrap(message), record);
+                check(sealed, "record " + i + " was not sealed");
+                record.flip();
+                plaintext.clear();
+                check(bob.open(Frame.TYPE_RECORD, flags, record, plaintext), "record " + i + " did not open");
+                plaintext.flip();
+                check(plaintext.equals(ByteBuffer.wrap(message)), "record " + i + " opened to the wrong message");
+            }
+        } finally {
+            pool.release(record);
+            pool.release(plaintext);
+        }
+        check(alice.getSendEpoch() == 3 && bob.getReceiveEpoch() == 3, "the byte limit did not update the key 3 times");
+    }
+
+    /**
+     * The key update flag is authenticated: a record with it stripped or added does not open, and does not move
+     * the receiver on, so the genuine record still opens afterwards.
+     */
+    private static void tamperedKeyUpdateFlagIsRejected() throws Exception {
+        RecordLayer[] pair = pair();
+        RecordLayer alice = pair[0];
+        RecordLayer bob = pair[1];
+        byte[] message = message(0, 20);
+
+        alice.requestKeyUpdate();
+        byte flags = alice.markKeyUpdate(Frame.FLAG_NONE);
+        byte[] marked = alice.seal(flags, message);
+        check(bob.open(Frame.FLAG_NONE, marked) == null, "a record opened with its key update flag stripped");
+        check(bob.getReceiveEpoch() == 0 && bob.getReceiveSequence() == 0, "a rejected record moved Bob on");
+        check(Arrays.equals(bob.open(flags, marked), message), "the genuine marked record did not open");
+
+        byte[] next = alice.seal(Frame.FLAG_NONE, message);
+        check(bob.open(Frame.FLAG_KEY_UPDATE, next) == null, "a record opened with a key update flag added");
+        check(bob.getReceiveEpoch() == 1, "a rejected record updated Bob's key");
+        check(Arrays.equals(bob.open(Frame.FLAG_NONE, next), message), "the genuine record did not open");
+    }
+
+    private static void roundTrip(RecordLayer sender, RecordLayer receiver, byte flags, byte[] message) {
+        byte[] record = sender.seal(flags, message);
+        check(record != null, "sealing failed");
+        check(Arrays.equals(receiver.open(flags, record), message), "a record did not open to the sealed message");
+    }
+
+    /**
+     * @return { Alice, Bob }, the client and server ends of one connection with a fresh secret key
+     */
+    private static RecordLayer[] pair() throws Exception {
+        SecretKey secretKey = AESEncryptionUtil.generateSecretKey();
+        return new RecordLayer[] { new RecordLayer(secretKey, false), new RecordLayer(secretKey, true) };
+    }
+
+    private static byte[] message(int index, int length) {
+        byte[] message = new byte[length];
+        Arrays.fill(message, (byte) index);
+        return message;
+    }
+
+    private static void checkMarked(byte flags, int record, boolean last) {
+        check(isMarked(flags) == last, "record " + record + (last ? " was not" : " was") + " marked for a key update");
+    }
+
+    private static boolean isMarked(byte flags) {
+        return (flags & Frame.FLAG_KEY_UPDATE) != 0;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.jacemcpherson;
+
+import javax.crypto.SecretKey;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Checks that a {@link ReplayWindow} accepts each sequence number once, covers exactly the last
+ * {@link ReplayWindow#getSize()} sequence numbers up to the highest one seen, and keeps the right bits when it
+ * slides, including across jumps longer than its whole ring of words. Also checks that the datagrams
+ * {@link DatagramRecordLayer} drops because of the window are counted by {@link Metrics#replayed()} and
+ * {@link Metrics#outOfWindow()}, as read over JMX.
+ * <br><br>
+ * Runs without a test framework: <code>java com.jacemcpherson.ReplayWindowTest</code> exits with an error if any
+ * check fails.
+ */
+public class ReplayWindowTest {
+
+    private static final int[] SIZES = { 1, 64, 100, 128, 1024 };
+    private static final int HEADER_SIZE = 8;
+
+    public static void main(String[] args) throws Exception {
+        Console.setLevel(Console.LogType.INFO);
+        try {
+            for (int size : SIZES) {
+                duplicatesAreRejected(size);
+                windowEdgeIsExact(size);
+                slidingForgetsOldBits(size);
+                longJumpsClearTheRing(size);
+            }
+            dropsAreCounted();
+        } catch (AssertionError e) {
+            Console.e("ReplayWindowTest failed: %s", e.getMessage());
+            Console.flush();
+            System.exit(1);
+        }
+        Console.i("ReplayWindowTest passed");
+        Console.flush();
+        System.exit(0);
+    }
+
+    /**
+     * Sequence numbers arriving in order, out of order and more than once.
+     */
+    private static void duplicatesAreRejected(int size) {
+        ReplayWindow window = new ReplayWindow(size);
+        check(window.getSize() % 64 == 0 && window.getSize() >= size, "size " + size + " became " + window.getSize());
+        check(!window.check(-1), "size " + size + ": a negative sequence number was accepted");
+
+        for (long sequence = 0; sequence < 10; sequence++) {
+            accept(window, sequence);
+            check(!window.check(sequence), "size " + size + ": " + sequence + " was accepted twice");
+        }
+
+        long highest = window.getSize() / 2 + 10;
+        accept(window, highest);
+        for (long sequence = highest - 1; sequence >= 10; sequence--) {
+            accept(window, sequence);
+        }
+        for (long sequence = 0; sequence <= highest; sequence++) {
+            check(!window.check(sequence), "size " + size + ": " + sequence + " was accepted twice out of order");
+            check(!window.isTooOld(sequence), "size " + size + ": " + sequence + " was taken for too old");
+        }
+        check(window.getHighest() == highest, "size " + size + ": the highest sequence number moved back");
+    }
+
+    /**
+     * With "highest" seen, <code>highest - size</code> is too old, and <code>highest - size + 1</code> is the
+     * oldest sequence number still accepted, wherever in a word "highest" falls.
+     */
+    private static void windowEdgeIsExact(int size) {
+        for (long offset : new long[] { 0, 1, 63, 64, 65, 64 * 37 + 31 }) {
+            ReplayWindow window = new ReplayWindow(size);
+            int windowSize = window.getSize();
+            long highest = windowSize + offset;
+            accept(window, highest);
+
+            long edge = highest - windowSize;
+            String at = "size " + size + ", highest " + highest + ": ";
+            check(!window.check(edge), at + edge + " was accepted");
+            check(window.isTooOld(edge), at + edge + " was not taken for too old");
+            check(window.check(edge + 1), at + (edge + 1) + " was rejected");
+            check(!window.isTooOld(edge + 1), at + (edge + 1) + " was taken for too old");
+
+            for (long sequence = edge + 1; sequence < highest; sequence++) {
+                accept(window, sequence);
+            }
+            check(!window.check(edge + 1), at + (edge + 1) + " was accepted twice");
+            check(window.getHighest() == highest, at + "accepting older sequence numbers moved the window");
+        }
+    }
+
+    /**
+     * Every sequence number up to "highest" is seen, then the window slides forward by different distances: the
+     * ones still covered must read as seen, and the skipped ones, which reuse the bits of old ones, as unseen.
+     */
+    private static void slidingForgetsOldBits(int size) {
+        int windowSize = new ReplayWindow(size).getSize();
+        for (int distance : new int[] { 1, 63, 64, 65, windowSize - 1, windowSize, windowSize + 1, 2 * windowSize }) {
+            ReplayWindow window = new ReplayWindow(size);
+            long highest = 3L * windowSize + 17;
+            for (long sequence = 0; sequence <= highest; sequence++) {
+                accept(window, sequence);
+            }
+
+            long next = highest + distance;
+            accept(window, next);
+            String at = "size " + size + ", slide " + distance + ": ";
+            for (long sequence = next - windowSize + 1; sequence < next; sequence++) {
+                boolean seen = sequence <= highest;
+                check(window.check(sequence) != seen, at + sequence + (seen ? " was accepted twice" : " was rejected"));
+            }
+            check(!window.check(next - windowSize), at + (next - windowSize) + " was accepted");
+        }
+    }
+
+    /**
+     * Jumps of more words than the window keeps, so that every word of the ring has to be cleared at once.
+     */
+    private static void longJumpsClearTheRing(int size) {
+        int windowSize = new ReplayWindow(size).getSize();
+        // the window keeps one word more than it covers
+        int ringWords = windowSize / 64 + 1;
+        for (long jump : new long[] { 64L * ringWords, 64L * ringWords + 1, 64L * (ringWords + 1), 1L << 40 }) {
+            ReplayWindow window = new ReplayWindow(size);
+            for (long sequence = 0; sequence < 64L * ringWords; sequence++) {
+                accept(window, sequence);
+            }
+
+            long next = 64L * ringWords - 1 + jump;
+            accept(window, next);
+            String at = "size " + size + ", jump " + jump + ": ";
+            for (long sequence = next - windowSize + 1; sequence < next; sequence++) {
+                check(window.check(sequence), at + sequence + " was rejected");
+            }
+            check(!window.check(next), at + next + " was accepted twice");
+            check(window.isTooOld(0) && window.isTooOld(next - windowSize), at + "old sequence numbers were kept");
+        }
+    }
+
+    /**
+     * A datagram delivered twice counts as a replay; one that arrives after the window has moved past it counts
+     * as out of the window, even if it was never delivered. Neither reaches AES-GCM, so neither is an integrity
+     * failure.
+     */
+    private static void dropsAreCounted() throws Exception {
+        Metrics.registerMBeans();
+        MetricsMXBean metrics = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName("com.jacemcpherson:type=Metrics"), MetricsMXBean.class);
+
+        SecretKey secretKey = AESEncryptionUtil.generateSecretKey();
+        DatagramRecordLayer alice = new DatagramRecordLayer(secretKey, false, 64);
+        DatagramRecordLayer bob = new DatagramRecordLayer(secretKey, true, 64);
+        int windowSize = bob.getReplayWindowSize();
+
+        byte[][] datagrams = new byte[windowSize + 10][];
+        for (int i = 0; i < datagrams.length; i++) {
+            datagrams[i] = seal(alice, alice.reserveSequences(1), i);
+        }
+
+        long replays = metrics.getReplays();
+        long outOfWindow = metrics.getOutOfWindowDrops();
+        long integrityFailures = metrics.getIntegrityFailures();
+
+        check(open(bob, 0, datagrams[0]), "the first datagram did not open");
+        check(!open(bob, 0, datagrams[0]), "the first datagram opened twice");
+        check(metrics.getReplays() == replays + 1, "the replay was not counted");
+
+        int last = datagrams.length - 1;
+        check(open(bob, last, datagrams[last]), "the last datagram did not open");
+        check(!open(bob, 1, datagrams[1]), "a datagram behind the window opened");
+        check(!open(bob, 0, datagrams[0]), "the first datagram opened again");
+        check(metrics.getOutOfWindowDrops() == outOfWindow + 2, "the datagrams behind the window were not counted");
+
+        int oldest = last - windowSize + 1;
+        check(open(bob, oldest, datagrams[oldest]), "the oldest datagram still in the window did not open");
+        check(!open(bob, oldest, datagrams[oldest]), "the oldest datagram in the window opened twice");
+        check(metrics.getReplays() == replays + 2, "the replay at the edge of the window was not counted");
+        check(metrics.getOutOfWindowDrops() == outOfWindow + 2, "a replay was counted as out of the window");
+        check(metrics.getIntegrityFailures() == integrityFailures, "a dropped datagram was counted as modified");
+    }
+
+    /**
+     * @return a datagram of a header carrying "sequence", followed by a payload filled with "index"
+     */
+    private static byte[] seal(DatagramRecordLayer layer, long sequence, int index) {
+        byte[] header = new byte[HEADER_SIZE];
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            header[i] = (byte) (sequence >>> (56 - 8 * i));
+        }
+        byte[] payload = new byte[20];
+        Arrays.fill(payload, (byte) index);
+
+        byte[] sealed = layer.seal(sequence, header, payload, 0, payload.length);
+        check(sealed != null, "datagram " + sequence + " was not sealed");
+        byte[] datagram = Arrays.copyOf(header, HEADER_SIZE + sealed.length);
+        System.arraycopy(sealed, 0, datagram, HEADER_SIZE, sealed.length);
+        return datagram;
+    }
+
+    private static boolean open(DatagramRecordLayer layer, long sequence, byte[] datagram) {
+        byte[] payload = layer.open(sequence, datagram, HEADER_SIZE, datagram.length);
+        if (payload == null) {
+            return false;
+        }
+        byte[] expected = new byte[payload.length];
+        Arrays.fill(expected, (byte) sequence);
+        check(Arrays.equals(payload, expected), "datagram " + sequence + " opened to the wrong payload");
+        return true;
+    }
+
+    private static void accept(ReplayWindow window, long sequence) {
+        check(window.check(sequence), "size " + window.getSize() + ": " + sequence + " was rejected");
+        window.update(sequence);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}